@@ -7,6 +7,12 @@ import {
   importKey,
 } from '../util/encryption'
 import {EncPut} from '../services/backend'
+import {
+  decryptStringsNatively,
+  encryptStringsNatively,
+  hasNativeCrypto,
+  nativeCryptoMinBatch,
+} from '../services/androidCrypto'
 
 type UpsertPut = {
   id: string
@@ -30,6 +36,10 @@ export type Put =
     }
 
 export const decryptSyncData = async (cryptoKey: string, puts: EncPut[]): Promise<Put[]> => {
+  if (hasNativeCrypto() && puts.length >= nativeCryptoMinBatch) {
+    const decrypted = await decryptSyncDataNatively(cryptoKey, puts)
+    if (decrypted) return decrypted
+  }
   const key = await importKey(cryptoKey)
   return await Promise.all(
     puts.map(async (p) => {
@@ -47,7 +57,33 @@ export const decryptSyncData = async (cryptoKey: string, puts: EncPut[]): Promis
   )
 }
 
+const decryptSyncDataNatively = async (
+  cryptoKey: string,
+  puts: EncPut[]
+): Promise<Put[] | null> => {
+  const encrypted = puts.filter(
+    (p): p is EncPut & {cipher_text: string; iv: string} =>
+      p.deleted_at === null && p.cipher_text !== null && p.iv !== null
+  )
+  const texts = await decryptStringsNatively(cryptoKey, encrypted)
+  if (!texts) return null
+  let next = 0
+  return puts.map((p) => {
+    const res = {
+      ...p,
+      txt: p.deleted_at === null && p.cipher_text !== null && p.iv !== null ? texts[next++]! : null,
+    } as Put & {cipher_text?: string | null; iv?: string | null}
+    delete res.cipher_text
+    delete res.iv
+    return res
+  })
+}
+
 export const encryptSyncData = async (cryptoKey: string, puts: Put[]): Promise<EncPut[]> => {
+  if (hasNativeCrypto() && puts.length >= nativeCryptoMinBatch) {
+    const encrypted = await encryptSyncDataNatively(cryptoKey, puts)
+    if (encrypted) return encrypted
+  }
   const key = await importKey(cryptoKey)
   return await Promise.all(
     puts.map(async (p) => {
@@ -66,6 +102,24 @@ export const encryptSyncData = async (cryptoKey: string, puts: Put[]): Promise<E
   )
 }
 
+const encryptSyncDataNatively = async (
+  cryptoKey: string,
+  puts: Put[]
+): Promise<EncPut[] | null> => {
+  const upserts = puts.filter((p): p is UpsertPut => p.txt !== null && p.deleted_at === null)
+  const results = await encryptStringsNatively(cryptoKey, upserts.map((p) => p.txt))
+  if (!results) return null
+  let next = 0
+  return puts.map((p) => {
+    const res: EncPut & {txt?: string | null} =
+      p.txt !== null && p.deleted_at === null
+        ? {...p, ...results[next++]!, deleted_at: null}
+        : {...p, cipher_text: null, iv: null}
+    delete res.txt
+    return res
+  })
+}
+
 export const calcChecksum = (key: string, syncToken: string) => {
   const keyBin = base64ToBin(key)
   const syncTokenBin = base64ToBin(syncToken)
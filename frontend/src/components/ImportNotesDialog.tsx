@@ -1,10 +1,18 @@
-import {Button, FileInput, Group, Modal} from '@mantine/core'
+import {Button, FileInput, Group, Modal, Text} from '@mantine/core'
 import {useSelector} from '../state/store'
-import {closeImportDialog, importFileChanged, importNotes} from '../state/import'
+import {
+  closeImportDialog,
+  importFileChanged,
+  importNotes,
+  importNotesNatively,
+} from '../state/import'
 import {useCloseOnBack} from '../helpers/useCloseOnBack'
+import {getAndroidArchiveImport} from '../services/androidArchiveImport'
 
 export const ImportNotesDialog = () => {
   const {open, file, error} = useSelector((state) => state.import.importDialog)
+  // The Android wrapper picks and streams the backup itself.
+  const nativeImport = getAndroidArchiveImport() !== undefined
   useCloseOnBack({
     id: 'import-notes-dialog',
     open,
@@ -12,17 +20,29 @@ export const ImportNotesDialog = () => {
   })
   return (
     <Modal opened={open} onClose={closeImportDialog} title='Import notes'>
-      <FileInput
-        value={file}
-        onChange={importFileChanged}
-        label='Select backup .zip'
-        accept='.zip,application/zip,application/x-zip-compressed'
-        error={error}
-      />
+      {nativeImport ? (
+        error && (
+          <Text c='red' size='sm'>
+            {error}
+          </Text>
+        )
+      ) : (
+        <FileInput
+          value={file}
+          onChange={importFileChanged}
+          label='Select backup .zip'
+          accept='.zip,application/zip,application/x-zip-compressed'
+          error={error}
+        />
+      )}
       <Group justify='end' mt='lg'>
-        <Button onClick={importNotes} disabled={!file}>
-          Import
-        </Button>
+        {nativeImport ? (
+          <Button onClick={importNotesNatively}>Select backup and import</Button>
+        ) : (
+          <Button onClick={importNotes} disabled={!file}>
+            Import
+          </Button>
+        )}
       </Group>
     </Modal>
   )
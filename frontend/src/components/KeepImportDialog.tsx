@@ -5,11 +5,15 @@ import {
   keepImportArchivedChanged,
   keepImportFileChanged,
   keepImportNotes,
+  keepImportNotesNatively,
 } from '../state/import'
 import {useCloseOnBack} from '../helpers/useCloseOnBack'
+import {getAndroidArchiveImport} from '../services/androidArchiveImport'
 
 export const KeepImportDialog = () => {
   const {open, file, error, importArchived} = useSelector((state) => state.import.keepImportDialog)
+  // The Android wrapper picks and streams the takeout itself.
+  const nativeImport = getAndroidArchiveImport() !== undefined
   useCloseOnBack({
     id: 'keep-import-dialog',
     open,
@@ -24,13 +28,21 @@ export const KeepImportDialog = () => {
         </a>{' '}
         and select only Keep to export and zip as format.
       </Text>
-      <FileInput
-        value={file}
-        onChange={keepImportFileChanged}
-        label='Select file'
-        accept='.zip,application/x-zip-compressed,application/zip'
-        error={error}
-      />
+      {nativeImport ? (
+        error && (
+          <Text c='red' size='sm'>
+            {error}
+          </Text>
+        )
+      ) : (
+        <FileInput
+          value={file}
+          onChange={keepImportFileChanged}
+          label='Select file'
+          accept='.zip,application/x-zip-compressed,application/zip'
+          error={error}
+        />
+      )}
       <Checkbox
         mt='sm'
         label='Import archived notes'
@@ -38,9 +50,13 @@ export const KeepImportDialog = () => {
         onChange={(e) => keepImportArchivedChanged(e.target.checked)}
       />
       <Group justify='end' mt='lg'>
-        <Button onClick={keepImportNotes} disabled={!file}>
-          Import
-        </Button>
+        {nativeImport ? (
+          <Button onClick={keepImportNotesNatively}>Select file and import</Button>
+        ) : (
+          <Button onClick={keepImportNotes} disabled={!file}>
+            Import
+          </Button>
+        )}
       </Group>
     </Modal>
   )
@@ -13,7 +13,8 @@ import {ActionIconWithText} from './ActionIconWithText'
 import {IconMenu2} from './icons/IconMenu2'
 import {useFileDialog, useHotkeys} from '@mantine/hooks'
 import {selectAnyModeOrDialogActive, useSelector} from '../state/store'
-import {importFiles} from '../state/files'
+import {importFiles, importFilesNatively} from '../state/files'
+import {getAndroidImport} from '../services/androidImport'
 import {IconPhoto} from './icons/IconPhoto'
 import {
   archiveSelected,
@@ -148,8 +149,13 @@ const ImportActionIcon = () => {
       await importFiles(files, activeLabel)
     },
   })
+  const onClick = () => {
+    const androidImport = getAndroidImport()
+    if (androidImport) importFilesNatively(androidImport, activeLabel)
+    else open()
+  }
   return (
-    <ActionIconWithText onClick={open} title='Add Files' text='add' loading={filesImporting}>
+    <ActionIconWithText onClick={onClick} title='Add Files' text='add' loading={filesImporting}>
       <IconPhoto />
     </ActionIconWithText>
   )
@@ -16,12 +16,13 @@ const formatBytes = (bytes: number): string => {
 }
 
 export const StorageUsageDialog = () => {
-  const {open, fetching, calculating, local, remote} = useSelector((s) => s.storageUsage)
+  const {open, fetching, calculating, local, native, remote} = useSelector((s) => s.storageUsage)
   const loggedIn = useSelector((s) => s.user.user.loggedIn)
 
   useCloseOnBack({id: 'storage-usage-dialog', open, onClose: closeStorageUsageDialog})
 
   const localPct = local ? Math.min(100, (local.used / Math.max(1, local.limit)) * 100) : 0
+  const nativePct = native ? Math.min(100, (native.used / Math.max(1, native.limit)) * 100) : 0
   const filesPct = remote
     ? Math.min(100, (remote.files.used / Math.max(1, remote.files.limit)) * 100)
     : 0
@@ -49,6 +50,18 @@ export const StorageUsageDialog = () => {
           </Group>
         </Stack>
 
+        {native && (
+          <Stack gap={4}>
+            <Group justify='space-between'>
+              <Text fw={500}>App cache</Text>
+              <Text size='sm' c='dimmed'>
+                {`${formatBytes(native.used)} / ${formatBytes(native.limit)}`}
+              </Text>
+            </Group>
+            <Progress value={nativePct} color='gray' />
+          </Stack>
+        )}
+
         {loggedIn && (
           <>
             <Stack gap={4} style={{opacity: fetching ? 0.7 : 1}}>
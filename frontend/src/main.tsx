@@ -26,6 +26,9 @@ ReactDOM.createRoot(document.getElementById('root')!).render(
   </React.StrictMode>
 )
 
+// Lets the Android wrapper measure time to the first frame of the app shell.
+requestAnimationFrame(() => (globalThis as any).AndroidMetrics?.mark('spaReady'))
+
 declare global {
   interface Window {
     store: typeof useSelector
@@ -33,12 +36,13 @@ declare global {
   }
 }
 
+const normalizeRoute = (route: string) => (route.startsWith('/') ? route : `/${route}`)
+
 const params = new URLSearchParams(window.location.search)
 const initialPathParam = params.get('initialPath')
 if (initialPathParam) {
   try {
-    const decoded = decodeURIComponent(initialPathParam)
-    const normalized = decoded.startsWith('/') ? decoded : `/${decoded}`
+    const normalized = normalizeRoute(decodeURIComponent(initialPathParam))
     window.__ciphernotesInitialPath = normalized
     window.history.replaceState(null, '', normalized)
   } catch {
@@ -46,6 +50,16 @@ if (initialPathParam) {
   }
 }
 
+// Deep links that arrive while the app runs are handed over by the Android wrapper
+// instead of reloading the page. Like initialPath, they replace the entry: Back belongs to
+// the dialogs (useCloseOnBack), not to a trail of links opened from other apps.
+window.addEventListener('ciphernotes-route', (event) => {
+  const path = (event as CustomEvent<{path?: unknown}>).detail?.path
+  if (typeof path !== 'string') return
+  window.history.replaceState(null, '', normalizeRoute(path))
+})
+;(globalThis as any).AndroidRouter?.ready()
+
 if (import.meta.env.DEV) {
   window.store = useSelector
 }
@@ -0,0 +1,78 @@
+type AndroidArchiveImport = {
+  pick: (kind: ArchiveKind, includeArchived: boolean) => boolean
+  ack: (session: string) => void
+  release: (id: string) => void
+}
+export type ArchiveKind = 'keep' | 'backup'
+/** A Keep note as normalized by ArchiveImporter.java; timestamps in ms. */
+export type NativeKeepNote = {
+  title: string
+  txt?: string
+  todos?: {txt: string; done: boolean}[]
+  created_at: number
+  updated_at: number
+  archived: boolean
+  labels: string[]
+  attachments: {id: string; filePath: string; mime: string; size: number}[]
+}
+export type ArchiveBatch = {
+  session: string
+  kind: ArchiveKind
+  bytesRead: number
+  totalBytes: number
+  finished: boolean
+  /** The picker was closed without choosing a file. */
+  cancelled: boolean
+  error?: string
+  /** NativeKeepNote for 'keep', raw notes.json entries for 'backup'. */
+  notes: unknown[]
+  files: unknown[]
+  blobs: {name: string; id: string; size: number}[]
+  labelColors?: Record<string, unknown>
+}
+
+export const getAndroidArchiveImport = (): AndroidArchiveImport | undefined =>
+  (globalThis as any)?.AndroidArchiveImport
+
+/**
+ * Lets the user pick a ZIP and has the Android wrapper stream it. Batches are passed to `handle`
+ * one at a time and acknowledged once it settles, which is what lets the importer read on. If
+ * `handle` throws, the rest of the archive is still drained so the importer can finish, and the
+ * error is rethrown at the end. Resolves with the last batch, or null if the picker could not be
+ * opened.
+ */
+export const importArchiveNatively = (
+  archiveImport: AndroidArchiveImport,
+  kind: ArchiveKind,
+  includeArchived: boolean,
+  handle: (batch: ArchiveBatch) => Promise<void>
+): Promise<ArchiveBatch | null> =>
+  new Promise((resolve, reject) => {
+    let session: string | null = null
+    let handling = Promise.resolve()
+    let failure: unknown = null
+    const listener = (event: Event) => {
+      const batch = (event as CustomEvent<ArchiveBatch>).detail
+      session ??= batch.session
+      if (batch.session !== session) return
+      handling = handling.then(async () => {
+        try {
+          if (failure === null) await handle(batch)
+        } catch (e) {
+          failure = e
+        } finally {
+          if (failure !== null) for (const blob of batch.blobs) archiveImport.release(blob.id)
+          archiveImport.ack(batch.session)
+        }
+      })
+      if (batch.finished) {
+        window.removeEventListener('ciphernotes-archive-import', listener)
+        handling.then(() => (failure !== null ? reject(failure) : resolve(batch)))
+      }
+    }
+    window.addEventListener('ciphernotes-archive-import', listener)
+    if (!archiveImport.pick(kind, includeArchived)) {
+      window.removeEventListener('ciphernotes-archive-import', listener)
+      resolve(null)
+    }
+  })
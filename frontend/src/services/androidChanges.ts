@@ -0,0 +1,36 @@
+export type AndroidChanges = {
+  connect: () => void
+  disconnect: () => void
+  isConnected: () => boolean
+}
+
+/**
+ * Notes other sessions pushed. One hint covers a whole burst of pushes; if `truncated`, `ids` is
+ * incomplete.
+ */
+export type ChangesHint = {events: number; ids: string[]; truncated: boolean}
+type ConnectionEventDetail = {connected: boolean}
+
+/**
+ * The Android wrapper's change feed, which holds this session's socket.io connection natively so
+ * it can batch pushes and keep listening while the app is in the background.
+ */
+export const getAndroidChanges = (): AndroidChanges | undefined =>
+  (globalThis as any)?.AndroidChanges
+
+/** Calls `listener` for each batch of changes. Returns the unsubscribe function. */
+export const onAndroidChanges = (listener: (hint: ChangesHint) => void): (() => void) => {
+  const handler = (event: Event) => listener((event as CustomEvent<ChangesHint>).detail)
+  window.addEventListener('ciphernotes-changes', handler)
+  return () => window.removeEventListener('ciphernotes-changes', handler)
+}
+
+/** Calls `listener` when the native connection comes up or goes down. */
+export const onAndroidConnectionChanged = (
+  listener: (connected: boolean) => void
+): (() => void) => {
+  const handler = (event: Event) =>
+    listener((event as CustomEvent<ConnectionEventDetail>).detail.connected)
+  window.addEventListener('ciphernotes-connection', handler)
+  return () => window.removeEventListener('ciphernotes-connection', handler)
+}
@@ -0,0 +1,179 @@
+import {afterEach, describe, expect, it} from 'vitest'
+import {binToBase64} from '../util/encryption'
+import {
+  decodeResponse,
+  decryptStringsNatively,
+  encodeRequest,
+  encryptStringsNatively,
+} from './androidCrypto'
+
+// Same known answer as BatchCipherTest.java in the Android wrapper.
+const key = Uint8Array.from({length: 32}, (_, i) => i)
+const iv = Uint8Array.from({length: 12}, (_, i) => 0xa0 + i)
+const plaintext = '{"title":"Groceries","txt":"eggs"}'
+const cipherText = 'nToIRDGnZ51YR8ChaBmlrBnJKjK+lTYU6CwcpBrMEnLwC9r/naBuOFRpVkhBe87ApqE='
+
+type Listener = (event: MessageEvent) => void
+
+/** Stands in for the wrapper's AndroidCrypto channel, answering with `reply`. */
+const installChannel = (reply: (request: ArrayBuffer) => ArrayBuffer) => {
+  const listeners = new Set<Listener>()
+  const requests: ArrayBuffer[] = []
+  ;(globalThis as any).AndroidCrypto = {
+    postMessage: (message: ArrayBuffer) => {
+      requests.push(message)
+      const response = reply(message)
+      queueMicrotask(() =>
+        listeners.forEach((listener) => listener({data: response} as MessageEvent)),
+      )
+    },
+    addEventListener: (_: 'message', listener: Listener) => listeners.add(listener),
+    removeEventListener: (_: 'message', listener: Listener) => listeners.delete(listener),
+  }
+  return {requests, listeners}
+}
+
+/** Builds a response frame the way BatchCipher.java does. */
+const encodeResponse = (
+  requestId: number,
+  items: {status: number; iv: Uint8Array; data: Uint8Array}[],
+) => {
+  let size = 8
+  for (const item of items) size += 1 + 12 + 4 + item.data.length
+  const buffer = new ArrayBuffer(size)
+  const view = new DataView(buffer)
+  const bytes = new Uint8Array(buffer)
+  view.setUint32(0, requestId, true)
+  view.setUint32(4, items.length, true)
+  let offset = 8
+  for (const item of items) {
+    view.setUint8(offset, item.status)
+    bytes.set(item.iv, offset + 1)
+    view.setUint32(offset + 13, item.data.length, true)
+    bytes.set(item.data, offset + 17)
+    offset += 17 + item.data.length
+  }
+  return buffer
+}
+
+const errorResponse = (requestId: number) => {
+  const buffer = new ArrayBuffer(8)
+  const view = new DataView(buffer)
+  view.setUint32(0, requestId, true)
+  view.setUint32(4, 0xffffffff, true)
+  return buffer
+}
+
+afterEach(() => {
+  delete (globalThis as any).AndroidCrypto
+})
+
+describe('androidCrypto frames', () => {
+  it('encodes a request in the little-endian layout BatchCipher reads', () => {
+    const data = new Uint8Array([1, 2, 3])
+    const view = new DataView(encodeRequest(0x01020304, 1, key, [{iv, data}]))
+
+    expect(view.byteLength).toBe(4 + 1 + 32 + 4 + 12 + 4 + 3)
+    expect(view.getUint32(0, true)).toBe(0x01020304)
+    expect(view.getUint8(4)).toBe(1)
+    expect(new Uint8Array(view.buffer, 5, 32)).toEqual(key)
+    expect(view.getUint32(37, true)).toBe(1)
+    expect(new Uint8Array(view.buffer, 41, 12)).toEqual(iv)
+    expect(view.getUint32(53, true)).toBe(3)
+    expect(new Uint8Array(view.buffer, 57, 3)).toEqual(data)
+  })
+
+  it('decodes every item of a response, failed ones included', () => {
+    const response = encodeResponse(9, [
+      {status: 0, iv, data: new Uint8Array([7, 8])},
+      {status: 1, iv, data: new Uint8Array()},
+    ])
+
+    const {requestId, results} = decodeResponse(response)
+
+    expect(requestId).toBe(9)
+    expect(results).toEqual([
+      {ok: true, iv, data: new Uint8Array([7, 8])},
+      {ok: false, iv, data: new Uint8Array()},
+    ])
+  })
+
+  it('decodes an error frame to null results', () => {
+    expect(decodeResponse(errorResponse(5))).toEqual({requestId: 5, results: null})
+  })
+})
+
+describe('decryptStringsNatively', () => {
+  it('sends WebCrypto output and reads back the plaintext', async () => {
+    const webCryptoKey = await crypto.subtle.importKey('raw', key, {name: 'AES-GCM'}, false, [
+      'encrypt',
+    ])
+    const encrypted = new Uint8Array(
+      await crypto.subtle.encrypt(
+        {name: 'AES-GCM', iv, tagLength: 128},
+        webCryptoKey,
+        new TextEncoder().encode(plaintext),
+      ),
+    )
+    expect(binToBase64(encrypted)).toBe(cipherText)
+
+    const {requests} = installChannel((request) => {
+      const view = new DataView(request)
+      const sent = new Uint8Array(request, 57, view.getUint32(53, true))
+      expect(sent).toEqual(encrypted)
+      const data = new TextEncoder().encode(plaintext)
+      return encodeResponse(view.getUint32(0, true), [{status: 0, iv, data}])
+    })
+
+    const texts = await decryptStringsNatively(binToBase64(key), [
+      {iv: binToBase64(iv), cipher_text: cipherText},
+    ])
+
+    expect(texts).toEqual([plaintext])
+    expect(requests).toHaveLength(1)
+  })
+
+  it('throws when an item failed, like decryptString', async () => {
+    installChannel((request) =>
+      encodeResponse(new DataView(request).getUint32(0, true), [
+        {status: 1, iv, data: new Uint8Array()},
+      ]),
+    )
+
+    await expect(
+      decryptStringsNatively(binToBase64(key), [{iv: binToBase64(iv), cipher_text: cipherText}]),
+    ).rejects.toThrow('Decryption failed')
+  })
+
+  it('falls back at once on an error frame', async () => {
+    const {listeners} = installChannel((request) =>
+      errorResponse(new DataView(request).getUint32(0, true)),
+    )
+
+    const started = Date.now()
+    const texts = await decryptStringsNatively(binToBase64(key), [
+      {iv: binToBase64(iv), cipher_text: cipherText},
+    ])
+
+    expect(texts).toBeNull()
+    expect(Date.now() - started).toBeLessThan(1000)
+    expect(listeners.size).toBe(0)
+  })
+})
+
+describe('encryptStringsNatively', () => {
+  it('returns the wrapper-chosen iv with each cipher text', async () => {
+    const chosenIv = new Uint8Array(12).fill(9)
+    installChannel((request) =>
+      encodeResponse(new DataView(request).getUint32(0, true), [
+        {status: 0, iv: chosenIv, data: new Uint8Array([1, 2, 3])},
+      ]),
+    )
+
+    const results = await encryptStringsNatively(binToBase64(key), ['hi'])
+
+    expect(results).toEqual([
+      {cipher_text: binToBase64(new Uint8Array([1, 2, 3])), iv: binToBase64(chosenIv)},
+    ])
+  })
+})
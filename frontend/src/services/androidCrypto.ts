@@ -0,0 +1,129 @@
+import {base64ToBin, binToBase64} from '../util/encryption'
+
+type AndroidCryptoChannel = {
+  postMessage: (message: ArrayBuffer) => void
+  addEventListener: (type: 'message', listener: (event: MessageEvent) => void) => void
+  removeEventListener: (type: 'message', listener: (event: MessageEvent) => void) => void
+}
+type Item = {iv: Uint8Array; data: Uint8Array}
+type Result = {ok: boolean; iv: Uint8Array; data: Uint8Array}
+
+const opDecrypt = 1
+const opEncrypt = 2
+const ivBytes = 12
+const keyBytes = 32
+const timeoutMs = 30_000
+/** Count of an error frame: the wrapper could not process the request at all. */
+const errorCount = 0xffffffff
+/** Smaller batches are not worth the round trip; WebCrypto handles them. */
+export const nativeCryptoMinBatch = 32
+
+let nextRequestId = 1
+
+const getChannel = (): AndroidCryptoChannel | undefined => (globalThis as any)?.AndroidCrypto
+
+export const hasNativeCrypto = () => getChannel() !== undefined
+
+/** Frame layout: see BatchCipher.java in the Android wrapper. All integers little-endian. */
+export const encodeRequest = (requestId: number, op: number, key: Uint8Array, items: Item[]) => {
+  let size = 4 + 1 + keyBytes + 4
+  for (const item of items) size += ivBytes + 4 + item.data.length
+  const buffer = new ArrayBuffer(size)
+  const view = new DataView(buffer)
+  const bytes = new Uint8Array(buffer)
+  view.setUint32(0, requestId, true)
+  view.setUint8(4, op)
+  bytes.set(key, 5)
+  view.setUint32(5 + keyBytes, items.length, true)
+  let offset = 9 + keyBytes
+  for (const {iv, data} of items) {
+    bytes.set(iv, offset)
+    view.setUint32(offset + ivBytes, data.length, true)
+    bytes.set(data, offset + ivBytes + 4)
+    offset += ivBytes + 4 + data.length
+  }
+  return buffer
+}
+
+/** Results are null for an error frame. */
+export const decodeResponse = (
+  buffer: ArrayBuffer
+): {requestId: number; results: Result[] | null} => {
+  const view = new DataView(buffer)
+  const bytes = new Uint8Array(buffer)
+  const requestId = view.getUint32(0, true)
+  const count = view.getUint32(4, true)
+  if (count === errorCount) return {requestId, results: null}
+  const results: Result[] = []
+  let offset = 8
+  for (let i = 0; i < count; i++) {
+    const ok = view.getUint8(offset) === 0
+    const iv = bytes.subarray(offset + 1, offset + 1 + ivBytes)
+    const length = view.getUint32(offset + 1 + ivBytes, true)
+    const start = offset + 1 + ivBytes + 4
+    results.push({ok, iv, data: bytes.subarray(start, start + length)})
+    offset = start + length
+  }
+  return {requestId, results}
+}
+
+/**
+ * Resolves to null if the channel is missing, fails the request or does not answer, so callers
+ * can fall back.
+ */
+const runBatch = (op: number, base64Key: string, items: Item[]): Promise<Result[] | null> => {
+  const channel = getChannel()
+  if (!channel) return Promise.resolve(null)
+  const requestId = nextRequestId++
+  return new Promise((resolve) => {
+    const done = (results: Result[] | null) => {
+      clearTimeout(timer)
+      channel.removeEventListener('message', listener)
+      resolve(results)
+    }
+    const listener = (event: MessageEvent) => {
+      if (!(event.data instanceof ArrayBuffer)) return
+      const response = decodeResponse(event.data)
+      if (response.requestId === requestId) done(response.results)
+    }
+    const timer = setTimeout(() => done(null), timeoutMs)
+    channel.addEventListener('message', listener)
+    channel.postMessage(encodeRequest(requestId, op, base64ToBin(base64Key), items))
+  })
+}
+
+/** Decrypts (iv, cipher_text) pairs natively; throws on any failed item like decryptString. */
+export const decryptStringsNatively = async (
+  base64Key: string,
+  items: {iv: string; cipher_text: string}[]
+): Promise<string[] | null> => {
+  const results = await runBatch(
+    opDecrypt,
+    base64Key,
+    items.map(({iv, cipher_text}) => ({iv: base64ToBin(iv), data: base64ToBin(cipher_text)}))
+  )
+  if (!results) return null
+  const decoder = new TextDecoder()
+  return results.map((result) => {
+    if (!result.ok) throw new Error('Decryption failed')
+    return decoder.decode(result.data)
+  })
+}
+
+export const encryptStringsNatively = async (
+  base64Key: string,
+  texts: string[]
+): Promise<{cipher_text: string; iv: string}[] | null> => {
+  const encoder = new TextEncoder()
+  const emptyIv = new Uint8Array(ivBytes)
+  const results = await runBatch(
+    opEncrypt,
+    base64Key,
+    texts.map((text) => ({iv: emptyIv, data: encoder.encode(text)}))
+  )
+  if (!results) return null
+  return results.map((result) => {
+    if (!result.ok) throw new Error('Encryption failed')
+    return {cipher_text: binToBase64(result.data), iv: binToBase64(result.iv)}
+  })
+}
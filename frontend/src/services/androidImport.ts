@@ -0,0 +1,67 @@
+type AndroidImport = {
+  pick: () => boolean
+  release: (id: string) => void
+}
+export type NativeImportItem = {
+  id: string
+  name: string
+  mime: string
+  size: number
+  sha256: string
+  thumb: boolean
+}
+type ImportEventDetail = {
+  session: string
+  total: number
+  done: number
+  failed: number
+  finished: boolean
+  items: NativeImportItem[]
+}
+
+export const getAndroidImport = (): AndroidImport | undefined => (globalThis as any)?.AndroidImport
+
+/**
+ * Opens the system picker and lets the Android wrapper read the chosen files in parallel. Each
+ * batch of staged files is passed to `store`, one batch at a time, and released afterwards;
+ * `onProgress` follows the native progress. Resolves with the number of files picked, 0 if the
+ * picker was cancelled, or null if it could not be opened.
+ */
+export const importNatively = (
+  androidImport: AndroidImport,
+  store: (items: NativeImportItem[]) => Promise<void>,
+  onProgress: (done: number, total: number) => void
+): Promise<number | null> =>
+  new Promise((resolve) => {
+    let storing = Promise.resolve()
+    const listener = (event: Event) => {
+      const {total, done, finished, items} = (event as CustomEvent<ImportEventDetail>).detail
+      onProgress(done, total)
+      if (items.length > 0) {
+        storing = storing.then(async () => {
+          try {
+            await store(items)
+          } catch (e) {
+            console.error(e)
+          } finally {
+            for (const item of items) androidImport.release(item.id)
+          }
+        })
+      }
+      if (finished) {
+        window.removeEventListener('ciphernotes-import', listener)
+        storing.then(() => resolve(total))
+      }
+    }
+    window.addEventListener('ciphernotes-import', listener)
+    if (!androidImport.pick()) {
+      window.removeEventListener('ciphernotes-import', listener)
+      resolve(null)
+    }
+  })
+
+export const fetchStagedImport = async (name: string): Promise<Blob> => {
+  const res = await fetch(`/native/imports/${encodeURIComponent(name)}`)
+  if (!res.ok) throw new Error(`Staged import ${name} is gone (${res.status})`)
+  return await res.blob()
+}
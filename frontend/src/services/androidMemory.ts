@@ -0,0 +1,14 @@
+export type MemoryPressure = 'moderate' | 'critical'
+type MemoryPressureEventDetail = {level: number; severity: MemoryPressure}
+
+/**
+ * Calls `listener` when the Android wrapper reports memory pressure: on `moderate`, drop what is
+ * cheap to rebuild; on `critical`, everything that is not needed to show the current screen.
+ * Returns the unsubscribe function. Never fires outside the wrapper.
+ */
+export const onMemoryPressure = (listener: (pressure: MemoryPressure) => void): (() => void) => {
+  const handler = (event: Event) =>
+    listener((event as CustomEvent<MemoryPressureEventDetail>).detail.severity)
+  window.addEventListener('ciphernotes-memory-pressure', handler)
+  return () => window.removeEventListener('ciphernotes-memory-pressure', handler)
+}
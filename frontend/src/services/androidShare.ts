@@ -0,0 +1,63 @@
+type AndroidShareInbox = {
+  list: (max: number) => string
+  count: () => number
+  remove: (entryId: string) => void
+}
+export type SharedItem = {id: string; name: string; mime: string; size: number}
+export type ShareEntry = {
+  id: string
+  receivedAt: number
+  subject: string | null
+  text: string | null
+  failed: number
+  items: SharedItem[]
+}
+
+// Entries per bridge call; each one holds up to 16 files.
+const DRAIN_BATCH = 4
+
+export const getAndroidShareInbox = (): AndroidShareInbox | undefined =>
+  (globalThis as any)?.AndroidShareInbox
+
+/**
+ * Passes what was shared into the Android wrapper to `store`, one entry at a time in the order it
+ * arrived, and removes each entry once stored. Entries `store` fails on stay in the inbox for the
+ * next drain. Resolves with the number of entries stored.
+ */
+export const drainShareInbox = async (
+  inbox: AndroidShareInbox,
+  store: (entry: ShareEntry) => Promise<void>
+): Promise<number> => {
+  const failed = new Set<string>()
+  let stored = 0
+  for (;;) {
+    const entries = (JSON.parse(inbox.list(DRAIN_BATCH + failed.size)) as ShareEntry[]).filter(
+      (entry) => !failed.has(entry.id)
+    )
+    if (entries.length === 0) return stored
+    for (const entry of entries) {
+      try {
+        await store(entry)
+        inbox.remove(entry.id)
+        stored++
+      } catch (e) {
+        console.error(e)
+        failed.add(entry.id)
+      }
+    }
+  }
+}
+
+/**
+ * Calls `listener` when something is shared while the page runs. Returns the unsubscribe function.
+ */
+export const onShareInboxChanged = (listener: () => void): (() => void) => {
+  window.addEventListener('ciphernotes-share', listener)
+  return () => window.removeEventListener('ciphernotes-share', listener)
+}
+
+export const fetchSharedItem = async (id: string): Promise<Blob> => {
+  const res = await fetch(`/native/inbox/${encodeURIComponent(id)}`)
+  if (!res.ok) throw new Error(`Shared item ${id} is gone (${res.status})`)
+  return await res.blob()
+}
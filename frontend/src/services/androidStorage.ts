@@ -0,0 +1,14 @@
+type AndroidStorage = {usage: () => string}
+export type NativeCacheUsage = {name: string; used: number; quota: number; files: number}
+
+/** Usage of the Android wrapper's file caches (camera captures, downloads), if running in it. */
+export const getNativeCacheUsage = (): NativeCacheUsage[] | null => {
+  const storage: AndroidStorage | undefined = (globalThis as any)?.AndroidStorage
+  if (!storage) return null
+  try {
+    return JSON.parse(storage.usage()).areas
+  } catch (e) {
+    console.info(`Failed to read native cache usage: ${e}`)
+    return null
+  }
+}
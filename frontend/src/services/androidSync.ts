@@ -0,0 +1,35 @@
+import {EncSyncRes, Res} from './backend'
+
+type AndroidSync = {
+  configure: (lastSyncedTo: number, syncToken: string) => void
+  disable: () => void
+  hasDelta: () => boolean
+}
+type BackgroundDelta = {from: number; syncToken: string; fetchedAt: number; res: Res<EncSyncRes>}
+
+export const getAndroidSync = (): AndroidSync | undefined => (globalThis as any)?.AndroidSync
+
+/**
+ * The sync response the Android wrapper pulled while the app was closed, if it continues exactly
+ * where this client's last sync ended. It was fetched without uploading anything, so it stands in
+ * for the response of a sync with no local changes. Null if there is none or it does not fit.
+ */
+export const takeBackgroundDelta = async (
+  lastSyncedTo: number,
+  syncToken: string
+): Promise<EncSyncRes | null> => {
+  const androidSync = getAndroidSync()
+  if (!androidSync?.hasDelta()) return null
+  try {
+    const res = await fetch('/native/sync/delta.json')
+    if (!res.ok) return null
+    const delta: BackgroundDelta = await res.json()
+    if (delta.from !== lastSyncedTo || delta.syncToken !== syncToken || !delta.res.success) {
+      return null
+    }
+    return delta.res.data
+  } catch (e) {
+    console.info(`Failed to read background sync delta: ${e}`)
+    return null
+  }
+}
@@ -0,0 +1,51 @@
+type AndroidTransfers = {
+  download: (json: string) => boolean
+  release: (id: string) => void
+}
+type TransferEventDetail = {id: string; state: 'done' | 'failed'; bytes: number; error?: string}
+
+export const getAndroidTransfers = (): AndroidTransfers | undefined =>
+  (globalThis as any)?.AndroidTransfers
+
+/**
+ * Downloads the presigned urls through the native transfer manager (parallel, resumable) and
+ * passes each body to `store` as it completes. Failed downloads are skipped, like in the worker.
+ * Returns false if the batch was refused, so the caller can fall back to fetching in the worker.
+ */
+export const downloadNatively = (
+  transfers: AndroidTransfers,
+  downloads: {note_id: string; url: string}[],
+  store: (id: string, encBlob: Blob) => Promise<void>
+): Promise<boolean> =>
+  new Promise((resolve) => {
+    const pending = new Set(downloads.map((d) => d.note_id))
+    let storing = Promise.resolve()
+    const listener = (event: Event) => {
+      const {id, state, error} = (event as CustomEvent<TransferEventDetail>).detail
+      if (!pending.delete(id)) return
+      if (state === 'done') {
+        storing = storing.then(async () => {
+          try {
+            const res = await fetch(`/native/transfers/${encodeURIComponent(id)}`)
+            if (res.ok) await store(id, await res.blob())
+          } catch (e) {
+            console.info(`Failed to store blob ${id}: ${e}`)
+          } finally {
+            transfers.release(id)
+          }
+        })
+      } else {
+        console.info(`Failed to download blob ${id}: ${error}`)
+      }
+      if (pending.size === 0) {
+        window.removeEventListener('ciphernotes-transfer', listener)
+        storing.then(() => resolve(true))
+      }
+    }
+    window.addEventListener('ciphernotes-transfer', listener)
+    const batch = downloads.map(({note_id, url}) => ({id: note_id, url}))
+    if (!transfers.download(JSON.stringify(batch))) {
+      window.removeEventListener('ciphernotes-transfer', listener)
+      resolve(false)
+    }
+  })
@@ -1,16 +1,52 @@
 import {io} from 'socket.io-client'
+import {
+  AndroidChanges,
+  getAndroidChanges,
+  onAndroidChanges,
+  onAndroidConnectionChanged,
+} from './services/androidChanges'
 import {socketConnectionChanged} from './state/user'
 
-const socket = io({
-  withCredentials: true,
-  autoConnect: false,
-  reconnection: true,
-  transports: ['polling'],
-})
-socket.on('connect_error', (err) => {
-  console.error('socket connect_error', err)
-})
-socket.on('connect', () => socketConnectionChanged(true))
-socket.on('disconnect', () => socketConnectionChanged(false))
+/** The part of the socket.io client the app uses. */
+type ChangeSocket = {
+  readonly connected: boolean
+  connect: () => void
+  disconnect: () => void
+  on: (event: 'notesPushed', listener: () => void) => void
+}
+
+const webSocket = (): ChangeSocket => {
+  const socket = io({
+    withCredentials: true,
+    autoConnect: false,
+    reconnection: true,
+    transports: ['polling'],
+  })
+  socket.on('connect_error', (err) => {
+    console.error('socket connect_error', err)
+  })
+  socket.on('connect', () => socketConnectionChanged(true))
+  socket.on('disconnect', () => socketConnectionChanged(false))
+  return socket
+}
+
+// The server keeps one socket per session, so in the wrapper this is the only connection.
+const nativeSocket = (androidChanges: AndroidChanges): ChangeSocket => {
+  onAndroidConnectionChanged(socketConnectionChanged)
+  return {
+    get connected() {
+      return androidChanges.isConnected()
+    },
+    connect: () => androidChanges.connect(),
+    disconnect: () => androidChanges.disconnect(),
+    // One call per batch of pushes rather than per push.
+    on: (_event, listener) => {
+      onAndroidChanges(listener)
+    },
+  }
+}
+
+const androidChanges = getAndroidChanges()
+const socket = androidChanges ? nativeSocket(androidChanges) : webSocket()
 
 export default socket
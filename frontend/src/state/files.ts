@@ -5,9 +5,25 @@ import {
   FileBlob,
   FileMeta,
   FilePullWithState,
+  FileThumb,
+  Note,
 } from '../business/models'
 import {comlink} from '../comlink'
 import {db, hasUnsyncedBlobsObservable} from '../db'
+import {
+  fetchStagedImport,
+  getAndroidImport,
+  importNatively,
+  NativeImportItem,
+} from '../services/androidImport'
+import {
+  drainShareInbox,
+  fetchSharedItem,
+  getAndroidShareInbox,
+  onShareInboxChanged,
+  ShareEntry,
+} from '../services/androidShare'
+import {downloadNatively, getAndroidTransfers} from '../services/androidTransfers'
 import {loadOpenFileId, storeOpenFileId} from '../services/localStorage'
 import {debounce, nonConcurrent, splitFilename} from '../util/misc'
 import {getState, setState, subscribe} from './store'
@@ -214,32 +230,41 @@ export const setOpenFile = (syncedFiles: Record<string, FilePullWithState>) => {
   }
 }
 
+const newFileMeta = (
+  filename: string,
+  mime: string,
+  size: number,
+  activeLabel: ActiveLabel,
+  hasThumb: 0 | 1
+): FileMeta => {
+  const [name, ext] = splitFilename(filename)
+  const now = Date.now()
+  return {
+    type: 'file',
+    created_at: now,
+    updated_at: now,
+    deleted_at: 0,
+    ext,
+    id: crypto.randomUUID(),
+    title: name,
+    state: 'dirty',
+    version: 1,
+    blob_state: 'local',
+    mime,
+    labels: activeLabelIsUuid(activeLabel) ? [activeLabel] : [],
+    archived: 0,
+    has_thumb: hasThumb,
+    size,
+  }
+}
+
 export const importFiles = async (files: Iterable<File>, activeLabel: ActiveLabel) => {
   try {
     setFilesImporting(true)
     for (const file of files) {
-      const [name, ext] = splitFilename(file.name)
-      const id = crypto.randomUUID()
-      const now = Date.now()
-      const meta: FileMeta = {
-        type: 'file',
-        created_at: now,
-        updated_at: now,
-        deleted_at: 0,
-        ext,
-        id,
-        title: name,
-        state: 'dirty',
-        version: 1,
-        blob_state: 'local',
-        mime: file.type,
-        labels: activeLabelIsUuid(activeLabel) ? [activeLabel] : [],
-        archived: 0,
-        has_thumb: 0,
-        size: file.size,
-      }
+      const meta = newFileMeta(file.name, file.type, file.size, activeLabel, 0)
       const blob: FileBlob = {
-        id,
+        id: meta.id,
         blob: file,
       }
       await db.transaction('rw', db.files_meta, db.files_blob, async (tx) => {
@@ -256,6 +281,127 @@ export const importFiles = async (files: Iterable<File>, activeLabel: ActiveLabe
   }
 }
 
+/**
+ * Like importFiles, but the Android wrapper picks and reads the files, computes their hashes and
+ * thumbnails in parallel and hands them over in batches. Files picked twice are stored once.
+ */
+export const importFilesNatively = async (
+  androidImport: NonNullable<ReturnType<typeof getAndroidImport>>,
+  activeLabel: ActiveLabel
+) => {
+  const seen = new Set<string>()
+  const notificationId = `native-import-${crypto.randomUUID()}`
+  let notificationShown = false
+  const showProgress = (done: number, total: number) => {
+    if (total === 0) return
+    const running = done < total
+    const progress = {
+      id: notificationId,
+      title: 'Importing files',
+      message: `${done} / ${total}`,
+      loading: running,
+      autoClose: running ? false : 2000,
+    }
+    if (notificationShown) {
+      notifications.update(progress)
+    } else {
+      notifications.show(progress)
+      notificationShown = true
+    }
+  }
+  const store = async (items: NativeImportItem[]) => {
+    const metas: FileMeta[] = []
+    const blobs: FileBlob[] = []
+    const thumbs: FileThumb[] = []
+    for (const item of items) {
+      if (seen.has(item.sha256)) continue
+      seen.add(item.sha256)
+      try {
+        const blob = await fetchStagedImport(item.id)
+        const thumb = item.thumb ? await fetchStagedImport(`${item.id}.thumb`) : null
+        const meta = newFileMeta(item.name, item.mime, item.size, activeLabel, thumb ? 1 : 0)
+        metas.push(meta)
+        blobs.push({id: meta.id, blob})
+        if (thumb) thumbs.push({id: meta.id, blob: thumb})
+      } catch (e) {
+        console.error(e)
+      }
+    }
+    await db.transaction('rw', db.files_meta, db.files_blob, db.files_thumb, async (tx) => {
+      await tx.files_meta.bulkAdd(metas)
+      await tx.files_blob.bulkAdd(blobs)
+      await tx.files_thumb.bulkAdd(thumbs)
+    })
+  }
+  try {
+    setFilesImporting(true)
+    const total = await importNatively(androidImport, store, showProgress)
+    if (total === null) {
+      console.warn('Native file picker is not available')
+      return
+    }
+    // For images the wrapper could not decode.
+    comlink
+      .generateThumbnails()
+      .then(() => console.log('thumbnails generated'))
+      .catch(console.error)
+  } finally {
+    setFilesImporting(false)
+  }
+}
+
+/**
+ * Shared text becomes a note titled with the subject, shared files become unlabeled files, each
+ * entry in one transaction. Like the native import, thumbnails are generated afterwards.
+ */
+const storeShareEntry = async (entry: ShareEntry) => {
+  const notes: Note[] = []
+  const metas: FileMeta[] = []
+  const blobs: FileBlob[] = []
+  if (entry.subject !== null || entry.text !== null) {
+    notes.push({
+      id: crypto.randomUUID(),
+      type: 'note',
+      title: entry.subject ?? '',
+      txt: entry.text ?? '',
+      version: 1,
+      state: 'dirty',
+      created_at: entry.receivedAt,
+      updated_at: entry.receivedAt,
+      deleted_at: 0,
+      archived: 0,
+    })
+  }
+  for (const item of entry.items) {
+    const blob = await fetchSharedItem(item.id)
+    const meta = newFileMeta(item.name, item.mime, item.size, 'unlabeled', 0)
+    metas.push(meta)
+    blobs.push({id: meta.id, blob})
+  }
+  await db.transaction('rw', db.notes, db.files_meta, db.files_blob, async (tx) => {
+    await tx.notes.bulkAdd(notes)
+    await tx.files_meta.bulkAdd(metas)
+    await tx.files_blob.bulkAdd(blobs)
+  })
+}
+
+/** Stores what was shared into the Android wrapper, in batches, however much piled up. */
+const importSharedItems = nonConcurrent(async () => {
+  const inbox = getAndroidShareInbox()
+  if (!inbox || inbox.count() === 0) return
+  const stored = await drainShareInbox(inbox, storeShareEntry)
+  if (stored === 0) return
+  notifications.show({
+    title: 'Shared items added',
+    message: stored === 1 ? '1 share' : `${stored} shares`,
+    autoClose: 2000,
+  })
+  comlink
+    .generateThumbnails()
+    .then(() => console.log('thumbnails generated'))
+    .catch(console.error)
+})
+
 const storeOpenFile = nonConcurrent(async () => {
   const openFile = getState().files.openFile
   if (!openFile) return
@@ -362,9 +508,17 @@ const upDownloadBlobsAndSetState = nonConcurrent(async () => {
   setState((state) => {
     state.files.upDownloading = true
   })
+  const {cryptoKey} = keyTokenPair
+  const androidTransfers = getAndroidTransfers()
   await comlink
-    .upDownloadBlobs(keyTokenPair.cryptoKey)
-    .then(({hit_storage_limit}) => {
+    .upDownloadBlobs(cryptoKey, !!androidTransfers)
+    .then(async ({hit_storage_limit, downloads}) => {
+      if (androidTransfers && downloads.length > 0) {
+        const accepted = await downloadNatively(androidTransfers, downloads, (id, blob) =>
+          comlink.storeDownloadedBlob(cryptoKey, id, blob)
+        )
+        if (!accepted) await comlink.upDownloadBlobs(cryptoKey)
+      }
       if (hit_storage_limit) {
         const state = getState()
         if (state.notes.sync.dialogOpen) {
@@ -412,4 +566,9 @@ export const registerFilesSubscriptions = () => {
       upDownloadBlobsAndSetStateDebounced()
     }
   })
+
+  if (getAndroidShareInbox()) {
+    importSharedItems()
+    onShareInboxChanged(importSharedItems)
+  }
 }
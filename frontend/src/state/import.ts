@@ -4,17 +4,33 @@ import {
   keepNoteSchema,
   notesZipSchema,
   ImportFileMeta,
+  ImportNote,
   NotesZip,
+  importNotesSchema,
+  importFilesMetaSchema,
 } from '../business/importNotesSchema'
 import {FileBlob, FileMeta, Hue, Label, Note, NoteCommon} from '../business/models'
 import {db} from '../db'
-import {downloadBlob, splitFilename} from '../util/misc'
+import {
+  canStreamZipToAndroid,
+  downloadBlob,
+  splitFilename,
+  streamZipToAndroid,
+  ZipStreamEntry,
+} from '../util/misc'
 import {getState, RootState, setState} from './store'
 import JSZip from 'jszip'
 import XSet from '../util/XSet'
-import {createLabel} from './labels'
+import {createLabel, updateLabel} from './labels'
 import {notifications} from '@mantine/notifications'
 import {comlink} from '../comlink'
+import {
+  ArchiveBatch,
+  getAndroidArchiveImport,
+  importArchiveNatively,
+  NativeKeepNote,
+} from '../services/androidArchiveImport'
+import {fetchStagedImport} from '../services/androidImport'
 
 export type ImportState = {
   importDialog: {
@@ -80,13 +96,7 @@ export const keepImportArchivedChanged = (importArchived: boolean) =>
 // effects
 export const exportNotes = async () => {
   // Export all notes and files_meta into notes.json and add file blobs as separate files
-  const zip = new JSZip()
-
-  const [notes, filesMeta, filesBlobs] = await Promise.all([
-    db.notes.toArray(),
-    db.files_meta.toArray(),
-    db.files_blob.toArray(),
-  ])
+  const [notes, filesMeta] = await Promise.all([db.notes.toArray(), db.files_meta.toArray()])
 
   // map label ids to names for export
   const labelsCache = getState().labels.labelsCache
@@ -98,8 +108,6 @@ export const exportNotes = async () => {
     return acc
   }, {} as Record<string, Hue>)
 
-  const idToBlob = Object.fromEntries(filesBlobs.map((b) => [b.id, b.blob]))
-
   const payload: NotesZip = {
     notes: notes.map((n) => ({
       id: n.id,
@@ -132,18 +140,137 @@ export const exportNotes = async () => {
   // validate payload
   notesZipSchema.parse(payload)
 
-  zip.file('notes.json', JSON.stringify(payload, null, 2), {createFolders: false})
+  const notesJson = new Blob([JSON.stringify(payload, null, 2)], {type: 'application/json'})
+  const iso = new Date().toISOString().replace(/\.\d+/, '').replace(/:/g, '-')
+  const filename = `${iso}_ciphernotes.zip`
+
+  if (canStreamZipToAndroid()) {
+    // Blobs are read one at a time while the native side deflates into Downloads.
+    const entries: ZipStreamEntry[] = [{name: 'notes.json', load: async () => notesJson}]
+    for (const meta of filesMeta) {
+      entries.push({
+        name: `${meta.id}${meta.ext ?? ''}`,
+        load: async () => (await db.files_blob.get(meta.id))?.blob,
+      })
+    }
+    const size = filesMeta.reduce((acc, meta) => acc + meta.size, notesJson.size)
+    if (await streamZipToAndroid(filename, size, entries)) return
+  }
 
+  const zip = new JSZip()
+  zip.file('notes.json', notesJson, {createFolders: false})
+  const filesBlobs = await db.files_blob.toArray()
+  const idToBlob = Object.fromEntries(filesBlobs.map((b) => [b.id, b.blob]))
   for (const meta of filesMeta) {
     const blob = idToBlob[meta.id]
     if (!blob) continue
-    const filename = `${meta.id}${meta.ext ?? ''}`
-    zip.file(filename, blob)
+    zip.file(`${meta.id}${meta.ext ?? ''}`, blob)
   }
-
-  const iso = new Date().toISOString().replace(/\.\d+/, '').replace(/:/g, '-')
   const blob = await zip.generateAsync({type: 'blob'})
-  downloadBlob(blob, `${iso}_ciphernotes.zip`)
+  downloadBlob(blob, filename)
+}
+
+const labelIds = (names: string[] | undefined, nameToId: Record<string, string>) =>
+  (names ?? []).map((name) => nameToId[name]).filter((x): x is string => !!x)
+
+/** The note to upsert for a backup entry, or null if the local copy is newer. */
+const prepareImportedNote = async (
+  importedNote: ImportNote,
+  nameToId: Record<string, string>,
+  now: number
+): Promise<Note | null> => {
+  const id = importedNote.id ?? crypto.randomUUID()
+  const existing = await db.notes.get(id)
+  const shouldInsertOrUpdate =
+    !existing ||
+    existing.deleted_at !== 0 ||
+    (importedNote.updated_at ?? 0) > existing.updated_at
+  if (!shouldInsertOrUpdate) return null
+
+  const updated_at = Math.max(importedNote.updated_at ?? 0, existing?.updated_at ?? 0)
+  const created_at = existing?.created_at ?? importedNote.created_at ?? now
+  const version = !existing
+    ? 1
+    : existing.state === 'dirty'
+    ? existing.version
+    : existing.version + 1
+
+  const labels = labelIds(importedNote.labels, nameToId)
+
+  const todos = importedNote.todos
+  const txt = importedNote.txt
+  if (todos !== undefined) {
+    const todoIds = XSet.fromItr(todos, (t) => t.id)
+    return {
+      id,
+      title: importedNote.title ?? '',
+      type: 'todo',
+      todos: todos?.map((t) => ({
+        ...t,
+        id: t.id ?? crypto.randomUUID(),
+        updated_at: t.updated_at ?? updated_at,
+        parent: todoIds.has(t.parent) ? t.parent : undefined,
+      })),
+      created_at,
+      updated_at,
+      version,
+      state: 'dirty',
+      deleted_at: 0,
+      archived: importedNote.archived ? 1 : 0,
+      labels,
+    }
+  } else if (txt !== undefined) {
+    return {
+      id,
+      title: importedNote.title ?? '',
+      type: 'note',
+      txt: txt,
+      created_at,
+      updated_at,
+      version,
+      state: 'dirty',
+      deleted_at: 0,
+      archived: importedNote.archived ? 1 : 0,
+      labels,
+    }
+  }
+  return null
+}
+
+/** The file meta to upsert for a backup entry, or null if the local copy is newer. */
+const prepareImportedFileMeta = async (
+  meta: ImportFileMeta,
+  nameToId: Record<string, string>,
+  now: number
+): Promise<FileMeta | null> => {
+  const existing = await db.files_meta.get(meta.id)
+  const shouldInsertOrUpdate =
+    !existing || existing.deleted_at !== 0 || (meta.updated_at ?? 0) > existing.updated_at
+  if (!shouldInsertOrUpdate) return null
+
+  const version = !existing
+    ? 1
+    : existing.state === 'dirty'
+    ? existing.version
+    : existing.version + 1
+
+  return {
+    id: meta.id,
+    type: 'file',
+    title: meta.title,
+    ext: meta.ext,
+    mime: meta.mime,
+    size: meta.size,
+    created_at: meta.created_at ?? now,
+    updated_at: meta.updated_at ?? now,
+    deleted_at: meta.deleted_at ?? 0,
+    labels: labelIds(meta.labels, nameToId),
+    archived: meta.archived ? 1 : 0,
+    has_thumb: 0,
+    state: 'dirty',
+    version,
+    blob_state: 'local',
+  }
 }
 
 export const importNotes = async (): Promise<void> => {
@@ -178,78 +305,15 @@ export const importNotes = async (): Promise<void> => {
     // Prepare notes to upsert similar to previous import logic, resolving label names
     const notesToUpsert: Note[] = []
     for (const importedNote of parsed.notes ?? []) {
-      const id = importedNote.id ?? crypto.randomUUID()
-      const existing = await db.notes.get(id)
-      const shouldInsertOrUpdate =
-        !existing ||
-        existing.deleted_at !== 0 ||
-        (importedNote.updated_at ?? 0) > existing.updated_at
-      if (!shouldInsertOrUpdate) continue
-
-      const updated_at = Math.max(importedNote.updated_at ?? 0, existing?.updated_at ?? 0)
-      const created_at = existing?.created_at ?? importedNote.created_at ?? now
-      const version = !existing
-        ? 1
-        : existing.state === 'dirty'
-        ? existing.version
-        : existing.version + 1
-
-      const labels = (importedNote.labels ?? [])
-        .map((name) => nameToId[name])
-        .filter((x): x is string => !!x)
-
-      const todos = importedNote.todos
-      const txt = importedNote.txt
-      if (todos !== undefined) {
-        const todoIds = XSet.fromItr(todos, (t) => t.id)
-        notesToUpsert.push({
-          id,
-          title: importedNote.title ?? '',
-          type: 'todo',
-          todos: todos?.map((t) => ({
-            ...t,
-            id: t.id ?? crypto.randomUUID(),
-            updated_at: t.updated_at ?? updated_at,
-            parent: todoIds.has(t.parent) ? t.parent : undefined,
-          })),
-          created_at,
-          updated_at,
-          version,
-          state: 'dirty',
-          deleted_at: 0,
-          archived: importedNote.archived ? 1 : 0,
-          labels,
-        })
-      } else if (txt !== undefined) {
-        notesToUpsert.push({
-          id,
-          title: importedNote.title ?? '',
-          type: 'note',
-          txt: txt,
-          created_at,
-          updated_at,
-          version,
-          state: 'dirty',
-          deleted_at: 0,
-          archived: importedNote.archived ? 1 : 0,
-          labels,
-        })
-      }
+      const note = await prepareImportedNote(importedNote, nameToId, now)
+      if (note) notesToUpsert.push(note)
     }
 
     const filesMetaToUpsert: FileMeta[] = []
     const blobsToPut: {id: string; blob: Blob}[] = []
     for (const meta of parsed.files_meta ?? []) {
-      const existing = await db.files_meta.get(meta.id)
-      const shouldInsertOrUpdate =
-        !existing || existing.deleted_at !== 0 || (meta.updated_at ?? 0) > existing.updated_at
-      if (!shouldInsertOrUpdate) continue
-
-      const version = !existing
-        ? 1
-        : existing.state === 'dirty'
-        ? existing.version
-        : existing.version + 1
+      const fileMeta = await prepareImportedFileMeta(meta, nameToId, now)
+      if (!fileMeta) continue
 
       const entry = zip.file(`${meta.id}${meta.ext ?? ''}`)
       const blob = entry ? await entry!.async('blob') : null
@@ -259,23 +323,7 @@ export const importNotes = async (): Promise<void> => {
         continue
       }
 
-      filesMetaToUpsert.push({
-        id: meta.id,
-        type: 'file',
-        title: meta.title,
-        ext: meta.ext,
-        mime: meta.mime,
-        size: blob.size,
-        created_at: meta.created_at ?? now,
-        updated_at: meta.updated_at ?? now,
-        deleted_at: meta.deleted_at ?? 0,
-        labels: (meta.labels ?? []).map((name) => nameToId[name]).filter((x): x is string => !!x),
-        archived: meta.archived ? 1 : 0,
-        has_thumb: 0,
-        state: 'dirty',
-        version,
-        blob_state: 'local',
-      })
+      filesMetaToUpsert.push({...fileMeta, size: blob.size})
     }
 
     await db.transaction('rw', db.notes, db.files_meta, db.files_blob, async (tx) => {
@@ -433,3 +481,255 @@ export const keepImportNotes = async (): Promise<void> => {
     })
   }
 }
+
+const ensureLabels = async (
+  names: Iterable<string>,
+  nameToId: Record<string, string>,
+  hues: Record<string, Hue> = {}
+): Promise<Label[]> => {
+  const created: Label[] = []
+  for (const name of names) {
+    if (nameToId[name]) continue
+    const label = await createLabel(name, hues[name] ?? null)
+    nameToId[name] = label.id
+    created.push(label)
+  }
+  return created
+}
+
+const labelNameToId = () =>
+  Object.fromEntries(Object.values(getState().labels.labelsCache).map((l) => [l.name, l.id]))
+
+/** Notification while the Android wrapper streams an archive; returns its progress callback. */
+const archiveProgress = (title: string) => {
+  const id = `archive-import-${crypto.randomUUID()}`
+  let shown = false
+  return (batch: ArchiveBatch) => {
+    if (batch.cancelled) return
+    const message =
+      batch.totalBytes > 0
+        ? `${Math.round((batch.bytesRead / batch.totalBytes) * 100)}%`
+        : `${Math.round(batch.bytesRead / 1024 / 1024)} MB`
+    const progress = {id, title, message, loading: !batch.finished, autoClose: false as const}
+    if (batch.finished) {
+      notifications.hide(id)
+    } else if (shown) {
+      notifications.update(progress)
+    } else {
+      notifications.show(progress)
+      shown = true
+    }
+  }
+}
+
+/**
+ * Attachment blobs a native import has stored so far. Each is written in its own small
+ * transaction as soon as it is fetched, so only one is held in memory at a time; the notes and
+ * file metas that make them visible are written together at the end by commitImport. If the import
+ * fails or is cancelled before that, discard deletes them again and the database is left as it was.
+ */
+const importedBlobs = () => {
+  const added: string[] = []
+  return {
+    /** Stores `blob` unless its file already has one; the same file id means the same content. */
+    add: async (blob: FileBlob) => {
+      const stored = await db.transaction('rw', db.files_blob, async (tx) => {
+        if ((await tx.files_blob.where('id').equals(blob.id).count()) > 0) return false
+        await tx.files_blob.add(blob)
+        return true
+      })
+      if (stored) added.push(blob.id)
+    },
+    discard: () => db.files_blob.bulkDelete(added).catch(console.error),
+  }
+}
+
+const commitImport = (notes: Note[], filesMeta: FileMeta[]) =>
+  db.transaction('rw', db.notes, db.files_meta, async (tx) => {
+    if (notes.length) await tx.notes.bulkPut(notes)
+    if (filesMeta.length) await tx.files_meta.bulkPut(filesMeta)
+  })
+
+/**
+ * keepImportNotes for the Android wrapper: the takeout is picked and streamed natively and
+ * arrives here in batches, so neither the ZIP nor all of its attachments are held in memory.
+ * Nothing becomes visible until the whole takeout has been read; see importedBlobs.
+ */
+export const keepImportNotesNatively = async (): Promise<void> => {
+  const archiveImport = getAndroidArchiveImport()
+  if (!archiveImport) return
+  const {importArchived} = getState().import.keepImportDialog
+  const nameToId = labelNameToId()
+  const showProgress = archiveProgress('Importing Keep notes')
+  const notes: Note[] = []
+  const filesMeta: FileMeta[] = []
+  const blobs = importedBlobs()
+  let committed = false
+  const storeBatch = async (batch: ArchiveBatch) => {
+    showProgress(batch)
+    const keepNotes = batch.notes as NativeKeepNote[]
+    await ensureLabels(XSet.fromItr(keepNotes.flatMap((n) => n.labels)), nameToId)
+    for (const keepNote of keepNotes) {
+      const noteCommon: NoteCommon = {
+        id: crypto.randomUUID(),
+        created_at: keepNote.created_at,
+        updated_at: keepNote.updated_at,
+        title: keepNote.title,
+        deleted_at: 0,
+        state: 'dirty',
+        version: 1,
+        labels: labelIds(keepNote.labels, nameToId),
+        archived: keepNote.archived ? 1 : 0,
+      }
+      for (const a of keepNote.attachments) {
+        try {
+          const blob = await fetchStagedImport(a.id)
+          const id = crypto.randomUUID()
+          await blobs.add({id, blob: new Blob([blob], {type: a.mime})})
+          filesMeta.push({
+            id,
+            created_at: noteCommon.created_at,
+            updated_at: noteCommon.updated_at,
+            title: noteCommon.title,
+            deleted_at: noteCommon.deleted_at,
+            state: noteCommon.state,
+            version: noteCommon.version,
+            labels: noteCommon.labels ?? [],
+            archived: noteCommon.archived,
+            type: 'file',
+            ext: splitFilename(a.filePath)[1],
+            mime: a.mime,
+            has_thumb: 0,
+            size: blob.size,
+            blob_state: 'local',
+          })
+        } catch (e) {
+          console.warn(`File ${a.filePath} not imported: ${e}`)
+        } finally {
+          archiveImport.release(a.id)
+        }
+      }
+      if (keepNote.todos) {
+        notes.push({
+          ...noteCommon,
+          type: 'todo',
+          todos: keepNote.todos.map((item) => ({
+            id: crypto.randomUUID(),
+            txt: item.txt,
+            done: item.done,
+            updated_at: keepNote.updated_at,
+          })),
+        })
+      } else {
+        notes.push({...noteCommon, type: 'note', txt: keepNote.txt ?? ''})
+      }
+    }
+  }
+  try {
+    const last = await importArchiveNatively(archiveImport, 'keep', importArchived, storeBatch)
+    if (!last || last.cancelled) return
+    if (last.error) throw new Error(last.error)
+    if (notes.length === 0) {
+      notifications.show({title: 'No notes imported', message: 'No valid notes found'})
+      return
+    }
+    await commitImport(notes, filesMeta)
+    committed = true
+    comlink
+      .generateThumbnails()
+      .then(() => console.log('thumbnails generated'))
+      .catch(console.error)
+    closeKeepImportDialog()
+    notifications.show({title: 'Success', message: `${notes.length} Keep notes imported`})
+  } catch (e) {
+    console.error(e)
+    setState((state) => {
+      state.import.keepImportDialog.error = e instanceof Error ? e.message : 'Unknown error'
+    })
+  } finally {
+    if (!committed) await blobs.discard()
+  }
+}
+
+/**
+ * importNotes for the Android wrapper. Notes are prepared batch by batch as notes.json is parsed
+ * natively, and files are matched with their spooled blobs once the whole archive has been read.
+ * Nothing becomes visible until then; see importedBlobs.
+ */
+export const importNotesNatively = async (): Promise<void> => {
+  const archiveImport = getAndroidArchiveImport()
+  if (!archiveImport) return
+  const now = Date.now()
+  const nameToId = labelNameToId()
+  const createdLabels: Label[] = []
+  const files: ImportFileMeta[] = []
+  const blobs = new Map<string, string>()
+  const notesToUpsert: Note[] = []
+  const imported = importedBlobs()
+  let committed = false
+  const showProgress = archiveProgress('Importing backup')
+  try {
+    const last = await importArchiveNatively(archiveImport, 'backup', true, async (batch) => {
+      showProgress(batch)
+      for (const blob of batch.blobs) blobs.set(blob.name, blob.id)
+      const notes = importNotesSchema.parse(batch.notes)
+      files.push(...importFilesMetaSchema.parse(batch.files))
+      createdLabels.push(
+        ...(await ensureLabels(
+          XSet.fromItr([...notes, ...files].flatMap((n) => n.labels ?? [])),
+          nameToId
+        ))
+      )
+      for (const importedNote of notes) {
+        const note = await prepareImportedNote(importedNote, nameToId, now)
+        if (note) notesToUpsert.push(note)
+      }
+      if (batch.labelColors) {
+        const hues = notesZipSchema.shape.labelColors.parse(batch.labelColors) ?? {}
+        for (const label of createdLabels) {
+          const hue = hues[label.name]
+          if (hue !== undefined) updateLabel(label.id, {hue})
+        }
+      }
+    })
+    if (!last || last.cancelled) return
+    if (last.error) throw new Error(last.error)
+
+    const filesMetaToUpsert: FileMeta[] = []
+    for (const meta of files) {
+      const blobId = blobs.get(`${meta.id}${meta.ext ?? ''}`)
+      if (!blobId) continue
+      blobs.delete(`${meta.id}${meta.ext ?? ''}`)
+      try {
+        const fileMeta = await prepareImportedFileMeta(meta, nameToId, now)
+        if (!fileMeta) continue
+        const blob = await fetchStagedImport(blobId)
+        await imported.add({id: meta.id, blob: new Blob([blob], {type: meta.mime})})
+        filesMetaToUpsert.push({...fileMeta, size: blob.size})
+      } finally {
+        archiveImport.release(blobId)
+      }
+    }
+
+    await commitImport(notesToUpsert, filesMetaToUpsert)
+    committed = true
+
+    comlink
+      .generateThumbnails()
+      .then(() => console.log('thumbnails generated'))
+      .catch(console.error)
+
+    setState((state) => {
+      closeImportDialog(state)
+    })
+    notifications.show({title: 'Success', message: 'Backup imported'})
+  } catch (e) {
+    console.error(e)
+    setState((state) => {
+      state.import.importDialog.error = e instanceof Error ? e.message : 'Invalid file format'
+    })
+  } finally {
+    for (const id of blobs.values()) archiveImport.release(id)
+    if (!committed) await imported.discard()
+  }
+}
@@ -23,7 +23,8 @@ import {
   partitionBy,
   takeJsonSize,
 } from '../util/misc'
-import {EncPut, isUnauthorizedRes, reqSyncNotes} from '../services/backend'
+import {EncPut, isUnauthorizedRes, reqSyncNotes, Res, EncSyncRes} from '../services/backend'
+import {getAndroidSync, takeBackgroundDelta} from '../services/androidSync'
 import {Put, decryptSyncData, encryptSyncData} from '../business/notesEncryption'
 import {
   db,
@@ -621,6 +622,8 @@ const loadEncPuts = async (
   }
 }
 
+const deferredSyncDelay = 5_000
+
 export const syncNotes = nonConcurrent(async () => {
   const state = getState()
   const lastSyncedTo = state.user.user.lastSyncedTo
@@ -637,7 +640,12 @@ export const syncNotes = nonConcurrent(async () => {
       keyTokenPair,
       1024 * 1024
     )
-    const res = await reqSyncNotes(lastSyncedTo, encPuts, keyTokenPair.syncToken)
+    // With nothing to upload, a delta pulled in the background saves the round trip.
+    const backgroundDelta =
+      encPuts.length === 0 ? await takeBackgroundDelta(lastSyncedTo, keyTokenPair.syncToken) : null
+    const res: Res<EncSyncRes> = backgroundDelta
+      ? {success: true, data: backgroundDelta}
+      : await reqSyncNotes(lastSyncedTo, encPuts, keyTokenPair.syncToken)
     if (!res.success) {
       setState((state) => {
         state.notes.sync.error = res.error
@@ -842,6 +850,11 @@ export const syncNotes = nonConcurrent(async () => {
         })
       }
     })
+    getAndroidSync()?.configure(res.data.synced_to, keyTokenPair.syncToken)
+    if (backgroundDelta) {
+      // Catch up on what changed since the delta was pulled, off the start-up path.
+      setTimeout(syncNotes, deferredSyncDelay)
+    }
     upDownloadBlobsAndSetStateDebounced()
   } catch (e) {
     setState((state) => {
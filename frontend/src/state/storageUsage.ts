@@ -1,5 +1,6 @@
 import {notifications} from '@mantine/notifications'
 import {isUnauthorizedRes, reqStorageUsage} from '../services/backend'
+import {getNativeCacheUsage} from '../services/androidStorage'
 import {getState, setState} from './store'
 
 export type StorageUsageState = {
@@ -10,6 +11,11 @@ export type StorageUsageState = {
     used: number
     limit: number
   } | null
+  /** The Android wrapper's own file caches; null outside the wrapper. */
+  native: {
+    used: number
+    limit: number
+  } | null
   remote: {
     files: {
       used: number
@@ -27,6 +33,7 @@ export const storageUsageInit: StorageUsageState = {
   fetching: false,
   calculating: false,
   local: null,
+  native: null,
   remote: null,
 }
 
@@ -34,6 +41,15 @@ export const calcLocalStorageUsage = async () => {
   setState((state) => {
     state.storageUsage.calculating = true
   })
+  const areas = getNativeCacheUsage()
+  if (areas) {
+    setState((state) => {
+      state.storageUsage.native = {
+        used: areas.reduce((sum, a) => sum + a.used, 0),
+        limit: areas.reduce((sum, a) => sum + a.quota, 0),
+      }
+    })
+  }
   const {quota, usage} = await navigator.storage.estimate()
   setState((state) => {
     state.storageUsage.calculating = false
@@ -13,6 +13,7 @@ import {
   reqLoginWithPassword,
 } from '../services/backend'
 import {loadUser, storeUser} from '../services/localStorage'
+import {getAndroidSync} from '../services/androidSync'
 import {getState, setState, subscribe} from './store'
 import {calcChecksum, isValidKeyTokenPair} from '../business/notesEncryption'
 import {generateKey, generateSalt} from '../util/encryption'
@@ -763,6 +764,9 @@ export const registerUserSubscriptions = () => {
       } else if (!loggedIn && socket.connected) {
         socket.disconnect()
       }
+      if (!loggedIn) {
+        getAndroidSync()?.disable()
+      }
     }
   )
 }
@@ -163,17 +163,169 @@ export const downloadJson = (data: JsonRoot, filename = 'data.json') => {
   downloadBlob(blob, filename)
 }
 
+type AndroidDownloadStream = {
+  postMessage: (message: string | ArrayBuffer) => void
+  addEventListener: (type: 'message', listener: (event: MessageEvent) => void) => void
+  removeEventListener: (type: 'message', listener: (event: MessageEvent) => void) => void
+}
+type AndroidDownloadReply = {type: string; id: string; message?: string}
+
+const androidStreamChunkSize = 512 * 1024
+let androidStreamQueue: Promise<void> = Promise.resolve()
+
+const waitForAndroidReply = (
+  channel: AndroidDownloadStream,
+  id: string,
+): Promise<AndroidDownloadReply> =>
+  new Promise((resolve) => {
+    const onMessage = (event: MessageEvent) => {
+      const reply = safeJsonParse(String(event.data)) as AndroidDownloadReply | undefined
+      if (reply?.id !== id) return
+      channel.removeEventListener('message', onMessage)
+      resolve(reply)
+    }
+    channel.addEventListener('message', onMessage)
+  })
+
+const sendToAndroid = async (
+  channel: AndroidDownloadStream,
+  id: string,
+  message: string | ArrayBuffer,
+  expected: string,
+) => {
+  const reply = waitForAndroidReply(channel, id)
+  channel.postMessage(message)
+  const res = await reply
+  if (res.type !== expected) throw new Error(res.message ?? 'Export failed')
+}
+
+const sendBlobToAndroid = async (channel: AndroidDownloadStream, id: string, blob: Blob) => {
+  for (let offset = 0; offset < blob.size; offset += androidStreamChunkSize) {
+    const chunk = await blob.slice(offset, offset + androidStreamChunkSize).arrayBuffer()
+    await sendToAndroid(channel, id, chunk, 'ack')
+  }
+}
+
+/** Resolves to false if the native side refused to start, so the caller can fall back. */
+const beginAndroidStream = async (
+  channel: AndroidDownloadStream,
+  id: string,
+  begin: {filename: string; mimeType: string; size: number; zip?: boolean},
+): Promise<boolean> => {
+  const ready = waitForAndroidReply(channel, id)
+  channel.postMessage(JSON.stringify({type: 'begin', id, ...begin}))
+  return (await ready).type === 'ready'
+}
+
+/**
+ * Streams the blob chunk by chunk into the Android Downloads folder.
+ * Resolves to false if the native side refused to start, so the caller can fall back.
+ */
+const streamBlobToAndroid = async (
+  channel: AndroidDownloadStream,
+  blob: Blob,
+  filename: string,
+): Promise<boolean> => {
+  const id = crypto.randomUUID()
+  const begun = await beginAndroidStream(channel, id, {
+    filename,
+    mimeType: blob.type,
+    size: blob.size,
+  })
+  if (!begun) return false
+  try {
+    await sendBlobToAndroid(channel, id, blob)
+  } catch (e) {
+    channel.postMessage(JSON.stringify({type: 'abort', id}))
+    throw e
+  }
+  await sendToAndroid(channel, id, JSON.stringify({type: 'end', id}), 'done')
+  return true
+}
+
+const getAndroidDownloadStream = (): AndroidDownloadStream | undefined => {
+  const channel = (globalThis as any)?.AndroidDownloadStream as AndroidDownloadStream | undefined
+  return channel && typeof channel.postMessage === 'function' ? channel : undefined
+}
+
+export const canStreamZipToAndroid = () => !!getAndroidDownloadStream()
+
+export type ZipStreamEntry = {
+  name: string
+  /** Read only when the entry is written; undefined skips it. */
+  load: () => Promise<Blob | undefined>
+}
+
+/**
+ * Writes a ZIP archive into the Android Downloads folder one entry at a time.
+ * The native side deflates each chunk as it arrives, so only the current chunk
+ * is held in memory. `size` is the uncompressed total, used for progress only.
+ * Resolves to false if the native side refused to start.
+ */
+export const streamZipToAndroid = (
+  filename: string,
+  size: number,
+  entries: Iterable<ZipStreamEntry>,
+): Promise<boolean> => {
+  const channel = getAndroidDownloadStream()
+  if (!channel) return Promise.resolve(false)
+  const run = async () => {
+    const id = crypto.randomUUID()
+    const begun = await beginAndroidStream(channel, id, {
+      filename,
+      mimeType: 'application/zip',
+      size,
+      zip: true,
+    })
+    if (!begun) return false
+    try {
+      for (const entry of entries) {
+        const blob = await entry.load()
+        if (!blob) continue
+        const start = JSON.stringify({type: 'entry', id, name: entry.name})
+        await sendToAndroid(channel, id, start, 'ack')
+        await sendBlobToAndroid(channel, id, blob)
+      }
+    } catch (e) {
+      channel.postMessage(JSON.stringify({type: 'abort', id}))
+      throw e
+    }
+    await sendToAndroid(channel, id, JSON.stringify({type: 'end', id}), 'done')
+    return true
+  }
+  const result = androidStreamQueue.then(run)
+  androidStreamQueue = result.then(
+    () => undefined,
+    () => undefined,
+  )
+  return result
+}
+
+const saveBase64ToAndroid = (androidDownloader: any, blob: Blob, filename: string) => {
+  const reader = new FileReader()
+  reader.onloadend = () => {
+    const result = reader.result
+    if (typeof result === 'string') {
+      androidDownloader.saveBase64(result, filename)
+    }
+  }
+  reader.readAsDataURL(blob)
+}
+
 export const downloadBlob = (blob: Blob, filename: string) => {
   const androidDownloader = (globalThis as any)?.AndroidDownloader
   if (androidDownloader && typeof androidDownloader.saveBase64 === 'function') {
-    const reader = new FileReader()
-    reader.onloadend = () => {
-      const result = reader.result
-      if (typeof result === 'string') {
-        androidDownloader.saveBase64(result, filename)
-      }
+    const channel = getAndroidDownloadStream()
+    if (channel) {
+      androidStreamQueue = androidStreamQueue
+        .then(() => streamBlobToAndroid(channel, blob, filename))
+        .then((streamed) => {
+          if (!streamed) saveBase64ToAndroid(androidDownloader, blob, filename)
+        })
+        .catch(console.error)
+      return
     }
-    reader.readAsDataURL(blob)
+    saveBase64ToAndroid(androidDownloader, blob, filename)
     return
   }
 
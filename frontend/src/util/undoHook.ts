@@ -1,5 +1,9 @@
 import {useReducer, useEffect, useCallback, useRef} from 'react'
 import {deepEquals} from './misc'
+import {onMemoryPressure} from '../services/androidMemory'
+
+// Undo steps kept when the Android wrapper reports moderate memory pressure.
+const MODERATE_PRESSURE_HISTORY = 20
 
 type State<Data> = {
   history: Data[]
@@ -26,6 +30,10 @@ type Action<Data> =
       type: 'UPDATE_INDEX'
       index: number
     }
+  | {
+      type: 'TRIM'
+      keep: number
+    }
 
 function reducer<Data>(state: State<Data>, action: Action<Data>): State<Data> {
   switch (action.type) {
@@ -67,6 +75,16 @@ function reducer<Data>(state: State<Data>, action: Action<Data>): State<Data> {
         ...state,
         currentIndex: action.index,
       }
+    case 'TRIM': {
+      // Keeps the current value and up to keep - 1 undo steps; redo steps go.
+      const start = Math.max(0, state.currentIndex + 1 - action.keep)
+      if (start === 0 && state.currentIndex === state.history.length - 1) return state
+      return {
+        ...state,
+        history: state.history.slice(start, state.currentIndex + 1),
+        currentIndex: state.currentIndex - start,
+      }
+    }
     default:
       return state
   }
@@ -123,6 +141,14 @@ export function useUndoRedo<Data>(
     }
   }, [key, externalValue, state.prevKey, state.prevValue, chunkThreshold])
 
+  useEffect(
+    () =>
+      onMemoryPressure((pressure) =>
+        dispatch({type: 'TRIM', keep: pressure === 'critical' ? 1 : MODERATE_PRESSURE_HISTORY})
+      ),
+    []
+  )
+
   const undo = useCallback(
     function undo() {
       // Access state and callback via refs
@@ -49,30 +49,71 @@ export const generateThumbnails = nonConcurrent(async (): Promise<void> => {
   }
 })
 
+export type DeferredDownload = {note_id: string; url: string}
+
+/**
+ * With `deferDownloads` the presigned download urls are returned instead of fetched, so the
+ * caller can hand them to the Android transfer manager and pass the bodies to storeDownloadedBlob.
+ */
 export const upDownloadBlobs = async (
-  cryptoKey: string
-): Promise<{selectedAll: boolean; hit_storage_limit: boolean}> => {
+  cryptoKey: string,
+  deferDownloads = false
+): Promise<{selectedAll: boolean; hit_storage_limit: boolean; downloads: DeferredDownload[]}> => {
   const key = await importKey(cryptoKey)
   let selectedAll, hit_storage_limit
+  const downloads: DeferredDownload[] = []
   while (true) {
-    const res = await _upDownloadBlobs(key)
+    const res = await _upDownloadBlobs(key, deferDownloads, downloads.length === 0)
     selectedAll = res.selectedAll
     hit_storage_limit = res.hit_storage_limit
+    downloads.push(...res.downloads)
     if (selectedAll || hit_storage_limit) {
       break
     }
   }
 
   queueMicrotask(generateThumbnails)
-  return {selectedAll, hit_storage_limit}
+  return {selectedAll, hit_storage_limit, downloads}
+}
+
+export const storeDownloadedBlob = async (
+  cryptoKey: string,
+  id: string,
+  encBlob: Blob
+): Promise<void> => {
+  const file = await db.files_meta.get(id)
+  if (!file || file.blob_state !== 'remote') return
+  await storeEncryptedBlob(await importKey(cryptoKey), file.id, file.mime, encBlob)
+  queueMicrotask(generateThumbnails)
+}
+
+const storeEncryptedBlob = async (
+  cryptoKey: CryptoKey,
+  id: string,
+  mime: string,
+  encBlob: Blob
+) => {
+  const decryptedBlob = await decryptBlob(cryptoKey, encBlob, mime).catch(
+    (e) => new Blob([`Decryption failed: ${e}`], {type: 'text/plain'})
+  )
+  await db.transaction('rw', db.files_meta, db.files_blob, async (tx) => {
+    await tx.files_meta.update(id, {blob_state: 'synced'})
+    await tx.files_blob.put({id, blob: decryptedBlob})
+  })
 }
 
 const _upDownloadBlobs = async (
-  cryptoKey: CryptoKey
-): Promise<{selectedAll: boolean; hit_storage_limit: boolean}> => {
+  cryptoKey: CryptoKey,
+  deferDownloads: boolean,
+  includeDownloads: boolean
+): Promise<{selectedAll: boolean; hit_storage_limit: boolean; downloads: DeferredDownload[]}> => {
   const unsynced = await db.files_meta.where('blob_state').notEqual('synced').toArray()
 
-  const downloadIds = unsynced.filter((f) => f.blob_state === 'remote').map((f) => f.id)
+  // Deferred downloads are only requested once; they are still 'remote' on later rounds.
+  const downloadIds =
+    deferDownloads && !includeDownloads
+      ? []
+      : unsynced.filter((f) => f.blob_state === 'remote').map((f) => f.id)
   const localFiles = unsynced.filter((f) => f.blob_state === 'local')
   const selectedUploadIds = takeSum(localFiles, 100 * 1024 * 1024, (f) =>
     encryptedBlobSize(f.size)
@@ -91,7 +132,7 @@ const _upDownloadBlobs = async (
     download_ids: downloadIds,
   }
   if (req.uploads.length === 0 && req.download_ids.length === 0) {
-    return {selectedAll: true, hit_storage_limit: false}
+    return {selectedAll: true, hit_storage_limit: false, downloads: []}
   }
   const res = await reqGetPresignedUrls(req)
   if (!res.success) {
@@ -121,6 +162,10 @@ const _upDownloadBlobs = async (
     await db.files_meta.update(file.id, {blob_state: 'synced'})
   }
 
+  if (deferDownloads) {
+    return {selectedAll, hit_storage_limit, downloads: download_urls}
+  }
+
   for (const {note_id, url} of download_urls) {
     const file = unsynced.find((f) => f.id === note_id)
     if (!file) continue
@@ -137,13 +182,7 @@ const _upDownloadBlobs = async (
       console.info('Failed to get Blob ' + error)
       continue
     }
-    const decryptedBlob = await decryptBlob(cryptoKey, encBlob, file.mime).catch(
-      (e) => new Blob([`Decryption failed: ${e}`], {type: 'text/plain'})
-    )
-    await db.transaction('rw', db.files_meta, db.files_blob, async (tx) => {
-      await tx.files_meta.update(file.id, {blob_state: 'synced'})
-      await tx.files_blob.put({id: file.id, blob: decryptedBlob})
-    })
+    await storeEncryptedBlob(cryptoKey, file.id, file.mime, encBlob)
   }
-  return {selectedAll, hit_storage_limit}
+  return {selectedAll, hit_storage_limit, downloads: []}
 }
@@ -0,0 +1,57 @@
+package com.ciphernotes.twa;
+
+import android.content.res.AssetManager;
+import android.util.Log;
+import androidx.annotation.Nullable;
+import com.ciphernotes.twa.core.AssetResolver;
+import com.ciphernotes.twa.core.MimeTypes;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+
+/**
+ * Bundled assets under {@code assets/www}. With an {@link AssetIndex}, paths
+ * missing from it are not bundled and metadata comes from the index; without
+ * one (builds that skip the index step) every path is tried and its type is
+ * guessed from the name.
+ */
+final class ApkAssetSource implements AssetResolver.Source {
+
+  private static final String TAG = "ApkAssetSource";
+
+  private final AssetManager assets;
+  @Nullable
+  private final AssetIndex index;
+
+  ApkAssetSource(AssetManager assets, @Nullable AssetIndex index) {
+    this.assets = assets;
+    this.index = index;
+  }
+
+  @Nullable
+  @Override
+  public AssetResolver.Meta find(String path) {
+    if (index != null) {
+      return index.get(path);
+    }
+    String mimeType = MimeTypes.guess(path);
+    return new AssetResolver.Meta(
+      mimeType,
+      MimeTypes.isUtf8Text(mimeType) ? "utf-8" : null,
+      Collections.emptyMap()
+    );
+  }
+
+  @Override
+  public InputStream open(String path, AssetResolver.Meta meta) throws IOException {
+    if (!(meta instanceof AssetIndex.Entry)) {
+      return assets.open("www/" + path, AssetManager.ACCESS_STREAMING);
+    }
+    try {
+      return ((AssetIndex.Entry) meta).open(assets);
+    } catch (IOException e) {
+      Log.e(TAG, "Indexed asset could not be read: " + path, e);
+      throw e;
+    }
+  }
+}
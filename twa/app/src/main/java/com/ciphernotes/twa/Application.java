@@ -15,15 +15,316 @@
  */
 package com.ciphernotes.twa;
 
-
+import android.app.ActivityManager;
+import android.content.Context;
+import android.content.pm.ApplicationInfo;
+import android.os.Build;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+import androidx.annotation.Nullable;
+import com.ciphernotes.twa.core.ApiProxy;
+import com.ciphernotes.twa.core.AssetCache;
+import com.ciphernotes.twa.core.HostAllowlist;
+import com.ciphernotes.twa.core.Metrics;
+import com.ciphernotes.twa.core.TransferManager;
+import java.io.File;
 
 public class Application extends android.app.Application {
 
-  
+  private static final String TAG = "Application";
+  private static final int TRANSFER_PARALLELISM = 3;
+  private static final long CAMERA_CACHE_QUOTA_BYTES = 64L * 1024 * 1024;
+  // Long enough for the page to read a capture after the chooser returns it.
+  private static final long CAMERA_CACHE_MIN_AGE_MS = 15 * 60 * 1000;
+  private static final long TRANSFER_CACHE_QUOTA_BYTES = 256L * 1024 * 1024;
+  private static final long TRANSFER_CACHE_MIN_AGE_MS = 60 * 60 * 1000;
+  // Content providers are mostly I/O bound; a few readers overlap their latency.
+  private static final int IMPORT_PARALLELISM = 4;
+  private static final long IMPORT_CACHE_QUOTA_BYTES = 256L * 1024 * 1024;
+  private static final long IMPORT_CACHE_MIN_AGE_MS = 60 * 60 * 1000;
+
+  private Metrics metrics;
+  @Nullable
+  private volatile ApiProxy apiProxy;
+  private AssetCache assetCache;
+  private HostAllowlist allowlist;
+  private BlockReporter blockReporter;
+  private TransferManager transferManager;
+  private ImportPreprocessor importPreprocessor;
+  private ArchiveImporter archiveImporter;
+  private ShareInbox shareInbox;
+  private BackgroundSync backgroundSync;
+  private boolean backgroundSyncCreated;
+  private ChangeNotifier changeNotifier;
+  private boolean changeNotifierCreated;
+  private DiskCacheManager diskCache;
+  private WebViewPrewarmer prewarmer;
+  private MemoryPressure memoryPressure;
+  private AssetIndex assetIndex;
+  private boolean assetIndexLoaded;
+
+  static Application from(Context context) {
+    return (Application) context.getApplicationContext();
+  }
 
   @Override
   public void onCreate() {
       super.onCreate();
-      
+      metrics = new Metrics(
+        Build.VERSION.SDK_INT >= Build.VERSION_CODES.N
+          ? Process.getStartElapsedRealtime()
+          : SystemClock.elapsedRealtime()
+      );
+      metrics.mark("applicationOnCreate", SystemClock.elapsedRealtime());
+      MetricsDumpReceiver.registerIfDebuggable(this);
+      allowlist = HostAllowlist.compile(getString(R.string.webViewAllowlist));
+      blockReporter = new BlockReporter(this);
+      ActivityManager am = (ActivityManager) getSystemService(Context.ACTIVITY_SERVICE);
+      long heapBytes = (am != null ? am.getMemoryClass() : 64) * 1024L * 1024L;
+      assetCache = new AssetCache(AssetCache.defaultBudget(heapBytes));
+      // Started by LocalWebViewActivity: jobs, shares and boot also create the process.
+      prewarmer = new WebViewPrewarmer(this, getResources().getBoolean(R.bool.prewarmWebView));
+      diskCache = new DiskCacheManager();
+      diskCache.addArea(
+        new DiskCacheManager.Area(
+          "camera",
+          cameraDir(this),
+          CAMERA_CACHE_QUOTA_BYTES,
+          CAMERA_CACHE_MIN_AGE_MS,
+          null
+        )
+      );
+      diskCache.addArea(
+        new DiskCacheManager.Area(
+          "transfers",
+          transfersDir(),
+          TRANSFER_CACHE_QUOTA_BYTES,
+          TRANSFER_CACHE_MIN_AGE_MS,
+          this::isTransferInUse
+        )
+      );
+      diskCache.addArea(
+        new DiskCacheManager.Area(
+          "imports",
+          importsDir(),
+          IMPORT_CACHE_QUOTA_BYTES,
+          IMPORT_CACHE_MIN_AGE_MS,
+          this::isImportInUse
+        )
+      );
+      diskCache.trimAsync();
+      memoryPressure = new MemoryPressure(
+        (getApplicationInfo().flags & ApplicationInfo.FLAG_DEBUGGABLE) != 0
+      );
+      memoryPressure.addListener(this::trimAssetCache);
+      memoryPressure.addListener(prewarmer::onTrimMemory);
+      memoryPressure.addListener(level -> {
+        if (level >= TRIM_MEMORY_UI_HIDDEN) {
+          // A good moment for housekeeping: nothing is being captured or shown.
+          diskCache.trimAsync();
+        }
+      });
+  }
+
+  Metrics getMetrics() {
+    return metrics;
+  }
+
+  /** Lets the metrics snapshot include the native API proxy while an activity owns one. */
+  void setApiProxy(@Nullable ApiProxy apiProxy) {
+    this.apiProxy = apiProxy;
+  }
+
+  /** Milestones, histograms, cache stats and, if enabled, API proxy stats. */
+  String metricsSnapshotJson() {
+    String snapshot = metrics.snapshotJson();
+    StringBuilder out = new StringBuilder(snapshot.length() + 256);
+    out.append(snapshot, 0, snapshot.length() - 1);
+    out
+      .append(",\"assetCache\":{\"hits\":")
+      .append(assetCache.hits())
+      .append(",\"misses\":")
+      .append(assetCache.misses())
+      .append(",\"bytes\":")
+      .append(assetCache.sizeBytes())
+      .append("},\"blocked\":");
+    blockReporter.appendJson(out);
+    out.append(",\"diskCache\":").append(diskCache.usageJson());
+    ApiProxy proxy = apiProxy;
+    if (proxy != null) {
+      out.append(",\"apiProxy\":").append(proxy.metricsJson());
+    }
+    return out.append('}').toString();
+  }
+
+  HostAllowlist getAllowlist() {
+    return allowlist;
+  }
+
+  BlockReporter getBlockReporter() {
+    return blockReporter;
+  }
+
+  /** Null when background sync is turned off in the build. */
+  @Nullable
+  synchronized BackgroundSync getBackgroundSync() {
+    if (!backgroundSyncCreated) {
+      if (getResources().getBoolean(R.bool.backgroundSync)) {
+        backgroundSync = new BackgroundSync(
+          this,
+          new File(getFilesDir(), "sync"),
+          getString(R.string.apiProxyUpstream),
+          "https://" + getString(R.string.hostName),
+          getResources().getInteger(R.integer.backgroundSyncIntervalHours) * 60L * 60 * 1000
+        );
+      }
+      backgroundSyncCreated = true;
+    }
+    return backgroundSync;
+  }
+
+  /** Null when the change feed is turned off in the build. */
+  @Nullable
+  synchronized ChangeNotifier getChangeNotifier() {
+    if (!changeNotifierCreated) {
+      if (getResources().getBoolean(R.bool.changeFeed)) {
+        changeNotifier = new ChangeNotifier(
+          getString(R.string.apiProxyUpstream),
+          "https://" + getString(R.string.hostName),
+          getBackgroundSync(),
+          getResources().getInteger(R.integer.changeFeedLingerMinutes) * 60L * 1000
+        );
+      }
+      changeNotifierCreated = true;
+    }
+    return changeNotifier;
+  }
+
+  /** Shared by activity instances so transfers outlive the one that started them. */
+  synchronized TransferManager getTransferManager() {
+    if (transferManager == null) {
+      transferManager = new TransferManager(transfersDir(), TRANSFER_PARALLELISM);
+    }
+    return transferManager;
+  }
+
+  private boolean isTransferInUse(File file) {
+    TransferManager manager;
+    synchronized (this) {
+      manager = transferManager;
+    }
+    return manager != null && manager.isInUse(file);
+  }
+
+  /** Shared by activity instances so an import survives a configuration change. */
+  synchronized ImportPreprocessor getImportPreprocessor() {
+    if (importPreprocessor == null) {
+      importPreprocessor = new ImportPreprocessor(
+        getContentResolver(),
+        importsDir(),
+        metrics,
+        IMPORT_PARALLELISM
+      );
+    }
+    return importPreprocessor;
+  }
+
+  /** Stages into the same directory as the import preprocessor, which serves and releases. */
+  synchronized ArchiveImporter getArchiveImporter() {
+    if (archiveImporter == null) {
+      archiveImporter = new ArchiveImporter(getContentResolver(), importsDir(), metrics);
+    }
+    return archiveImporter;
+  }
+
+  /** In files, not the cache: shared items wait there until the page stores them. */
+  synchronized ShareInbox getShareInbox() {
+    if (shareInbox == null) {
+      shareInbox = new ShareInbox(getContentResolver(), new File(getFilesDir(), "inbox"), metrics);
+    }
+    return shareInbox;
+  }
+
+  private boolean isImportInUse(File file) {
+    ImportPreprocessor preprocessor;
+    synchronized (this) {
+      preprocessor = importPreprocessor;
+    }
+    return preprocessor != null && preprocessor.isInUse(file);
+  }
+
+  private File importsDir() {
+    return new File(getCacheDir(), "import");
+  }
+
+  private File transfersDir() {
+    return new File(getNoBackupFilesDir(), "transfers");
+  }
+
+  /** Where camera captures for the file chooser are written. */
+  static File cameraDir(Context context) {
+    return new File(context.getCacheDir(), "camera");
+  }
+
+  DiskCacheManager getDiskCache() {
+    return diskCache;
+  }
+
+  AssetCache getAssetCache() {
+    return assetCache;
+  }
+
+  /** Trim levels for the native caches and, while an activity listens, the page. */
+  MemoryPressure getMemoryPressure() {
+    return memoryPressure;
+  }
+
+  WebViewPrewarmer getPrewarmer() {
+    return prewarmer;
+  }
+
+  /** The build-time asset index, read on first use; null if the APK has none. */
+  synchronized AssetIndex getAssetIndex() {
+    if (!assetIndexLoaded) {
+      assetIndex = AssetIndex.load(getAssets());
+      assetIndexLoaded = true;
+    }
+    return assetIndex;
+  }
+
+  @Override
+  public void onTrimMemory(int level) {
+    super.onTrimMemory(level);
+    memoryPressure.dispatch(level);
+  }
+
+  @Override
+  public void onLowMemory() {
+    super.onLowMemory();
+    memoryPressure.dispatch(TRIM_MEMORY_COMPLETE);
+  }
+
+  /** Shrinks the asset cache according to the {@link android.content.ComponentCallbacks2} trim level. */
+  private void trimAssetCache(int level) {
+    if (level >= TRIM_MEMORY_COMPLETE) {
+      assetCache.shrinkBudget(0);
+    } else if (level >= TRIM_MEMORY_MODERATE) {
+      assetCache.shrinkBudget(0.25);
+    } else if (level >= TRIM_MEMORY_BACKGROUND) {
+      assetCache.shrinkBudget(0.5);
+    } else if (level >= TRIM_MEMORY_UI_HIDDEN) {
+      // Only the UI went away; the assets are likely needed again soon.
+      return;
+    } else if (level >= TRIM_MEMORY_RUNNING_CRITICAL) {
+      assetCache.shrinkBudget(0);
+    } else if (level >= TRIM_MEMORY_RUNNING_LOW) {
+      assetCache.shrinkBudget(0.25);
+    } else if (level >= TRIM_MEMORY_RUNNING_MODERATE) {
+      assetCache.shrinkBudget(0.5);
+    } else {
+      return;
+    }
+    Log.i(TAG, "Trimmed for level " + level + ": " + assetCache);
   }
 }
@@ -0,0 +1,605 @@
+package com.ciphernotes.twa;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.provider.OpenableColumns;
+import android.util.JsonReader;
+import android.util.JsonToken;
+import android.util.Log;
+import androidx.annotation.Nullable;
+import com.ciphernotes.twa.core.Metrics;
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Imports a Google Keep takeout or a ciphernotes backup ZIP without ever
+ * holding the archive, or more than a few batches of it, in memory.
+ *
+ * <p>The archive is read once, front to back, with a {@link ZipInputStream}.
+ * Note JSON is parsed entry by entry with a {@link JsonReader}; every other
+ * entry is spooled into the import staging directory under a random id and
+ * served to the page like {@link ImportPreprocessor}'s files. Results go to the
+ * page as {@code ciphernotes-archive-import} events:
+ * <pre>
+ *   {session, kind, bytesRead, totalBytes, finished, cancelled, error,
+ *    notes: [...], files: [...], blobs: [{name, id, size}], labelColors}
+ * </pre>
+ * A Keep note is normalized to {@code {title, txt | todos: [{txt, done}],
+ * created_at, updated_at, archived, labels: [name], attachments: [{id,
+ * filePath, mime, size}]}}. A note whose attachments come later in the archive
+ * is held back until the end. Backup notes and {@code files_meta} entries are
+ * passed on as found in {@code notes.json}, and {@code blobs} maps archive
+ * entry names to staged ids.
+ *
+ * <p>At most {@link #MAX_UNACKED_BATCHES} batches are in flight. The page
+ * {@linkplain #ack acknowledges} each one once stored, and reading waits for
+ * that, so a slow page slows the import down instead of queueing events.
+ */
+final class ArchiveImporter {
+
+  enum Kind {
+    KEEP,
+    BACKUP,
+  }
+
+  interface Listener {
+    /** May run on any thread. */
+    void onArchiveImportProgress(JSONObject progress);
+  }
+
+  static final int NOTE_BATCH_SIZE = 50;
+  static final int BLOB_BATCH_SIZE = 16;
+  static final int MAX_UNACKED_BATCHES = 2;
+  private static final String TAG = "ArchiveImporter";
+  private static final long ACK_TIMEOUT_SECONDS = 60;
+  private static final int BUFFER_SIZE = 64 * 1024;
+  private static final Pattern KEEP_NOTE = Pattern.compile("Keep/[^/]+\\.json$");
+  private static final String KEEP_DIR = "Keep/";
+  private static final String BACKUP_NOTES = "notes.json";
+
+  private final ContentResolver resolver;
+  private final File dir;
+  private final Metrics metrics;
+  // One archive at a time; later ones queue.
+  private final ExecutorService executor = new ThreadPoolExecutor(
+    0,
+    1,
+    30,
+    TimeUnit.SECONDS,
+    new LinkedBlockingQueue<>(),
+    runnable -> {
+      Thread thread = new Thread(runnable, "ArchiveImport");
+      thread.setPriority(Thread.NORM_PRIORITY - 1);
+      return thread;
+    }
+  );
+  @Nullable
+  private volatile Listener listener;
+  @Nullable
+  private volatile Run current;
+
+  ArchiveImporter(ContentResolver resolver, File dir, Metrics metrics) {
+    this.resolver = resolver;
+    this.dir = dir;
+    this.metrics = metrics;
+  }
+
+  void setListener(@Nullable Listener listener) {
+    this.listener = listener;
+  }
+
+  /**
+   * Queues an import of {@code uri}; a null uri (picker cancelled) just
+   * reports a finished, empty session. Returns the session id.
+   */
+  String start(@Nullable Uri uri, Kind kind, boolean includeArchived) {
+    Run run = new Run(UUID.randomUUID().toString(), kind, includeArchived);
+    try {
+      executor.execute(() -> {
+        current = run;
+        try {
+          run.execute(uri);
+        } finally {
+          current = null;
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      Log.w(TAG, "Importer is shut down", e);
+    }
+    return run.session;
+  }
+
+  /** Called by the page after it has stored a batch of {@code session}. */
+  void ack(String session) {
+    Run run = current;
+    if (run != null && run.session.equals(session)) {
+      run.unacked.release();
+    }
+  }
+
+  void shutdown() {
+    executor.shutdownNow();
+  }
+
+  private final class Run {
+
+    final String session;
+    final Kind kind;
+    final boolean includeArchived;
+    final Semaphore unacked = new Semaphore(MAX_UNACKED_BATCHES);
+    private final List<Object> notes = new ArrayList<>();
+    private final List<Object> files = new ArrayList<>();
+    private final List<Object> blobs = new ArrayList<>();
+    @Nullable
+    private JSONObject labelColors;
+    // Keep attachments spooled so far, by path below "Keep/".
+    private final Map<String, JSONObject> keepAttachments = new HashMap<>();
+    // Keep notes waiting for attachments further down the archive.
+    private final List<JSONObject> heldBack = new ArrayList<>();
+    // Staged ids of Keep attachments handed to the page; the rest is deleted at the end.
+    private final Set<String> referenced = new HashSet<>();
+    private long totalBytes = -1;
+    private boolean cancelled;
+    private CountingInputStream counter;
+
+    Run(String session, Kind kind, boolean includeArchived) {
+      this.session = session;
+      this.kind = kind;
+      this.includeArchived = includeArchived;
+    }
+
+    void execute(@Nullable Uri uri) {
+      long start = System.nanoTime();
+      String error = null;
+      cancelled = uri == null;
+      if (uri != null) {
+        try {
+          read(uri);
+          for (JSONObject note : heldBack) {
+            // Whatever is still missing is not in the archive.
+            resolveAttachments(note, true);
+            notes.add(note);
+          }
+          heldBack.clear();
+          for (JSONObject staged : keepAttachments.values()) {
+            String id = staged.getString("id");
+            if (!referenced.contains(id)) {
+              // Belongs to a skipped note.
+              new File(dir, id).delete();
+            }
+          }
+          metrics.record("archiveImport", System.nanoTime() - start);
+        } catch (IOException | JSONException | IllegalStateException | SecurityException e) {
+          Log.w(TAG, "Archive import failed", e);
+          error = e.getMessage() != null ? e.getMessage() : e.getClass().getSimpleName();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          return;
+        }
+      }
+      try {
+        emit(true, error);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      } catch (JSONException | IllegalStateException e) {
+        Log.w(TAG, "Unable to report the end of the import", e);
+      }
+    }
+
+    private void read(Uri uri) throws IOException, JSONException, InterruptedException {
+      totalBytes = querySize(uri);
+      InputStream raw = resolver.openInputStream(uri);
+      if (raw == null) {
+        throw new IOException("No content for " + uri);
+      }
+      counter = new CountingInputStream(raw);
+      try (ZipInputStream zip = new ZipInputStream(new BufferedInputStream(counter, BUFFER_SIZE))) {
+        ZipEntry entry;
+        while ((entry = zip.getNextEntry()) != null) {
+          if (Thread.currentThread().isInterrupted()) {
+            throw new InterruptedException();
+          }
+          if (entry.isDirectory()) {
+            continue;
+          }
+          String name = entry.getName();
+          if (kind == Kind.KEEP) {
+            readKeepEntry(name, zip);
+          } else if (BACKUP_NOTES.equals(name)) {
+            readBackupNotes(zip);
+          } else {
+            JSONObject blob = spool(zip);
+            blobs.add(blob.put("name", name));
+          }
+          emitIfFull();
+        }
+      }
+    }
+
+    private void readKeepEntry(String name, ZipInputStream zip)
+      throws IOException, JSONException, InterruptedException {
+      int keep = name.lastIndexOf(KEEP_DIR);
+      if (keep < 0 || name.endsWith(".html")) {
+        // Takeout also renders every note as HTML; the JSON has all of it.
+        return;
+      }
+      if (KEEP_NOTE.matcher(name).find()) {
+        JSONObject note;
+        try {
+          note = readKeepNote(jsonReader(zip));
+        } catch (IOException | IllegalStateException | NumberFormatException e) {
+          Log.w(TAG, "Skipping unreadable Keep note " + name, e);
+          return;
+        }
+        if (note == null) {
+          return;
+        }
+        if (resolveAttachments(note, false)) {
+          notes.add(note);
+        } else {
+          heldBack.add(note);
+        }
+        return;
+      }
+      keepAttachments.put(name.substring(keep + KEEP_DIR.length()), spool(zip));
+    }
+
+    /** Returns null for trashed notes, skipped archived ones and unknown shapes. */
+    @Nullable
+    private JSONObject readKeepNote(JsonReader reader) throws IOException, JSONException {
+      JSONObject note = new JSONObject();
+      JSONArray labels = new JSONArray();
+      JSONArray attachments = new JSONArray();
+      boolean trashed = false;
+      boolean archived = false;
+      reader.beginObject();
+      while (reader.hasNext()) {
+        switch (reader.nextName()) {
+          case "title":
+            note.put("title", reader.nextString());
+            break;
+          case "textContent":
+            note.put("txt", reader.nextString());
+            break;
+          case "listContent":
+            note.put("todos", readKeepList(reader));
+            break;
+          case "createdTimestampUsec":
+            note.put("created_at", reader.nextLong() / 1000);
+            break;
+          case "userEditedTimestampUsec":
+            note.put("updated_at", reader.nextLong() / 1000);
+            break;
+          case "isTrashed":
+            trashed = reader.nextBoolean();
+            break;
+          case "isArchived":
+            archived = reader.nextBoolean();
+            break;
+          case "labels":
+            reader.beginArray();
+            while (reader.hasNext()) {
+              String label = readStringField(reader, "name");
+              if (label != null) {
+                labels.put(label);
+              }
+            }
+            reader.endArray();
+            break;
+          case "attachments":
+            reader.beginArray();
+            while (reader.hasNext()) {
+              attachments.put(readAttachment(reader));
+            }
+            reader.endArray();
+            break;
+          default:
+            reader.skipValue();
+        }
+      }
+      reader.endObject();
+      if (trashed || (archived && !includeArchived)) {
+        return null;
+      }
+      if ((!note.has("txt") && !note.has("todos")) || !note.has("updated_at")) {
+        return null;
+      }
+      if (!note.has("title")) {
+        note.put("title", "");
+      }
+      if (!note.has("created_at")) {
+        note.put("created_at", note.getLong("updated_at"));
+      }
+      return note
+        .put("archived", archived)
+        .put("labels", labels)
+        .put("attachments", attachments);
+    }
+
+    private JSONArray readKeepList(JsonReader reader) throws IOException, JSONException {
+      JSONArray todos = new JSONArray();
+      reader.beginArray();
+      while (reader.hasNext()) {
+        String text = "";
+        boolean checked = false;
+        reader.beginObject();
+        while (reader.hasNext()) {
+          switch (reader.nextName()) {
+            case "text":
+              text = reader.nextString();
+              break;
+            case "isChecked":
+              checked = reader.nextBoolean();
+              break;
+            default:
+              reader.skipValue();
+          }
+        }
+        reader.endObject();
+        todos.put(new JSONObject().put("txt", text).put("done", checked));
+      }
+      reader.endArray();
+      return todos;
+    }
+
+    private JSONObject readAttachment(JsonReader reader) throws IOException, JSONException {
+      JSONObject attachment = new JSONObject();
+      reader.beginObject();
+      while (reader.hasNext()) {
+        switch (reader.nextName()) {
+          case "filePath":
+            attachment.put("filePath", reader.nextString());
+            break;
+          case "mimetype":
+            attachment.put("mime", reader.nextString());
+            break;
+          default:
+            reader.skipValue();
+        }
+      }
+      reader.endObject();
+      return attachment;
+    }
+
+    /**
+     * Fills in the staged id and size of every attachment spooled so far.
+     * Returns false if some are still missing; with {@code dropMissing} they
+     * are removed instead.
+     */
+    private boolean resolveAttachments(JSONObject note, boolean dropMissing)
+      throws JSONException {
+      JSONArray attachments = note.getJSONArray("attachments");
+      JSONArray resolved = new JSONArray();
+      for (int i = 0; i < attachments.length(); i++) {
+        JSONObject attachment = attachments.getJSONObject(i);
+        JSONObject staged = keepAttachments.get(attachment.optString("filePath"));
+        if (staged != null) {
+          attachment.put("id", staged.getString("id")).put("size", staged.getLong("size"));
+          resolved.put(attachment);
+        } else if (!dropMissing) {
+          return false;
+        } else {
+          Log.w(TAG, "Attachment not in archive: " + attachment.optString("filePath"));
+        }
+      }
+      for (int i = 0; i < resolved.length(); i++) {
+        referenced.add(resolved.getJSONObject(i).getString("id"));
+      }
+      note.put("attachments", resolved);
+      return true;
+    }
+
+    private void readBackupNotes(ZipInputStream zip)
+      throws IOException, JSONException, InterruptedException {
+      JsonReader reader = jsonReader(zip);
+      reader.beginObject();
+      while (reader.hasNext()) {
+        String name = reader.nextName();
+        if (
+          ("notes".equals(name) || "files_meta".equals(name)) &&
+          reader.peek() == JsonToken.BEGIN_ARRAY
+        ) {
+          List<Object> target = "notes".equals(name) ? notes : files;
+          reader.beginArray();
+          while (reader.hasNext()) {
+            target.add(readValue(reader));
+            emitIfFull();
+          }
+          reader.endArray();
+        } else if ("labelColors".equals(name) && reader.peek() == JsonToken.BEGIN_OBJECT) {
+          labelColors = (JSONObject) readValue(reader);
+        } else {
+          reader.skipValue();
+        }
+      }
+      reader.endObject();
+    }
+
+    private JSONObject spool(InputStream in) throws IOException, JSONException {
+      if (!dir.isDirectory() && !dir.mkdirs()) {
+        throw new IOException("Unable to create " + dir);
+      }
+      String id = UUID.randomUUID().toString();
+      long size = 0;
+      try (OutputStream out = new FileOutputStream(new File(dir, id))) {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+          out.write(buffer, 0, read);
+          size += read;
+        }
+      }
+      return new JSONObject().put("id", id).put("size", size);
+    }
+
+    private void emitIfFull() throws JSONException, InterruptedException {
+      if (
+        notes.size() >= NOTE_BATCH_SIZE ||
+        files.size() >= NOTE_BATCH_SIZE ||
+        blobs.size() >= BLOB_BATCH_SIZE
+      ) {
+        emit(false, null);
+      }
+    }
+
+    private void emit(boolean finished, @Nullable String error)
+      throws JSONException, InterruptedException {
+      Listener target = listener;
+      if (target == null) {
+        // The page is gone; stop reading rather than spool for nobody.
+        throw new InterruptedException();
+      }
+      if (!unacked.tryAcquire(ACK_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+        throw new IllegalStateException("The page stopped acknowledging batches");
+      }
+      JSONObject progress = new JSONObject()
+        .put("session", session)
+        .put("kind", kind.name().toLowerCase(Locale.ROOT))
+        .put("bytesRead", counter != null ? counter.count : 0)
+        .put("totalBytes", totalBytes)
+        .put("finished", finished)
+        .put("cancelled", cancelled)
+        .put("notes", new JSONArray(notes))
+        .put("files", new JSONArray(files))
+        .put("blobs", new JSONArray(blobs));
+      if (error != null) {
+        progress.put("error", error);
+      }
+      if (labelColors != null) {
+        progress.put("labelColors", labelColors);
+        labelColors = null;
+      }
+      notes.clear();
+      files.clear();
+      blobs.clear();
+      target.onArchiveImportProgress(progress);
+    }
+
+    private long querySize(Uri uri) {
+      String[] projection = { OpenableColumns.SIZE };
+      try (Cursor cursor = resolver.query(uri, projection, null, null, null)) {
+        if (cursor != null && cursor.moveToFirst() && !cursor.isNull(0)) {
+          return cursor.getLong(0);
+        }
+      } catch (RuntimeException e) {
+        Log.w(TAG, "Unable to query size of " + uri, e);
+      }
+      return -1;
+    }
+  }
+
+  /** A reader over the current entry that leaves the archive open when done. */
+  private static JsonReader jsonReader(ZipInputStream zip) {
+    InputStream entry = new FilterInputStream(zip) {
+      @Override
+      public void close() {}
+    };
+    return new JsonReader(new InputStreamReader(entry, StandardCharsets.UTF_8));
+  }
+
+  @Nullable
+  private static String readStringField(JsonReader reader, String field) throws IOException {
+    String value = null;
+    reader.beginObject();
+    while (reader.hasNext()) {
+      if (field.equals(reader.nextName()) && reader.peek() == JsonToken.STRING) {
+        value = reader.nextString();
+      } else {
+        reader.skipValue();
+      }
+    }
+    reader.endObject();
+    return value;
+  }
+
+  /** Reads any JSON value into the org.json types the event payload is built from. */
+  private static Object readValue(JsonReader reader) throws IOException, JSONException {
+    switch (reader.peek()) {
+      case BEGIN_OBJECT:
+        JSONObject object = new JSONObject();
+        reader.beginObject();
+        while (reader.hasNext()) {
+          object.put(reader.nextName(), readValue(reader));
+        }
+        reader.endObject();
+        return object;
+      case BEGIN_ARRAY:
+        JSONArray array = new JSONArray();
+        reader.beginArray();
+        while (reader.hasNext()) {
+          array.put(readValue(reader));
+        }
+        reader.endArray();
+        return array;
+      case BOOLEAN:
+        return reader.nextBoolean();
+      case NULL:
+        reader.nextNull();
+        return JSONObject.NULL;
+      case NUMBER:
+        String number = reader.nextString();
+        try {
+          return Long.parseLong(number);
+        } catch (NumberFormatException e) {
+          return Double.parseDouble(number);
+        }
+      default:
+        return reader.nextString();
+    }
+  }
+
+  private static final class CountingInputStream extends FilterInputStream {
+
+    volatile long count;
+
+    CountingInputStream(InputStream in) {
+      super(in);
+    }
+
+    @Override
+    public int read() throws IOException {
+      int b = super.read();
+      if (b != -1) {
+        count++;
+      }
+      return b;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+      int read = super.read(buffer, offset, length);
+      if (read > 0) {
+        count += read;
+      }
+      return read;
+    }
+  }
+}
@@ -0,0 +1,142 @@
+package com.ciphernotes.twa;
+
+import android.content.res.AssetManager;
+import android.util.Log;
+import androidx.annotation.Nullable;
+import com.ciphernotes.twa.core.AssetResolver;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Lookup table of everything under {@code assets/www}, generated at build time
+ * by the indexWebAssets task in {@code app/build.gradle}.
+ *
+ * <p>File format, big-endian as written by {@link java.io.DataOutputStream}:
+ * <pre>
+ *   int   magic "CNAI"
+ *   short version (2)
+ *   int   entry count
+ *   per entry:
+ *     UTF   path relative to www/
+ *     UTF   MIME type
+ *     byte  flags: 1 = serve as utf-8, 2 = content-hashed name, cacheable forever
+ *     long  size
+ *     byte[32] SHA-256 of the content
+ * </pre>
+ */
+final class AssetIndex {
+
+  static final String ASSET_NAME = "www.idx";
+  private static final String TAG = "AssetIndex";
+  private static final int MAGIC = 0x434e4149;
+  private static final int VERSION = 2;
+  private static final int FLAG_UTF8 = 1;
+  private static final int FLAG_IMMUTABLE = 2;
+  private static final String CACHE_IMMUTABLE = "public, max-age=31536000, immutable";
+  // Unhashed entry points (index.html, manifest, sw.js) must be revalidated.
+  private static final String CACHE_REVALIDATE = "no-cache";
+  private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+  static final class Entry extends AssetResolver.Meta {
+
+    final String path;
+    final long size;
+    final byte[] sha256;
+    final String etag;
+
+    Entry(
+      String path,
+      String mimeType,
+      @Nullable String encoding,
+      long size,
+      byte[] sha256,
+      boolean immutable
+    ) {
+      // Response headers are built once so serving the entry allocates none.
+      super(mimeType, encoding, headersFor(etagFor(sha256), immutable));
+      this.path = path;
+      this.size = size;
+      this.sha256 = sha256;
+      this.etag = etagFor(sha256);
+    }
+
+    InputStream open(AssetManager assets) throws IOException {
+      return assets.open("www/" + path, AssetManager.ACCESS_STREAMING);
+    }
+  }
+
+  private final HashMap<String, Entry> entries;
+
+  private AssetIndex(HashMap<String, Entry> entries) {
+    this.entries = entries;
+  }
+
+  /** Reads the index, or returns null if the APK was built without one. */
+  @Nullable
+  static AssetIndex load(AssetManager assets) {
+    try (
+      DataInputStream in = new DataInputStream(
+        new BufferedInputStream(assets.open(ASSET_NAME, AssetManager.ACCESS_BUFFER))
+      )
+    ) {
+      if (in.readInt() != MAGIC || in.readUnsignedShort() != VERSION) {
+        Log.w(TAG, "Ignoring asset index with unknown format");
+        return null;
+      }
+      int count = in.readInt();
+      HashMap<String, Entry> entries = new HashMap<>(count * 2);
+      for (int i = 0; i < count; i++) {
+        String path = in.readUTF();
+        String mimeType = in.readUTF();
+        int flags = in.readUnsignedByte();
+        long size = in.readLong();
+        byte[] sha256 = new byte[32];
+        in.readFully(sha256);
+        String encoding = (flags & FLAG_UTF8) != 0 ? "utf-8" : null;
+        boolean immutable = (flags & FLAG_IMMUTABLE) != 0;
+        entries.put(path, new Entry(path, mimeType, encoding, size, sha256, immutable));
+      }
+      return new AssetIndex(entries);
+    } catch (FileNotFoundException e) {
+      return null;
+    } catch (IOException e) {
+      Log.e(TAG, "Unable to read asset index", e);
+      return null;
+    }
+  }
+
+  /** Returns the entry for a path relative to www/, or null if no such asset exists. */
+  @Nullable
+  Entry get(String path) {
+    return entries.get(path);
+  }
+
+  int size() {
+    return entries.size();
+  }
+
+  private static Map<String, String> headersFor(String etag, boolean immutable) {
+    Map<String, String> headers = new HashMap<>(4);
+    headers.put("Cache-Control", immutable ? CACHE_IMMUTABLE : CACHE_REVALIDATE);
+    headers.put("ETag", etag);
+    return Collections.unmodifiableMap(headers);
+  }
+
+  /** A strong ETag from the first 128 bits of the content hash. */
+  private static String etagFor(byte[] sha256) {
+    char[] chars = new char[34];
+    chars[0] = '"';
+    for (int i = 0; i < 16; i++) {
+      chars[1 + i * 2] = HEX[(sha256[i] >> 4) & 0xf];
+      chars[2 + i * 2] = HEX[sha256[i] & 0xf];
+    }
+    chars[33] = '"';
+    return new String(chars);
+  }
+}
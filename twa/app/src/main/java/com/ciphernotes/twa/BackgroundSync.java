@@ -0,0 +1,183 @@
+package com.ciphernotes.twa;
+
+import android.app.job.JobInfo;
+import android.app.job.JobScheduler;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Build;
+import android.util.Log;
+import android.webkit.CookieManager;
+import com.ciphernotes.twa.core.DeltaSync;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Keeps the note list fresh while the app is closed: {@link SyncJobService}
+ * periodically pulls what changed since the page's last sync into
+ * {@link #pendingFile()}, and the page merges it at its next start instead of
+ * waiting for its first sync round trip.
+ *
+ * <p>The page {@link #configure}s this after every successful sync of its own,
+ * which also drops a delta it no longer needs, and {@link #disable}s it when
+ * the user signs out. Only the sync token and position are stored; the
+ * session is the WebView's cookie and the key to decrypt the delta never
+ * leaves the page.
+ */
+final class BackgroundSync {
+
+  private static final String TAG = "BackgroundSync";
+  static final int JOB_ID = 4001;
+  // One-off pull after the change feed saw changes while the app was in the background.
+  static final int PULL_NOW_JOB_ID = 4002;
+  private static final String PREFS = "background_sync";
+  private static final String KEY_LAST_SYNCED_TO = "lastSyncedTo";
+  private static final String KEY_SYNC_TOKEN = "syncToken";
+  private static final String ENDPOINT_PATH = "/api/syncNotes";
+
+  private final Context context;
+  private final SharedPreferences prefs;
+  private final DeltaSync deltaSync;
+  private final long intervalMs;
+
+  /**
+   * @param upstreamOrigin where the request goes, like the API proxy's
+   * @param pageOrigin the origin the page calls the API on, whose cookies
+   *     carry the session
+   */
+  BackgroundSync(
+    Context context,
+    File dir,
+    String upstreamOrigin,
+    String pageOrigin,
+    long intervalMs
+  ) {
+    this.context = context.getApplicationContext();
+    this.prefs = this.context.getSharedPreferences(PREFS, Context.MODE_PRIVATE);
+    this.intervalMs = intervalMs;
+    this.deltaSync = new DeltaSync(
+      upstreamOrigin + ENDPOINT_PATH,
+      pageOrigin + ENDPOINT_PATH,
+      dir,
+      new DeltaSync.CookieJar() {
+        @Override
+        public String get(String url) {
+          return CookieManager.getInstance().getCookie(url);
+        }
+
+        @Override
+        public void put(String url, String setCookie) {
+          CookieManager cookieManager = CookieManager.getInstance();
+          cookieManager.setCookie(url, setCookie);
+          if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            // No WebView may run before the process dies; persist it now.
+            cookieManager.flush();
+          }
+        }
+      }
+    );
+  }
+
+  /** Records where the page's last sync ended and makes sure the job is scheduled. */
+  void configure(long lastSyncedTo, String syncToken) {
+    prefs
+      .edit()
+      .putLong(KEY_LAST_SYNCED_TO, lastSyncedTo)
+      .putString(KEY_SYNC_TOKEN, syncToken)
+      .apply();
+    deltaSync.discard();
+    if (!isScheduled()) {
+      JobInfo.Builder job = new JobInfo.Builder(
+        JOB_ID,
+        new ComponentName(context, SyncJobService.class)
+      )
+        .setRequiredNetworkType(JobInfo.NETWORK_TYPE_ANY)
+        .setPeriodic(intervalMs)
+        .setPersisted(true);
+      if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+        job.setRequiresBatteryNotLow(true);
+      }
+      scheduler().schedule(job.build());
+    }
+  }
+
+  /** Forgets the sync position, drops the delta and cancels the job. */
+  void disable() {
+    prefs.edit().clear().apply();
+    deltaSync.discard();
+    scheduler().cancel(JOB_ID);
+    scheduler().cancel(PULL_NOW_JOB_ID);
+  }
+
+  /** Where the page's last sync ended, 0 before its first. */
+  long lastSyncedTo() {
+    return prefs.getLong(KEY_LAST_SYNCED_TO, 0);
+  }
+
+  /**
+   * Pulls once as soon as there is a network, ahead of the periodic job.
+   * Requests made before that run replace each other.
+   */
+  void requestPull() {
+    if (prefs.getString(KEY_SYNC_TOKEN, null) == null) {
+      return;
+    }
+    scheduler()
+      .schedule(
+        new JobInfo.Builder(PULL_NOW_JOB_ID, new ComponentName(context, SyncJobService.class))
+          .setRequiredNetworkType(JobInfo.NETWORK_TYPE_ANY)
+          .build()
+      );
+  }
+
+  boolean hasDelta() {
+    return deltaSync.pendingFile().isFile();
+  }
+
+  File pendingFile() {
+    return deltaSync.pendingFile();
+  }
+
+  /**
+   * Pulls the delta for the stored position. Called on the job's thread;
+   * throws if it should be retried later.
+   */
+  void pull() throws IOException {
+    String syncToken = prefs.getString(KEY_SYNC_TOKEN, null);
+    if (syncToken == null) {
+      scheduler().cancel(JOB_ID);
+      return;
+    }
+    long lastSyncedTo = lastSyncedTo();
+    long start = System.nanoTime();
+    DeltaSync.Result result = deltaSync.pull(lastSyncedTo, syncToken);
+    if (result == DeltaSync.Result.SIGNED_OUT) {
+      Log.i(TAG, "Session expired, stopping background sync");
+      disable();
+      return;
+    }
+    Log.i(
+      TAG,
+      "Pulled " +
+      deltaSync.pendingFile().length() +
+      " bytes since " +
+      lastSyncedTo +
+      " in " +
+      (System.nanoTime() - start) / 1_000_000 +
+      " ms"
+    );
+  }
+
+  private boolean isScheduled() {
+    for (JobInfo job : scheduler().getAllPendingJobs()) {
+      if (job.getId() == JOB_ID) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private JobScheduler scheduler() {
+    return (JobScheduler) context.getSystemService(Context.JOB_SCHEDULER_SERVICE);
+  }
+}
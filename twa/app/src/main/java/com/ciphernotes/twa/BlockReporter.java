@@ -0,0 +1,104 @@
+package com.ciphernotes.twa;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+import android.widget.Toast;
+import com.ciphernotes.twa.core.Json;
+import com.ciphernotes.twa.core.RequestInterceptor;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Collects requests rejected by the {@link com.ciphernotes.twa.core.HostAllowlist} and reports them as
+ * one toast per {@link #REPORT_INTERVAL_MS}, so a misbehaving page cannot flood
+ * the UI thread. Totals are kept for the metrics snapshot.
+ */
+final class BlockReporter implements RequestInterceptor.BlockListener {
+
+  private static final String TAG = "BlockReporter";
+  static final long REPORT_INTERVAL_MS = 5_000;
+  /** Distinct hosts kept per report window and in the totals. */
+  private static final int MAX_HOSTS = 16;
+
+  private final Context context;
+  private final Handler mainHandler = new Handler(Looper.getMainLooper());
+  private final Runnable reportRunnable = this::report;
+  // All fields below are guarded by this.
+  private final Map<String, Integer> pendingByHost = new LinkedHashMap<>();
+  private final Map<String, Integer> totalByHost = new LinkedHashMap<>();
+  private int pending;
+  private long total;
+  private long lastReportAt = -REPORT_INTERVAL_MS;
+  private boolean reportScheduled;
+
+  BlockReporter(Context context) {
+    this.context = context.getApplicationContext();
+  }
+
+  @Override
+  public synchronized void onBlocked(String scheme, String host) {
+    String key = host != null ? host : scheme + ":";
+    pending++;
+    total++;
+    count(pendingByHost, key);
+    count(totalByHost, key);
+    if (!reportScheduled) {
+      reportScheduled = true;
+      long wait = Math.max(0, lastReportAt + REPORT_INTERVAL_MS - SystemClock.elapsedRealtime());
+      mainHandler.postDelayed(reportRunnable, wait);
+    }
+  }
+
+  synchronized void appendJson(StringBuilder out) {
+    out.append("{\"total\":").append(total).append(",\"byHost\":{");
+    boolean first = true;
+    for (Map.Entry<String, Integer> entry : totalByHost.entrySet()) {
+      if (!first) out.append(',');
+      first = false;
+      Json.appendQuoted(out, entry.getKey());
+      out.append(':').append(entry.getValue());
+    }
+    out.append("}}");
+  }
+
+  private void report() {
+    String message;
+    synchronized (this) {
+      reportScheduled = false;
+      lastReportAt = SystemClock.elapsedRealtime();
+      if (pending == 0) {
+        return;
+      }
+      StringBuilder text = new StringBuilder("Blocked ")
+        .append(pending)
+        .append(pending == 1 ? " request to " : " requests to ");
+      int shown = 0;
+      for (String host : pendingByHost.keySet()) {
+        if (shown == 2) {
+          text.append(" and ").append(pendingByHost.size() - shown).append(" more");
+          break;
+        }
+        if (shown > 0) text.append(", ");
+        text.append(host);
+        shown++;
+      }
+      message = text.toString();
+      pending = 0;
+      pendingByHost.clear();
+    }
+    Log.w(TAG, message);
+    Toast.makeText(context, message, Toast.LENGTH_SHORT).show();
+  }
+
+  private static void count(Map<String, Integer> counts, String key) {
+    Integer previous = counts.get(key);
+    if (previous != null) {
+      counts.put(key, previous + 1);
+    } else if (counts.size() < MAX_HOSTS) {
+      counts.put(key, 1);
+    }
+  }
+}
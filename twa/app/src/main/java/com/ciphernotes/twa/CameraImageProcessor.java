@@ -0,0 +1,197 @@
+package com.ciphernotes.twa;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Matrix;
+import android.media.ExifInterface;
+import android.os.Build;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Locale;
+
+/**
+ * Shrinks a camera capture before it is handed to the page, which would
+ * otherwise decode the full-resolution original for thumbnails and encrypt and
+ * upload all of it.
+ *
+ * <p>The capture is decoded with the largest power-of-two sample size that
+ * keeps its long edge at or above {@code maxEdge}, then rotated to its EXIF
+ * orientation and scaled down to {@code maxEdge} in one pass, and finally
+ * re-encoded. The output carries no EXIF data, so location tags are dropped
+ * along with the orientation flag that no longer applies.
+ */
+final class CameraImageProcessor {
+
+  private final int maxEdge;
+  private final boolean webp;
+  private final int quality;
+
+  /** {@code format} is {@code "jpeg"} or {@code "webp"}; anything else means JPEG. */
+  CameraImageProcessor(int maxEdge, String format, int quality) {
+    this.maxEdge = Math.max(1, maxEdge);
+    this.webp = "webp".equals(format.toLowerCase(Locale.ROOT));
+    this.quality = Math.max(0, Math.min(100, quality));
+  }
+
+  /**
+   * Returns the optimized copy of {@code source}, written next to it, or
+   * {@code source} itself if it is a JPEG that is already small enough and
+   * upright.
+   *
+   * @throws IOException if the capture cannot be decoded or the copy cannot be
+   *     written
+   */
+  File process(File source) throws IOException {
+    BitmapFactory.Options bounds = new BitmapFactory.Options();
+    bounds.inJustDecodeBounds = true;
+    BitmapFactory.decodeFile(source.getPath(), bounds);
+    if (bounds.outWidth <= 0 || bounds.outHeight <= 0) {
+      throw new IOException("Not a decodable image: " + source.getName());
+    }
+    int longEdge = Math.max(bounds.outWidth, bounds.outHeight);
+    int orientation = readOrientation(source);
+    boolean upright =
+      orientation == ExifInterface.ORIENTATION_NORMAL ||
+      orientation == ExifInterface.ORIENTATION_UNDEFINED;
+    if (!webp && upright && longEdge <= maxEdge) {
+      return source;
+    }
+
+    BitmapFactory.Options options = new BitmapFactory.Options();
+    options.inSampleSize = sampleSize(longEdge, maxEdge);
+    Bitmap decoded;
+    try {
+      decoded = BitmapFactory.decodeFile(source.getPath(), options);
+    } catch (OutOfMemoryError e) {
+      throw new IOException("Not enough memory to decode " + source.getName(), e);
+    }
+    if (decoded == null) {
+      throw new IOException("Unable to decode " + source.getName());
+    }
+    int decodedLongEdge = Math.max(decoded.getWidth(), decoded.getHeight());
+    float scale = decodedLongEdge > maxEdge ? maxEdge / (float) decodedLongEdge : 1;
+    Bitmap output;
+    try {
+      output = transform(decoded, orientation, scale);
+    } catch (OutOfMemoryError e) {
+      decoded.recycle();
+      throw new IOException("Not enough memory to scale " + source.getName(), e);
+    }
+    if (output != decoded) {
+      decoded.recycle();
+    }
+
+    File target = new File(
+      source.getParentFile(),
+      stripExtension(source.getName()) + "_opt" + (webp ? ".webp" : ".jpg")
+    );
+    boolean written = false;
+    try (OutputStream out = new FileOutputStream(target)) {
+      if (!output.compress(compressFormat(), quality, out)) {
+        throw new IOException("Unable to encode " + target.getName());
+      }
+      written = true;
+    } finally {
+      output.recycle();
+      if (!written) {
+        target.delete();
+      }
+    }
+    return target;
+  }
+
+  /** The largest power of two that keeps {@code longEdge / sample >= maxEdge}. */
+  static int sampleSize(int longEdge, int maxEdge) {
+    int sample = 1;
+    while (longEdge / (sample * 2) >= maxEdge) {
+      sample *= 2;
+    }
+    return sample;
+  }
+
+  /** The EXIF orientation of {@code file}, {@code ORIENTATION_NORMAL} if it has none. */
+  static int readOrientation(File file) throws IOException {
+    return new ExifInterface(file.getPath()).getAttributeInt(
+      ExifInterface.TAG_ORIENTATION,
+      ExifInterface.ORIENTATION_NORMAL
+    );
+  }
+
+  /** Whether {@code orientation} swaps width and height. */
+  static boolean isTransposed(int orientation) {
+    return (
+      orientation == ExifInterface.ORIENTATION_TRANSPOSE ||
+      orientation == ExifInterface.ORIENTATION_ROTATE_90 ||
+      orientation == ExifInterface.ORIENTATION_TRANSVERSE ||
+      orientation == ExifInterface.ORIENTATION_ROTATE_270
+    );
+  }
+
+  /**
+   * Scales {@code bitmap} by {@code scale} and turns it upright in one pass.
+   * Returns {@code bitmap} itself if there is nothing to do.
+   */
+  static Bitmap transform(Bitmap bitmap, int orientation, float scale) {
+    Matrix matrix = new Matrix();
+    if (scale != 1) {
+      matrix.postScale(scale, scale);
+    }
+    switch (orientation) {
+      case ExifInterface.ORIENTATION_FLIP_HORIZONTAL:
+        matrix.postScale(-1, 1);
+        break;
+      case ExifInterface.ORIENTATION_ROTATE_180:
+        matrix.postRotate(180);
+        break;
+      case ExifInterface.ORIENTATION_FLIP_VERTICAL:
+        matrix.postScale(1, -1);
+        break;
+      case ExifInterface.ORIENTATION_TRANSPOSE:
+        matrix.postRotate(90);
+        matrix.postScale(-1, 1);
+        break;
+      case ExifInterface.ORIENTATION_ROTATE_90:
+        matrix.postRotate(90);
+        break;
+      case ExifInterface.ORIENTATION_TRANSVERSE:
+        matrix.postRotate(-90);
+        matrix.postScale(-1, 1);
+        break;
+      case ExifInterface.ORIENTATION_ROTATE_270:
+        matrix.postRotate(-90);
+        break;
+      default:
+        break;
+    }
+    if (matrix.isIdentity()) {
+      return bitmap;
+    }
+    return Bitmap.createBitmap(
+      bitmap,
+      0,
+      0,
+      bitmap.getWidth(),
+      bitmap.getHeight(),
+      matrix,
+      true
+    );
+  }
+
+  @SuppressWarnings("deprecation")
+  private Bitmap.CompressFormat compressFormat() {
+    if (!webp) {
+      return Bitmap.CompressFormat.JPEG;
+    }
+    // Before R, WEBP is lossy for quality < 100, which is what we want.
+    return Build.VERSION.SDK_INT >= Build.VERSION_CODES.R
+      ? Bitmap.CompressFormat.WEBP_LOSSY
+      : Bitmap.CompressFormat.WEBP;
+  }
+
+  private static String stripExtension(String name) {
+    int dot = name.lastIndexOf('.');
+    return dot > 0 ? name.substring(0, dot) : name;
+  }
+}
@@ -0,0 +1,164 @@
+package com.ciphernotes.twa;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import android.webkit.CookieManager;
+import androidx.annotation.Nullable;
+import com.ciphernotes.twa.core.ChangeFeed;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Keeps the {@link ChangeFeed} to the backend open while the page is signed in
+ * and on screen, and for a while after it is closed, and turns its batches
+ * into "these notes changed" hints: to the page while an activity is started,
+ * otherwise into one {@link BackgroundSync#requestPull()} so the next launch
+ * starts from a fresh delta.
+ *
+ * <p>The server keeps one socket per session, so in the wrapper this replaces
+ * the page's own socket.io connection, and the page follows the connection
+ * state through {@link PageListener} too.
+ */
+final class ChangeNotifier implements ChangeFeed.Listener {
+
+  private static final String TAG = "ChangeNotifier";
+  // Pushes of one edit session on another device arrive in bursts.
+  private static final long QUIET_MS = 1_000;
+  private static final long MAX_DELAY_MS = 5_000;
+
+  interface PageListener {
+    void onConnectionChanged(boolean connected);
+
+    void onChanges(JSONObject hint);
+  }
+
+  private final ChangeFeed feed;
+  @Nullable
+  private final BackgroundSync backgroundSync;
+  private final long lingerMs;
+  private final Handler handler = new Handler(Looper.getMainLooper());
+  private final Runnable lingerExpired = () -> {
+    lingering = false;
+    update();
+  };
+  @Nullable
+  private volatile PageListener pageListener;
+  private volatile boolean foreground;
+  // Set when the connection dropped; pushes sent meanwhile are lost.
+  private volatile boolean missedChanges;
+  // Main thread only.
+  private boolean enabled;
+  private boolean lingering;
+
+  /**
+   * @param upstreamOrigin where the connection goes, like the API proxy's
+   * @param pageOrigin the origin the page connects on, whose cookies carry
+   *     the session
+   * @param lingerMs how long to stay connected after the activity stops; only
+   *     useful with {@code backgroundSync}
+   */
+  ChangeNotifier(
+    String upstreamOrigin,
+    String pageOrigin,
+    @Nullable BackgroundSync backgroundSync,
+    long lingerMs
+  ) {
+    this.backgroundSync = backgroundSync;
+    this.lingerMs = backgroundSync != null ? lingerMs : 0;
+    this.feed = new ChangeFeed(
+      upstreamOrigin,
+      pageOrigin + "/socket.io/",
+      url -> CookieManager.getInstance().getCookie(url),
+      this,
+      QUIET_MS,
+      MAX_DELAY_MS
+    );
+  }
+
+  void setPageListener(@Nullable PageListener listener) {
+    pageListener = listener;
+  }
+
+  /** Called by the page when it signs in or out. Any thread. */
+  void setEnabled(boolean enabled) {
+    handler.post(() -> {
+      this.enabled = enabled;
+      update();
+    });
+  }
+
+  boolean isConnected() {
+    return feed.isConnected();
+  }
+
+  /** Called from the activity's onStart and onStop. */
+  void setForeground(boolean foreground) {
+    this.foreground = foreground;
+    handler.removeCallbacks(lingerExpired);
+    lingering = !foreground && lingerMs > 0;
+    if (lingering) {
+      handler.postDelayed(lingerExpired, lingerMs);
+    }
+    update();
+  }
+
+  private void update() {
+    if (enabled && (foreground || lingering)) {
+      feed.start();
+    } else {
+      feed.stop();
+    }
+  }
+
+  @Override
+  public void onConnectionChanged(boolean connected) {
+    PageListener listener = pageListener;
+    if (listener != null) {
+      listener.onConnectionChanged(connected);
+    }
+    if (!connected) {
+      missedChanges = true;
+    } else if (missedChanges) {
+      missedChanges = false;
+      if (!foreground) {
+        // The page catches up on reconnect by itself; without it, pull.
+        requestPull();
+      }
+    }
+  }
+
+  @Override
+  public void onChanges(ChangeFeed.Batch batch) {
+    PageListener listener = pageListener;
+    if (!foreground || listener == null) {
+      requestPull();
+      return;
+    }
+    JSONObject hint = new JSONObject();
+    try {
+      hint.put("events", batch.events);
+      hint.put("ids", new JSONArray(batch.ids));
+      hint.put("truncated", batch.truncated);
+    } catch (JSONException e) {
+      throw new IllegalStateException(e);
+    }
+    listener.onChanges(hint);
+  }
+
+  @Override
+  public void onSignedOut() {
+    Log.i(TAG, "Session rejected, closing the change feed");
+    handler.post(() -> {
+      enabled = false;
+      update();
+    });
+  }
+
+  private void requestPull() {
+    if (backgroundSync != null) {
+      backgroundSync.requestPull();
+    }
+  }
+}
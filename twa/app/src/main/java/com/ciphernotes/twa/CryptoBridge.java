@@ -0,0 +1,93 @@
+package com.ciphernotes.twa;
+
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import android.webkit.WebView;
+import androidx.annotation.NonNull;
+import androidx.webkit.JavaScriptReplyProxy;
+import androidx.webkit.WebMessageCompat;
+import androidx.webkit.WebViewCompat;
+import androidx.webkit.WebViewFeature;
+import com.ciphernotes.twa.core.BatchCipher;
+import java.util.Collections;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Binary channel exposed to the page as {@code AndroidCrypto}: each ArrayBuffer
+ * message is one {@link BatchCipher} request frame and is answered with one
+ * response frame. Batches are taken one at a time and each is spread over a
+ * pool with one worker per core.
+ */
+final class CryptoBridge implements WebViewCompat.WebMessageListener {
+
+  static final String JS_OBJECT_NAME = "AndroidCrypto";
+  private static final String TAG = "CryptoBridge";
+
+  private final String allowedOrigin;
+  private final ForkJoinPool pool = new ForkJoinPool(
+    Math.max(1, Runtime.getRuntime().availableProcessors())
+  );
+  private final BatchCipher cipher = new BatchCipher(pool);
+  private final ExecutorService dispatcher = Executors.newSingleThreadExecutor();
+  private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+  CryptoBridge(String allowedOrigin) {
+    this.allowedOrigin = allowedOrigin;
+  }
+
+  static boolean isSupported() {
+    return DownloadStreamBridge.isSupported();
+  }
+
+  void install(WebView webView) {
+    WebViewCompat.addWebMessageListener(
+      webView,
+      JS_OBJECT_NAME,
+      Collections.singleton(allowedOrigin),
+      this
+    );
+  }
+
+  void close() {
+    dispatcher.shutdownNow();
+    pool.shutdownNow();
+  }
+
+  @Override
+  public void onPostMessage(
+    @NonNull WebView view,
+    @NonNull WebMessageCompat message,
+    @NonNull Uri sourceOrigin,
+    boolean isMainFrame,
+    @NonNull JavaScriptReplyProxy replyProxy
+  ) {
+    if (!isMainFrame || message.getType() != WebMessageCompat.TYPE_ARRAY_BUFFER) {
+      return;
+    }
+    byte[] request = message.getArrayBuffer();
+    try {
+      dispatcher.execute(() -> {
+        byte[] response;
+        try {
+          response = cipher.process(request);
+        } catch (RuntimeException e) {
+          // The error frame lets the page fall back to WebCrypto right away.
+          Log.w(TAG, "Failing batch", e);
+          response = BatchCipher.errorResponse(request);
+          if (response == null) {
+            return;
+          }
+        }
+        byte[] reply = response;
+        mainHandler.post(() -> replyProxy.postMessage(reply));
+      });
+    } catch (RejectedExecutionException ignored) {
+      // Closed with the activity.
+    }
+  }
+}
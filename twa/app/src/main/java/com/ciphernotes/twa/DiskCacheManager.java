@@ -0,0 +1,204 @@
+package com.ciphernotes.twa;
+
+import android.util.Log;
+import androidx.annotation.Nullable;
+import com.ciphernotes.twa.core.Json;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Keeps the app's own file caches (camera captures, finished downloads, ...)
+ * within per-area byte quotas.
+ *
+ * <p>Each area is one flat directory. Trimming deletes its least recently
+ * used files, by modification time, until the area fits its quota again;
+ * readers can {@link #touch} a file to keep it around. Files younger than the
+ * area's minimum age, and files the area reports as in use, are never
+ * deleted, so a capture the page has not read yet survives even if it alone
+ * exceeds the quota. Trims run one at a time on a background thread; a
+ * request made while one is pending is folded into it.
+ */
+final class DiskCacheManager {
+
+  private static final String TAG = "DiskCacheManager";
+
+  interface InUse {
+    /** Called on the trim thread. */
+    boolean isInUse(File file);
+  }
+
+  static final class Area {
+
+    final String name;
+    final File dir;
+    final long quotaBytes;
+    final long minAgeMs;
+    @Nullable
+    final InUse inUse;
+
+    Area(String name, File dir, long quotaBytes, long minAgeMs, @Nullable InUse inUse) {
+      this.name = name;
+      this.dir = dir;
+      this.quotaBytes = quotaBytes;
+      this.minAgeMs = minAgeMs;
+      this.inUse = inUse;
+    }
+  }
+
+  private final List<Area> areas = new ArrayList<>();
+  private final AtomicBoolean trimPending = new AtomicBoolean();
+  private final ExecutorService executor = new ThreadPoolExecutor(
+    0,
+    1,
+    10,
+    TimeUnit.SECONDS,
+    new LinkedBlockingQueue<>(),
+    runnable -> {
+      Thread thread = new Thread(runnable, "DiskCacheTrim");
+      thread.setPriority(Thread.MIN_PRIORITY);
+      return thread;
+    }
+  );
+  // Guarded by this; written only by the trim thread.
+  private long evictedBytes;
+  private int evictedFiles;
+
+  /** Registers an area; call before the first trim. */
+  synchronized void addArea(Area area) {
+    areas.add(area);
+  }
+
+  /** Marks {@code file} as just used, so it is evicted last. */
+  static void touch(File file) {
+    file.setLastModified(System.currentTimeMillis());
+  }
+
+  /** Schedules a trim of every area to its quota. */
+  void trimAsync() {
+    if (!trimPending.compareAndSet(false, true)) {
+      return;
+    }
+    executor.execute(() -> {
+      trimPending.set(false);
+      trim();
+    });
+  }
+
+  private void trim() {
+    long now = System.currentTimeMillis();
+    long bytes = 0;
+    int files = 0;
+    for (Area area : areasSnapshot()) {
+      File[] listed = listFiles(area.dir);
+      // Lengths and times are read once so the sort sees a consistent order.
+      Entry[] entries = new Entry[listed.length];
+      long used = 0;
+      for (int i = 0; i < listed.length; i++) {
+        entries[i] = new Entry(listed[i]);
+        used += entries[i].length;
+      }
+      if (used <= area.quotaBytes) {
+        continue;
+      }
+      // Oldest first.
+      Arrays.sort(entries, (a, b) -> Long.compare(a.modified, b.modified));
+      for (Entry entry : entries) {
+        if (used <= area.quotaBytes) {
+          break;
+        }
+        if (now - entry.modified < area.minAgeMs) {
+          // Everything after this one is younger still.
+          break;
+        }
+        if (area.inUse != null && area.inUse.isInUse(entry.file)) {
+          continue;
+        }
+        if (entry.file.delete()) {
+          used -= entry.length;
+          bytes += entry.length;
+          files++;
+        }
+      }
+      if (used > area.quotaBytes) {
+        Log.i(TAG, area.name + " is over quota with files still in use: " + used + " bytes");
+      }
+    }
+    if (files > 0) {
+      synchronized (this) {
+        evictedBytes += bytes;
+        evictedFiles += files;
+      }
+      Log.i(TAG, "Evicted " + files + " files, " + bytes + " bytes");
+    }
+  }
+
+  /**
+   * Current usage per area, for the page's storage dialog and the metrics
+   * snapshot: {@code {"areas":[{"name","used","quota","files"}],
+   * "evictedBytes","evictedFiles"}}. Lists the directories on the calling
+   * thread; they hold a few dozen files at most.
+   */
+  String usageJson() {
+    List<Area> snapshot = areasSnapshot();
+    StringBuilder out = new StringBuilder(64 + snapshot.size() * 64).append("{\"areas\":[");
+    for (int i = 0; i < snapshot.size(); i++) {
+      Area area = snapshot.get(i);
+      File[] entries = listFiles(area.dir);
+      long used = 0;
+      for (File entry : entries) {
+        used += entry.length();
+      }
+      if (i > 0) {
+        out.append(',');
+      }
+      out.append("{\"name\":");
+      Json.appendQuoted(out, area.name);
+      out
+        .append(",\"used\":")
+        .append(used)
+        .append(",\"quota\":")
+        .append(area.quotaBytes)
+        .append(",\"files\":")
+        .append(entries.length)
+        .append('}');
+    }
+    synchronized (this) {
+      out
+        .append("],\"evictedBytes\":")
+        .append(evictedBytes)
+        .append(",\"evictedFiles\":")
+        .append(evictedFiles);
+    }
+    return out.append('}').toString();
+  }
+
+  private synchronized List<Area> areasSnapshot() {
+    return areas.isEmpty() ? Collections.<Area>emptyList() : new ArrayList<>(areas);
+  }
+
+  private static final class Entry {
+
+    final File file;
+    final long length;
+    final long modified;
+
+    Entry(File file) {
+      this.file = file;
+      this.length = file.length();
+      this.modified = file.lastModified();
+    }
+  }
+
+  private static File[] listFiles(File dir) {
+    File[] entries = dir.listFiles(File::isFile);
+    return entries != null ? entries : new File[0];
+  }
+}
@@ -0,0 +1,341 @@
+package com.ciphernotes.twa;
+
+import android.Manifest;
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import android.webkit.WebView;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.core.content.ContextCompat;
+import androidx.webkit.JavaScriptReplyProxy;
+import androidx.webkit.WebMessageCompat;
+import androidx.webkit.WebViewCompat;
+import androidx.webkit.WebViewFeature;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Binary download channel exposed to the page as {@code AndroidDownloadStream}.
+ *
+ * <p>The page sends a {@code begin} control message, then the file as a series of
+ * ArrayBuffer chunks and finally {@code end}. Every chunk is written straight into
+ * the {@link DownloadTarget} and acknowledged before the page sends the next one,
+ * so at most one chunk per transfer is held in memory regardless of file size.
+ * Only one transfer runs at a time. Progress and cancellation go through the
+ * shared {@link ExportScheduler}; {@code AndroidDownloader.saveBase64} remains
+ * the fallback for WebViews without ArrayBuffer messaging.
+ *
+ * <p>A {@code begin} with {@code zip: true} makes the transfer a ZIP archive
+ * that is deflated straight into the target: each {@code entry} message starts
+ * a new file in the archive and the chunks that follow are its content. This
+ * lets the page export notes and attachments one by one without ever
+ * assembling the archive, or any attachment but the current chunk, in memory.
+ */
+final class DownloadStreamBridge implements WebViewCompat.WebMessageListener {
+
+  static final String JS_OBJECT_NAME = "AndroidDownloadStream";
+  private static final String TAG = "DownloadStreamBridge";
+  private static final int ZIP_BUFFER_SIZE = 64 * 1024;
+
+  private final Context context;
+  private final String allowedOrigin;
+  private final ExportScheduler scheduler;
+  private final ExecutorService writer = Executors.newSingleThreadExecutor();
+  private final Handler mainHandler = new Handler(Looper.getMainLooper());
+  // Only touched on the writer thread.
+  @Nullable
+  private Session session;
+
+  DownloadStreamBridge(Context context, String allowedOrigin, ExportScheduler scheduler) {
+    this.context = context.getApplicationContext();
+    this.allowedOrigin = allowedOrigin;
+    this.scheduler = scheduler;
+  }
+
+  static boolean isSupported() {
+    return (
+      WebViewFeature.isFeatureSupported(WebViewFeature.WEB_MESSAGE_LISTENER) &&
+      WebViewFeature.isFeatureSupported(WebViewFeature.WEB_MESSAGE_ARRAY_BUFFER)
+    );
+  }
+
+  void install(WebView webView) {
+    WebViewCompat.addWebMessageListener(
+      webView,
+      JS_OBJECT_NAME,
+      Collections.singleton(allowedOrigin),
+      this
+    );
+  }
+
+  /** Aborts a running transfer, e.g. because its page is gone, and stays usable. */
+  void abortTransfer() {
+    try {
+      writer.execute(() -> {
+        if (session != null) {
+          fail(session, new CancellationException());
+        }
+      });
+    } catch (RejectedExecutionException ignored) {
+      // close() already aborted the transfer.
+    }
+  }
+
+  /** Aborts a running transfer and stops the writer thread. */
+  void close() {
+    writer.execute(() -> {
+      if (session != null) {
+        fail(session, new CancellationException());
+      }
+    });
+    writer.shutdown();
+  }
+
+  @Override
+  public void onPostMessage(
+    @NonNull WebView view,
+    @NonNull WebMessageCompat message,
+    @NonNull Uri sourceOrigin,
+    boolean isMainFrame,
+    @NonNull JavaScriptReplyProxy replyProxy
+  ) {
+    if (!isMainFrame || writer.isShutdown()) {
+      return;
+    }
+    if (message.getType() == WebMessageCompat.TYPE_ARRAY_BUFFER) {
+      byte[] chunk = message.getArrayBuffer();
+      writer.execute(() -> writeChunk(chunk, replyProxy));
+    } else {
+      String data = message.getData();
+      writer.execute(() -> handleControl(data, replyProxy));
+    }
+  }
+
+  private void handleControl(@Nullable String data, JavaScriptReplyProxy replyProxy) {
+    String type;
+    String id;
+    JSONObject json;
+    try {
+      json = new JSONObject(data != null ? data : "");
+      type = json.getString("type");
+      id = json.getString("id");
+    } catch (JSONException e) {
+      Log.w(TAG, "Ignoring malformed message", e);
+      return;
+    }
+    switch (type) {
+      case "begin":
+        begin(id, json, replyProxy);
+        break;
+      case "entry":
+        entry(id, json.optString("name"), replyProxy);
+        break;
+      case "end":
+        end(id, replyProxy);
+        break;
+      case "abort":
+        if (session != null && session.id.equals(id)) {
+          session.target.abort();
+          session.job.finish(new CancellationException());
+          session = null;
+        }
+        reply(replyProxy, "aborted", id, null);
+        break;
+      default:
+        reply(replyProxy, "error", id, "Unknown message type " + type);
+    }
+  }
+
+  private void begin(String id, JSONObject json, JavaScriptReplyProxy replyProxy) {
+    if (session != null) {
+      reply(replyProxy, "error", id, "Another download is in progress");
+      return;
+    }
+    if (!hasStoragePermission()) {
+      // The base64 fallback knows how to ask for the permission.
+      reply(replyProxy, "error", id, "Storage permission required");
+      return;
+    }
+    String filename = json.optString("filename", "download");
+    String mimeType = json.optString("mimeType", "application/octet-stream");
+    long size = json.optLong("size", 0);
+    try {
+      DownloadTarget target = DownloadTarget.open(context, mimeType, filename);
+      ExportScheduler.Job job = scheduler.track(id, filename, size, () -> cancel(id));
+      ZipOutputStream zip = json.optBoolean("zip")
+        ? new ZipOutputStream(new BufferedOutputStream(target.stream(), ZIP_BUFFER_SIZE))
+        : null;
+      session = new Session(id, target, zip, job, replyProxy);
+      reply(replyProxy, "ready", id, null);
+    } catch (IOException | RuntimeException e) {
+      Log.e(TAG, "Unable to start download", e);
+      reply(replyProxy, "error", id, e.getMessage());
+    }
+  }
+
+  private void writeChunk(byte[] chunk, JavaScriptReplyProxy replyProxy) {
+    Session current = session;
+    if (current == null) {
+      // Chunks of an aborted transfer may still be in flight.
+      return;
+    }
+    try {
+      current.out().write(chunk);
+      current.written += chunk.length;
+      current.job.reportProgress(current.written);
+      reply(replyProxy, "ack", current.id, null);
+    } catch (IOException e) {
+      fail(current, e);
+    }
+  }
+
+  /** Closes the previous archive entry, if any, and starts {@code name}. */
+  private void entry(String id, String name, JavaScriptReplyProxy replyProxy) {
+    Session current = session;
+    if (current == null || !current.id.equals(id) || current.zip == null) {
+      reply(replyProxy, "error", id, "No such archive");
+      return;
+    }
+    if (!isValidEntryName(name)) {
+      fail(current, new IOException("Invalid entry name " + name));
+      return;
+    }
+    try {
+      current.zip.putNextEntry(new ZipEntry(name));
+      reply(replyProxy, "ack", id, null);
+    } catch (IOException e) {
+      fail(current, e);
+    }
+  }
+
+  private void end(String id, JavaScriptReplyProxy replyProxy) {
+    Session current = session;
+    if (current == null || !current.id.equals(id)) {
+      reply(replyProxy, "error", id, "No such download");
+      return;
+    }
+    try {
+      if (current.zip != null) {
+        // Writes the central directory; commit() closes the underlying stream.
+        current.zip.finish();
+        current.zip.flush();
+      }
+      current.target.commit();
+      session = null;
+      reply(replyProxy, "done", id, null);
+      current.job.finish(null);
+    } catch (IOException e) {
+      fail(current, e);
+    }
+  }
+
+  private void cancel(String id) {
+    try {
+      writer.execute(() -> {
+        if (session != null && session.id.equals(id)) {
+          fail(session, new CancellationException());
+        }
+      });
+    } catch (RejectedExecutionException ignored) {
+      // close() already aborted the transfer.
+    }
+  }
+
+  /** Drops the partial file and tells the page, which may be waiting for an ack. */
+  private void fail(Session current, Exception e) {
+    if (!(e instanceof CancellationException)) {
+      Log.e(TAG, "Download failed", e);
+    }
+    current.target.abort();
+    session = null;
+    String message = e instanceof CancellationException ? "Cancelled" : e.getMessage();
+    reply(current.replyProxy, "error", current.id, message);
+    current.job.finish(e);
+  }
+
+  private void reply(
+    JavaScriptReplyProxy replyProxy,
+    String type,
+    String id,
+    @Nullable String message
+  ) {
+    JSONObject json = new JSONObject();
+    try {
+      json.put("type", type);
+      json.put("id", id);
+      if (message != null) {
+        json.put("message", message);
+      }
+    } catch (JSONException e) {
+      throw new IllegalStateException(e);
+    }
+    String payload = json.toString();
+    // JavaScriptReplyProxy must be used on the UI thread.
+    mainHandler.post(() -> replyProxy.postMessage(payload));
+  }
+
+  /** Flat, relative names only, like the ones the import expects. */
+  private static boolean isValidEntryName(String name) {
+    return (
+      !name.isEmpty() &&
+      name.length() <= 255 &&
+      name.indexOf('/') < 0 &&
+      name.indexOf('\\') < 0 &&
+      !name.equals(".") &&
+      !name.equals("..")
+    );
+  }
+
+  private boolean hasStoragePermission() {
+    return (
+      Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q ||
+      ContextCompat.checkSelfPermission(context, Manifest.permission.WRITE_EXTERNAL_STORAGE) ==
+      PackageManager.PERMISSION_GRANTED
+    );
+  }
+
+  private static final class Session {
+
+    final String id;
+    final DownloadTarget target;
+    @Nullable
+    final ZipOutputStream zip;
+    final ExportScheduler.Job job;
+    final JavaScriptReplyProxy replyProxy;
+    long written;
+
+    Session(
+      String id,
+      DownloadTarget target,
+      @Nullable ZipOutputStream zip,
+      ExportScheduler.Job job,
+      JavaScriptReplyProxy replyProxy
+    ) {
+      this.id = id;
+      this.target = target;
+      this.zip = zip;
+      this.job = job;
+      this.replyProxy = replyProxy;
+    }
+
+    /** Where chunks go: the current archive entry or the file itself. */
+    OutputStream out() {
+      return zip != null ? zip : target.stream();
+    }
+  }
+}
@@ -0,0 +1,149 @@
+package com.ciphernotes.twa;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.media.MediaScannerConnection;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Environment;
+import android.provider.MediaStore;
+import android.util.Log;
+import androidx.annotation.Nullable;
+import androidx.annotation.RequiresApi;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * A single file in {@code Downloads/Ciphernotes} that is written as a stream.
+ * On Android 10+ the entry is created through MediaStore and stays pending until
+ * {@link #commit()}; older versions write a plain file and hand it to the media
+ * scanner. Closing a target that was not committed removes the partial file.
+ */
+final class DownloadTarget implements Closeable {
+
+  private static final String TAG = "DownloadTarget";
+  private static final String SUBDIRECTORY = "Ciphernotes";
+
+  private final Context context;
+  private final String mimeType;
+  @Nullable
+  private final Uri item;
+  @Nullable
+  private final File file;
+  private final OutputStream out;
+  private boolean finished;
+
+  private DownloadTarget(
+    Context context,
+    String mimeType,
+    @Nullable Uri item,
+    @Nullable File file,
+    OutputStream out
+  ) {
+    this.context = context.getApplicationContext();
+    this.mimeType = mimeType;
+    this.item = item;
+    this.file = file;
+    this.out = out;
+  }
+
+  static DownloadTarget open(Context context, String mimeType, String filename)
+    throws IOException {
+    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+      return openMediaStore(context, mimeType, filename);
+    }
+    return openLegacy(context, mimeType, filename);
+  }
+
+  @RequiresApi(Build.VERSION_CODES.Q)
+  private static DownloadTarget openMediaStore(Context context, String mimeType, String filename)
+    throws IOException {
+    ContentValues values = new ContentValues();
+    values.put(MediaStore.Downloads.DISPLAY_NAME, filename);
+    values.put(MediaStore.Downloads.MIME_TYPE, mimeType);
+    values.put(
+      MediaStore.Downloads.RELATIVE_PATH,
+      Environment.DIRECTORY_DOWNLOADS + "/" + SUBDIRECTORY
+    );
+    values.put(MediaStore.Downloads.IS_PENDING, 1);
+
+    ContentResolver resolver = context.getContentResolver();
+    Uri item = resolver.insert(MediaStore.Downloads.EXTERNAL_CONTENT_URI, values);
+    if (item == null) throw new IOException("Unable to create download entry");
+    OutputStream out;
+    try {
+      out = resolver.openOutputStream(item);
+    } catch (IOException | RuntimeException e) {
+      resolver.delete(item, null, null);
+      throw e;
+    }
+    if (out == null) {
+      resolver.delete(item, null, null);
+      throw new IOException("Unable to open output stream");
+    }
+    return new DownloadTarget(context, mimeType, item, null, out);
+  }
+
+  private static DownloadTarget openLegacy(Context context, String mimeType, String filename)
+    throws IOException {
+    File downloads = Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DOWNLOADS);
+    File targetDir = new File(downloads, SUBDIRECTORY);
+    if (!targetDir.exists() && !targetDir.mkdirs()) {
+      throw new IOException("Unable to create download directory");
+    }
+    File outFile = new File(targetDir, filename);
+    return new DownloadTarget(context, mimeType, null, outFile, new FileOutputStream(outFile));
+  }
+
+  OutputStream stream() {
+    return out;
+  }
+
+  /** Flushes the file and makes it visible to other apps. */
+  void commit() throws IOException {
+    if (finished) return;
+    finished = true;
+    out.close();
+    if (item != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+      ContentValues values = new ContentValues();
+      values.put(MediaStore.Downloads.IS_PENDING, 0);
+      context.getContentResolver().update(item, values, null, null);
+    } else if (file != null) {
+      MediaScannerConnection.scanFile(
+        context,
+        new String[] { file.getAbsolutePath() },
+        new String[] { mimeType },
+        null
+      );
+    }
+  }
+
+  /** Drops whatever was written so far. */
+  void abort() {
+    if (finished) return;
+    finished = true;
+    try {
+      out.close();
+    } catch (IOException ignored) {
+      // The partial file is removed below either way.
+    }
+    if (item != null) {
+      try {
+        context.getContentResolver().delete(item, null, null);
+      } catch (RuntimeException e) {
+        Log.w(TAG, "Unable to remove pending download " + item, e);
+      }
+    } else if (file != null && file.exists() && !file.delete()) {
+      Log.w(TAG, "Unable to remove partial download " + file);
+    }
+  }
+
+  @Override
+  public void close() {
+    abort();
+  }
+}
@@ -0,0 +1,198 @@
+package com.ciphernotes.twa;
+
+import android.annotation.SuppressLint;
+import android.app.NotificationChannel;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.widget.Toast;
+import androidx.core.app.NotificationCompat;
+import androidx.core.app.NotificationManagerCompat;
+import androidx.core.content.ContextCompat;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Shows all running exports as one progress notification that is updated at
+ * most every {@link #UPDATE_INTERVAL_MS} and replaced by a summary once the last
+ * export finishes. Falls back to a summary toast when notifications are off.
+ *
+ * <p>The progress notification's Cancel action cancels every export it shows,
+ * until {@link #close} when the owning activity goes away.
+ */
+final class ExportNotifier implements ExportScheduler.Listener {
+
+  interface Canceller {
+    boolean cancel(String id);
+  }
+
+  private static final String CHANNEL_ID = "exports";
+  private static final int NOTIFICATION_ID = 3001;
+  private static final long UPDATE_INTERVAL_MS = 500;
+  private static final String ACTION_CANCEL = "com.ciphernotes.twa.CANCEL_EXPORTS";
+
+  private final Context context;
+  private final NotificationManagerCompat manager;
+  private final Handler mainHandler = new Handler(Looper.getMainLooper());
+  private final Canceller canceller;
+  private final PendingIntent cancelIntent;
+  private final BroadcastReceiver cancelReceiver = new BroadcastReceiver() {
+    @Override
+    public void onReceive(Context context, Intent intent) {
+      cancelAll();
+    }
+  };
+  // All fields below are guarded by this.
+  private final Map<String, ExportScheduler.Job> active = new LinkedHashMap<>();
+  private int succeeded;
+  private int failed;
+  private String lastError;
+  private long lastUpdateAt;
+  private boolean closed;
+
+  ExportNotifier(Context context, Canceller canceller) {
+    this.context = context.getApplicationContext();
+    this.manager = NotificationManagerCompat.from(this.context);
+    this.canceller = canceller;
+    this.cancelIntent = PendingIntent.getBroadcast(
+      this.context,
+      0,
+      new Intent(ACTION_CANCEL).setPackage(this.context.getPackageName()),
+      PendingIntent.FLAG_UPDATE_CURRENT |
+      (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M ? PendingIntent.FLAG_IMMUTABLE : 0)
+    );
+    ContextCompat.registerReceiver(
+      this.context,
+      cancelReceiver,
+      new IntentFilter(ACTION_CANCEL),
+      ContextCompat.RECEIVER_NOT_EXPORTED
+    );
+    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+      NotificationChannel channel = new NotificationChannel(
+        CHANNEL_ID,
+        "Exports",
+        NotificationManager.IMPORTANCE_LOW
+      );
+      this.context.getSystemService(NotificationManager.class).createNotificationChannel(channel);
+    }
+  }
+
+  @Override
+  public synchronized void onExportChanged(ExportScheduler.Job job) {
+    if (!job.isFinished()) {
+      boolean added = active.put(job.id, job) == null;
+      long now = SystemClock.elapsedRealtime();
+      if (added || now - lastUpdateAt >= UPDATE_INTERVAL_MS) {
+        lastUpdateAt = now;
+        showProgress();
+      }
+      return;
+    }
+    active.remove(job.id);
+    if (job.state == ExportScheduler.State.DONE) {
+      succeeded++;
+    } else if (job.state == ExportScheduler.State.FAILED) {
+      failed++;
+      lastError = job.error;
+    }
+    if (active.isEmpty()) {
+      showSummary();
+      succeeded = 0;
+      failed = 0;
+      lastError = null;
+    } else {
+      showProgress();
+    }
+  }
+
+  /** Stops offering cancellation; exports still running keep reporting progress. */
+  void close() {
+    synchronized (this) {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      if (!active.isEmpty()) {
+        showProgress();
+      }
+    }
+    context.unregisterReceiver(cancelReceiver);
+  }
+
+  private void cancelAll() {
+    List<String> ids;
+    synchronized (this) {
+      if (closed) {
+        return;
+      }
+      ids = new ArrayList<>(active.keySet());
+    }
+    for (String id : ids) {
+      canceller.cancel(id);
+    }
+  }
+
+  private void showProgress() {
+    long done = 0;
+    long total = 0;
+    for (ExportScheduler.Job job : active.values()) {
+      done += job.doneBytes;
+      total += job.totalBytes;
+    }
+    int percent = total > 0 ? (int) (done * 100 / total) : 0;
+    String title = active.size() == 1
+      ? "Exporting 1 file"
+      : "Exporting " + active.size() + " files";
+    NotificationCompat.Builder builder = builder()
+      .setContentTitle(title)
+      .setProgress(100, percent, total == 0)
+      .setOngoing(true)
+      .setOnlyAlertOnce(true);
+    if (!closed) {
+      builder.addAction(0, "Cancel", cancelIntent);
+    }
+    post(builder);
+  }
+
+  private void showSummary() {
+    String text;
+    if (failed == 0 && succeeded == 0) {
+      manager.cancel(NOTIFICATION_ID);
+      return;
+    } else if (failed == 0) {
+      text = succeeded == 1
+        ? "Exported to Downloads"
+        : "Exported " + succeeded + " files to Downloads";
+    } else {
+      text = "Export failed: " + lastError;
+    }
+    if (!manager.areNotificationsEnabled()) {
+      mainHandler.post(() -> Toast.makeText(context, text, Toast.LENGTH_LONG).show());
+      return;
+    }
+    post(builder().setContentTitle(text).setAutoCancel(true));
+  }
+
+  private NotificationCompat.Builder builder() {
+    return new NotificationCompat.Builder(context, CHANNEL_ID)
+      .setSmallIcon(R.drawable.ic_notification_icon)
+      .setPriority(NotificationCompat.PRIORITY_LOW)
+      .setCategory(NotificationCompat.CATEGORY_PROGRESS);
+  }
+
+  @SuppressLint("MissingPermission")
+  private void post(NotificationCompat.Builder builder) {
+    if (manager.areNotificationsEnabled()) {
+      manager.notify(NOTIFICATION_ID, builder.build());
+    }
+  }
+}
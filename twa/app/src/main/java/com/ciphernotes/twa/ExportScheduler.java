@@ -0,0 +1,234 @@
+package com.ciphernotes.twa;
+
+import android.os.SystemClock;
+import androidx.annotation.Nullable;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Runs exports on a small bounded worker pool instead of one thread per request.
+ *
+ * <p>Jobs are queued up to {@link #QUEUE_CAPACITY}; beyond that, or when the
+ * payloads already held by queued and running jobs exceed
+ * {@link #MAX_IN_FLIGHT_BYTES}, new jobs are rejected so the page can retry
+ * later. A job that arrives while nothing else is running is always accepted,
+ * however large. Streamed exports, which are driven by
+ * {@link DownloadStreamBridge}, are only {@linkplain #track tracked} here so that
+ * they share progress reporting and cancellation.
+ */
+final class ExportScheduler {
+
+  static final int WORKERS = 2;
+  static final int QUEUE_CAPACITY = 8;
+  static final long MAX_IN_FLIGHT_BYTES = 96L * 1024 * 1024;
+  private static final long PROGRESS_INTERVAL_MS = 250;
+
+  enum State {
+    QUEUED,
+    RUNNING,
+    DONE,
+    FAILED,
+    CANCELLED,
+  }
+
+  interface Listener {
+    /** Called on state changes and, throttled, on progress. May run on any thread. */
+    void onExportChanged(Job job);
+  }
+
+  interface Task {
+    void run(Job job) throws Exception;
+  }
+
+  private final Listener listener;
+  private final ThreadPoolExecutor executor;
+  private final Map<String, Job> jobs = new ConcurrentHashMap<>();
+  // Guarded by this.
+  private long inFlightBytes;
+
+  ExportScheduler(Listener listener) {
+    this.listener = listener;
+    this.executor = new ThreadPoolExecutor(
+      WORKERS,
+      WORKERS,
+      30,
+      TimeUnit.SECONDS,
+      new ArrayBlockingQueue<>(QUEUE_CAPACITY),
+      runnable -> {
+        Thread thread = new Thread(runnable, "ExportWorker");
+        thread.setPriority(Thread.NORM_PRIORITY - 1);
+        return thread;
+      }
+    );
+    executor.allowCoreThreadTimeOut(true);
+  }
+
+  /** Queues {@code task}. The returned job may already be failed if it was rejected. */
+  Job submit(String id, String filename, long payloadBytes, Task task) {
+    Job job = new Job(id, filename, payloadBytes);
+    if (!reserve(payloadBytes)) {
+      job.finish(new RejectedExecutionException("Too many exports in progress"));
+      return job;
+    }
+    jobs.put(id, job);
+    listener.onExportChanged(job);
+    job.runnable = () -> runJob(job, task);
+    try {
+      executor.execute(job.runnable);
+    } catch (RejectedExecutionException e) {
+      release(payloadBytes);
+      job.finish(new RejectedExecutionException("Too many exports queued"));
+    }
+    return job;
+  }
+
+  /**
+   * Registers a job whose work happens elsewhere. {@code onCancel} is invoked when
+   * the job is cancelled; the owner then calls {@link Job#finish}.
+   */
+  Job track(String id, String filename, long totalBytes, Runnable onCancel) {
+    Job job = new Job(id, filename, totalBytes);
+    job.onCancel = onCancel;
+    job.state = State.RUNNING;
+    jobs.put(id, job);
+    listener.onExportChanged(job);
+    return job;
+  }
+
+  /** Reports a job that failed before it could be queued, e.g. a denied permission. */
+  void reject(String id, String filename, String message) {
+    new Job(id, filename, 0).finish(new IllegalStateException(message));
+  }
+
+  boolean cancel(String id) {
+    Job job = jobs.get(id);
+    if (job == null) {
+      return false;
+    }
+    job.cancelRequested = true;
+    Runnable onCancel = job.onCancel;
+    if (onCancel != null) {
+      onCancel.run();
+    } else if (executor.remove(job.runnable)) {
+      release(job.totalBytes);
+      job.finish(new CancellationException());
+    }
+    return true;
+  }
+
+  /** Lets running and queued jobs finish but accepts no new ones. */
+  void shutdown() {
+    executor.shutdown();
+  }
+
+  private void runJob(Job job, Task task) {
+    try {
+      job.throwIfCancelled();
+      job.state = State.RUNNING;
+      listener.onExportChanged(job);
+      task.run(job);
+      job.finish(null);
+    } catch (Exception e) {
+      job.finish(e);
+    } finally {
+      release(job.totalBytes);
+    }
+  }
+
+  private synchronized boolean reserve(long bytes) {
+    if (inFlightBytes > 0 && inFlightBytes + bytes > MAX_IN_FLIGHT_BYTES) {
+      return false;
+    }
+    inFlightBytes += bytes;
+    return true;
+  }
+
+  private synchronized void release(long bytes) {
+    inFlightBytes = Math.max(0, inFlightBytes - bytes);
+  }
+
+  final class Job {
+
+    final String id;
+    final String filename;
+    final long totalBytes;
+    volatile State state = State.QUEUED;
+    volatile long doneBytes;
+    @Nullable
+    volatile String error;
+    private volatile boolean cancelRequested;
+    @Nullable
+    private Runnable onCancel;
+    @Nullable
+    private Runnable runnable;
+    private long lastReportAt;
+
+    private Job(String id, String filename, long totalBytes) {
+      this.id = id;
+      this.filename = filename;
+      this.totalBytes = totalBytes;
+    }
+
+    void reportProgress(long doneBytes) {
+      this.doneBytes = doneBytes;
+      long now = SystemClock.elapsedRealtime();
+      if (now - lastReportAt >= PROGRESS_INTERVAL_MS) {
+        lastReportAt = now;
+        listener.onExportChanged(this);
+      }
+    }
+
+    void throwIfCancelled() {
+      if (cancelRequested) {
+        throw new CancellationException();
+      }
+    }
+
+    boolean isFinished() {
+      return state == State.DONE || state == State.FAILED || state == State.CANCELLED;
+    }
+
+    /** Marks the job as done, or as failed/cancelled when {@code error} is set. */
+    synchronized void finish(@Nullable Exception error) {
+      if (isFinished()) {
+        return;
+      }
+      if (error instanceof CancellationException || (error != null && cancelRequested)) {
+        state = State.CANCELLED;
+      } else if (error != null) {
+        this.error = error.getMessage() != null ? error.getMessage() : error.toString();
+        state = State.FAILED;
+      } else {
+        doneBytes = totalBytes;
+        state = State.DONE;
+      }
+      jobs.remove(id);
+      listener.onExportChanged(this);
+    }
+
+    JSONObject toJson() {
+      JSONObject json = new JSONObject();
+      try {
+        json.put("id", id);
+        json.put("filename", filename);
+        json.put("state", state.name().toLowerCase(Locale.US));
+        json.put("doneBytes", doneBytes);
+        json.put("totalBytes", totalBytes);
+        if (error != null) {
+          json.put("error", error);
+        }
+      } catch (JSONException e) {
+        throw new IllegalStateException(e);
+      }
+      return json;
+    }
+  }
+}
@@ -0,0 +1,347 @@
+package com.ciphernotes.twa;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.media.ExifInterface;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.provider.OpenableColumns;
+import android.util.Log;
+import androidx.annotation.Nullable;
+import com.ciphernotes.twa.core.Metrics;
+import com.ciphernotes.twa.core.TransferManager;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URLConnection;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Reads files picked for import in parallel, off the main thread, so the page
+ * never has to pull hundreds of content URIs through the WebView one by one.
+ *
+ * <p>Each URI is copied into the staging directory as {@code <id>} while its
+ * SHA-256 is computed; its display name, size and MIME type come from the
+ * content provider. Images the page can thumbnail get a JPEG preview of the
+ * same size and quality as {@code generateThumbnail} in the frontend, stored as
+ * {@code <id>.thumb}. Finished items are reported in batches of up to
+ * {@link #BATCH_SIZE}, at most every {@link #FLUSH_INTERVAL_MS}, each report
+ * carrying the session's progress. The page fetches the staged files and
+ * {@linkplain #release releases} them once stored.
+ */
+final class ImportPreprocessor {
+
+  static final int BATCH_SIZE = 16;
+  static final String THUMB_SUFFIX = ".thumb";
+  private static final String TAG = "ImportPreprocessor";
+  private static final long FLUSH_INTERVAL_MS = 250;
+  private static final int BUFFER_SIZE = 64 * 1024;
+  // Same box and quality as util/images.ts, so native and page thumbnails match.
+  private static final int THUMB_MAX_WIDTH = 200;
+  private static final int THUMB_MAX_HEIGHT = 150;
+  private static final int THUMB_QUALITY = 75;
+  private static final Set<String> THUMBNAIL_MIME_TYPES = new HashSet<>(
+    Arrays.asList("image/jpeg", "image/png", "image/gif", "image/bmp", "image/webp")
+  );
+
+  interface Listener {
+    /**
+     * Called with {@code {session, total, done, failed, finished, items:[{id,
+     * name, mime, size, sha256, thumb}]}}, in order per session. May run on any
+     * thread.
+     */
+    void onImportProgress(JSONObject progress);
+  }
+
+  private final ContentResolver resolver;
+  private final File dir;
+  private final Metrics metrics;
+  private final ThreadPoolExecutor executor;
+  // Ids of staged files that are not reported yet, so trimming leaves them alone.
+  private final Set<String> staging = Collections.newSetFromMap(
+    new ConcurrentHashMap<String, Boolean>()
+  );
+  @Nullable
+  private volatile Listener listener;
+
+  ImportPreprocessor(ContentResolver resolver, File dir, Metrics metrics, int parallelism) {
+    this.resolver = resolver;
+    this.dir = dir;
+    this.metrics = metrics;
+    this.executor = new ThreadPoolExecutor(
+      parallelism,
+      parallelism,
+      30,
+      TimeUnit.SECONDS,
+      new LinkedBlockingQueue<>(),
+      runnable -> {
+        Thread thread = new Thread(runnable, "ImportWorker");
+        thread.setPriority(Thread.NORM_PRIORITY - 1);
+        return thread;
+      }
+    );
+    executor.allowCoreThreadTimeOut(true);
+  }
+
+  void setListener(@Nullable Listener listener) {
+    this.listener = listener;
+  }
+
+  /** Starts reading {@code uris} and returns the session id used in progress reports. */
+  String start(List<Uri> uris) {
+    Session session = new Session(UUID.randomUUID().toString(), uris.size());
+    if (uris.isEmpty()) {
+      session.flushIfDue();
+      return session.id;
+    }
+    for (Uri uri : uris) {
+      try {
+        executor.execute(() -> session.finishOne(process(uri)));
+      } catch (RejectedExecutionException e) {
+        session.finishOne(null);
+      }
+    }
+    return session.id;
+  }
+
+  /** The staged file or thumbnail called {@code name}, or null if there is none. */
+  @Nullable
+  File stagedFile(String name) {
+    String id = name.endsWith(THUMB_SUFFIX)
+      ? name.substring(0, name.length() - THUMB_SUFFIX.length())
+      : name;
+    if (!TransferManager.isValidId(id)) {
+      return null;
+    }
+    File file = new File(dir, name);
+    return file.isFile() ? file : null;
+  }
+
+  /** Deletes a staged file and its thumbnail once the page has stored them. */
+  void release(String id) {
+    if (TransferManager.isValidId(id)) {
+      new File(dir, id).delete();
+      new File(dir, id + THUMB_SUFFIX).delete();
+    }
+  }
+
+  /** Whether {@code file} is still being staged. */
+  boolean isInUse(File file) {
+    String name = file.getName();
+    if (name.endsWith(THUMB_SUFFIX)) {
+      name = name.substring(0, name.length() - THUMB_SUFFIX.length());
+    }
+    return staging.contains(name);
+  }
+
+  void shutdown() {
+    executor.shutdownNow();
+  }
+
+  /** Returns null if the URI could not be read. */
+  @Nullable
+  private JSONObject process(Uri uri) {
+    long start = System.nanoTime();
+    String id = UUID.randomUUID().toString();
+    File target = new File(dir, id);
+    staging.add(id);
+    try {
+      if (!dir.isDirectory() && !dir.mkdirs()) {
+        throw new IOException("Unable to create " + dir);
+      }
+      String name = null;
+      String[] projection = { OpenableColumns.DISPLAY_NAME };
+      try (Cursor cursor = resolver.query(uri, projection, null, null, null)) {
+        if (cursor != null && cursor.moveToFirst() && !cursor.isNull(0)) {
+          name = cursor.getString(0);
+        }
+      }
+      if (name == null) {
+        name = uri.getLastPathSegment() != null ? uri.getLastPathSegment() : id;
+      }
+      String mime = resolver.getType(uri);
+      if (mime == null) {
+        mime = URLConnection.guessContentTypeFromName(name);
+      }
+      if (mime == null) {
+        mime = "application/octet-stream";
+      }
+
+      MessageDigest digest = MessageDigest.getInstance("SHA-256");
+      long size = 0;
+      try (
+        InputStream in = resolver.openInputStream(uri);
+        OutputStream out = new FileOutputStream(target)
+      ) {
+        if (in == null) {
+          throw new IOException("No content for " + uri);
+        }
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+          digest.update(buffer, 0, read);
+          out.write(buffer, 0, read);
+          size += read;
+        }
+      }
+
+      boolean thumb = THUMBNAIL_MIME_TYPES.contains(mime) && writeThumbnail(target, mime);
+      metrics.record("import.preprocess", System.nanoTime() - start);
+      return new JSONObject()
+        .put("id", id)
+        .put("name", name)
+        .put("mime", mime)
+        .put("size", size)
+        .put("sha256", toHex(digest.digest()))
+        .put("thumb", thumb);
+    } catch (IOException | SecurityException | NoSuchAlgorithmException | JSONException e) {
+      Log.w(TAG, "Unable to import " + uri, e);
+      release(id);
+      return null;
+    } finally {
+      staging.remove(id);
+    }
+  }
+
+  /** Returns false if {@code source} cannot be decoded; the page then tries itself. */
+  private boolean writeThumbnail(File source, String mime) {
+    File thumbFile = new File(dir, source.getName() + THUMB_SUFFIX);
+    try {
+      BitmapFactory.Options bounds = new BitmapFactory.Options();
+      bounds.inJustDecodeBounds = true;
+      BitmapFactory.decodeFile(source.getPath(), bounds);
+      if (bounds.outWidth <= 0 || bounds.outHeight <= 0) {
+        return false;
+      }
+      int orientation = "image/jpeg".equals(mime)
+        ? CameraImageProcessor.readOrientation(source)
+        : ExifInterface.ORIENTATION_NORMAL;
+      boolean transposed = CameraImageProcessor.isTransposed(orientation);
+      int width = transposed ? bounds.outHeight : bounds.outWidth;
+      int height = transposed ? bounds.outWidth : bounds.outHeight;
+      float ratio = fitRatio(width, height);
+      int longEdge = Math.max(width, height);
+
+      BitmapFactory.Options options = new BitmapFactory.Options();
+      options.inSampleSize = CameraImageProcessor.sampleSize(
+        longEdge,
+        Math.max(1, Math.round(longEdge * ratio))
+      );
+      Bitmap decoded = BitmapFactory.decodeFile(source.getPath(), options);
+      if (decoded == null) {
+        return false;
+      }
+      float scale = transposed
+        ? fitRatio(decoded.getHeight(), decoded.getWidth())
+        : fitRatio(decoded.getWidth(), decoded.getHeight());
+      Bitmap thumb = CameraImageProcessor.transform(decoded, orientation, scale);
+      if (thumb != decoded) {
+        decoded.recycle();
+      }
+      try (OutputStream out = new FileOutputStream(thumbFile)) {
+        return thumb.compress(Bitmap.CompressFormat.JPEG, THUMB_QUALITY, out);
+      } finally {
+        thumb.recycle();
+      }
+    } catch (IOException | OutOfMemoryError e) {
+      Log.w(TAG, "No thumbnail for " + source.getName(), e);
+      thumbFile.delete();
+      return false;
+    }
+  }
+
+  private static float fitRatio(int width, int height) {
+    return Math.min(
+      1,
+      Math.min(THUMB_MAX_WIDTH / (float) width, THUMB_MAX_HEIGHT / (float) height)
+    );
+  }
+
+  private static String toHex(byte[] bytes) {
+    char[] out = new char[bytes.length * 2];
+    for (int i = 0; i < bytes.length; i++) {
+      out[i * 2] = Character.forDigit((bytes[i] >> 4) & 0xf, 16);
+      out[i * 2 + 1] = Character.forDigit(bytes[i] & 0xf, 16);
+    }
+    return new String(out);
+  }
+
+  private final class Session {
+
+    final String id;
+    final int total;
+    // Guarded by this.
+    private final List<JSONObject> pending = new ArrayList<>(BATCH_SIZE);
+    private int done;
+    private int failed;
+    private long lastFlushMs = SystemClock.elapsedRealtime();
+
+    Session(String id, int total) {
+      this.id = id;
+      this.total = total;
+    }
+
+    /** Records one finished URI, {@code item} being null if it failed. */
+    synchronized void finishOne(@Nullable JSONObject item) {
+      done++;
+      if (item != null) {
+        pending.add(item);
+      } else {
+        failed++;
+      }
+      flushIfDue();
+    }
+
+    synchronized void flushIfDue() {
+      boolean finished = done >= total;
+      long now = SystemClock.elapsedRealtime();
+      if (
+        !finished &&
+        pending.size() < BATCH_SIZE &&
+        now - lastFlushMs < FLUSH_INTERVAL_MS
+      ) {
+        return;
+      }
+      lastFlushMs = now;
+      Listener current = listener;
+      if (current == null) {
+        // Nobody to hand the files to; the disk cache trims them eventually.
+        pending.clear();
+        return;
+      }
+      try {
+        JSONObject progress = new JSONObject()
+          .put("session", id)
+          .put("total", total)
+          .put("done", done)
+          .put("failed", failed)
+          .put("finished", finished)
+          .put("items", new JSONArray(pending));
+        pending.clear();
+        current.onImportProgress(progress);
+      } catch (JSONException e) {
+        throw new IllegalStateException(e);
+      }
+    }
+  }
+}
@@ -1,26 +1,26 @@
 package com.ciphernotes.twa;
 
 import android.Manifest;
-import android.annotation.SuppressLint;
 import android.app.Activity;
 import android.content.ActivityNotFoundException;
-import android.content.ContentValues;
+import android.content.ContentResolver;
+import android.content.Context;
 import android.content.Intent;
 import android.content.pm.PackageManager;
-import android.content.res.AssetManager;
-import android.media.MediaScannerConnection;
+import android.graphics.Bitmap;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
-import android.os.Environment;
+import android.os.SystemClock;
+import android.os.Trace;
 import android.provider.MediaStore;
-import android.util.Base64;
 import android.util.Log;
 import android.view.View;
 import android.view.ViewGroup;
 import android.webkit.CookieManager;
 import android.webkit.JavascriptInterface;
 import android.webkit.PermissionRequest;
+import android.webkit.RenderProcessGoneDetail;
 import android.webkit.ServiceWorkerClient;
 import android.webkit.ServiceWorkerController;
 import android.webkit.ServiceWorkerWebSettings;
@@ -28,13 +28,13 @@ import android.webkit.ValueCallback;
 import android.webkit.WebChromeClient;
 import android.webkit.WebResourceRequest;
 import android.webkit.WebResourceResponse;
-import android.webkit.WebSettings;
 import android.webkit.WebView;
 import android.webkit.WebViewClient;
 import android.widget.FrameLayout;
 import android.widget.Toast;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
+import androidx.annotation.RequiresApi;
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.core.app.ActivityCompat;
 import androidx.core.content.ContextCompat;
@@ -45,17 +45,33 @@ import androidx.core.view.WindowCompat;
 import androidx.core.view.WindowInsetsCompat;
 import androidx.core.view.WindowInsetsControllerCompat;
 import androidx.webkit.WebViewAssetLoader;
+import com.ciphernotes.twa.core.ApiProxy;
+import com.ciphernotes.twa.core.AssetCache;
+import com.ciphernotes.twa.core.AssetResolver;
+import com.ciphernotes.twa.core.DataUrl;
+import com.ciphernotes.twa.core.DeltaSync;
+import com.ciphernotes.twa.core.HostAllowlist;
+import com.ciphernotes.twa.core.LaunchRoutes;
+import com.ciphernotes.twa.core.Metrics;
+import com.ciphernotes.twa.core.RequestInterceptor;
+import com.ciphernotes.twa.core.TransferManager;
 import java.io.ByteArrayInputStream;
 import java.io.File;
-import java.io.FileOutputStream;
+import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
 import java.lang.ref.WeakReference;
-import java.net.URLConnection;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.List;
 import java.util.Locale;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
 
 /**
  * Serves the pre-built PWA from {@code app/src/main/assets/www} directly inside
@@ -69,42 +85,474 @@ public class LocalWebViewActivity extends AppCompatActivity {
   private static final String LOCAL_HOST = "ciphernotes.com";
   private static final String LOCAL_INDEX_PATH = "https://" + LOCAL_HOST + "/index.html";
   private static final int FILE_CHOOSER_REQUEST_CODE = 1001;
+  private static final int IMPORT_REQUEST_CODE = 1002;
+  private static final int ARCHIVE_IMPORT_REQUEST_CODE = 1003;
+  private static final String[] ARCHIVE_MIME_TYPES = {
+    "application/zip",
+    "application/x-zip-compressed",
+    "application/octet-stream",
+  };
   private static final int CAMERA_PERMISSION_REQUEST_CODE = 2001;
   private static final int STORAGE_PERMISSION_REQUEST_CODE = 2002;
   private static final int FILE_CHOOSER_CAMERA_PERMISSION_REQUEST_CODE = 2003;
-  private WebView webView;
+  // Decoded bytes buffered between writes to the download.
+  private static final int DECODE_BUFFER_BYTES = 192 * 1024;
+  private static final String API_PATH_PREFIX = "/api/";
+  // Completed native downloads; outside the service worker's /files/ routes.
+  private static final String TRANSFERS_PATH = "/native/transfers/";
+  // Files staged by ImportPreprocessor, and their thumbnails.
+  private static final String IMPORTS_PATH = "/native/imports/";
+  // The delta pulled by BackgroundSync while the app was closed.
+  private static final String SYNC_PATH = "/native/sync/";
+  // Items shared into the app, waiting in the ShareInbox for the page.
+  private static final String INBOX_PATH = "/native/inbox/";
+  // More renderer losses than this within the window and the activity gives up.
+  private static final int MAX_RENDERER_LOSSES = 3;
+  private static final long RENDERER_LOSS_WINDOW_MS = 60_000;
+  // Null while a WebView that lost its renderer in the background awaits rebuilding.
+  private volatile WebView webView;
+  private boolean webViewPrewarmed;
+  // Set once the loaded SPA listens for route events; cleared when a new page starts.
+  private boolean routerReady;
+  private boolean started;
+  // Where to reopen the SPA once the activity is back on screen.
+  @Nullable
+  private String pendingRecoveryUrl;
+  // When the current WebView replacement started loading; 0 when none is.
+  private long recoveryStartNanos;
+  private long rendererLossWindowStartMs;
+  private int rendererLossesInWindow;
+  private Metrics metrics;
+  private HostAllowlist allowlist;
+  private BlockReporter blockReporter;
   private WebViewAssetLoader assetLoader;
+  private RequestInterceptor<WebResourceRequest, WebResourceResponse> requestInterceptor;
+  private AssetCache assetCache;
+  private AssetResolver assetResolver;
   private ValueCallback<Uri[]> filePathCallback;
   private ValueCallback<Uri> legacyFilePathCallback;
   private PermissionRequest pendingPermissionRequest;
   private PendingDownload pendingDownload;
+  private DownloadStreamBridge downloadStream;
+  private CryptoBridge cryptoBridge;
+  private ExportScheduler exportScheduler;
+  private ExportNotifier exportNotifier;
+  private TransferManager transferManager;
+  private ImportPreprocessor importPreprocessor;
+  private ArchiveImporter archiveImporter;
+  private ShareInbox shareInbox;
+  private final MemoryPressure.Listener pageMemoryPressure = this::forwardMemoryPressure;
+  // What the archive picker that is currently open was opened for.
+  @Nullable
+  private ArchiveImporter.Kind pendingArchiveKind;
+  private boolean pendingArchiveIncludeArchived;
+  @Nullable
+  private ApiProxy apiProxy;
+  @Nullable
+  private BackgroundSync backgroundSync;
+  @Nullable
+  private ChangeNotifier changeNotifier;
   private Uri cameraImageUri;
+  private File cameraImageFile;
+  @Nullable
+  private CameraImageProcessor cameraImageProcessor;
+  // Camera post-processing and URI permission calls; created on first use.
+  @Nullable
+  private ExecutorService backgroundExecutor;
   private boolean awaitingCameraPermissionForChooser;
   private WebChromeClient.FileChooserParams pendingFileChooserParams;
 
   @Override
   protected void onCreate(@Nullable Bundle savedInstanceState) {
+    // Overlaps provider loading and asset reads with the window set-up below.
+    Application.from(this).getPrewarmer().start();
     super.onCreate(savedInstanceState);
+    Trace.beginSection("cn.activityOnCreate");
+    try {
+      setUpWebView();
+    } finally {
+      Trace.endSection();
+    }
+  }
+
+  private void setUpWebView() {
+    metrics = Application.from(this).getMetrics();
+    metrics.mark("activityOnCreate", SystemClock.elapsedRealtime());
     setContentView(R.layout.activity_local_webview);
 
+    allowlist = Application.from(this).getAllowlist();
+    blockReporter = Application.from(this).getBlockReporter();
+    assetCache = Application.from(this).getAssetCache();
+    assetResolver = new AssetResolver(
+      new ApkAssetSource(getAssets(), Application.from(this).getAssetIndex()),
+      assetCache
+    );
     assetLoader = new WebViewAssetLoader.Builder()
       .setDomain(LOCAL_HOST)
+      .addPathHandler(TRANSFERS_PATH, this::openTransfer)
+      .addPathHandler(IMPORTS_PATH, this::openImport)
+      .addPathHandler(SYNC_PATH, this::openSyncDelta)
+      .addPathHandler(INBOX_PATH, this::openSharedItem)
       .addPathHandler("/", this::openAsset)
       .build();
+    requestInterceptor = new RequestInterceptor<>(
+      allowlist,
+      metrics,
+      blockReporter,
+      new RequestInterceptor.Steps<WebResourceRequest, WebResourceResponse>() {
+        @Override
+        public WebResourceResponse local(WebResourceRequest request) {
+          return assetLoader.shouldInterceptRequest(request.getUrl());
+        }
+
+        @Override
+        public WebResourceResponse blocked(WebResourceRequest request) {
+          return blockedWebViewResponse();
+        }
+
+        @Override
+        public WebResourceResponse proxy(WebResourceRequest request) {
+          return proxyApiRequest(request);
+        }
+      }
+    );
+
+    WebView view = Application.from(this).getPrewarmer().take(this);
+    webViewPrewarmed = view != null;
+    if (view == null) {
+      view = new WebView(this);
+    }
+    ExportNotifier notifier = new ExportNotifier(this, id -> exportScheduler.cancel(id));
+    exportNotifier = notifier;
+    exportScheduler = new ExportScheduler(job -> {
+      notifier.onExportChanged(job);
+      dispatchToPage(WebEvents.EXPORT, job.toJson());
+    });
+    transferManager = Application.from(this).getTransferManager();
+    transferManager.setListener((id, state, bytes, error) -> {
+      JSONObject detail = new JSONObject();
+      try {
+        detail.put("id", id);
+        detail.put("state", state.name().toLowerCase(Locale.US));
+        detail.put("bytes", bytes);
+        detail.put("error", error);
+      } catch (JSONException e) {
+        throw new IllegalStateException(e);
+      }
+      dispatchToPage(WebEvents.TRANSFER, detail);
+    });
+    importPreprocessor = Application.from(this).getImportPreprocessor();
+    importPreprocessor.setListener(progress -> dispatchToPage(WebEvents.IMPORT, progress));
+    archiveImporter = Application.from(this).getArchiveImporter();
+    archiveImporter.setListener(progress -> dispatchToPage(WebEvents.ARCHIVE_IMPORT, progress));
+    shareInbox = Application.from(this).getShareInbox();
+    shareInbox.setListener(entries -> {
+      JSONObject detail = new JSONObject();
+      try {
+        detail.put("entries", entries);
+      } catch (JSONException e) {
+        throw new IllegalStateException(e);
+      }
+      dispatchToPage(WebEvents.SHARE, detail);
+    });
+    Application.from(this).getMemoryPressure().addListener(pageMemoryPressure);
+    backgroundSync = Application.from(this).getBackgroundSync();
+    changeNotifier = Application.from(this).getChangeNotifier();
+    if (changeNotifier != null) {
+      changeNotifier.setPageListener(
+        new ChangeNotifier.PageListener() {
+          @Override
+          public void onConnectionChanged(boolean connected) {
+            JSONObject detail = new JSONObject();
+            try {
+              detail.put("connected", connected);
+            } catch (JSONException e) {
+              throw new IllegalStateException(e);
+            }
+            dispatchToPage(WebEvents.CONNECTION, detail);
+          }
 
-    webView = findViewById(R.id.webview);
-    configureWebView(webView);
+          @Override
+          public void onChanges(JSONObject hint) {
+            dispatchToPage(WebEvents.CHANGES, hint);
+          }
+        }
+      );
+    }
+    if (DownloadStreamBridge.isSupported()) {
+      downloadStream = new DownloadStreamBridge(this, "https://" + LOCAL_HOST, exportScheduler);
+    }
+    if (CryptoBridge.isSupported()) {
+      cryptoBridge = new CryptoBridge("https://" + LOCAL_HOST);
+    }
+    if (getResources().getBoolean(R.bool.nativeApiProxy)) {
+      apiProxy = createApiProxy();
+      Application.from(this).setApiProxy(apiProxy);
+    }
+    attachWebView(view);
     setupStatusBarAppearance();
-    webView.addJavascriptInterface(new DownloadBridge(this), "AndroidDownloader");
-    enableServiceWorker(assetLoader);
+    if (getResources().getBoolean(R.bool.cameraPostProcessing)) {
+      cameraImageProcessor = new CameraImageProcessor(
+        getResources().getInteger(R.integer.cameraMaxEdge),
+        getString(R.string.cameraImageFormat),
+        getResources().getInteger(R.integer.cameraImageQuality)
+      );
+    }
+    enableServiceWorker();
 
     loadInitialUrl(getIntent());
   }
 
+  /**
+   * Puts {@code view} on screen as the page's WebView and connects it to the
+   * native side. Runs once on start-up and again for each replacement after
+   * the renderer went away.
+   */
+  private void attachWebView(WebView view) {
+    FrameLayout container = findViewById(R.id.webview_container);
+    container.addView(
+      view,
+      new FrameLayout.LayoutParams(
+        ViewGroup.LayoutParams.MATCH_PARENT,
+        ViewGroup.LayoutParams.MATCH_PARENT
+      )
+    );
+    configureWebView(view);
+    view.addJavascriptInterface(new DownloadBridge(this), "AndroidDownloader");
+    view.addJavascriptInterface(new MetricsBridge(Application.from(this)), "AndroidMetrics");
+    view.addJavascriptInterface(new RouterBridge(this), "AndroidRouter");
+    view.addJavascriptInterface(
+      new StorageBridge(Application.from(this).getDiskCache()),
+      "AndroidStorage"
+    );
+    view.addJavascriptInterface(
+      new TransferBridge(transferManager, allowlist),
+      "AndroidTransfers"
+    );
+    view.addJavascriptInterface(new ImportBridge(this, importPreprocessor), "AndroidImport");
+    view.addJavascriptInterface(
+      new ArchiveImportBridge(this, archiveImporter, importPreprocessor),
+      "AndroidArchiveImport"
+    );
+    if (backgroundSync != null) {
+      view.addJavascriptInterface(new SyncBridge(backgroundSync), "AndroidSync");
+    }
+    if (changeNotifier != null) {
+      view.addJavascriptInterface(new ChangesBridge(changeNotifier), "AndroidChanges");
+    }
+    view.addJavascriptInterface(new ShareInboxBridge(shareInbox), "AndroidShareInbox");
+    if (downloadStream != null) {
+      downloadStream.install(view);
+    }
+    if (cryptoBridge != null) {
+      cryptoBridge.install(view);
+    }
+    if (apiProxy != null) {
+      view.addJavascriptInterface(new ApiProxyBridge(apiProxy), "AndroidApiProxy");
+    }
+    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+      // Waived while hidden, so under memory pressure the system kills the
+      // renderer, which onRenderProcessGone recovers from, before this process.
+      view.setRendererPriorityPolicy(WebView.RENDERER_PRIORITY_IMPORTANT, true);
+    }
+    webView = view;
+    routerReady = false;
+  }
+
+  private void detachWebView() {
+    WebView view = webView;
+    webView = null;
+    routerReady = false;
+    ((ViewGroup) view.getParent()).removeView(view);
+    view.destroy();
+  }
+
+  /**
+   * Replaces a WebView whose renderer crashed or was killed to free memory and
+   * reopens the route it showed, rather than letting the system take the whole
+   * app down with it. Gives up after repeated losses in a short time, so a page
+   * that takes the renderer down while loading cannot loop.
+   */
+  @RequiresApi(Build.VERSION_CODES.O)
+  private void recoverFromRendererLoss(WebView view, RenderProcessGoneDetail detail) {
+    if (view != webView) {
+      return;
+    }
+    boolean crashed = detail.didCrash();
+    metrics.increment(crashed ? "renderer.crashed" : "renderer.killed");
+    Log.w(TAG, crashed ? "Renderer crashed" : "Renderer was killed to free memory");
+    long now = SystemClock.elapsedRealtime();
+    if (now - rendererLossWindowStartMs > RENDERER_LOSS_WINDOW_MS) {
+      rendererLossWindowStartMs = now;
+      rendererLossesInWindow = 0;
+    }
+    String url = recoveryUrl(view.getUrl());
+    // The callbacks and the streamed download belonged to the page that is gone.
+    filePathCallback = null;
+    legacyFilePathCallback = null;
+    pendingPermissionRequest = null;
+    if (downloadStream != null) {
+      downloadStream.abortTransfer();
+    }
+    detachWebView();
+    if (++rendererLossesInWindow > MAX_RENDERER_LOSSES) {
+      metrics.increment("renderer.gaveUp");
+      Log.e(TAG, "Renderer lost " + rendererLossesInWindow + " times, giving up");
+      finish();
+      return;
+    }
+    if (started) {
+      rebuildWebView(url);
+    } else {
+      // Starting a new renderer now would only get it killed again.
+      pendingRecoveryUrl = url;
+    }
+  }
+
+  private void rebuildWebView(String url) {
+    recoveryStartNanos = System.nanoTime();
+    attachWebView(new WebView(this));
+    ViewCompat.requestApplyInsets(getWindow().getDecorView());
+    webView.loadUrl(url);
+  }
+
+  /** The URL that reopens the SPA where {@code lastUrl} was, or its start page. */
+  private static String recoveryUrl(@Nullable String lastUrl) {
+    Uri uri = lastUrl != null ? Uri.parse(lastUrl) : null;
+    if (uri == null || !"https".equals(uri.getScheme()) || !LOCAL_HOST.equals(uri.getHost())) {
+      return LOCAL_INDEX_PATH;
+    }
+    String path = uri.getEncodedPath();
+    if (path == null || "/".equals(path) || "/index.html".equals(path)) {
+      // Still the launch URL, initialPath and all.
+      return lastUrl;
+    }
+    return LaunchRoutes.launchUrl(
+      LOCAL_INDEX_PATH,
+      path,
+      uri.getEncodedQuery(),
+      uri.getEncodedFragment()
+    );
+  }
+
+  /** Lets the page drop its own caches; Chromium trims the WebView's by itself. */
+  private void forwardMemoryPressure(int level) {
+    String severity = MemoryPressure.severity(level);
+    if (severity == null) {
+      return;
+    }
+    JSONObject detail = new JSONObject();
+    try {
+      detail.put("level", level);
+      detail.put("severity", severity);
+    } catch (JSONException e) {
+      throw new IllegalStateException(e);
+    }
+    dispatchToPage(WebEvents.MEMORY_PRESSURE, detail);
+  }
+
+  /** Sends an event to whichever WebView currently hosts the page. Any thread. */
+  private void dispatchToPage(String type, JSONObject detail) {
+    WebView target = webView;
+    if (target != null) {
+      WebEvents.dispatch(target, type, detail);
+    }
+  }
+
+  @Override
+  protected void onStart() {
+    super.onStart();
+    started = true;
+    assetCache.restoreBudget();
+    if (changeNotifier != null) {
+      changeNotifier.setForeground(true);
+    }
+    if (pendingRecoveryUrl != null) {
+      String url = pendingRecoveryUrl;
+      pendingRecoveryUrl = null;
+      rebuildWebView(url);
+    }
+  }
+
+  @Override
+  protected void onStop() {
+    started = false;
+    if (changeNotifier != null) {
+      changeNotifier.setForeground(false);
+    }
+    super.onStop();
+  }
+
+  @Override
+  protected void onDestroy() {
+    if (downloadStream != null) {
+      downloadStream.close();
+      downloadStream = null;
+    }
+    if (cryptoBridge != null) {
+      cryptoBridge.close();
+      cryptoBridge = null;
+    }
+    if (exportScheduler != null) {
+      exportScheduler.shutdown();
+    }
+    if (exportNotifier != null) {
+      exportNotifier.close();
+      exportNotifier = null;
+    }
+    if (apiProxy != null) {
+      Application.from(this).setApiProxy(null);
+    }
+    if (backgroundExecutor != null) {
+      backgroundExecutor.shutdownNow();
+      backgroundExecutor = null;
+    }
+    if (importPreprocessor != null) {
+      // Like transfers, staging continues; the files are trimmed if never picked up.
+      importPreprocessor.setListener(null);
+    }
+    if (archiveImporter != null) {
+      // Unlike file imports, a running archive import stops without a page to feed.
+      archiveImporter.setListener(null);
+    }
+    if (shareInbox != null) {
+      // Shares keep arriving; the next page drains them at start.
+      shareInbox.setListener(null);
+    }
+    Application.from(this).getMemoryPressure().removeListener(pageMemoryPressure);
+    if (changeNotifier != null) {
+      // The connection itself lingers; batches now go to the background sync.
+      changeNotifier.setPageListener(null);
+    }
+    if (transferManager != null) {
+      // Transfers keep running; finished ones are reported again when re-enqueued.
+      transferManager.setListener(null);
+    }
+    if (webView != null) {
+      detachWebView();
+    }
+    if (isFinishing()) {
+      // Have a WebView ready if the user comes back while the process lives.
+      Application.from(this).getPrewarmer().scheduleWebView();
+    }
+    super.onDestroy();
+  }
+
   @Override
   protected void onNewIntent(Intent intent) {
     super.onNewIntent(intent);
-    loadInitialUrl(intent);
+    if (webView == null) {
+      // The renderer went away in the background; reopen at the link instead.
+      Uri data = intent.getData();
+      if (data != null && "https".equals(data.getScheme())) {
+        pendingRecoveryUrl = launchUrlFor(intent);
+      }
+    } else if (routerReady) {
+      routeInPlace(intent);
+    } else {
+      // Nothing is running that could take the route yet.
+      loadInitialUrl(intent);
+    }
   }
 
   @Override
@@ -116,20 +564,9 @@ public class LocalWebViewActivity extends AppCompatActivity {
     }
   }
 
-  @SuppressLint({ "SetJavaScriptEnabled" })
   private void configureWebView(WebView view) {
     // WebView.setWebContentsDebuggingEnabled(true);
-    WebSettings settings = view.getSettings();
-    settings.setJavaScriptEnabled(true);
-    settings.setDomStorageEnabled(true);
-    settings.setDatabaseEnabled(true);
-    settings.setAllowFileAccess(false);
-    settings.setAllowContentAccess(false);
-    settings.setLoadWithOverviewMode(true);
-    settings.setUseWideViewPort(true);
-    settings.setSupportMultipleWindows(false);
-    settings.setMediaPlaybackRequiresUserGesture(false);
-    settings.setUserAgentString(settings.getUserAgentString() + " CiphernotesTwa/3");
+    WebViewPrewarmer.applyBaseSettings(view);
 
     CookieManager cookieManager = CookieManager.getInstance();
     cookieManager.setAcceptCookie(true);
@@ -216,21 +653,46 @@ public class LocalWebViewActivity extends AppCompatActivity {
       new WebViewClient() {
         @Override
         public WebResourceResponse shouldInterceptRequest(WebView v, WebResourceRequest request) {
-          WebResourceResponse response = assetLoader.shouldInterceptRequest(request.getUrl());
-          if (response != null) {
-            return response;
+          return interceptRequest(request);
+        }
+
+        @Override
+        public void onPageStarted(WebView v, String url, Bitmap favicon) {
+          super.onPageStarted(v, url, favicon);
+          routerReady = false;
+        }
+
+        @Override
+        public void onPageCommitVisible(WebView v, String url) {
+          super.onPageCommitVisible(v, url);
+          metrics.mark("firstPaint", SystemClock.elapsedRealtime());
+        }
+
+        @Override
+        public void onPageFinished(WebView v, String url) {
+          super.onPageFinished(v, url);
+          if (recoveryStartNanos != 0) {
+            metrics.record("rendererRecovery", System.nanoTime() - recoveryStartNanos);
+            metrics.increment("renderer.restored");
+            recoveryStartNanos = 0;
           }
-          if (!isAllowedWebViewUri(request.getUrl())) {
-            runOnUiThread(() ->
-              Toast.makeText(
-                LocalWebViewActivity.this,
-                "Request blocked: " + request.getUrl(),
-                Toast.LENGTH_SHORT
-              ).show()
+          if (metrics.mark("pageFinished", SystemClock.elapsedRealtime())) {
+            Log.i(
+              TAG,
+              "Cold start to first page: " +
+              metrics.milestone("pageFinished") +
+              " ms (prewarmed WebView: " +
+              webViewPrewarmed +
+              ")"
             );
-            return blockedWebViewResponse();
           }
-          return super.shouldInterceptRequest(v, request);
+        }
+
+        @RequiresApi(Build.VERSION_CODES.O)
+        @Override
+        public boolean onRenderProcessGone(WebView v, RenderProcessGoneDetail detail) {
+          recoverFromRendererLoss(v, detail);
+          return true;
         }
 
         @Override
@@ -345,31 +807,110 @@ public class LocalWebViewActivity extends AppCompatActivity {
   @Override
   protected void onActivityResult(int requestCode, int resultCode, @Nullable Intent data) {
     super.onActivityResult(requestCode, resultCode, data);
+    if (requestCode == IMPORT_REQUEST_CODE) {
+      Uri[] picked = resultCode == Activity.RESULT_OK ? pickedUris(data) : null;
+      // An empty session still reports, so the page learns the picker was cancelled.
+      importPreprocessor.start(picked != null ? Arrays.asList(picked) : Collections.emptyList());
+      return;
+    }
+    if (requestCode == ARCHIVE_IMPORT_REQUEST_CODE) {
+      Uri[] picked = resultCode == Activity.RESULT_OK ? pickedUris(data) : null;
+      ArchiveImporter.Kind kind = pendingArchiveKind;
+      pendingArchiveKind = null;
+      archiveImporter.start(
+        picked != null && kind != null ? picked[0] : null,
+        kind != null ? kind : ArchiveImporter.Kind.KEEP,
+        pendingArchiveIncludeArchived
+      );
+      return;
+    }
     if (requestCode != FILE_CHOOSER_REQUEST_CODE) {
       return;
     }
 
-    Uri[] result = null;
-    if (resultCode == Activity.RESULT_OK) {
-      if (data == null) {
-        // capture outside this flow; nothing to do
-      } else if (data.getClipData() != null) {
-        int count = data.getClipData().getItemCount();
-        result = new Uri[count];
-        for (int i = 0; i < count; i++) {
-          result[i] = data.getClipData().getItemAt(i).getUri();
-          grantUriPermission(result[i]);
-        }
-      } else if (data.getData() != null) {
-        result = new Uri[] { data.getData() };
-        grantUriPermission(result[0]);
-      }
+    Uri[] result = resultCode == Activity.RESULT_OK ? pickedUris(data) : null;
+    if (result != null) {
+      persistUriPermissions(result);
     }
 
     if (result == null && cameraImageUri != null && resultCode == Activity.RESULT_OK) {
+      if (cameraImageProcessor != null && cameraImageFile != null) {
+        processCameraImage(cameraImageFile, cameraImageUri);
+        cameraImageUri = null;
+        cameraImageFile = null;
+        return;
+      }
       result = new Uri[] { cameraImageUri };
     }
 
+    deliverFileChooserResult(result);
+    cameraImageUri = null;
+    cameraImageFile = null;
+  }
+
+  @Nullable
+  private static Uri[] pickedUris(@Nullable Intent data) {
+    if (data == null) {
+      // capture outside this flow; nothing to do
+      return null;
+    }
+    if (data.getClipData() != null) {
+      int count = data.getClipData().getItemCount();
+      Uri[] uris = new Uri[count];
+      for (int i = 0; i < count; i++) {
+        uris[i] = data.getClipData().getItemAt(i).getUri();
+      }
+      return uris;
+    }
+    return data.getData() != null ? new Uri[] { data.getData() } : null;
+  }
+
+  private ExecutorService backgroundExecutor() {
+    if (backgroundExecutor == null) {
+      backgroundExecutor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "LocalWebViewBackground");
+        thread.setPriority(Thread.NORM_PRIORITY - 1);
+        return thread;
+      });
+    }
+    return backgroundExecutor;
+  }
+
+  /**
+   * Downscales and re-encodes a capture off the main thread, then hands the
+   * optimized file to the pending chooser callback. Falls back to the original
+   * if processing fails.
+   */
+  private void processCameraImage(File source, Uri sourceUri) {
+    CameraImageProcessor processor = cameraImageProcessor;
+    backgroundExecutor().execute(() -> {
+      long start = System.nanoTime();
+      Uri uri = sourceUri;
+      Trace.beginSection("cn.cameraProcess");
+      try {
+        File processed = processor.process(source);
+        if (!processed.equals(source)) {
+          uri = FileProvider.getUriForFile(this, getPackageName() + ".fileprovider", processed);
+          Log.i(TAG, "Camera image " + source.length() + " -> " + processed.length() + " bytes");
+          source.delete();
+        }
+        metrics.record("cameraProcess", System.nanoTime() - start);
+      } catch (IOException | RuntimeException e) {
+        Log.w(TAG, "Camera post-processing failed; using the original", e);
+      } finally {
+        Trace.endSection();
+      }
+      Application.from(this).getDiskCache().trimAsync();
+      Uri[] result = new Uri[] { uri };
+      runOnUiThread(() -> {
+        if (!isDestroyed()) {
+          deliverFileChooserResult(result);
+        }
+      });
+    });
+  }
+
+  private void deliverFileChooserResult(@Nullable Uri[] result) {
     if (filePathCallback != null) {
       filePathCallback.onReceiveValue(result);
       filePathCallback = null;
@@ -378,23 +919,32 @@ public class LocalWebViewActivity extends AppCompatActivity {
       legacyFilePathCallback.onReceiveValue(single);
       legacyFilePathCallback = null;
     }
-    cameraImageUri = null;
   }
 
-  private void grantUriPermission(Uri uri) {
-    if (uri == null) {
+  /**
+   * Takes persistable permissions for picked URIs. Each call is an IPC to the
+   * system, so a large selection is handled on the background thread.
+   */
+  private void persistUriPermissions(Uri[] uris) {
+    if (Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT) {
       return;
     }
-    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
-      try {
-        getContentResolver().takePersistableUriPermission(
-          uri,
-          Intent.FLAG_GRANT_READ_URI_PERMISSION | Intent.FLAG_GRANT_WRITE_URI_PERMISSION
-        );
-      } catch (SecurityException ignored) {
-        // Not all providers allow persistable permissions; ignore failures.
+    ContentResolver resolver = getContentResolver();
+    backgroundExecutor().execute(() -> {
+      for (Uri uri : uris) {
+        if (uri == null) {
+          continue;
+        }
+        try {
+          resolver.takePersistableUriPermission(
+            uri,
+            Intent.FLAG_GRANT_READ_URI_PERMISSION | Intent.FLAG_GRANT_WRITE_URI_PERMISSION
+          );
+        } catch (SecurityException ignored) {
+          // Not all providers allow persistable permissions; ignore failures.
+        }
       }
-    }
+    });
   }
 
   private void clearFileCallbacks() {
@@ -443,6 +993,7 @@ public class LocalWebViewActivity extends AppCompatActivity {
     }
     try {
       File photoFile = createCameraImageFile();
+      cameraImageFile = photoFile;
       cameraImageUri = FileProvider.getUriForFile(
         this,
         getPackageName() + ".fileprovider",
@@ -456,12 +1007,13 @@ public class LocalWebViewActivity extends AppCompatActivity {
     } catch (IOException e) {
       Log.e(TAG, "Unable to create camera temp file", e);
       cameraImageUri = null;
+      cameraImageFile = null;
       return null;
     }
   }
 
   private File createCameraImageFile() throws IOException {
-    File storageDir = new File(getCacheDir(), "camera");
+    File storageDir = Application.cameraDir(this);
     if (!storageDir.exists() && !storageDir.mkdirs()) {
       throw new IOException("Unable to create camera cache directory");
     }
@@ -542,85 +1094,50 @@ public class LocalWebViewActivity extends AppCompatActivity {
     );
   }
 
-  private void handleDownloadRequest(String dataUrl, String filename) {
+  private String handleDownloadRequest(String dataUrl, String filename) {
+    String id = UUID.randomUUID().toString();
     if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q || hasStoragePermission()) {
-      new Thread(() -> saveDataUrlToDownloads(dataUrl, filename)).start();
+      submitDownload(id, dataUrl, filename);
     } else {
-      pendingDownload = new PendingDownload(dataUrl, filename);
+      if (pendingDownload != null) {
+        exportScheduler.reject(
+          pendingDownload.id,
+          pendingDownload.filename,
+          "Superseded by a newer export"
+        );
+      }
+      pendingDownload = new PendingDownload(id, dataUrl, filename);
       ActivityCompat.requestPermissions(
         this,
         new String[] { Manifest.permission.WRITE_EXTERNAL_STORAGE },
         STORAGE_PERMISSION_REQUEST_CODE
       );
     }
+    return id;
   }
 
-  private void saveDataUrlToDownloads(String dataUrl, String filename) {
-    try {
-      int commaIndex = dataUrl.indexOf(',');
-      if (commaIndex == -1) throw new IllegalArgumentException("Invalid data URL");
-      String meta = dataUrl.substring(0, commaIndex);
-      String base64Data = dataUrl.substring(commaIndex + 1);
-      String mimeType = "application/octet-stream";
-      if (meta.startsWith("data:")) {
-        int semicolon = meta.indexOf(';');
-        if (semicolon > 5) {
-          mimeType = meta.substring(5, semicolon);
-        }
-      }
-      byte[] bytes = Base64.decode(base64Data, Base64.DEFAULT);
-      if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
-        saveViaMediaStore(bytes, mimeType, filename);
-      } else {
-        saveLegacy(bytes, mimeType, filename);
-      }
-      runOnUiThread(() -> Toast.makeText(this, "Exported to Downloads", Toast.LENGTH_LONG).show());
-    } catch (Exception e) {
-      Log.e(TAG, "Export failed", e);
-      runOnUiThread(() ->
-        Toast.makeText(this, "Export failed: " + e.getMessage(), Toast.LENGTH_LONG).show()
-      );
-    }
+  private void submitDownload(String id, String dataUrl, String filename) {
+    exportScheduler.submit(
+      id,
+      filename,
+      dataUrl.length(),
+      job -> saveDataUrlToDownloads(job, dataUrl)
+    );
   }
 
-  private void saveViaMediaStore(byte[] bytes, String mimeType, String filename)
+  /** Decodes the data URL through one buffer, so only that buffer is held at a time. */
+  private void saveDataUrlToDownloads(ExportScheduler.Job job, String dataUrl)
     throws IOException {
-    ContentValues values = new ContentValues();
-    values.put(MediaStore.Downloads.DISPLAY_NAME, filename);
-    values.put(MediaStore.Downloads.MIME_TYPE, mimeType);
-    values.put(
-      MediaStore.Downloads.RELATIVE_PATH,
-      Environment.DIRECTORY_DOWNLOADS + "/Ciphernotes"
-    );
-    values.put(MediaStore.Downloads.IS_PENDING, 1);
-
-    Uri collection = MediaStore.Downloads.EXTERNAL_CONTENT_URI;
-    Uri item = getContentResolver().insert(collection, values);
-    if (item == null) throw new IOException("Unable to create download entry");
-    try (OutputStream out = getContentResolver().openOutputStream(item)) {
-      if (out == null) throw new IOException("Unable to open output stream");
-      out.write(bytes);
-    }
-    values.put(MediaStore.Downloads.IS_PENDING, 0);
-    getContentResolver().update(item, values, null, null);
-  }
-
-  private void saveLegacy(byte[] bytes, String mimeType, String filename) throws IOException {
-    File downloads = Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DOWNLOADS);
-    File targetDir = new File(downloads, "Ciphernotes");
-    if (!targetDir.exists() && !targetDir.mkdirs()) {
-      throw new IOException("Unable to create download directory");
-    }
-    File outFile = new File(targetDir, filename);
-    try (FileOutputStream fos = new FileOutputStream(outFile)) {
-      fos.write(bytes);
-    }
-    MediaScannerConnection.scanFile(
-      this,
-      new String[] { outFile.getAbsolutePath() },
-      new String[] { mimeType },
-      null
-    );
+    DataUrl parsed = DataUrl.parse(dataUrl);
+    // The job can outlive this activity, so it must not hold on to it.
+    Context context = getApplicationContext();
+    try (DownloadTarget target = DownloadTarget.open(context, parsed.mimeType, job.filename)) {
+      parsed.decodeTo(target.stream(), DECODE_BUFFER_BYTES, decoded -> {
+        job.throwIfCancelled();
+        job.reportProgress(decoded);
+      });
+      target.commit();
+    }
   }
 
   @Override
@@ -641,15 +1158,12 @@ public class LocalWebViewActivity extends AppCompatActivity {
       }
     } else if (requestCode == STORAGE_PERMISSION_REQUEST_CODE) {
       if (pendingDownload != null) {
+        PendingDownload download = pendingDownload;
+        pendingDownload = null;
         if (grantResults.length > 0 && grantResults[0] == PackageManager.PERMISSION_GRANTED) {
-          PendingDownload download = pendingDownload;
-          pendingDownload = null;
-          new Thread(() -> saveDataUrlToDownloads(download.dataUrl, download.filename)).start();
+          submitDownload(download.id, download.dataUrl, download.filename);
         } else {
-          runOnUiThread(() ->
-            Toast.makeText(this, "Storage permission denied", Toast.LENGTH_LONG).show()
-          );
-          pendingDownload = null;
+          exportScheduler.reject(download.id, download.filename, "Storage permission denied");
         }
       }
     } else if (requestCode == FILE_CHOOSER_CAMERA_PERMISSION_REQUEST_CODE) {
@@ -663,7 +1177,7 @@ public class LocalWebViewActivity extends AppCompatActivity {
     }
   }
 
-  private void enableServiceWorker(WebViewAssetLoader loader) {
+  private void enableServiceWorker() {
     if (Build.VERSION.SDK_INT < Build.VERSION_CODES.N) {
       return;
     }
@@ -676,68 +1190,88 @@ public class LocalWebViewActivity extends AppCompatActivity {
       new ServiceWorkerClient() {
         @Override
         public WebResourceResponse shouldInterceptRequest(WebResourceRequest request) {
-          WebResourceResponse response = loader.shouldInterceptRequest(request.getUrl());
-          if (response != null) {
-            return response;
-          }
-          if (!isAllowedWebViewUri(request.getUrl())) {
-            runOnUiThread(() ->
-              Toast.makeText(
-                LocalWebViewActivity.this,
-                "Request blocked: " + request.getUrl(),
-                Toast.LENGTH_SHORT
-              ).show()
-            );
-            return blockedWebViewResponse();
-          }
-          return super.shouldInterceptRequest(request);
+          return interceptRequest(request);
         }
       }
     );
   }
 
-  private boolean isAllowedWebViewUri(Uri uri) {
-    String scheme = uri.getScheme();
-    if (isAppLocalScheme(scheme)) {
-      return true;
-    }
-    if (!"http".equalsIgnoreCase(scheme) && !"https".equalsIgnoreCase(scheme)) {
-      return false;
-    }
-    String host = uri.getHost();
-    if (host == null) {
-      return false;
-    }
-    host = host.toLowerCase(Locale.US);
-    return LOCAL_HOST.equals(host) || isLocalhost(host) || isAllowedWasabiUri(uri);
+  /**
+   * Shared by the page's and the service worker's clients; see
+   * {@link RequestInterceptor} for the order of the steps.
+   */
+  @Nullable
+  private WebResourceResponse interceptRequest(WebResourceRequest request) {
+    Uri uri = request.getUrl();
+    return requestInterceptor.intercept(request, uri.getScheme(), uri.getHost(), uri.getPath());
   }
 
-  private boolean isAppLocalScheme(String scheme) {
-    return (
-      "blob".equalsIgnoreCase(scheme) ||
-      "data".equalsIgnoreCase(scheme) ||
-      "about".equalsIgnoreCase(scheme)
-    );
+  private boolean isAllowedWebViewUri(Uri uri) {
+    return allowlist.allows(uri.getScheme(), uri.getHost(), uri.getPath());
   }
 
-  private boolean isLocalhost(String host) {
-    return "localhost".equals(host) || "127.0.0.1".equals(host) || "::1".equals(host);
+  private ApiProxy createApiProxy() {
+    CookieManager cookieManager = CookieManager.getInstance();
+    return new ApiProxy(
+      API_PATH_PREFIX,
+      getString(R.string.apiProxyUpstream),
+      new ApiProxy.CookieJar() {
+        @Override
+        public String get(String url) {
+          return cookieManager.getCookie(url);
+        }
+
+        @Override
+        public void put(String url, String setCookie) {
+          cookieManager.setCookie(url, setCookie);
+        }
+      }
+    );
   }
 
-  private boolean isAllowedWasabiUri(Uri uri) {
-    String scheme = uri.getScheme();
-    if (!"https".equalsIgnoreCase(scheme)) {
-      return false;
-    }
-    String host = uri.getHost();
-    if (host == null) {
-      return false;
+  /**
+   * Runs same-origin API requests through the native {@link ApiProxy}. Returns
+   * null, letting the WebView's network stack handle the request, when the
+   * proxy is off, the request is not eligible or the native attempt failed.
+   */
+  @Nullable
+  private WebResourceResponse proxyApiRequest(WebResourceRequest request) {
+    ApiProxy proxy = apiProxy;
+    Uri uri = request.getUrl();
+    if (
+      proxy == null ||
+      !LOCAL_HOST.equalsIgnoreCase(uri.getHost()) ||
+      !proxy.shouldProxy(request.getMethod(), uri.getPath())
+    ) {
+      return null;
     }
-    String path = uri.getPath();
-    if (!"wasabisys.com".equals(host) && !host.endsWith(".wasabisys.com")) {
-      return false;
+    String pathAndQuery = uri.getEncodedQuery() != null
+      ? uri.getEncodedPath() + "?" + uri.getEncodedQuery()
+      : uri.getEncodedPath();
+    try {
+      ApiProxy.Response response = proxy.execute(
+        request.getMethod(),
+        "https://" + LOCAL_HOST + "/",
+        uri.getPath(),
+        pathAndQuery,
+        request.getRequestHeaders()
+      );
+      if (response.status >= 300 && response.status < 400) {
+        // WebResourceResponse rejects redirect codes.
+        return null;
+      }
+      return new WebResourceResponse(
+        response.mimeType,
+        response.encoding,
+        response.status,
+        response.reason,
+        response.headers,
+        new ByteArrayInputStream(response.body)
+      );
+    } catch (IOException e) {
+      Log.w(TAG, "Native API request failed, falling back: " + uri.getPath(), e);
+      return null;
     }
-    return "/ciphernotes".equals(path) || (path != null && path.startsWith("/ciphernotes/"));
   }
 
   private WebResourceResponse blockedWebViewResponse() {
@@ -754,132 +1288,475 @@ public class LocalWebViewActivity extends AppCompatActivity {
   }
 
   private void loadInitialUrl(Intent intent) {
+    Trace.beginSection("cn.loadInitialUrl");
+    try {
+      metrics.mark("loadInitialUrl", SystemClock.elapsedRealtime());
+      loadUrlFor(intent);
+    } finally {
+      Trace.endSection();
+    }
+  }
+
+  private void loadUrlFor(Intent intent) {
+    webView.loadUrl(launchUrlFor(intent));
+  }
+
+  private static String launchUrlFor(@Nullable Intent intent) {
     Uri data = intent != null ? intent.getData() : null;
     String launchUrl = LOCAL_INDEX_PATH;
     if (data != null && "https".equals(data.getScheme())) {
-      String encodedPath = data.getEncodedPath();
-      String encodedQuery = data.getEncodedQuery();
-      String encodedFragment = data.getEncodedFragment();
-
-      StringBuilder route = new StringBuilder();
-      route.append(encodedPath != null ? encodedPath : "/");
-      if (encodedQuery != null && !encodedQuery.isEmpty()) {
-        route.append('?').append(encodedQuery);
-      }
-      if (encodedFragment != null && !encodedFragment.isEmpty()) {
-        route.append('#').append(encodedFragment);
-      }
-      String encodedRoute = Uri.encode(route.toString());
-      launchUrl = LOCAL_INDEX_PATH + "?initialPath=" + encodedRoute;
+      launchUrl = LaunchRoutes.launchUrl(
+        LOCAL_INDEX_PATH,
+        data.getEncodedPath(),
+        data.getEncodedQuery(),
+        data.getEncodedFragment()
+      );
     }
-    webView.loadUrl(launchUrl);
+    return launchUrl;
   }
 
-  private WebResourceResponse openAsset(String path) {
-    String relative = path == null ? "" : path;
-    if (relative.startsWith("/")) {
-      relative = relative.substring(1);
+  /**
+   * Hands a deep link to the running SPA instead of reloading it, so the
+   * bundles, IndexedDB connections and in-memory state all survive. A plain
+   * re-launch without a link leaves the app as it is.
+   */
+  private void routeInPlace(Intent intent) {
+    Uri data = intent != null ? intent.getData() : null;
+    if (data == null || !"https".equals(data.getScheme())) {
+      return;
+    }
+    long start = System.nanoTime();
+    String route = LaunchRoutes.route(
+      data.getEncodedPath(),
+      data.getEncodedQuery(),
+      data.getEncodedFragment()
+    );
+    try {
+      WebEvents.dispatch(webView, WebEvents.ROUTE, new JSONObject().put("path", route));
+    } catch (JSONException e) {
+      throw new IllegalStateException(e);
     }
-    if (relative.isEmpty() || relative.equals("index.html")) {
-      relative = "index.html";
+    metrics.record("routeInPlace", System.nanoTime() - start);
+  }
+
+  @Nullable
+  private WebResourceResponse openTransfer(String path) {
+    return serveFile(transferManager.completedFile(path));
+  }
+
+  @Nullable
+  private WebResourceResponse openImport(String path) {
+    return serveFile(importPreprocessor.stagedFile(path));
+  }
+
+  @Nullable
+  private WebResourceResponse openSharedItem(String path) {
+    return serveFile(shareInbox.file(path));
+  }
+
+  @Nullable
+  private WebResourceResponse openSyncDelta(String path) {
+    if (backgroundSync == null || !DeltaSync.FILE_NAME.equals(path)) {
+      return null;
     }
-    if (relative.endsWith("/")) {
-      relative = relative + "index.html";
+    File delta = backgroundSync.pendingFile();
+    return serveFile(delta.isFile() ? delta : null);
+  }
+
+  @Nullable
+  private static WebResourceResponse serveFile(@Nullable File file) {
+    if (file == null) {
+      return null;
     }
-    String assetPath = "www/" + relative;
-    AssetManager assets = getAssets();
+    DiskCacheManager.touch(file);
     try {
-      InputStream input = assets.open(assetPath, AssetManager.ACCESS_STREAMING);
-      String mimeType = guessMimeType(relative);
-      String encoding = shouldUseUtf8(mimeType) ? "utf-8" : null;
-      return new WebResourceResponse(mimeType, encoding, input);
+      return new WebResourceResponse(
+        "application/octet-stream",
+        null,
+        200,
+        "OK",
+        Collections.singletonMap("Cache-Control", "no-store"),
+        new FileInputStream(file)
+      );
     } catch (IOException e) {
       return null;
     }
   }
 
-  private String guessMimeType(String path) {
-    String mime = URLConnection.guessContentTypeFromName(path);
-    if (mime != null) {
-      return mime;
+  @Nullable
+  private WebResourceResponse openAsset(String path) {
+    Trace.beginSection("cn.openAsset");
+    long start = System.nanoTime();
+    try {
+      // Null when not bundled (e.g. /api/...): the request goes to the network.
+      AssetResolver.Asset asset = assetResolver.resolve(path);
+      if (asset == null) {
+        return null;
+      }
+      metrics.mark("firstAssetServed", SystemClock.elapsedRealtime());
+      metrics.record(
+        asset.fromMemory ? "openAsset.memory" : "openAsset.apk",
+        System.nanoTime() - start
+      );
+      return new WebResourceResponse(
+        asset.mimeType,
+        asset.encoding,
+        200,
+        "OK",
+        asset.headers,
+        asset.body
+      );
+    } finally {
+      Trace.endSection();
     }
-    String lower = path.toLowerCase(Locale.US);
-    if (lower.endsWith(".js") || lower.endsWith(".mjs")) {
-      return "application/javascript";
+  }
+
+  private static class PendingDownload {
+
+    final String id;
+    final String dataUrl;
+    final String filename;
+
+    PendingDownload(String id, String dataUrl, String filename) {
+      this.id = id;
+      this.dataUrl = dataUrl;
+      this.filename = filename;
     }
-    if (lower.endsWith(".css")) {
-      return "text/css";
+  }
+
+  private static class DownloadBridge {
+
+    private final WeakReference<LocalWebViewActivity> activityRef;
+
+    DownloadBridge(LocalWebViewActivity activity) {
+      this.activityRef = new WeakReference<>(activity);
     }
-    if (lower.endsWith(".json") || lower.endsWith(".webmanifest")) {
-      return "application/json";
+
+    /** Returns the export id used in {@code ciphernotes-export} events. */
+    @JavascriptInterface
+    public String saveBase64(String dataUrl, String filename) {
+      LocalWebViewActivity activity = activityRef.get();
+      if (activity != null) {
+        return activity.handleDownloadRequest(dataUrl, filename);
+      }
+      return null;
     }
-    if (lower.endsWith(".svg")) {
-      return "image/svg+xml";
+
+    @JavascriptInterface
+    public boolean cancelExport(String id) {
+      LocalWebViewActivity activity = activityRef.get();
+      return activity != null && activity.exportScheduler.cancel(id);
     }
-    if (lower.endsWith(".woff2")) {
-      return "font/woff2";
+  }
+
+  private static class SyncBridge {
+
+    private final BackgroundSync sync;
+
+    SyncBridge(BackgroundSync sync) {
+      this.sync = sync;
     }
-    if (lower.endsWith(".woff")) {
-      return "font/woff";
+
+    /**
+     * Called after each successful sync: background pulls continue from
+     * {@code lastSyncedTo}, and the delta, merged or not, is dropped.
+     */
+    @JavascriptInterface
+    public void configure(long lastSyncedTo, String syncToken) {
+      sync.configure(lastSyncedTo, syncToken);
     }
-    if (lower.endsWith(".ttf")) {
-      return "font/ttf";
+
+    /** Called on sign-out. */
+    @JavascriptInterface
+    public void disable() {
+      sync.disable();
     }
-    if (lower.endsWith(".otf")) {
-      return "font/otf";
+
+    /** Whether {@code /native/sync/delta.json} has a delta to merge. */
+    @JavascriptInterface
+    public boolean hasDelta() {
+      return sync.hasDelta();
     }
-    if (lower.endsWith(".png")) {
-      return "image/png";
+  }
+
+  private static class ShareInboxBridge {
+
+    private final ShareInbox inbox;
+
+    ShareInboxBridge(ShareInbox inbox) {
+      this.inbox = inbox;
     }
-    if (lower.endsWith(".jpg") || lower.endsWith(".jpeg")) {
-      return "image/jpeg";
+
+    /**
+     * Up to {@code max} entries, oldest first, as
+     * {@code [{id, receivedAt, subject, text, failed, items:[{id, name, mime,
+     * size}]}]}; each item is served from {@code /native/inbox/<id>}. New
+     * entries are announced with a {@code ciphernotes-share} event.
+     */
+    @JavascriptInterface
+    public String list(int max) {
+      return inbox.listJson(max);
     }
-    if (lower.endsWith(".ico")) {
-      return "image/x-icon";
+
+    @JavascriptInterface
+    public int count() {
+      return inbox.count();
     }
-    if (lower.endsWith(".txt")) {
-      return "text/plain";
+
+    /** Deletes an entry and its items once the page has stored them. */
+    @JavascriptInterface
+    public void remove(String entryId) {
+      inbox.remove(entryId);
     }
-    return "application/octet-stream";
   }
 
-  private boolean shouldUseUtf8(String mimeType) {
-    return (
-      mimeType != null &&
-      (mimeType.startsWith("text/") ||
-        mimeType.equals("application/javascript") ||
-        mimeType.equals("application/json") ||
-        mimeType.equals("application/manifest+json") ||
-        mimeType.equals("application/xml") ||
-        mimeType.equals("image/svg+xml"))
-    );
+  private static class ChangesBridge {
+
+    private final ChangeNotifier notifier;
+
+    ChangesBridge(ChangeNotifier notifier) {
+      this.notifier = notifier;
+    }
+
+    /**
+     * Called when the page is signed in. Connection changes then arrive as
+     * {@code ciphernotes-connection} events and batched pushes from other
+     * sessions as {@code ciphernotes-changes} events.
+     */
+    @JavascriptInterface
+    public void connect() {
+      notifier.setEnabled(true);
+    }
+
+    /** Called on sign-out. */
+    @JavascriptInterface
+    public void disconnect() {
+      notifier.setEnabled(false);
+    }
+
+    @JavascriptInterface
+    public boolean isConnected() {
+      return notifier.isConnected();
+    }
   }
 
-  private static class PendingDownload {
+  private static class TransferBridge {
 
-    final String dataUrl;
-    final String filename;
+    private final TransferManager transfers;
+    private final HostAllowlist allowlist;
 
-    PendingDownload(String dataUrl, String filename) {
-      this.dataUrl = dataUrl;
-      this.filename = filename;
+    TransferBridge(TransferManager transfers, HostAllowlist allowlist) {
+      this.transfers = transfers;
+      this.allowlist = allowlist;
+    }
+
+    /**
+     * Queues {@code [{id, url}]} downloads. Each one ends with a
+     * {@code ciphernotes-transfer} event, after which the body can be fetched
+     * from {@code /native/transfers/<id>}.
+     */
+    @JavascriptInterface
+    public boolean download(String json) {
+      List<TransferManager.Download> downloads = new ArrayList<>();
+      try {
+        JSONArray array = new JSONArray(json);
+        for (int i = 0; i < array.length(); i++) {
+          JSONObject item = array.getJSONObject(i);
+          String url = item.getString("url");
+          Uri uri = Uri.parse(url);
+          // Native requests bypass shouldInterceptRequest, so check them here.
+          if (!allowlist.allows(uri.getScheme(), uri.getHost(), uri.getPath())) {
+            return false;
+          }
+          downloads.add(new TransferManager.Download(item.getString("id"), url));
+        }
+        transfers.enqueue(downloads);
+        return true;
+      } catch (JSONException | IllegalArgumentException e) {
+        Log.w(TAG, "Rejected transfer batch", e);
+        return false;
+      }
+    }
+
+    /** Deletes a downloaded body once the page has stored it. */
+    @JavascriptInterface
+    public void release(String id) {
+      transfers.release(id);
     }
   }
 
-  private static class DownloadBridge {
+  private static class ImportBridge {
 
     private final WeakReference<LocalWebViewActivity> activityRef;
+    private final ImportPreprocessor preprocessor;
 
-    DownloadBridge(LocalWebViewActivity activity) {
+    ImportBridge(LocalWebViewActivity activity, ImportPreprocessor preprocessor) {
+      this.activityRef = new WeakReference<>(activity);
+      this.preprocessor = preprocessor;
+    }
+
+    /**
+     * Opens the system picker for any number of files. The selection is read
+     * natively and reported through {@code ciphernotes-import} events; the
+     * staged files are served from {@code /native/imports/<id>} and
+     * {@code /native/imports/<id>.thumb}.
+     */
+    @JavascriptInterface
+    public boolean pick() {
+      LocalWebViewActivity activity = activityRef.get();
+      if (activity == null) {
+        return false;
+      }
+      activity.runOnUiThread(() -> {
+        try {
+          activity.startActivityForResult(
+            activity.buildFilePickerIntent(true, null),
+            IMPORT_REQUEST_CODE
+          );
+        } catch (ActivityNotFoundException e) {
+          activity.importPreprocessor.start(Collections.emptyList());
+        }
+      });
+      return true;
+    }
+
+    /** Deletes a staged file and its thumbnail once the page has stored them. */
+    @JavascriptInterface
+    public void release(String id) {
+      preprocessor.release(id);
+    }
+  }
+
+  private static class ArchiveImportBridge {
+
+    private final WeakReference<LocalWebViewActivity> activityRef;
+    private final ArchiveImporter importer;
+    private final ImportPreprocessor staging;
+
+    ArchiveImportBridge(
+      LocalWebViewActivity activity,
+      ArchiveImporter importer,
+      ImportPreprocessor staging
+    ) {
+      this.activityRef = new WeakReference<>(activity);
+      this.importer = importer;
+      this.staging = staging;
+    }
+
+    /**
+     * Opens the system picker for a {@code "keep"} takeout or a
+     * {@code "backup"} ZIP and streams it natively, reporting through
+     * {@code ciphernotes-archive-import} events. Spooled entries are served
+     * from {@code /native/imports/<id>}.
+     */
+    @JavascriptInterface
+    public boolean pick(String kind, boolean includeArchived) {
+      LocalWebViewActivity activity = activityRef.get();
+      if (activity == null || (!"keep".equals(kind) && !"backup".equals(kind))) {
+        return false;
+      }
+      activity.runOnUiThread(() -> {
+        activity.pendingArchiveKind = "keep".equals(kind)
+          ? ArchiveImporter.Kind.KEEP
+          : ArchiveImporter.Kind.BACKUP;
+        activity.pendingArchiveIncludeArchived = includeArchived;
+        try {
+          activity.startActivityForResult(
+            activity.buildFilePickerIntent(false, ARCHIVE_MIME_TYPES),
+            ARCHIVE_IMPORT_REQUEST_CODE
+          );
+        } catch (ActivityNotFoundException e) {
+          activity.pendingArchiveKind = null;
+          importer.start(null, ArchiveImporter.Kind.KEEP, false);
+        }
+      });
+      return true;
+    }
+
+    /** Lets the importer read on once the page has stored a batch. */
+    @JavascriptInterface
+    public void ack(String session) {
+      importer.ack(session);
+    }
+
+    /** Deletes a spooled entry once the page has stored it. */
+    @JavascriptInterface
+    public void release(String id) {
+      staging.release(id);
+    }
+  }
+
+  private static class MetricsBridge {
+
+    private final Application app;
+
+    MetricsBridge(Application app) {
+      this.app = app;
+    }
+
+    /** The same JSON snapshot the debug DUMP_METRICS broadcast returns. */
+    @JavascriptInterface
+    public String snapshot() {
+      return app.metricsSnapshotJson();
+    }
+
+    /** Lets the page record its own milestones, e.g. {@code spaReady}. */
+    @JavascriptInterface
+    public void mark(String name) {
+      if (name != null && name.matches("[A-Za-z][A-Za-z0-9.]{0,63}")) {
+        app.getMetrics().mark("page." + name, SystemClock.elapsedRealtime());
+      }
+    }
+  }
+
+  private static class RouterBridge {
+
+    private final WeakReference<LocalWebViewActivity> activityRef;
+
+    RouterBridge(LocalWebViewActivity activity) {
       this.activityRef = new WeakReference<>(activity);
     }
 
+    /**
+     * Called by the SPA once it listens for {@code ciphernotes-route} events;
+     * from then on deep links are routed in place instead of reloading.
+     */
     @JavascriptInterface
-    public void saveBase64(String dataUrl, String filename) {
+    public void ready() {
       LocalWebViewActivity activity = activityRef.get();
       if (activity != null) {
-        activity.handleDownloadRequest(dataUrl, filename);
+        activity.runOnUiThread(() -> activity.routerReady = true);
       }
     }
   }
+
+  private static class StorageBridge {
+
+    private final DiskCacheManager diskCache;
+
+    StorageBridge(DiskCacheManager diskCache) {
+      this.diskCache = diskCache;
+    }
+
+    /** Usage of the native file caches, see {@link DiskCacheManager#usageJson}. */
+    @JavascriptInterface
+    public String usage() {
+      return diskCache.usageJson();
+    }
+  }
+
+  private static class ApiProxyBridge {
+
+    private final ApiProxy proxy;
+
+    ApiProxyBridge(ApiProxy proxy) {
+      this.proxy = proxy;
+    }
+
+    /** Per-endpoint request counts and latencies as a JSON object string. */
+    @JavascriptInterface
+    public String metrics() {
+      return proxy.metricsJson();
+    }
+  }
 }
@@ -0,0 +1,101 @@
+package com.ciphernotes.twa;
+
+import android.content.ComponentCallbacks2;
+import android.os.Debug;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import androidx.annotation.Nullable;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Passes {@link ComponentCallbacks2} trim levels on to everything that holds
+ * memory it can give back: the native caches, the spare WebView and the page.
+ *
+ * <p>In debuggable builds, logs the Java heap and the process PSS when a trim
+ * level arrives and again once listeners, the page and the collector have had
+ * a moment to release. Reading PSS walks the process's memory maps and takes
+ * tens of milliseconds, too long for the main thread of a release build.
+ * Main thread only.
+ */
+final class MemoryPressure {
+
+  interface Listener {
+    void onTrimMemory(int level);
+  }
+
+  private static final String TAG = "MemoryPressure";
+  // Page caches are dropped asynchronously; give them and a GC time to happen.
+  private static final long SETTLE_DELAY_MS = 2_000;
+
+  private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+  private final Handler handler = new Handler(Looper.getMainLooper());
+  private final boolean logUsage;
+
+  MemoryPressure(boolean logUsage) {
+    this.logUsage = logUsage;
+  }
+
+  void addListener(Listener listener) {
+    listeners.add(listener);
+  }
+
+  void removeListener(Listener listener) {
+    listeners.remove(listener);
+  }
+
+  void dispatch(int level) {
+    long heapKb = logUsage ? heapUsedKb() : 0;
+    long pssKb = logUsage ? Debug.getPss() : 0;
+    for (Listener listener : listeners) {
+      listener.onTrimMemory(level);
+    }
+    if (!logUsage) {
+      return;
+    }
+    handler.postDelayed(
+      () ->
+        Log.i(
+          TAG,
+          "Trim level " +
+          level +
+          ": heap " +
+          heapKb +
+          " -> " +
+          heapUsedKb() +
+          " KiB, PSS " +
+          pssKb +
+          " -> " +
+          Debug.getPss() +
+          " KiB"
+        ),
+      SETTLE_DELAY_MS
+    );
+  }
+
+  /**
+   * How the page should react to {@code level}: {@code "moderate"} to drop
+   * what is cheap to rebuild, {@code "critical"} to drop everything it can,
+   * or null if the level is not memory pressure (the UI was merely hidden).
+   */
+  @Nullable
+  static String severity(int level) {
+    if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
+      return "critical";
+    } else if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND) {
+      return "moderate";
+    } else if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) {
+      return null;
+    } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+      return "critical";
+    } else {
+      return "moderate";
+    }
+  }
+
+  private static long heapUsedKb() {
+    Runtime runtime = Runtime.getRuntime();
+    return (runtime.totalMemory() - runtime.freeMemory()) / 1024;
+  }
+}
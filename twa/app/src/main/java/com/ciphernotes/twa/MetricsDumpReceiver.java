@@ -0,0 +1,41 @@
+package com.ciphernotes.twa;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.ApplicationInfo;
+import android.util.Log;
+import androidx.core.content.ContextCompat;
+import com.ciphernotes.twa.core.Metrics;
+
+/**
+ * Debuggable builds only: dumps the metrics snapshot on
+ * {@code adb shell am broadcast -a com.ciphernotes.twa.DUMP_METRICS}. The JSON
+ * is logged under {@value #TAG} and returned as the broadcast's result data,
+ * which {@code am} prints.
+ */
+final class MetricsDumpReceiver extends BroadcastReceiver {
+
+  static final String ACTION = "com.ciphernotes.twa.DUMP_METRICS";
+  private static final String TAG = "Metrics";
+
+  static void registerIfDebuggable(Application app) {
+    if ((app.getApplicationInfo().flags & ApplicationInfo.FLAG_DEBUGGABLE) == 0) {
+      return;
+    }
+    ContextCompat.registerReceiver(
+      app,
+      new MetricsDumpReceiver(),
+      new IntentFilter(ACTION),
+      ContextCompat.RECEIVER_EXPORTED
+    );
+  }
+
+  @Override
+  public void onReceive(Context context, Intent intent) {
+    String snapshot = Application.from(context).metricsSnapshotJson();
+    Log.i(TAG, snapshot);
+    setResultData(snapshot);
+  }
+}
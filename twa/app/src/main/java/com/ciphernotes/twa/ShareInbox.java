@@ -0,0 +1,375 @@
+package com.ciphernotes.twa;
+
+import android.content.ClipData;
+import android.content.ContentResolver;
+import android.content.Intent;
+import android.database.Cursor;
+import android.net.Uri;
+import android.provider.OpenableColumns;
+import android.util.Log;
+import androidx.annotation.Nullable;
+import com.ciphernotes.twa.core.Metrics;
+import com.ciphernotes.twa.core.TransferManager;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URLConnection;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Durable inbox for what other apps share into Cipher Notes, so a share never
+ * has to boot the WebView: {@link ShareReceiverActivity} hands the intent to
+ * {@link #accept} and is gone as soon as the streams are copied, and the page
+ * drains the inbox in batches whenever it runs.
+ *
+ * <p>Shared streams are copied into the inbox directory as {@code <id>} while
+ * the sender's URI grant lasts. Every {@link #ENTRY_ITEMS} of them, and for
+ * the shared text, an entry {@code <entry>.json} with
+ * {@code {id, receivedAt, subject, text, failed, items:[{id, name, mime,
+ * size}]}} is written last and atomically, so the page only ever sees complete
+ * entries. Entry ids sort by arrival. Files no entry refers to are left over
+ * from an interrupted copy and are deleted at start-up. Unlike the import
+ * staging area this is not a cache: nothing is trimmed until the page
+ * {@linkplain #remove removes} it.
+ */
+final class ShareInbox {
+
+  // One page transaction per entry, like a batch of the native file import.
+  static final int ENTRY_ITEMS = ImportPreprocessor.BATCH_SIZE;
+  private static final String TAG = "ShareInbox";
+  private static final String ENTRY_SUFFIX = ".json";
+  private static final String PARTIAL_SUFFIX = ".part";
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  interface Listener {
+    /** Called on the inbox thread after new entries were stored. */
+    void onShared(int entries);
+  }
+
+  interface Callback {
+    /** Called on the inbox thread once the share is stored; no entries if nothing could be. */
+    void onStored(int entries, int failed);
+  }
+
+  private final ContentResolver resolver;
+  private final File dir;
+  private final Metrics metrics;
+  // One share at a time, so entry ids keep the order shares arrived in.
+  private final ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> {
+    Thread thread = new Thread(runnable, "ShareInbox");
+    thread.setPriority(Thread.NORM_PRIORITY - 1);
+    return thread;
+  });
+  @Nullable
+  private volatile Listener listener;
+
+  ShareInbox(ContentResolver resolver, File dir, Metrics metrics) {
+    this.resolver = resolver;
+    this.dir = dir;
+    this.metrics = metrics;
+    executor.execute(this::deleteOrphans);
+  }
+
+  void setListener(@Nullable Listener listener) {
+    this.listener = listener;
+  }
+
+  /**
+   * Copies the text and streams {@code intent} shares into the inbox, off the
+   * calling thread, and calls {@code done} when they are stored. The sender's
+   * URI grant must outlive the copy, so the receiving activity waits for it.
+   */
+  void accept(Intent intent, Callback done) {
+    String subject = stringExtra(intent, Intent.EXTRA_SUBJECT);
+    String text = stringExtra(intent, Intent.EXTRA_TEXT);
+    List<Uri> uris = streams(intent);
+    String type = intent.getType();
+    executor.execute(() -> {
+      long start = System.nanoTime();
+      int stored = 0;
+      int failed = 0;
+      int entryFailed = 0;
+      int entries = 0;
+      JSONArray items = new JSONArray();
+      boolean textPending = subject != null || text != null;
+      for (int i = 0; i < uris.size(); i++) {
+        JSONObject item = copy(uris.get(i), uris.size() == 1 ? type : null);
+        if (item != null) {
+          items.put(item);
+          stored++;
+        } else {
+          failed++;
+          entryFailed++;
+        }
+        boolean last = i == uris.size() - 1;
+        if (items.length() == ENTRY_ITEMS || (last && (items.length() > 0 || textPending))) {
+          if (
+            writeEntry(textPending ? subject : null, textPending ? text : null, items, entryFailed)
+          ) {
+            entries++;
+          }
+          textPending = false;
+          items = new JSONArray();
+          entryFailed = 0;
+        }
+      }
+      if (textPending && writeEntry(subject, text, items, entryFailed)) {
+        entries++;
+      }
+      metrics.record("share.accept", System.nanoTime() - start);
+      Log.i(TAG, "Stored " + stored + " shared items in " + entries + " entries, " + failed + " failed");
+      Listener current = listener;
+      if (entries > 0 && current != null) {
+        current.onShared(entries);
+      }
+      done.onStored(entries, failed);
+    });
+  }
+
+  /** Up to {@code max} entries, oldest first, as a JSON array. Any thread. */
+  String listJson(int max) {
+    JSONArray entries = new JSONArray();
+    for (String name : entryNames()) {
+      if (entries.length() == max) {
+        break;
+      }
+      try {
+        entries.put(new JSONObject(read(new File(dir, name))));
+      } catch (IOException | JSONException e) {
+        // Removed meanwhile, or unreadable; its items go with the next clean-up.
+        Log.w(TAG, "Unable to read " + name, e);
+        new File(dir, name).delete();
+      }
+    }
+    return entries.toString();
+  }
+
+  int count() {
+    return entryNames().size();
+  }
+
+  /** The stored item {@code id}, or null if there is none. */
+  @Nullable
+  File file(String id) {
+    if (!TransferManager.isValidId(id)) {
+      return null;
+    }
+    File file = new File(dir, id);
+    return file.isFile() ? file : null;
+  }
+
+  /** Deletes an entry and its items once the page has stored them. */
+  void remove(String entryId) {
+    if (!TransferManager.isValidId(entryId)) {
+      return;
+    }
+    File entry = new File(dir, entryId + ENTRY_SUFFIX);
+    try {
+      JSONArray items = new JSONObject(read(entry)).getJSONArray("items");
+      for (int i = 0; i < items.length(); i++) {
+        String id = items.getJSONObject(i).getString("id");
+        if (TransferManager.isValidId(id)) {
+          new File(dir, id).delete();
+        }
+      }
+    } catch (IOException | JSONException e) {
+      Log.w(TAG, "Unable to read " + entry, e);
+    }
+    entry.delete();
+  }
+
+  @Nullable
+  private JSONObject copy(Uri uri, @Nullable String sharedType) {
+    // A file: URI could point into this app's own private storage.
+    if (!ContentResolver.SCHEME_CONTENT.equals(uri.getScheme())) {
+      Log.w(TAG, "Ignoring shared " + uri);
+      return null;
+    }
+    String id = UUID.randomUUID().toString();
+    File partial = new File(dir, id + PARTIAL_SUFFIX);
+    try {
+      if (!dir.isDirectory() && !dir.mkdirs()) {
+        throw new IOException("Unable to create " + dir);
+      }
+      String name = null;
+      String[] projection = { OpenableColumns.DISPLAY_NAME };
+      try (Cursor cursor = resolver.query(uri, projection, null, null, null)) {
+        if (cursor != null && cursor.moveToFirst() && !cursor.isNull(0)) {
+          name = cursor.getString(0);
+        }
+      }
+      if (name == null) {
+        name = uri.getLastPathSegment() != null ? uri.getLastPathSegment() : id;
+      }
+      String mime = resolver.getType(uri);
+      if (mime == null && sharedType != null && !sharedType.contains("*")) {
+        mime = sharedType;
+      }
+      if (mime == null) {
+        mime = URLConnection.guessContentTypeFromName(name);
+      }
+      if (mime == null) {
+        mime = "application/octet-stream";
+      }
+      long size = 0;
+      try (
+        InputStream in = resolver.openInputStream(uri);
+        FileOutputStream out = new FileOutputStream(partial)
+      ) {
+        if (in == null) {
+          throw new IOException("No content for " + uri);
+        }
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+          out.write(buffer, 0, read);
+          size += read;
+        }
+        out.getFD().sync();
+      }
+      if (!partial.renameTo(new File(dir, id))) {
+        throw new IOException("Unable to store " + id);
+      }
+      return new JSONObject()
+        .put("id", id)
+        .put("name", name)
+        .put("mime", mime)
+        .put("size", size);
+    } catch (IOException | SecurityException | JSONException e) {
+      Log.w(TAG, "Unable to store shared " + uri, e);
+      return null;
+    } finally {
+      partial.delete();
+    }
+  }
+
+  private boolean writeEntry(
+    @Nullable String subject,
+    @Nullable String text,
+    JSONArray items,
+    int failed
+  ) {
+    long now = System.currentTimeMillis();
+    String id = String.format(Locale.ROOT, "%013d-%s", now, UUID.randomUUID());
+    File partial = new File(dir, id + ENTRY_SUFFIX + PARTIAL_SUFFIX);
+    try {
+      if (!dir.isDirectory() && !dir.mkdirs()) {
+        throw new IOException("Unable to create " + dir);
+      }
+      JSONObject entry = new JSONObject()
+        .put("id", id)
+        .put("receivedAt", now)
+        .put("subject", subject != null ? subject : JSONObject.NULL)
+        .put("text", text != null ? text : JSONObject.NULL)
+        .put("failed", failed)
+        .put("items", items);
+      try (FileOutputStream out = new FileOutputStream(partial)) {
+        out.write(entry.toString().getBytes(StandardCharsets.UTF_8));
+        out.getFD().sync();
+      }
+      if (!partial.renameTo(new File(dir, id + ENTRY_SUFFIX))) {
+        throw new IOException("Unable to store " + id);
+      }
+      return true;
+    } catch (IOException | JSONException e) {
+      // The items stay unreferenced and go with the next clean-up.
+      Log.w(TAG, "Unable to store share entry", e);
+      return false;
+    } finally {
+      partial.delete();
+    }
+  }
+
+  /** Deletes partial files and items no entry refers to. Runs on the inbox thread. */
+  private void deleteOrphans() {
+    File[] files = dir.listFiles();
+    if (files == null) {
+      return;
+    }
+    Set<String> referenced = new HashSet<>();
+    for (String name : entryNames()) {
+      try {
+        JSONArray items = new JSONObject(read(new File(dir, name))).getJSONArray("items");
+        for (int i = 0; i < items.length(); i++) {
+          referenced.add(items.getJSONObject(i).getString("id"));
+        }
+      } catch (IOException | JSONException e) {
+        Log.w(TAG, "Unable to read " + name, e);
+      }
+    }
+    for (File file : files) {
+      String name = file.getName();
+      if (!name.endsWith(ENTRY_SUFFIX) && !referenced.contains(name)) {
+        file.delete();
+      }
+    }
+  }
+
+  private List<String> entryNames() {
+    String[] names = dir.list((parent, name) -> name.endsWith(ENTRY_SUFFIX));
+    if (names == null) {
+      return new ArrayList<>();
+    }
+    Arrays.sort(names);
+    return Arrays.asList(names);
+  }
+
+  @SuppressWarnings("deprecation")
+  private static List<Uri> streams(Intent intent) {
+    List<Uri> uris = new ArrayList<>();
+    if (Intent.ACTION_SEND_MULTIPLE.equals(intent.getAction())) {
+      ArrayList<Uri> extra = intent.getParcelableArrayListExtra(Intent.EXTRA_STREAM);
+      if (extra != null) {
+        uris.addAll(extra);
+      }
+    } else {
+      Uri extra = intent.getParcelableExtra(Intent.EXTRA_STREAM);
+      if (extra != null) {
+        uris.add(extra);
+      }
+    }
+    ClipData clip = intent.getClipData();
+    if (uris.isEmpty() && clip != null) {
+      // Some senders only fill the clip, which carries the grant either way.
+      for (int i = 0; i < clip.getItemCount(); i++) {
+        Uri uri = clip.getItemAt(i).getUri();
+        if (uri != null) {
+          uris.add(uri);
+        }
+      }
+    }
+    return uris;
+  }
+
+  @Nullable
+  private static String stringExtra(Intent intent, String name) {
+    CharSequence value = intent.getCharSequenceExtra(name);
+    return value != null && value.length() > 0 ? value.toString() : null;
+  }
+
+  private static String read(File file) throws IOException {
+    try (InputStream in = new FileInputStream(file)) {
+      byte[] bytes = new byte[(int) file.length()];
+      int offset = 0;
+      int read;
+      while (offset < bytes.length && (read = in.read(bytes, offset, bytes.length - offset)) != -1) {
+        offset += read;
+      }
+      return new String(bytes, 0, offset, StandardCharsets.UTF_8);
+    }
+  }
+}
@@ -0,0 +1,49 @@
+package com.ciphernotes.twa;
+
+import android.app.Activity;
+import android.content.Intent;
+import android.os.Bundle;
+import android.widget.Toast;
+
+/**
+ * Target of {@code ACTION_SEND} and {@code ACTION_SEND_MULTIPLE}. Shows
+ * nothing and loads no page: it puts the share into the {@link ShareInbox}
+ * and finishes once the streams are copied, which it has to wait for because
+ * the sender's URI grant ends with this activity. A running page is told to
+ * drain the inbox; otherwise it does so on its next start.
+ */
+public class ShareReceiverActivity extends Activity {
+
+  @Override
+  protected void onCreate(Bundle savedInstanceState) {
+    super.onCreate(savedInstanceState);
+    Intent intent = getIntent();
+    String action = intent.getAction();
+    if (
+      savedInstanceState != null ||
+      !(Intent.ACTION_SEND.equals(action) || Intent.ACTION_SEND_MULTIPLE.equals(action))
+    ) {
+      // Restored after the process died; what was copied by then is kept.
+      finish();
+      return;
+    }
+    Application.from(this)
+      .getShareInbox()
+      .accept(
+        intent,
+        (entries, failed) ->
+          runOnUiThread(() -> {
+            String message;
+            if (entries == 0) {
+              message = "Nothing could be saved to " + getString(R.string.appName);
+            } else if (failed > 0) {
+              message = "Saved to " + getString(R.string.appName) + ", " + failed + " failed";
+            } else {
+              message = "Saved to " + getString(R.string.appName);
+            }
+            Toast.makeText(getApplicationContext(), message, Toast.LENGTH_SHORT).show();
+            finish();
+          })
+      );
+  }
+}
@@ -0,0 +1,47 @@
+package com.ciphernotes.twa;
+
+import android.app.job.JobParameters;
+import android.app.job.JobService;
+import android.util.Log;
+import java.io.IOException;
+
+/** Runs {@link BackgroundSync#pull} off the main thread when JobScheduler says so. */
+public class SyncJobService extends JobService {
+
+  private static final String TAG = "SyncJobService";
+
+  private volatile Thread worker;
+
+  @Override
+  public boolean onStartJob(JobParameters params) {
+    BackgroundSync sync = Application.from(this).getBackgroundSync();
+    if (sync == null) {
+      return false;
+    }
+    worker = new Thread(
+      () -> {
+        boolean retry = false;
+        try {
+          sync.pull();
+        } catch (IOException e) {
+          Log.w(TAG, "Background sync failed", e);
+          retry = !Thread.currentThread().isInterrupted();
+        }
+        jobFinished(params, retry);
+      },
+      "BackgroundSync"
+    );
+    worker.start();
+    return true;
+  }
+
+  @Override
+  public boolean onStopJob(JobParameters params) {
+    Thread current = worker;
+    if (current != null) {
+      current.interrupt();
+    }
+    // Try again when the constraints are met again.
+    return true;
+  }
+}
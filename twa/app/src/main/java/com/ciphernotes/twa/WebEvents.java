@@ -0,0 +1,33 @@
+package com.ciphernotes.twa;
+
+import android.webkit.WebView;
+import org.json.JSONObject;
+
+/**
+ * Delivers native events to the page as {@code CustomEvent}s on {@code window},
+ * with the JSON payload in {@code event.detail}. Safe to call from any thread.
+ */
+final class WebEvents {
+
+  static final String EXPORT = "ciphernotes-export";
+  static final String TRANSFER = "ciphernotes-transfer";
+  static final String IMPORT = "ciphernotes-import";
+  static final String ARCHIVE_IMPORT = "ciphernotes-archive-import";
+  static final String ROUTE = "ciphernotes-route";
+  static final String MEMORY_PRESSURE = "ciphernotes-memory-pressure";
+  static final String CHANGES = "ciphernotes-changes";
+  static final String CONNECTION = "ciphernotes-connection";
+  static final String SHARE = "ciphernotes-share";
+
+  private WebEvents() {}
+
+  static void dispatch(WebView webView, String type, JSONObject detail) {
+    String script =
+      "window.dispatchEvent(new CustomEvent(" +
+      JSONObject.quote(type) +
+      ",{detail:" +
+      detail +
+      "}))";
+    webView.post(() -> webView.evaluateJavascript(script, null));
+  }
+}
@@ -0,0 +1,201 @@
+package com.ciphernotes.twa;
+
+import android.annotation.SuppressLint;
+import android.app.Activity;
+import android.content.ComponentCallbacks2;
+import android.content.MutableContextWrapper;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.os.Trace;
+import android.util.Log;
+import android.webkit.WebSettings;
+import android.webkit.WebView;
+import androidx.annotation.Nullable;
+import com.ciphernotes.twa.core.AssetCache;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Moves WebView start-up work off the activity's critical path.
+ *
+ * <p>{@link #start}, called by the activity before anything else, loads the
+ * WebView provider, the asset index and the assets referenced by
+ * {@code index.html} into the {@link AssetCache} on a background thread while
+ * the activity sets up its window. Processes started for a job, a share or
+ * boot never show a page and do not pay for it. {@link #scheduleWebView}
+ * builds a configured WebView on a main-thread idle handler for the next
+ * activity to {@link #take}, so coming back after the page was closed finds
+ * one ready.
+ */
+final class WebViewPrewarmer {
+
+  static final String USER_AGENT_SUFFIX = " CiphernotesTwa/3";
+  private static final String TAG = "Startup";
+  private static final Pattern ASSET_REFERENCE = Pattern.compile(
+    "(?:src|href)=\"/?([^\"?#:]+)\""
+  );
+
+  private final Application app;
+  private final boolean enabled;
+  // Main thread only.
+  @Nullable
+  private WebView spare;
+  private boolean scheduled;
+  private boolean started;
+
+  WebViewPrewarmer(Application app, boolean enabled) {
+    this.app = app;
+    this.enabled = enabled;
+  }
+
+  /** Settings that do not depend on the activity; safe to apply more than once. */
+  @SuppressLint("SetJavaScriptEnabled")
+  static void applyBaseSettings(WebView view) {
+    WebSettings settings = view.getSettings();
+    settings.setJavaScriptEnabled(true);
+    settings.setDomStorageEnabled(true);
+    settings.setDatabaseEnabled(true);
+    settings.setAllowFileAccess(false);
+    settings.setAllowContentAccess(false);
+    settings.setLoadWithOverviewMode(true);
+    settings.setUseWideViewPort(true);
+    settings.setSupportMultipleWindows(false);
+    settings.setMediaPlaybackRequiresUserGesture(false);
+    String userAgent = settings.getUserAgentString();
+    if (!userAgent.endsWith(USER_AGENT_SUFFIX)) {
+      settings.setUserAgentString(userAgent + USER_AGENT_SUFFIX);
+    }
+  }
+
+  /** Warms the provider and hot assets once per process. Main thread only. */
+  void start() {
+    if (!enabled || started) {
+      return;
+    }
+    started = true;
+    Thread thread = new Thread(this::warmInBackground, "webview-prewarm");
+    thread.setPriority(Thread.NORM_PRIORITY - 1);
+    thread.start();
+  }
+
+  /** Builds a spare WebView once the main thread is idle. Main thread only. */
+  void scheduleWebView() {
+    if (!enabled || scheduled || spare != null) {
+      return;
+    }
+    scheduled = true;
+    Looper.myQueue().addIdleHandler(() -> {
+      scheduled = false;
+      if (spare == null) {
+        long start = SystemClock.elapsedRealtime();
+        Trace.beginSection("cn.prewarmWebView");
+        try {
+          spare = new WebView(new MutableContextWrapper(app));
+          applyBaseSettings(spare);
+        } finally {
+          Trace.endSection();
+        }
+        Log.i(TAG, "Prewarmed WebView in " + (SystemClock.elapsedRealtime() - start) + " ms");
+      }
+      return false;
+    });
+  }
+
+  /** Hands the spare WebView to {@code activity}, or returns null if there is none yet. */
+  @Nullable
+  WebView take(Activity activity) {
+    WebView view = spare;
+    if (view == null) {
+      return null;
+    }
+    spare = null;
+    ((MutableContextWrapper) view.getContext()).setBaseContext(activity);
+    return view;
+  }
+
+  void onTrimMemory(int level) {
+    if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND && spare != null) {
+      spare.destroy();
+      spare = null;
+    }
+  }
+
+  private void warmInBackground() {
+    Trace.beginSection("cn.prewarm");
+    try {
+      warmProviderAndAssets();
+    } finally {
+      Trace.endSection();
+    }
+    app.getMetrics().mark("prewarmDone", SystemClock.elapsedRealtime());
+  }
+
+  private void warmProviderAndAssets() {
+    long start = SystemClock.elapsedRealtime();
+    // Loads and links the provider's classes and native library without
+    // starting Chromium, which is only allowed on the main thread.
+    WebSettings.getDefaultUserAgent(app);
+    long providerMs = SystemClock.elapsedRealtime() - start;
+    AssetIndex index = app.getAssetIndex();
+    int warmed = 0;
+    if (index != null) {
+      byte[] html = warmAsset(index, "index.html");
+      if (html != null) {
+        Matcher matcher = ASSET_REFERENCE.matcher(new String(html, StandardCharsets.UTF_8));
+        while (matcher.find()) {
+          if (warmAsset(index, matcher.group(1)) != null) {
+            warmed++;
+          }
+        }
+      }
+    }
+    Log.i(
+      TAG,
+      "Background prewarm: provider " +
+      providerMs +
+      " ms, total " +
+      (SystemClock.elapsedRealtime() - start) +
+      " ms, " +
+      warmed +
+      " assets"
+    );
+  }
+
+  /** Reads an indexed asset through the cache; returns its content, or null if absent. */
+  @Nullable
+  private byte[] warmAsset(AssetIndex index, String path) {
+    AssetIndex.Entry entry = index.get(path);
+    if (entry == null) {
+      return null;
+    }
+    AssetCache cache = app.getAssetCache();
+    AssetCache.Entry cached = cache.get(path);
+    if (cached != null) {
+      return cached.bytes;
+    }
+    try (
+      InputStream in = cache.cacheThrough(
+        path,
+        entry.open(app.getAssets()),
+        entry.mimeType,
+        entry.encoding,
+        entry.headers
+      )
+    ) {
+      ByteArrayOutputStream out = new ByteArrayOutputStream((int) entry.size);
+      byte[] buffer = new byte[16 * 1024];
+      int read;
+      while ((read = in.read(buffer)) != -1) {
+        out.write(buffer, 0, read);
+      }
+      return out.toByteArray();
+    } catch (IOException e) {
+      Log.w(TAG, "Unable to prewarm " + path, e);
+      return null;
+    }
+  }
+}
@@ -0,0 +1,32 @@
+package com.ciphernotes.twa.benchmark;
+
+import com.ciphernotes.twa.core.AssetPaths;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Path normalization at the start of every bundled asset request. */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class AssetPathsBenchmark {
+
+  @Param({ "/", "/assets/index-4f1c2a.js", "/icons/" })
+  public String path;
+
+  @Benchmark
+  public String normalize() {
+    return AssetPaths.normalize(path);
+  }
+}
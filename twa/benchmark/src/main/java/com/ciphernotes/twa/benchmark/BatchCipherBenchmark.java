@@ -0,0 +1,109 @@
+package com.ciphernotes.twa.benchmark;
+
+import com.ciphernotes.twa.core.BatchCipher;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.GeneralSecurityException;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Decrypting a sync batch of notes: one {@code Cipher.doFinal} per item on a
+ * single thread, as the page's WebCrypto loop does, against one
+ * {@link BatchCipher} frame split across a fork-join pool with a worker per
+ * core, as CryptoBridge runs it. The batched numbers include encoding the
+ * response frame. Scores are batches per second.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = { "-Xmx1g" })
+@State(Scope.Benchmark)
+public class BatchCipherBenchmark {
+
+  /** Notes per sync batch. */
+  @Param({ "16", "256", "2048" })
+  public int count;
+
+  /** Ciphertext bytes per note: a short note and a long one. */
+  @Param({ "512", "16384" })
+  public int size;
+
+  private SecretKeySpec key;
+  private byte[][] ivs;
+  private byte[][] ciphertexts;
+  private byte[] frame;
+  private Cipher cipher;
+  private ForkJoinPool pool;
+  private BatchCipher batchCipher;
+
+  @Setup(Level.Trial)
+  public void setUp() throws GeneralSecurityException {
+    Random random = new Random(42);
+    byte[] keyBytes = new byte[BatchCipher.KEY_BYTES];
+    random.nextBytes(keyBytes);
+    key = new SecretKeySpec(keyBytes, "AES");
+    cipher = Cipher.getInstance("AES/GCM/NoPadding");
+    ivs = new byte[count][BatchCipher.IV_BYTES];
+    ciphertexts = new byte[count][];
+    int frameSize = 4 + 1 + BatchCipher.KEY_BYTES + 4;
+    for (int i = 0; i < count; i++) {
+      byte[] plain = new byte[size - BatchCipher.TAG_BITS / 8];
+      random.nextBytes(plain);
+      random.nextBytes(ivs[i]);
+      cipher.init(
+        Cipher.ENCRYPT_MODE,
+        key,
+        new GCMParameterSpec(BatchCipher.TAG_BITS, ivs[i])
+      );
+      ciphertexts[i] = cipher.doFinal(plain);
+      frameSize += BatchCipher.IV_BYTES + 4 + ciphertexts[i].length;
+    }
+    ByteBuffer out = ByteBuffer.allocate(frameSize).order(ByteOrder.LITTLE_ENDIAN);
+    out.putInt(1).put((byte) BatchCipher.OP_DECRYPT).put(keyBytes).putInt(count);
+    for (int i = 0; i < count; i++) {
+      out.put(ivs[i]).putInt(ciphertexts[i].length).put(ciphertexts[i]);
+    }
+    frame = out.array();
+    // Same pool shape as CryptoBridge.
+    pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+    batchCipher = new BatchCipher(pool);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    pool.shutdownNow();
+  }
+
+  @Benchmark
+  public void perItem(Blackhole blackhole) throws GeneralSecurityException {
+    for (int i = 0; i < count; i++) {
+      cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(BatchCipher.TAG_BITS, ivs[i]));
+      blackhole.consume(cipher.doFinal(ciphertexts[i]));
+    }
+  }
+
+  @Benchmark
+  public byte[] batched() {
+    return batchCipher.process(frame);
+  }
+}
@@ -0,0 +1,78 @@
+package com.ciphernotes.twa.benchmark;
+
+import com.ciphernotes.twa.core.DataUrl;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Base64;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Parsing and decoding the data URLs of the base64 download fallback. The
+ * sink discards the bytes, so the numbers are the decoder's alone.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = { "-Xmx1g" })
+@State(Scope.Benchmark)
+public class DataUrlBenchmark {
+
+  // Same buffer size as LocalWebViewActivity.
+  private static final int BUFFER_BYTES = 192 * 1024;
+
+  /** Decoded size: a small note export and a large attachment. */
+  @Param({ "65536", "16777216" })
+  public int size;
+
+  private String url;
+
+  @Setup
+  public void setUp() {
+    byte[] data = new byte[size];
+    new Random(42).nextBytes(data);
+    url = "data:application/zip;base64," + Base64.getEncoder().encodeToString(data);
+  }
+
+  @Benchmark
+  public String parse() {
+    return DataUrl.parse(url).mimeType;
+  }
+
+  @Benchmark
+  public void decode(Blackhole blackhole) throws IOException {
+    DataUrl.parse(url).decodeTo(new Sink(blackhole), BUFFER_BYTES, blackhole::consume);
+  }
+
+  private static final class Sink extends OutputStream {
+
+    private final Blackhole blackhole;
+
+    Sink(Blackhole blackhole) {
+      this.blackhole = blackhole;
+    }
+
+    @Override
+    public void write(int b) {
+      blackhole.consume(b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+      blackhole.consume(b);
+    }
+  }
+}
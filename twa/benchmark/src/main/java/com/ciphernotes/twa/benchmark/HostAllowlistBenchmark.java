@@ -0,0 +1,48 @@
+package com.ciphernotes.twa.benchmark;
+
+import com.ciphernotes.twa.core.HostAllowlist;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** The allowlist check every page and service worker request goes through. */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class HostAllowlistBenchmark {
+
+  // Same rules as webViewAllowlist in app/build.gradle.
+  private final HostAllowlist allowlist = HostAllowlist.compile(
+    "blob: data: about: " +
+    "http|https://ciphernotes.com " +
+    "http|https://localhost http|https://127.0.0.1 http|https://::1 " +
+    "https://*.wasabisys.com/ciphernotes"
+  );
+
+  @Benchmark
+  public boolean api() {
+    return allowlist.allows("https", "ciphernotes.com", "/api/sync");
+  }
+
+  /** The last rule, with a subdomain and a path prefix. */
+  @Benchmark
+  public boolean bucket() {
+    return allowlist.allows("https", "s3.eu-central-2.wasabisys.com", "/ciphernotes/f/0a1b");
+  }
+
+  /** Goes through every rule. */
+  @Benchmark
+  public boolean blocked() {
+    return allowlist.allows("https", "tracker.example.net", "/pixel.gif");
+  }
+}
@@ -0,0 +1,427 @@
+package com.ciphernotes.twa.benchmark;
+
+import com.ciphernotes.twa.core.ApiProxy;
+import com.ciphernotes.twa.core.AssetCache;
+import com.ciphernotes.twa.core.AssetResolver;
+import com.ciphernotes.twa.core.HostAllowlist;
+import com.ciphernotes.twa.core.Metrics;
+import com.ciphernotes.twa.core.MimeTypes;
+import com.ciphernotes.twa.core.RequestInterceptor;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Replays a recorded launch request trace through the {@link RequestInterceptor}
+ * chain that {@code LocalWebViewActivity} uses, from several threads at once,
+ * as the page's {@code WebViewClient} and the {@code ServiceWorkerClient} do on
+ * the device, sharing one {@link AssetResolver}, {@link AssetCache},
+ * {@link HostAllowlist}, {@link ApiProxy} and {@link Metrics}.
+ *
+ * <p>Every launch starts with an empty asset cache. API requests go through the
+ * proxy to a local stand-in backend; requests that would reach the network
+ * stop at that decision. After the warm-up launches it reports p50/p99 latency
+ * per request, throughput and bytes allocated per request. If the
+ * {@code replay.thresholds} system property names a thresholds file, it exits
+ * with status 1 when any figure that file limits is worse.
+ *
+ * <pre>
+ *   InterceptReplay [launches] [warmupLaunches] [threadsPerClient]
+ * </pre>
+ */
+public final class InterceptReplay {
+
+  private static final String LOCAL_HOST = "ciphernotes.com";
+  private static final String PAGE_URL = "https://" + LOCAL_HOST + "/";
+  private static final String API_PATH_PREFIX = "/api/";
+  private static final Object BLOCKED = new Object();
+  private static final String TRACE = "/launch-trace.tsv";
+  private static final long CACHE_BUDGET_BYTES = 16L * 1024 * 1024;
+  // Same rules as webViewAllowlist in app/build.gradle.
+  private static final String ALLOWLIST =
+    "blob: data: about: " +
+    "http|https://ciphernotes.com " +
+    "http|https://localhost http|https://127.0.0.1 http|https://::1 " +
+    "https://*.wasabisys.com/ciphernotes";
+
+  private static final class Request {
+
+    final String scheme;
+    final String host;
+    final String path;
+    final String pathAndQuery;
+
+    Request(URI uri) {
+      this.scheme = uri.getScheme();
+      this.host = uri.getHost();
+      this.path = uri.getRawPath();
+      this.pathAndQuery = uri.getRawQuery() != null ? path + "?" + uri.getRawQuery() : path;
+    }
+  }
+
+  /** The bundled assets named in the trace, with bodies of the recorded size. */
+  private static final class TraceSource implements AssetResolver.Source {
+
+    private final Map<String, AssetResolver.Meta> metas = new HashMap<>();
+    private final Map<String, byte[]> bodies = new HashMap<>();
+
+    void add(String path, int size) {
+      if (metas.containsKey(path)) {
+        return;
+      }
+      String mimeType = MimeTypes.guess(path);
+      Map<String, String> headers = new HashMap<>(4);
+      headers.put("Cache-Control", path.contains("/assets/") ? "immutable" : "no-cache");
+      headers.put("ETag", "\"" + Integer.toHexString(path.hashCode()) + "\"");
+      metas.put(
+        path,
+        new AssetResolver.Meta(
+          mimeType,
+          MimeTypes.isUtf8Text(mimeType) ? "utf-8" : null,
+          Collections.unmodifiableMap(headers)
+        )
+      );
+      byte[] body = new byte[size];
+      Arrays.fill(body, (byte) 'x');
+      bodies.put(path, body);
+    }
+
+    @Override
+    public AssetResolver.Meta find(String path) {
+      return metas.get(path);
+    }
+
+    @Override
+    public InputStream open(String path, AssetResolver.Meta meta) {
+      return new ByteArrayInputStream(bodies.get(path));
+    }
+  }
+
+  private final TraceSource source;
+  private final HostAllowlist allowlist = HostAllowlist.compile(ALLOWLIST);
+  private final Request[][] clients;
+  private final AtomicLong blocked = new AtomicLong();
+  // The WebView reads bodies off its own threads; the replay drains them here.
+  private final ThreadLocal<byte[]> readBuffers = ThreadLocal.withInitial(() -> new byte[16 * 1024]);
+  private ApiProxy apiProxy;
+
+  private InterceptReplay(TraceSource source, Request[][] clients) {
+    this.source = source;
+    this.clients = clients;
+  }
+
+  public static void main(String[] args) throws Exception {
+    int launches = args.length > 0 ? Integer.parseInt(args[0]) : 300;
+    int warmup = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+    int threadsPerClient = args.length > 2 ? Integer.parseInt(args[2]) : 2;
+    // Without a thresholds file nothing is limited: the run only reports.
+    Properties thresholds = new Properties();
+    String thresholdsFile = System.getProperty("replay.thresholds");
+    if (thresholdsFile != null) {
+      try (InputStream in = new FileInputStream(thresholdsFile)) {
+        thresholds.load(in);
+      }
+    }
+
+    InterceptReplay replay = load();
+    HttpServer backend = startBackend();
+    replay.apiProxy = new ApiProxy(
+      API_PATH_PREFIX,
+      "http://127.0.0.1:" + backend.getAddress().getPort(),
+      new ApiProxy.CookieJar() {
+        @Override
+        public String get(String url) {
+          return "session=replay";
+        }
+
+        @Override
+        public void put(String url, String setCookie) {}
+      }
+    );
+    replay.run(warmup, threadsPerClient);
+    Result result = replay.run(launches, threadsPerClient);
+    backend.stop(0);
+    System.out.println(result);
+    List<String> failures = result.check(thresholds);
+    for (String failure : failures) {
+      System.err.println("Regression: " + failure);
+    }
+    System.exit(failures.isEmpty() ? 0 : 1);
+  }
+
+  private static InterceptReplay load() throws IOException {
+    List<Request> page = new ArrayList<>();
+    List<Request> serviceWorker = new ArrayList<>();
+    TraceSource source = new TraceSource();
+    try (
+      BufferedReader reader = new BufferedReader(
+        new InputStreamReader(
+          InterceptReplay.class.getResourceAsStream(TRACE),
+          StandardCharsets.UTF_8
+        )
+      )
+    ) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        if (line.isEmpty() || line.startsWith("#")) {
+          continue;
+        }
+        String[] columns = line.split("\t");
+        Request request = new Request(URI.create(columns[1]));
+        int size = Integer.parseInt(columns[2]);
+        if (size > 0) {
+          source.add(request.path.substring(1), size);
+        }
+        ("sw".equals(columns[0]) ? serviceWorker : page).add(request);
+      }
+    }
+    return new InterceptReplay(
+      source,
+      new Request[][] { page.toArray(new Request[0]), serviceWorker.toArray(new Request[0]) }
+    );
+  }
+
+  /** A stand-in for the backend that answers every API request with a small JSON body. */
+  private static HttpServer startBackend() throws IOException {
+    // Otherwise Nagle and delayed ACKs add 40 ms to every keep-alive response.
+    System.setProperty("sun.net.httpserver.nodelay", "true");
+    HttpServer server = HttpServer.create(
+      new InetSocketAddress(InetAddress.getLoopbackAddress(), 0),
+      0
+    );
+    byte[] body = "{\"success\":true,\"notes\":[]}".getBytes(StandardCharsets.UTF_8);
+    server.createContext(API_PATH_PREFIX, (HttpExchange exchange) -> {
+      exchange.getRequestBody().close();
+      exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+      exchange.sendResponseHeaders(200, body.length);
+      try (OutputStream out = exchange.getResponseBody()) {
+        out.write(body);
+      }
+    });
+    server.setExecutor(Executors.newCachedThreadPool(r -> {
+      Thread thread = new Thread(r, "InterceptReplay.backend");
+      thread.setDaemon(true);
+      return thread;
+    }));
+    server.start();
+    return server;
+  }
+
+  /** The activity's steps, minus building the WebResourceResponses. */
+  private RequestInterceptor<Request, Object> interceptor(AssetResolver resolver, Metrics metrics) {
+    return new RequestInterceptor<>(
+      allowlist,
+      metrics,
+      (scheme, host) -> blocked.incrementAndGet(),
+      new RequestInterceptor.Steps<Request, Object>() {
+        @Override
+        public Object local(Request request) {
+          if (!"https".equals(request.scheme) || !LOCAL_HOST.equals(request.host)) {
+            return null;
+          }
+          long start = System.nanoTime();
+          AssetResolver.Asset asset = resolver.resolve(request.path);
+          if (asset == null) {
+            return null;
+          }
+          metrics.record(
+            asset.fromMemory ? "openAsset.memory" : "openAsset.apk",
+            System.nanoTime() - start
+          );
+          byte[] readBuffer = readBuffers.get();
+          try {
+            while (asset.body.read(readBuffer) != -1) {
+              // Drain.
+            }
+          } catch (IOException e) {
+            throw new IllegalStateException(e);
+          }
+          return asset;
+        }
+
+        @Override
+        public Object blocked(Request request) {
+          return BLOCKED;
+        }
+
+        @Override
+        public Object proxy(Request request) {
+          if (!LOCAL_HOST.equals(request.host) || !apiProxy.shouldProxy("GET", request.path)) {
+            return null;
+          }
+          try {
+            return apiProxy.execute(
+              "GET",
+              PAGE_URL,
+              request.path,
+              request.pathAndQuery,
+              Collections.emptyMap()
+            );
+          } catch (IOException e) {
+            return null;
+          }
+        }
+      }
+    );
+  }
+
+  private Result run(int launches, int threadsPerClient) throws InterruptedException {
+    int threadCount = clients.length * threadsPerClient;
+    int requestsPerLaunch = 0;
+    for (Request[] client : clients) {
+      requestsPerLaunch += client.length * threadsPerClient;
+    }
+    long[] latencies = new long[requestsPerLaunch * launches];
+    long[] allocated = new long[threadCount];
+    long wallNanos = 0;
+    int next = 0;
+    for (int launch = 0; launch < launches; launch++) {
+      AssetResolver resolver = new AssetResolver(source, new AssetCache(CACHE_BUDGET_BYTES));
+      RequestInterceptor<Request, Object> interceptor = interceptor(resolver, new Metrics(0));
+      CountDownLatch ready = new CountDownLatch(threadCount);
+      CountDownLatch go = new CountDownLatch(1);
+      Thread[] threads = new Thread[threadCount];
+      Throwable[] errors = new Throwable[threadCount];
+      int offset = next;
+      for (int t = 0; t < threadCount; t++) {
+        Request[] trace = clients[t % clients.length];
+        int slot = t;
+        int first = offset;
+        offset += trace.length;
+        threads[t] = new Thread(() -> {
+          com.sun.management.ThreadMXBean threadBean =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+          long threadId = Thread.currentThread().getId();
+          ready.countDown();
+          try {
+            go.await();
+            long before = threadBean.getThreadAllocatedBytes(threadId);
+            for (int i = 0; i < trace.length; i++) {
+              long start = System.nanoTime();
+              Request request = trace[i];
+              interceptor.intercept(request, request.scheme, request.host, request.path);
+              latencies[first + i] = System.nanoTime() - start;
+            }
+            allocated[slot] += threadBean.getThreadAllocatedBytes(threadId) - before;
+          } catch (Throwable e) {
+            errors[slot] = e;
+          }
+        });
+        threads[t].start();
+      }
+      ready.await();
+      long start = System.nanoTime();
+      go.countDown();
+      for (Thread thread : threads) {
+        thread.join();
+      }
+      wallNanos += System.nanoTime() - start;
+      for (Throwable error : errors) {
+        if (error != null) {
+          throw new IllegalStateException("Replay failed", error);
+        }
+      }
+      next = offset;
+    }
+    long totalAllocated = 0;
+    for (long bytes : allocated) {
+      totalAllocated += bytes;
+    }
+    Arrays.sort(latencies);
+    return new Result(
+      latencies.length,
+      latencies[percentileIndex(latencies.length, 0.50)] / 1_000,
+      latencies[percentileIndex(latencies.length, 0.99)] / 1_000,
+      latencies.length * 1e9 / wallNanos,
+      totalAllocated / latencies.length
+    );
+  }
+
+  private static int percentileIndex(int count, double quantile) {
+    return Math.max(0, (int) Math.ceil(quantile * count) - 1);
+  }
+
+  private static final class Result {
+
+    final int requests;
+    final long p50Us;
+    final long p99Us;
+    final double requestsPerSecond;
+    final long allocatedBytesPerRequest;
+
+    Result(
+      int requests,
+      long p50Us,
+      long p99Us,
+      double requestsPerSecond,
+      long allocatedBytesPerRequest
+    ) {
+      this.requests = requests;
+      this.p50Us = p50Us;
+      this.p99Us = p99Us;
+      this.requestsPerSecond = requestsPerSecond;
+      this.allocatedBytesPerRequest = allocatedBytesPerRequest;
+    }
+
+    List<String> check(Properties thresholds) {
+      List<String> failures = new ArrayList<>();
+      checkMax(failures, thresholds, "p50Us.max", p50Us);
+      checkMax(failures, thresholds, "p99Us.max", p99Us);
+      checkMax(failures, thresholds, "allocatedBytesPerRequest.max", allocatedBytesPerRequest);
+      String min = thresholds.getProperty("requestsPerSecond.min");
+      if (min != null && requestsPerSecond < Double.parseDouble(min)) {
+        failures.add(
+          String.format(Locale.ROOT, "requestsPerSecond %.0f < %s", requestsPerSecond, min)
+        );
+      }
+      return failures;
+    }
+
+    private static void checkMax(
+      List<String> failures,
+      Properties thresholds,
+      String key,
+      long value
+    ) {
+      String max = thresholds.getProperty(key);
+      if (max != null && value > Long.parseLong(max)) {
+        failures.add(key.substring(0, key.length() - 4) + " " + value + " > " + max);
+      }
+    }
+
+    @Override
+    public String toString() {
+      return String.format(
+        Locale.ROOT,
+        "requests=%d p50=%dus p99=%dus throughput=%.0f req/s allocated=%d B/req",
+        requests,
+        p50Us,
+        p99Us,
+        requestsPerSecond,
+        allocatedBytesPerRequest
+      );
+    }
+  }
+}
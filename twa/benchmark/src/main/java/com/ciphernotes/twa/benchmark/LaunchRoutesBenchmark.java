@@ -0,0 +1,40 @@
+package com.ciphernotes.twa.benchmark;
+
+import com.ciphernotes.twa.core.LaunchRoutes;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Building the local launch URL for a deep link. */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class LaunchRoutesBenchmark {
+
+  private static final String INDEX = "https://ciphernotes.local/index.html";
+
+  @Benchmark
+  public String root() {
+    return LaunchRoutes.launchUrl(INDEX, "/", null, null);
+  }
+
+  @Benchmark
+  public String noteWithQueryAndFragment() {
+    return LaunchRoutes.launchUrl(
+      INDEX,
+      "/notes/7c9e6679-7425-40de-944b-e07fc1f90ae7",
+      "label=Caf%C3%A9&view=grid",
+      "top"
+    );
+  }
+}
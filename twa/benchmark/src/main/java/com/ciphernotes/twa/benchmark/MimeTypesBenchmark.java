@@ -0,0 +1,38 @@
+package com.ciphernotes.twa.benchmark;
+
+import com.ciphernotes.twa.core.MimeTypes;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Content type lookup for assets that are not in the asset index. */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MimeTypesBenchmark {
+
+  // Known to URLConnection, then the fallbacks from first to last checked.
+  @Param({ "index.html", "assets/index-4f1c2a.js", "assets/index-9b3e.css", "favicon.ico" })
+  public String path;
+
+  @Benchmark
+  public String guess() {
+    return MimeTypes.guess(path);
+  }
+
+  @Benchmark
+  public boolean guessAndEncoding() {
+    return MimeTypes.isUtf8Text(MimeTypes.guess(path));
+  }
+}
@@ -0,0 +1,356 @@
+package com.ciphernotes.twa.core;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Issues the page's backend requests natively when the opt-in
+ * {@code nativeApiProxy} flag is set.
+ *
+ * <p>All requests share {@link HttpURLConnection}'s process-wide keep-alive
+ * pool, advertise gzip (inflated here, since asking for it explicitly turns off
+ * the platform's transparent handling) and identical concurrent GETs for the
+ * same session are coalesced into a single
+ * upstream request. Latency is recorded per path, for at most
+ * {@link #MAX_ENDPOINTS} of them.
+ *
+ * <p>{@link #shouldProxy} accepts only GET and HEAD, because
+ * {@code shouldInterceptRequest} never sees request bodies. The backend's only
+ * such endpoints are {@code /api/hello} and {@code /api/storageUsage};
+ * {@code syncNotes} and every other call is a POST that stays on the WebView's
+ * own stack, so coalescing and the shared pool do not apply to sync traffic.
+ *
+ * <p>Free of Android types, so it can be exercised against a local HTTP server
+ * on the JVM; the caller supplies the cookie jar.
+ */
+public final class ApiProxy {
+
+  static final int CONNECT_TIMEOUT_MS = 10_000;
+  static final int READ_TIMEOUT_MS = 30_000;
+  /** Distinct paths with counters of their own; any further ones share {@link #OTHER_ENDPOINT}. */
+  static final int MAX_ENDPOINTS = 32;
+  static final String OTHER_ENDPOINT = "other";
+
+  public interface CookieJar {
+    /** The Cookie header for {@code url}, or null. */
+    String get(String url);
+
+    void put(String url, String setCookie);
+  }
+
+  public static final class Response {
+
+    public final int status;
+    public final String reason;
+    public final String mimeType;
+    public final String encoding;
+    public final Map<String, String> headers;
+    public final byte[] body;
+
+    Response(
+      int status,
+      String reason,
+      String mimeType,
+      String encoding,
+      Map<String, String> headers,
+      byte[] body
+    ) {
+      this.status = status;
+      this.reason = reason;
+      this.mimeType = mimeType;
+      this.encoding = encoding;
+      this.headers = headers;
+      this.body = body;
+    }
+  }
+
+  private final String basePath;
+  private final String upstreamOrigin;
+  private final CookieJar cookies;
+  private final ConcurrentHashMap<String, FutureTask<Response>> inFlight =
+    new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<String, EndpointStats> stats = new ConcurrentHashMap<>();
+
+  /**
+   * @param basePath the path prefix to proxy, e.g. {@code "/api/"}
+   * @param upstreamOrigin scheme, host and port requests are sent to, so a
+   *     local mock server can stand in for the real backend
+   */
+  public ApiProxy(String basePath, String upstreamOrigin, CookieJar cookies) {
+    this.basePath = basePath;
+    this.upstreamOrigin = upstreamOrigin;
+    this.cookies = cookies;
+  }
+
+  public boolean shouldProxy(String method, String path) {
+    return (
+      path != null &&
+      path.startsWith(basePath) &&
+      ("GET".equalsIgnoreCase(method) || "HEAD".equalsIgnoreCase(method))
+    );
+  }
+
+  /**
+   * Performs the request for {@code pathAndQuery} as issued by the page at
+   * {@code pageUrl}, whose cookies are sent along. Throws if the network fails
+   * so the caller can fall back to the WebView's own stack.
+   */
+  public Response execute(
+    String method,
+    String pageUrl,
+    String path,
+    String pathAndQuery,
+    Map<String, String> requestHeaders
+  ) throws IOException {
+    String cookie = cookies.get(pageUrl);
+    String url = upstreamOrigin + pathAndQuery;
+    Callable<Response> call = () -> fetch(method, url, pageUrl, requestHeaders, cookie);
+    EndpointStats endpoint = endpoint(path);
+    if (!"GET".equalsIgnoreCase(method)) {
+      return timed(endpoint, call);
+    }
+    String key = pathAndQuery + '\n' + (cookie != null ? cookie : "");
+    FutureTask<Response> task = new FutureTask<>(() -> timed(endpoint, call));
+    FutureTask<Response> existing = inFlight.putIfAbsent(key, task);
+    if (existing == null) {
+      try {
+        task.run();
+      } finally {
+        inFlight.remove(key, task);
+      }
+    } else {
+      endpoint.coalesced();
+      task = existing;
+    }
+    try {
+      return task.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted", e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) throw (IOException) cause;
+      throw new IOException(cause);
+    }
+  }
+
+  /** Per-endpoint counters as a JSON object keyed by path, plus {@link #OTHER_ENDPOINT}. */
+  public String metricsJson() {
+    StringBuilder out = new StringBuilder("{");
+    for (Map.Entry<String, EndpointStats> entry : new TreeMap<>(stats).entrySet()) {
+      if (out.length() > 1) out.append(',');
+      Json.appendQuoted(out, entry.getKey());
+      out.append(':');
+      entry.getValue().appendJson(out);
+    }
+    return out.append('}').toString();
+  }
+
+  private static Response timed(EndpointStats endpoint, Callable<Response> call)
+    throws IOException {
+    long start = System.nanoTime();
+    try {
+      Response response = call.call();
+      endpoint.record(System.nanoTime() - start, response.status >= 500);
+      return response;
+    } catch (IOException e) {
+      endpoint.record(System.nanoTime() - start, true);
+      throw e;
+    } catch (Exception e) {
+      endpoint.record(System.nanoTime() - start, true);
+      throw new IOException(e);
+    }
+  }
+
+  private Response fetch(
+    String method,
+    String url,
+    String pageUrl,
+    Map<String, String> requestHeaders,
+    String cookie
+  ) throws IOException {
+    HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+    try {
+      connection.setRequestMethod(method.toUpperCase(Locale.US));
+      connection.setConnectTimeout(CONNECT_TIMEOUT_MS);
+      connection.setReadTimeout(READ_TIMEOUT_MS);
+      connection.setUseCaches(false);
+      for (Map.Entry<String, String> header : requestHeaders.entrySet()) {
+        if (isForwardedRequestHeader(header.getKey())) {
+          connection.setRequestProperty(header.getKey(), header.getValue());
+        }
+      }
+      if (cookie != null) {
+        connection.setRequestProperty("Cookie", cookie);
+      }
+      connection.setRequestProperty("Accept-Encoding", "gzip");
+      int status = connection.getResponseCode();
+      String reason = connection.getResponseMessage();
+      Map<String, String> headers = new HashMap<>();
+      for (Map.Entry<String, List<String>> header : connection.getHeaderFields().entrySet()) {
+        String name = header.getKey();
+        if (name == null) continue;
+        if ("Set-Cookie".equalsIgnoreCase(name)) {
+          for (String value : header.getValue()) {
+            cookies.put(pageUrl, value);
+          }
+        } else if (isForwardedResponseHeader(name)) {
+          headers.put(name, join(header.getValue()));
+        }
+      }
+      InputStream body = status >= 400 ? connection.getErrorStream() : connection.getInputStream();
+      if (
+        body != null &&
+        hasBody(method, status) &&
+        "gzip".equalsIgnoreCase(connection.getContentEncoding())
+      ) {
+        body = new GZIPInputStream(body);
+      }
+      // Reading to the end and closing hands the socket back to the keep-alive pool.
+      byte[] bytes = body != null ? readFully(body) : new byte[0];
+      String contentType = connection.getContentType();
+      return new Response(
+        status,
+        reason != null && !reason.isEmpty() ? reason : "Status " + status,
+        mimeTypeOf(contentType),
+        charsetOf(contentType),
+        Collections.unmodifiableMap(headers),
+        bytes
+      );
+    } catch (IOException | RuntimeException e) {
+      // The socket may be mid-response; it must not go back to the pool.
+      connection.disconnect();
+      throw e;
+    }
+  }
+
+  private static boolean hasBody(String method, int status) {
+    return (
+      !"HEAD".equalsIgnoreCase(method) &&
+      status != HttpURLConnection.HTTP_NO_CONTENT &&
+      status != HttpURLConnection.HTTP_NOT_MODIFIED
+    );
+  }
+
+  private EndpointStats endpoint(String path) {
+    EndpointStats endpoint = stats.get(path);
+    if (endpoint != null) return endpoint;
+    // Checked before inserting, so racing first requests may overshoot by a few.
+    String key = stats.size() < MAX_ENDPOINTS ? path : OTHER_ENDPOINT;
+    EndpointStats created = new EndpointStats();
+    endpoint = stats.putIfAbsent(key, created);
+    return endpoint != null ? endpoint : created;
+  }
+
+  private static boolean isForwardedRequestHeader(String name) {
+    // The connection manages these; conditional headers could yield a 304,
+    // which WebResourceResponse cannot represent.
+    return !(
+      "Host".equalsIgnoreCase(name) ||
+      "Connection".equalsIgnoreCase(name) ||
+      "Accept-Encoding".equalsIgnoreCase(name) ||
+      "Cookie".equalsIgnoreCase(name) ||
+      "If-None-Match".equalsIgnoreCase(name) ||
+      "If-Modified-Since".equalsIgnoreCase(name)
+    );
+  }
+
+  private static boolean isForwardedResponseHeader(String name) {
+    // The body handed back is already inflated and fully buffered.
+    return !(
+      "Content-Encoding".equalsIgnoreCase(name) ||
+      "Content-Length".equalsIgnoreCase(name) ||
+      "Transfer-Encoding".equalsIgnoreCase(name) ||
+      "Connection".equalsIgnoreCase(name) ||
+      "Keep-Alive".equalsIgnoreCase(name) ||
+      "Content-Type".equalsIgnoreCase(name)
+    );
+  }
+
+  private static String mimeTypeOf(String contentType) {
+    if (contentType == null) return "application/octet-stream";
+    int semicolon = contentType.indexOf(';');
+    return (semicolon >= 0 ? contentType.substring(0, semicolon) : contentType).trim();
+  }
+
+  private static String charsetOf(String contentType) {
+    if (contentType == null) return null;
+    int index = contentType.toLowerCase(Locale.US).indexOf("charset=");
+    if (index < 0) return null;
+    String charset = contentType.substring(index + "charset=".length());
+    int end = charset.indexOf(';');
+    return (end >= 0 ? charset.substring(0, end) : charset).trim().replace("\"", "");
+  }
+
+  private static String join(List<String> values) {
+    StringBuilder out = new StringBuilder();
+    for (String value : values) {
+      if (out.length() > 0) out.append(", ");
+      out.append(value);
+    }
+    return out.toString();
+  }
+
+  private static byte[] readFully(InputStream in) throws IOException {
+    try {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      byte[] buffer = new byte[8 * 1024];
+      int read;
+      while ((read = in.read(buffer)) != -1) {
+        out.write(buffer, 0, read);
+      }
+      return out.toByteArray();
+    } finally {
+      in.close();
+    }
+  }
+
+  private static final class EndpointStats {
+
+    private long count;
+    private long errors;
+    private long coalesced;
+    private long totalNanos;
+    private long maxNanos;
+
+    synchronized void record(long nanos, boolean error) {
+      count++;
+      if (error) errors++;
+      totalNanos += nanos;
+      maxNanos = Math.max(maxNanos, nanos);
+    }
+
+    synchronized void coalesced() {
+      coalesced++;
+    }
+
+    synchronized void appendJson(StringBuilder out) {
+      out
+        .append("{\"count\":")
+        .append(count)
+        .append(",\"errors\":")
+        .append(errors)
+        .append(",\"coalesced\":")
+        .append(coalesced)
+        .append(",\"avgMs\":")
+        .append(count > 0 ? totalNanos / count / 1_000_000 : 0)
+        .append(",\"maxMs\":")
+        .append(maxNanos / 1_000_000)
+        .append('}');
+    }
+  }
+}
@@ -0,0 +1,171 @@
+package com.ciphernotes.twa.core;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Byte-budgeted LRU cache of decoded web asset bodies. Assets never change for
+ * the lifetime of the APK, so entries are only ever evicted for space. All
+ * methods are synchronized: the page's and the service worker's interceptors
+ * call in from different threads.
+ */
+public final class AssetCache {
+
+  private static final long MIN_BUDGET_BYTES = 4L * 1024 * 1024;
+  private static final long MAX_BUDGET_BYTES = 16L * 1024 * 1024;
+  private static final int READ_CHUNK_BYTES = 16 * 1024;
+
+  public static final class Entry {
+
+    public final byte[] bytes;
+    public final String mimeType;
+    /** Null for binary content. */
+    public final String encoding;
+    public final Map<String, String> headers;
+
+    public Entry(
+      byte[] bytes,
+      String mimeType,
+      String encoding,
+      Map<String, String> headers
+    ) {
+      this.bytes = bytes;
+      this.mimeType = mimeType;
+      this.encoding = encoding;
+      this.headers = headers;
+    }
+  }
+
+  private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(32, 0.75f, true);
+  private final long maxBudgetBytes;
+  private long budgetBytes;
+  private long sizeBytes;
+  private long hits;
+  private long misses;
+  private long evictions;
+
+  public AssetCache(long maxBudgetBytes) {
+    this.maxBudgetBytes = maxBudgetBytes;
+    this.budgetBytes = maxBudgetBytes;
+  }
+
+  /** A sixteenth of the per-app heap limit, clamped to 4–16 MiB. */
+  public static long defaultBudget(long heapBytes) {
+    return Math.max(MIN_BUDGET_BYTES, Math.min(MAX_BUDGET_BYTES, heapBytes / 16));
+  }
+
+  /** The cached body of {@code path}, or null. */
+  public synchronized Entry get(String path) {
+    Entry entry = entries.get(path);
+    if (entry != null) {
+      hits++;
+    } else {
+      misses++;
+    }
+    return entry;
+  }
+
+  /**
+   * Returns a stream with the same content as {@code input}. If the body fits
+   * into half of the current budget it is read fully, cached under {@code path}
+   * and served from memory; larger bodies are streamed through uncached.
+   */
+  public InputStream cacheThrough(
+    String path,
+    InputStream input,
+    String mimeType,
+    String encoding,
+    Map<String, String> headers
+  ) throws IOException {
+    long limit = maxEntryBytes();
+    ByteArrayOutputStream buffer = new ByteArrayOutputStream(READ_CHUNK_BYTES);
+    byte[] chunk = new byte[READ_CHUNK_BYTES];
+    int read;
+    while ((read = input.read(chunk)) != -1) {
+      buffer.write(chunk, 0, read);
+      if (buffer.size() > limit) {
+        return new SequenceInputStream(new ByteArrayInputStream(buffer.toByteArray()), input);
+      }
+    }
+    input.close();
+    byte[] bytes = buffer.toByteArray();
+    put(path, new Entry(bytes, mimeType, encoding, headers));
+    return new ByteArrayInputStream(bytes);
+  }
+
+  public synchronized void put(String path, Entry entry) {
+    if (entry.bytes.length > budgetBytes / 2) {
+      return;
+    }
+    Entry previous = entries.put(path, entry);
+    if (previous != null) {
+      sizeBytes -= previous.bytes.length;
+    }
+    sizeBytes += entry.bytes.length;
+    trimTo(budgetBytes);
+  }
+
+  /**
+   * Shrinks the budget to {@code fraction} of the maximum, evicting entries
+   * as needed, until {@link #restoreBudget} is called.
+   */
+  public synchronized void shrinkBudget(double fraction) {
+    budgetBytes = (long) (maxBudgetBytes * fraction);
+    trimTo(budgetBytes);
+  }
+
+  /** Lets the cache grow to its full size again, e.g. once the app is back in front. */
+  public synchronized void restoreBudget() {
+    budgetBytes = maxBudgetBytes;
+  }
+
+  public synchronized long hits() {
+    return hits;
+  }
+
+  public synchronized long misses() {
+    return misses;
+  }
+
+  public synchronized long sizeBytes() {
+    return sizeBytes;
+  }
+
+  @Override
+  public synchronized String toString() {
+    return (
+      "AssetCache{entries=" +
+      entries.size() +
+      ", bytes=" +
+      sizeBytes +
+      "/" +
+      budgetBytes +
+      ", hits=" +
+      hits +
+      ", misses=" +
+      misses +
+      ", evictions=" +
+      evictions +
+      "}"
+    );
+  }
+
+  private synchronized long maxEntryBytes() {
+    return budgetBytes / 2;
+  }
+
+  private void trimTo(long maxBytes) {
+    Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+    while (sizeBytes > maxBytes && it.hasNext()) {
+      sizeBytes -= it.next().getValue().bytes.length;
+      it.remove();
+      evictions++;
+    }
+  }
+}
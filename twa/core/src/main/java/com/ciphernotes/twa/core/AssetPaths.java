@@ -0,0 +1,25 @@
+package com.ciphernotes.twa.core;
+
+/** Maps request paths under the local origin to asset names below {@code www/}. */
+public final class AssetPaths {
+
+  private AssetPaths() {}
+
+  /**
+   * Strips the leading slash and resolves the root and directory paths to
+   * their {@code index.html}. {@code null} is treated as the root.
+   */
+  public static String normalize(String path) {
+    String relative = path == null ? "" : path;
+    if (relative.startsWith("/")) {
+      relative = relative.substring(1);
+    }
+    if (relative.isEmpty()) {
+      return "index.html";
+    }
+    if (relative.endsWith("/")) {
+      return relative + "index.html";
+    }
+    return relative;
+  }
+}
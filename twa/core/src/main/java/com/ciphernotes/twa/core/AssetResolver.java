@@ -0,0 +1,86 @@
+package com.ciphernotes.twa.core;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+
+/**
+ * Serves bundled web assets for request paths under the local origin, through
+ * the {@link AssetCache}. The page's and the service worker's interceptors
+ * call {@link #resolve} concurrently; all shared state lives in the cache.
+ */
+public final class AssetResolver {
+
+  /** How an asset is served. */
+  public static class Meta {
+
+    public final String mimeType;
+    /** Null for binary content. */
+    public final String encoding;
+    public final Map<String, String> headers;
+
+    public Meta(String mimeType, String encoding, Map<String, String> headers) {
+      this.mimeType = mimeType;
+      this.encoding = encoding;
+      this.headers = headers;
+    }
+  }
+
+  /** Where asset bodies come from: the APK on the device, memory in the replay harness. */
+  public interface Source {
+    /**
+     * How {@code path}, relative to {@code www/}, is served, or null if it is
+     * known not to be bundled (e.g. {@code api/...}) so the request can go to
+     * the network.
+     */
+    Meta find(String path);
+
+    InputStream open(String path, Meta meta) throws IOException;
+  }
+
+  public static final class Asset extends Meta {
+
+    public final InputStream body;
+    public final boolean fromMemory;
+
+    Asset(Meta meta, InputStream body, boolean fromMemory) {
+      super(meta.mimeType, meta.encoding, meta.headers);
+      this.body = body;
+      this.fromMemory = fromMemory;
+    }
+  }
+
+  private final Source source;
+  private final AssetCache cache;
+
+  public AssetResolver(Source source, AssetCache cache) {
+    this.source = source;
+    this.cache = cache;
+  }
+
+  /** The asset for a request path, or null if it is not bundled or cannot be read. */
+  public Asset resolve(String requestPath) {
+    String path = AssetPaths.normalize(requestPath);
+    Meta meta = source.find(path);
+    if (meta == null) {
+      return null;
+    }
+    AssetCache.Entry cached = cache.get(path);
+    if (cached != null) {
+      return new Asset(meta, new ByteArrayInputStream(cached.bytes), true);
+    }
+    try {
+      InputStream body = cache.cacheThrough(
+        path,
+        source.open(path, meta),
+        meta.mimeType,
+        meta.encoding,
+        meta.headers
+      );
+      return new Asset(meta, body, false);
+    } catch (IOException e) {
+      return null;
+    }
+  }
+}
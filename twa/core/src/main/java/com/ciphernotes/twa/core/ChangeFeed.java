@@ -0,0 +1,416 @@
+package com.ciphernotes.twa.core;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * One long-lived connection to the backend's socket.io endpoint, kept up with
+ * exponential backoff, that reports the {@code notesPushed} events other
+ * sessions cause as coalesced {@link Batch}es instead of one by one.
+ *
+ * <p>Speaks Engine.IO 4 over HTTP long-polling, the transport the page's own
+ * socket.io client uses, so it needs nothing but {@link HttpURLConnection}.
+ * Events are batched until none arrived for the quiet period, or at most
+ * until the maximum delay after the first one. Free of Android types, so it
+ * can be exercised against a local stand-in server on the JVM.
+ */
+public final class ChangeFeed {
+
+  public interface Cookies {
+    /** The Cookie header for {@code url}, or null. */
+    String get(String url);
+  }
+
+  public interface Listener {
+    /** Called on the connection thread, or the caller's for {@link #stop()}. */
+    void onConnectionChanged(boolean connected);
+
+    /** Called on the batching thread. */
+    void onChanges(Batch batch);
+
+    /** The server refused the session; the feed has stopped. */
+    void onSignedOut();
+  }
+
+  public static final class Batch {
+
+    /** Changed note ids, oldest first, at most {@link #MAX_BATCH_IDS}. */
+    public final List<String> ids;
+    /** Ids dropped because the batch was full; the receiver should sync everything. */
+    public final boolean truncated;
+    /** notesPushed events folded into this batch. */
+    public final int events;
+
+    Batch(List<String> ids, boolean truncated, int events) {
+      this.ids = ids;
+      this.truncated = truncated;
+      this.events = events;
+    }
+  }
+
+  public static final int MAX_BATCH_IDS = 256;
+  static final int CONNECT_TIMEOUT_MS = 10_000;
+  static final long MIN_BACKOFF_MS = 1_000;
+  static final long MAX_BACKOFF_MS = 60_000;
+  private static final char RECORD_SEPARATOR = '\u001e';
+  private static final Pattern SID = Pattern.compile("\"sid\":\"([^\"]+)\"");
+  private static final Pattern PING_INTERVAL = Pattern.compile("\"pingInterval\":(\\d+)");
+  private static final Pattern PING_TIMEOUT = Pattern.compile("\"pingTimeout\":(\\d+)");
+  private static final Pattern STRING = Pattern.compile("\"((?:[^\"\\\\]|\\\\.)*)\"");
+
+  private static final class SignedOutException extends Exception {
+
+    private static final long serialVersionUID = 1L;
+  }
+
+  private final String endpoint;
+  private final String cookieUrl;
+  private final Cookies cookies;
+  private final Listener listener;
+  private final long quietMs;
+  private final long maxDelayMs;
+  private final Random random = new Random();
+  private final ScheduledExecutorService batcher = Executors.newSingleThreadScheduledExecutor(r -> {
+    Thread thread = new Thread(r, "ChangeFeed.batch");
+    thread.setDaemon(true);
+    return thread;
+  });
+
+  // The connection thread; an old one still winding down after stop() sees it replaced.
+  private volatile Thread thread;
+  private volatile boolean running;
+  private volatile boolean connected;
+  private volatile HttpURLConnection current;
+
+  // Guarded by this.
+  private final Set<String> pendingIds = new LinkedHashSet<>();
+  private boolean pendingTruncated;
+  private int pendingEvents;
+  private long firstPendingAt;
+  private ScheduledFuture<?> flush;
+
+  /**
+   * @param origin scheme, host and port of the backend, e.g. a local stand-in
+   * @param cookieUrl the URL the page would connect to, whose cookies carry
+   *     the session
+   */
+  public ChangeFeed(
+    String origin,
+    String cookieUrl,
+    Cookies cookies,
+    Listener listener,
+    long quietMs,
+    long maxDelayMs
+  ) {
+    this.endpoint = origin + "/socket.io/?EIO=4&transport=polling";
+    this.cookieUrl = cookieUrl;
+    this.cookies = cookies;
+    this.listener = listener;
+    this.quietMs = quietMs;
+    this.maxDelayMs = maxDelayMs;
+  }
+
+  public synchronized void start() {
+    if (running) {
+      return;
+    }
+    running = true;
+    thread = new Thread(this::run, "ChangeFeed");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /** Closes the connection; batched events not yet delivered are dropped. */
+  public void stop() {
+    synchronized (this) {
+      if (!running) {
+        return;
+      }
+      running = false;
+      thread.interrupt();
+      thread = null;
+      HttpURLConnection connection = current;
+      if (connection != null) {
+        // Unblocks a pending long poll.
+        connection.disconnect();
+      }
+      if (flush != null) {
+        flush.cancel(false);
+        flush = null;
+      }
+      pendingIds.clear();
+      pendingTruncated = false;
+      pendingEvents = 0;
+    }
+    if (connected) {
+      connected = false;
+      listener.onConnectionChanged(false);
+    }
+  }
+
+  public boolean isRunning() {
+    return running;
+  }
+
+  public boolean isConnected() {
+    return connected;
+  }
+
+  private boolean active() {
+    return thread == Thread.currentThread();
+  }
+
+  private void run() {
+    int failures = 0;
+    while (active()) {
+      try {
+        session();
+      } catch (SignedOutException e) {
+        synchronized (this) {
+          if (!active()) {
+            return;
+          }
+          running = false;
+          thread = null;
+        }
+        if (connected) {
+          connected = false;
+          listener.onConnectionChanged(false);
+        }
+        listener.onSignedOut();
+        return;
+      } catch (IOException e) {
+        // Reconnect below.
+      } catch (RuntimeException e) {
+        if (active()) {
+          throw e;
+        }
+        // stop() disconnected a request in flight, which HttpURLConnection may not expect.
+        return;
+      }
+      if (!active()) {
+        return;
+      }
+      if (connected) {
+        // Dropped after a successful connect: retry soon.
+        failures = 0;
+      }
+      setConnected(false);
+      try {
+        Thread.sleep(backoffMs(failures++));
+      } catch (InterruptedException e) {
+        return;
+      }
+    }
+  }
+
+  /** Full jitter between half and all of the doubled delay, capped. */
+  long backoffMs(int failures) {
+    long delay = Math.min(MAX_BACKOFF_MS, MIN_BACKOFF_MS << Math.min(failures, 16));
+    return delay / 2 + (long) (random.nextDouble() * (delay / 2));
+  }
+
+  /** Runs one Engine.IO session until the server ends it or it fails. */
+  private void session() throws IOException, SignedOutException {
+    String cookie = cookies.get(cookieUrl);
+    if (cookie == null) {
+      throw new SignedOutException();
+    }
+    String open = request("GET", endpoint, cookie, null, CONNECT_TIMEOUT_MS);
+    if (!open.startsWith("0")) {
+      throw new IOException("Unexpected handshake " + open);
+    }
+    String sid = find(SID, open);
+    if (sid == null) {
+      throw new IOException("Handshake without sid");
+    }
+    long pingInterval = Long.parseLong(orDefault(find(PING_INTERVAL, open), "25000"));
+    long pingTimeout = Long.parseLong(orDefault(find(PING_TIMEOUT, open), "20000"));
+    String url = endpoint + "&sid=" + sid;
+    // Connect to the default namespace.
+    request("POST", url, cookie, "40", CONNECT_TIMEOUT_MS);
+    int pollTimeout = (int) Math.min(Integer.MAX_VALUE, pingInterval + pingTimeout);
+    while (active()) {
+      String payload = request("GET", url, cookie, null, pollTimeout);
+      for (String packet : split(payload)) {
+        if (!handle(packet, url, cookie)) {
+          return;
+        }
+      }
+    }
+  }
+
+  /** Returns false when the server closed the session. */
+  private boolean handle(String packet, String url, String cookie)
+    throws IOException, SignedOutException {
+    if (packet.isEmpty()) {
+      return true;
+    }
+    switch (packet.charAt(0)) {
+      case '2':
+        // Engine.IO ping; the server closes sessions that do not answer.
+        request("POST", url, cookie, "3", CONNECT_TIMEOUT_MS);
+        return true;
+      case '1':
+        return false;
+      case '6':
+        return true;
+      case '4':
+        return handleMessage(packet.substring(1));
+      default:
+        return true;
+    }
+  }
+
+  private boolean handleMessage(String message) throws SignedOutException {
+    if (message.startsWith("0")) {
+      setConnected(true);
+    } else if (message.startsWith("4")) {
+      // connect_error: the server's middleware rejected the session.
+      throw new SignedOutException();
+    } else if (message.startsWith("1")) {
+      return false;
+    } else if (message.startsWith("2")) {
+      Matcher matcher = STRING.matcher(message);
+      if (matcher.find() && "notesPushed".equals(matcher.group(1))) {
+        List<String> ids = new ArrayList<>();
+        while (matcher.find()) {
+          ids.add(matcher.group(1));
+        }
+        add(ids);
+      }
+    }
+    return true;
+  }
+
+  private synchronized void add(List<String> ids) {
+    if (!running) {
+      return;
+    }
+    long now = System.currentTimeMillis();
+    if (pendingEvents == 0) {
+      firstPendingAt = now;
+    }
+    pendingEvents++;
+    for (String id : ids) {
+      if (pendingIds.size() < MAX_BATCH_IDS) {
+        pendingIds.add(id);
+      } else if (!pendingIds.contains(id)) {
+        pendingTruncated = true;
+      }
+    }
+    if (flush != null) {
+      flush.cancel(false);
+    }
+    long delay = Math.min(quietMs, firstPendingAt + maxDelayMs - now);
+    flush = batcher.schedule(this::flush, Math.max(0, delay), TimeUnit.MILLISECONDS);
+  }
+
+  private void flush() {
+    Batch batch;
+    synchronized (this) {
+      if (pendingEvents == 0) {
+        return;
+      }
+      batch = new Batch(
+        Collections.unmodifiableList(new ArrayList<>(pendingIds)),
+        pendingTruncated,
+        pendingEvents
+      );
+      pendingIds.clear();
+      pendingTruncated = false;
+      pendingEvents = 0;
+      flush = null;
+    }
+    listener.onChanges(batch);
+  }
+
+  private void setConnected(boolean value) {
+    if (active() && connected != value) {
+      connected = value;
+      listener.onConnectionChanged(value);
+    }
+  }
+
+  private String request(String method, String url, String cookie, String body, int readTimeoutMs)
+    throws IOException {
+    HttpURLConnection connection = (HttpURLConnection) new URL(
+      url + "&t=" + Long.toString(System.nanoTime(), 36)
+    ).openConnection();
+    current = connection;
+    try {
+      connection.setRequestMethod(method);
+      connection.setConnectTimeout(CONNECT_TIMEOUT_MS);
+      connection.setReadTimeout(readTimeoutMs);
+      connection.setUseCaches(false);
+      connection.setRequestProperty("Cookie", cookie);
+      if (body != null) {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        connection.setDoOutput(true);
+        connection.setFixedLengthStreamingMode(bytes.length);
+        connection.setRequestProperty("Content-Type", "text/plain;charset=UTF-8");
+        try (OutputStream out = connection.getOutputStream()) {
+          out.write(bytes);
+        }
+      }
+      int status = connection.getResponseCode();
+      if (status != HttpURLConnection.HTTP_OK) {
+        throw new IOException(method + " returned " + status);
+      }
+      try (InputStream in = connection.getInputStream()) {
+        return readFully(in);
+      }
+    } finally {
+      current = null;
+      connection.disconnect();
+    }
+  }
+
+  static List<String> split(String payload) {
+    List<String> packets = new ArrayList<>();
+    int start = 0;
+    for (int i = 0; i <= payload.length(); i++) {
+      if (i == payload.length() || payload.charAt(i) == RECORD_SEPARATOR) {
+        packets.add(payload.substring(start, i));
+        start = i + 1;
+      }
+    }
+    return packets;
+  }
+
+  private static String find(Pattern pattern, String text) {
+    Matcher matcher = pattern.matcher(text);
+    return matcher.find() ? matcher.group(1) : null;
+  }
+
+  private static String orDefault(String value, String fallback) {
+    return value != null ? value : fallback;
+  }
+
+  private static String readFully(InputStream in) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[8192];
+    int read;
+    while ((read = in.read(buffer)) != -1) {
+      out.write(buffer, 0, read);
+    }
+    return new String(out.toByteArray(), StandardCharsets.UTF_8);
+  }
+}
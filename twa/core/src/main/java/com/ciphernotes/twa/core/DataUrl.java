@@ -0,0 +1,116 @@
+package com.ciphernotes.twa.core;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * A base64 {@code data:} URL as produced by {@code FileReader.readAsDataURL},
+ * decoded straight from the string into an output stream.
+ *
+ * <p>Decoding reads the characters in place and goes through one fixed-size
+ * buffer, so a download of any size allocates nothing but that buffer. Like
+ * {@code android.util.Base64.DEFAULT}, characters outside the base64 alphabet
+ * (line breaks, spaces) are skipped and decoding stops at the first {@code =}.
+ */
+public final class DataUrl {
+
+  public interface Progress {
+    /**
+     * Called after each buffer is written with the number of base64 characters
+     * consumed so far. May throw to stop decoding.
+     */
+    void onDecoded(long encodedChars);
+  }
+
+  private static final byte[] DECODE = new byte[128];
+
+  static {
+    Arrays.fill(DECODE, (byte) -1);
+    String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+    for (int i = 0; i < alphabet.length(); i++) {
+      DECODE[alphabet.charAt(i)] = (byte) i;
+    }
+  }
+
+  public final String mimeType;
+  private final String url;
+  private final int dataStart;
+
+  private DataUrl(String mimeType, String url, int dataStart) {
+    this.mimeType = mimeType;
+    this.url = url;
+    this.dataStart = dataStart;
+  }
+
+  /** @throws IllegalArgumentException if {@code url} has no data part */
+  public static DataUrl parse(String url) {
+    int comma = url.indexOf(',');
+    if (comma == -1) {
+      throw new IllegalArgumentException("Invalid data URL");
+    }
+    String mimeType = "application/octet-stream";
+    if (url.startsWith("data:")) {
+      int semicolon = url.indexOf(';');
+      if (semicolon > 5 && semicolon < comma) {
+        mimeType = url.substring(5, semicolon);
+      }
+    }
+    return new DataUrl(mimeType, url, comma + 1);
+  }
+
+  /** Number of base64 characters, for progress reporting. */
+  public int encodedLength() {
+    return url.length() - dataStart;
+  }
+
+  /**
+   * Decodes the data into {@code out}, using a buffer of {@code bufferSize}
+   * bytes and reporting to {@code progress} after each one.
+   */
+  public void decodeTo(OutputStream out, int bufferSize, Progress progress) throws IOException {
+    byte[] buffer = new byte[Math.max(3, bufferSize - bufferSize % 3)];
+    int used = 0;
+    int bits = 0;
+    int count = 0;
+    int end = url.length();
+    for (int i = dataStart; i < end; i++) {
+      char c = url.charAt(i);
+      if (c == '=') {
+        break;
+      }
+      int value = c < 128 ? DECODE[c] : -1;
+      if (value < 0) {
+        continue;
+      }
+      bits = (bits << 6) | value;
+      if (++count == 4) {
+        if (used == buffer.length) {
+          out.write(buffer, 0, used);
+          used = 0;
+          progress.onDecoded(i - dataStart);
+        }
+        buffer[used++] = (byte) (bits >> 16);
+        buffer[used++] = (byte) (bits >> 8);
+        buffer[used++] = (byte) bits;
+        bits = 0;
+        count = 0;
+      }
+    }
+    if (count == 1) {
+      throw new IllegalArgumentException("Truncated base64 data");
+    }
+    if (count > 1 && used + count - 1 > buffer.length) {
+      out.write(buffer, 0, used);
+      used = 0;
+    }
+    if (count == 2) {
+      buffer[used++] = (byte) (bits >> 4);
+    } else if (count == 3) {
+      buffer[used++] = (byte) (bits >> 10);
+      buffer[used++] = (byte) (bits >> 2);
+    }
+    out.write(buffer, 0, used);
+    progress.onDecoded(encodedLength());
+  }
+}
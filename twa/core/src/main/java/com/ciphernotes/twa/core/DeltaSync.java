@@ -0,0 +1,190 @@
+package com.ciphernotes.twa.core;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Pulls the encrypted notes changed since the page's last sync from the
+ * backend's {@code syncNotes} endpoint while the app is closed, and keeps the
+ * response in an app-private file for the page to merge at its next start.
+ *
+ * <p>The request uploads nothing ({@code puts} is empty), so on the server it
+ * is a pure read and the stored response is exactly what the page's own first
+ * sync would have received at that moment. Every pull starts again from the
+ * page's {@code last_synced_to}, replacing the previous file, so there is never
+ * more than one delta and it always fits the page's state. Nothing here can
+ * decrypt the notes.
+ *
+ * <p>The file holds {@code {"from":...,"syncToken":...,"fetchedAt":...,"res":...}}
+ * where {@code res} is the response body as sent. Free of Android types, so it
+ * can be exercised against a local mock backend on the JVM.
+ */
+public final class DeltaSync {
+
+  public static final String FILE_NAME = "delta.json";
+  static final int CONNECT_TIMEOUT_MS = 10_000;
+  static final int READ_TIMEOUT_MS = 30_000;
+  // A delta this large is cheaper to let the page sync itself.
+  static final long MAX_DELTA_BYTES = 64L * 1024 * 1024;
+
+  public interface CookieJar {
+    /** The Cookie header for {@code url}, or null. */
+    String get(String url);
+
+    void put(String url, String setCookie);
+  }
+
+  public enum Result {
+    /** A fresh delta is waiting in {@link #pendingFile()}. */
+    PULLED,
+    /** The session is gone; pulling again is pointless until the page signs in. */
+    SIGNED_OUT,
+  }
+
+  private final String endpointUrl;
+  private final String cookieUrl;
+  private final File dir;
+  private final CookieJar cookies;
+
+  /**
+   * @param endpointUrl where the request is sent, e.g.
+   *     {@code https://ciphernotes.com/api/syncNotes} or a local mock
+   * @param cookieUrl the URL the page sends the request to, whose cookies
+   *     carry the session
+   * @param dir app-private directory for the delta file
+   */
+  public DeltaSync(String endpointUrl, String cookieUrl, File dir, CookieJar cookies) {
+    this.endpointUrl = endpointUrl;
+    this.cookieUrl = cookieUrl;
+    this.dir = dir;
+    this.cookies = cookies;
+  }
+
+  public File pendingFile() {
+    return new File(dir, FILE_NAME);
+  }
+
+  /** Drops the pending delta, once merged or made obsolete by a sync of the page's own. */
+  public void discard() {
+    pendingFile().delete();
+  }
+
+  /**
+   * Fetches everything changed since {@code lastSyncedTo}. Throws on network
+   * and server errors, leaving any previous delta in place.
+   */
+  public Result pull(long lastSyncedTo, String syncToken) throws IOException {
+    String cookie = cookies.get(cookieUrl);
+    if (cookie == null) {
+      return Result.SIGNED_OUT;
+    }
+    StringBuilder request = new StringBuilder(96)
+      .append("{\"last_synced_to\":")
+      .append(lastSyncedTo)
+      .append(",\"sync_token\":");
+    Json.appendQuoted(request, syncToken);
+    byte[] body = request.append(",\"puts\":[]}").toString().getBytes(StandardCharsets.UTF_8);
+
+    HttpURLConnection connection = (HttpURLConnection) new URL(endpointUrl).openConnection();
+    try {
+      connection.setRequestMethod("POST");
+      connection.setConnectTimeout(CONNECT_TIMEOUT_MS);
+      connection.setReadTimeout(READ_TIMEOUT_MS);
+      connection.setUseCaches(false);
+      connection.setDoOutput(true);
+      connection.setFixedLengthStreamingMode(body.length);
+      connection.setRequestProperty("Content-Type", "application/json");
+      connection.setRequestProperty("Cookie", cookie);
+      try (OutputStream out = connection.getOutputStream()) {
+        out.write(body);
+      }
+      int status = connection.getResponseCode();
+      for (Map.Entry<String, List<String>> header : connection.getHeaderFields().entrySet()) {
+        if ("Set-Cookie".equalsIgnoreCase(header.getKey())) {
+          for (String value : header.getValue()) {
+            cookies.put(cookieUrl, value);
+          }
+        }
+      }
+      if (status == HttpURLConnection.HTTP_UNAUTHORIZED) {
+        return Result.SIGNED_OUT;
+      }
+      if (status != HttpURLConnection.HTTP_OK) {
+        throw new IOException("syncNotes returned " + status);
+      }
+      try (InputStream in = connection.getInputStream()) {
+        store(in, lastSyncedTo, syncToken);
+      }
+      return Result.PULLED;
+    } finally {
+      connection.disconnect();
+    }
+  }
+
+  /** Writes the delta next to the pending file and renames it into place. */
+  private void store(InputStream response, long lastSyncedTo, String syncToken)
+    throws IOException {
+    if (!dir.isDirectory() && !dir.mkdirs()) {
+      throw new IOException("Cannot create " + dir);
+    }
+    File partial = new File(dir, FILE_NAME + ".partial");
+    try {
+      try (FileOutputStream out = new FileOutputStream(partial)) {
+        StringBuilder head = new StringBuilder(96)
+          .append("{\"from\":")
+          .append(lastSyncedTo)
+          .append(",\"syncToken\":");
+        Json.appendQuoted(head, syncToken);
+        head.append(",\"fetchedAt\":").append(System.currentTimeMillis()).append(",\"res\":");
+        out.write(head.toString().getBytes(StandardCharsets.UTF_8));
+        copyJsonObject(response, out);
+        out.write('}');
+        out.getFD().sync();
+      }
+      if (!partial.renameTo(pendingFile())) {
+        throw new IOException("Cannot replace " + pendingFile());
+      }
+    } finally {
+      partial.delete();
+    }
+  }
+
+  /** Copies the body, which must be a JSON object, and enforces the size limit. */
+  private static void copyJsonObject(InputStream in, OutputStream out) throws IOException {
+    byte[] buffer = new byte[16 * 1024];
+    long total = 0;
+    boolean checked = false;
+    int read;
+    while ((read = in.read(buffer)) != -1) {
+      int start = 0;
+      if (!checked) {
+        while (start < read && Character.isWhitespace(buffer[start])) {
+          start++;
+        }
+        if (start == read) {
+          continue;
+        }
+        if (buffer[start] != '{') {
+          throw new IOException("syncNotes did not return a JSON object");
+        }
+        checked = true;
+      }
+      total += read - start;
+      if (total > MAX_DELTA_BYTES) {
+        throw new IOException("Delta exceeds " + MAX_DELTA_BYTES + " bytes");
+      }
+      out.write(buffer, start, read - start);
+    }
+    if (!checked) {
+      throw new IOException("syncNotes returned an empty body");
+    }
+  }
+}
@@ -0,0 +1,147 @@
+package com.ciphernotes.twa.core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * The hosts the WebView may talk to, compiled once from the
+ * {@code webViewAllowlist} entry in {@code app/build.gradle}.
+ *
+ * <p>Rules are separated by whitespace and look like
+ * {@code scheme[|scheme...]:[//host[/path-prefix]]}:
+ * <ul>
+ *   <li>{@code blob:} allows the scheme regardless of host;</li>
+ *   <li>{@code http|https://localhost} allows an exact host, any path;</li>
+ *   <li>{@code https://*.example.com/bucket} allows example.com and its
+ *       subdomains, for {@code /bucket} and everything below it.</li>
+ * </ul>
+ *
+ * <p>{@link #allows} compares case-insensitively in place and allocates nothing,
+ * since it runs for every request the page and its service worker make.
+ */
+public final class HostAllowlist {
+
+  private static final class Rule {
+
+    final String[] schemes;
+    /** Exact host, or the suffix including its leading dot; null for scheme-only rules. */
+    final String host;
+    final boolean includeSubdomains;
+    /** Path prefix without trailing slash, or null for any path. */
+    final String pathPrefix;
+
+    Rule(String[] schemes, String host, boolean includeSubdomains, String pathPrefix) {
+      this.schemes = schemes;
+      this.host = host;
+      this.includeSubdomains = includeSubdomains;
+      this.pathPrefix = pathPrefix;
+    }
+  }
+
+  private final Rule[] rules;
+
+  private HostAllowlist(Rule[] rules) {
+    this.rules = rules;
+  }
+
+  /** @throws IllegalArgumentException if a rule is malformed */
+  public static HostAllowlist compile(String spec) {
+    List<Rule> rules = new ArrayList<>();
+    for (String token : spec.trim().split("\\s+")) {
+      if (!token.isEmpty()) {
+        rules.add(parse(token));
+      }
+    }
+    return new HostAllowlist(rules.toArray(new Rule[0]));
+  }
+
+  private static Rule parse(String rule) {
+    int colon = rule.indexOf(':');
+    if (colon <= 0) {
+      throw new IllegalArgumentException("Missing scheme in allowlist rule " + rule);
+    }
+    String[] schemes = rule.substring(0, colon).toLowerCase(Locale.US).split("\\|");
+    String rest = rule.substring(colon + 1);
+    if (rest.isEmpty()) {
+      return new Rule(schemes, null, false, null);
+    }
+    if (!rest.startsWith("//") || rest.length() == 2) {
+      throw new IllegalArgumentException("Missing host in allowlist rule " + rule);
+    }
+    rest = rest.substring(2);
+    int slash = rest.indexOf('/');
+    String host = (slash >= 0 ? rest.substring(0, slash) : rest).toLowerCase(Locale.US);
+    String path = slash >= 0 ? rest.substring(slash) : null;
+    while (path != null && path.endsWith("/")) {
+      path = path.length() == 1 ? null : path.substring(0, path.length() - 1);
+    }
+    boolean includeSubdomains = host.startsWith("*.");
+    if (includeSubdomains) {
+      host = host.substring(1);
+    }
+    return new Rule(schemes, host, includeSubdomains, path);
+  }
+
+  public boolean allows(String scheme, String host, String path) {
+    if (scheme == null) {
+      return false;
+    }
+    for (Rule rule : rules) {
+      if (matches(rule, scheme, host, path)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  public int size() {
+    return rules.length;
+  }
+
+  private static boolean matches(Rule rule, String scheme, String host, String path) {
+    if (!anyEqualsIgnoreCase(rule.schemes, scheme)) {
+      return false;
+    }
+    if (rule.host == null) {
+      return true;
+    }
+    if (host == null || !hostMatches(rule, host)) {
+      return false;
+    }
+    String prefix = rule.pathPrefix;
+    if (prefix == null) {
+      return true;
+    }
+    return (
+      path != null &&
+      path.startsWith(prefix) &&
+      (path.length() == prefix.length() || path.charAt(prefix.length()) == '/')
+    );
+  }
+
+  private static boolean hostMatches(Rule rule, String host) {
+    String expected = rule.host;
+    if (!rule.includeSubdomains) {
+      return expected.equalsIgnoreCase(host);
+    }
+    // expected is ".example.com": match the bare domain or anything ending in it.
+    int apexLength = expected.length() - 1;
+    if (host.length() == apexLength) {
+      return host.regionMatches(true, 0, expected, 1, apexLength);
+    }
+    return (
+      host.length() > expected.length() &&
+      host.regionMatches(true, host.length() - expected.length(), expected, 0, expected.length())
+    );
+  }
+
+  private static boolean anyEqualsIgnoreCase(String[] candidates, String value) {
+    for (String candidate : candidates) {
+      if (candidate.equalsIgnoreCase(value)) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
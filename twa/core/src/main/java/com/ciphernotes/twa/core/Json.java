@@ -0,0 +1,47 @@
+package com.ciphernotes.twa.core;
+
+/**
+ * Minimal JSON string escaping for classes that build small JSON payloads by
+ * hand, so they stay usable outside Android where {@code org.json} is missing.
+ */
+public final class Json {
+
+  private Json() {}
+
+  public static String quote(String value) {
+    StringBuilder out = new StringBuilder(value.length() + 2);
+    appendQuoted(out, value);
+    return out.toString();
+  }
+
+  public static void appendQuoted(StringBuilder out, String value) {
+    out.append('"');
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      switch (c) {
+        case '"':
+          out.append("\\\"");
+          break;
+        case '\\':
+          out.append("\\\\");
+          break;
+        case '\n':
+          out.append("\\n");
+          break;
+        case '\r':
+          out.append("\\r");
+          break;
+        case '\t':
+          out.append("\\t");
+          break;
+        default:
+          if (c < 0x20 || c == 0x2028 || c == 0x2029) {
+            out.append(String.format("\\u%04x", (int) c));
+          } else {
+            out.append(c);
+          }
+      }
+    }
+    out.append('"');
+  }
+}
@@ -0,0 +1,79 @@
+package com.ciphernotes.twa.core;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Builds the local URL that opens the SPA at the route of a deep link such as
+ * {@code https://ciphernotes.com/note/1?q=x#top}.
+ */
+public final class LaunchRoutes {
+
+  private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+  private LaunchRoutes() {}
+
+  /**
+   * {@code indexPath?initialPath=<route>}, the {@link #route} encoded once
+   * more as a query value.
+   */
+  public static String launchUrl(
+    String indexPath,
+    String encodedPath,
+    String encodedQuery,
+    String encodedFragment
+  ) {
+    String route = route(encodedPath, encodedQuery, encodedFragment);
+    StringBuilder url = new StringBuilder(indexPath.length() + route.length() * 3 + 13)
+      .append(indexPath)
+      .append("?initialPath=");
+    return encode(route, url).toString();
+  }
+
+  /** The link's already encoded path, query and fragment, as the SPA expects them. */
+  public static String route(String encodedPath, String encodedQuery, String encodedFragment) {
+    StringBuilder route = new StringBuilder(64);
+    route.append(encodedPath != null ? encodedPath : "/");
+    if (encodedQuery != null && !encodedQuery.isEmpty()) {
+      route.append('?').append(encodedQuery);
+    }
+    if (encodedFragment != null && !encodedFragment.isEmpty()) {
+      route.append('#').append(encodedFragment);
+    }
+    return route.toString();
+  }
+
+  /**
+   * Percent-encodes {@code value} into {@code out} the way
+   * {@code android.net.Uri.encode(String)} does: letters, digits and
+   * {@code _-!.~'()*} are kept, everything else becomes its UTF-8 bytes.
+   */
+  static StringBuilder encode(CharSequence value, StringBuilder out) {
+    int length = value.length();
+    for (int i = 0; i < length; i++) {
+      char c = value.charAt(i);
+      if (isAllowed(c)) {
+        out.append(c);
+        continue;
+      }
+      int end = i + 1;
+      while (end < length && !isAllowed(value.charAt(end))) {
+        end++;
+      }
+      byte[] bytes = value.subSequence(i, end).toString().getBytes(StandardCharsets.UTF_8);
+      for (byte b : bytes) {
+        out.append('%').append(HEX[(b >> 4) & 0xf]).append(HEX[b & 0xf]);
+      }
+      i = end - 1;
+    }
+    return out;
+  }
+
+  private static boolean isAllowed(char c) {
+    return (
+      (c >= 'a' && c <= 'z') ||
+      (c >= 'A' && c <= 'Z') ||
+      (c >= '0' && c <= '9') ||
+      "_-!.~'()*".indexOf(c) != -1
+    );
+  }
+}
@@ -0,0 +1,177 @@
+package com.ciphernotes.twa.core;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Start-up milestones, event counters and request-path latency histograms for
+ * the WebView host.
+ *
+ * <p>Milestones are milliseconds since {@code originMs} on whatever clock the
+ * caller uses (SystemClock.elapsedRealtime on the device); only the first mark
+ * of each name counts. Histograms use fixed bucket bounds so a snapshot is
+ * cheap to take and to compare between runs. Has no Android dependencies and
+ * is safe to call from any thread.
+ */
+public final class Metrics {
+
+  /** Upper bucket bounds in microseconds; the last bucket is unbounded. */
+  public static final long[] BUCKET_BOUNDS_US = {
+    100,
+    250,
+    500,
+    1_000,
+    2_500,
+    5_000,
+    10_000,
+    25_000,
+    50_000,
+    100_000,
+    250_000,
+    1_000_000,
+  };
+
+  private final long originMs;
+  private final Map<String, Long> milestones = new LinkedHashMap<>();
+  private final Map<String, Long> counters = new TreeMap<>();
+  private final Map<String, Histogram> histograms = new TreeMap<>();
+
+  public Metrics(long originMs) {
+    this.originMs = originMs;
+  }
+
+  public long originMs() {
+    return originMs;
+  }
+
+  /** Records {@code name} at {@code nowMs}; returns false if it was already marked. */
+  public synchronized boolean mark(String name, long nowMs) {
+    if (milestones.containsKey(name)) {
+      return false;
+    }
+    milestones.put(name, nowMs - originMs);
+    return true;
+  }
+
+  /** Milliseconds from the origin to {@code name}, or -1 if not reached yet. */
+  public synchronized long milestone(String name) {
+    Long value = milestones.get(name);
+    return value != null ? value : -1;
+  }
+
+  /** Adds one to the counter {@code name} and returns the new count. */
+  public synchronized long increment(String name) {
+    Long value = counters.get(name);
+    long count = value != null ? value + 1 : 1;
+    counters.put(name, count);
+    return count;
+  }
+
+  /** The current count of {@code name}, 0 if it was never incremented. */
+  public synchronized long counter(String name) {
+    Long value = counters.get(name);
+    return value != null ? value : 0;
+  }
+
+  public void record(String name, long nanos) {
+    Histogram histogram;
+    synchronized (this) {
+      histogram = histograms.get(name);
+      if (histogram == null) {
+        histogram = new Histogram();
+        histograms.put(name, histogram);
+      }
+    }
+    histogram.record(nanos);
+  }
+
+  public synchronized String snapshotJson() {
+    StringBuilder out = new StringBuilder("{\"milestones\":{");
+    boolean first = true;
+    for (Map.Entry<String, Long> entry : milestones.entrySet()) {
+      if (!first) out.append(',');
+      first = false;
+      Json.appendQuoted(out, entry.getKey());
+      out.append(':').append(entry.getValue());
+    }
+    out.append("},\"counters\":{");
+    first = true;
+    for (Map.Entry<String, Long> entry : counters.entrySet()) {
+      if (!first) out.append(',');
+      first = false;
+      Json.appendQuoted(out, entry.getKey());
+      out.append(':').append(entry.getValue());
+    }
+    out.append("},\"histograms\":{");
+    first = true;
+    for (Map.Entry<String, Histogram> entry : histograms.entrySet()) {
+      if (!first) out.append(',');
+      first = false;
+      Json.appendQuoted(out, entry.getKey());
+      out.append(':');
+      entry.getValue().appendJson(out);
+    }
+    return out.append("}}").toString();
+  }
+
+  public static final class Histogram {
+
+    private final long[] buckets = new long[BUCKET_BOUNDS_US.length + 1];
+    private long count;
+    private long totalNanos;
+    private long maxNanos;
+
+    synchronized void record(long nanos) {
+      long micros = nanos / 1_000;
+      int bucket = 0;
+      while (bucket < BUCKET_BOUNDS_US.length && micros > BUCKET_BOUNDS_US[bucket]) {
+        bucket++;
+      }
+      buckets[bucket]++;
+      count++;
+      totalNanos += nanos;
+      maxNanos = Math.max(maxNanos, nanos);
+    }
+
+    public synchronized long count() {
+      return count;
+    }
+
+    /** Upper bound in microseconds of the bucket holding the given quantile. */
+    public synchronized long quantileUpperBoundUs(double quantile) {
+      if (count == 0) {
+        return 0;
+      }
+      long rank = (long) Math.ceil(quantile * count);
+      long seen = 0;
+      for (int i = 0; i < BUCKET_BOUNDS_US.length; i++) {
+        seen += buckets[i];
+        if (seen >= rank) {
+          return BUCKET_BOUNDS_US[i];
+        }
+      }
+      return maxNanos / 1_000;
+    }
+
+    synchronized void appendJson(StringBuilder out) {
+      out
+        .append("{\"count\":")
+        .append(count)
+        .append(",\"meanUs\":")
+        .append(count > 0 ? totalNanos / count / 1_000 : 0)
+        .append(",\"maxUs\":")
+        .append(maxNanos / 1_000)
+        .append(",\"p50Us\":")
+        .append(quantileUpperBoundUs(0.5))
+        .append(",\"p95Us\":")
+        .append(quantileUpperBoundUs(0.95))
+        .append(",\"buckets\":[");
+      for (int i = 0; i < buckets.length; i++) {
+        if (i > 0) out.append(',');
+        out.append(buckets[i]);
+      }
+      out.append("]}");
+    }
+  }
+}
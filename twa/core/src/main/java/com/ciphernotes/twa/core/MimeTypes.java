@@ -0,0 +1,72 @@
+package com.ciphernotes.twa.core;
+
+import java.net.URLConnection;
+import java.util.Locale;
+
+/**
+ * Content types for bundled assets that are missing from the asset index,
+ * e.g. in debug builds that skip the index step.
+ */
+public final class MimeTypes {
+
+  private MimeTypes() {}
+
+  /** The platform's guess, or one for the web types it does not know. */
+  public static String guess(String path) {
+    String mime = URLConnection.guessContentTypeFromName(path);
+    if (mime != null) {
+      return mime;
+    }
+    String lower = path.toLowerCase(Locale.US);
+    if (lower.endsWith(".js") || lower.endsWith(".mjs")) {
+      return "application/javascript";
+    }
+    if (lower.endsWith(".css")) {
+      return "text/css";
+    }
+    if (lower.endsWith(".json") || lower.endsWith(".webmanifest")) {
+      return "application/json";
+    }
+    if (lower.endsWith(".svg")) {
+      return "image/svg+xml";
+    }
+    if (lower.endsWith(".woff2")) {
+      return "font/woff2";
+    }
+    if (lower.endsWith(".woff")) {
+      return "font/woff";
+    }
+    if (lower.endsWith(".ttf")) {
+      return "font/ttf";
+    }
+    if (lower.endsWith(".otf")) {
+      return "font/otf";
+    }
+    if (lower.endsWith(".png")) {
+      return "image/png";
+    }
+    if (lower.endsWith(".jpg") || lower.endsWith(".jpeg")) {
+      return "image/jpeg";
+    }
+    if (lower.endsWith(".ico")) {
+      return "image/x-icon";
+    }
+    if (lower.endsWith(".txt")) {
+      return "text/plain";
+    }
+    return "application/octet-stream";
+  }
+
+  /** Whether responses of this type are text the WebView should decode as UTF-8. */
+  public static boolean isUtf8Text(String mimeType) {
+    return (
+      mimeType != null &&
+      (mimeType.startsWith("text/") ||
+        mimeType.equals("application/javascript") ||
+        mimeType.equals("application/json") ||
+        mimeType.equals("application/manifest+json") ||
+        mimeType.equals("application/xml") ||
+        mimeType.equals("image/svg+xml"))
+    );
+  }
+}
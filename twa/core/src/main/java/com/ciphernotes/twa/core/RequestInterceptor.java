@@ -0,0 +1,73 @@
+package com.ciphernotes.twa.core;
+
+/**
+ * The order in which the page's and the service worker's intercepted requests
+ * are answered: a bundled asset or native file, a refusal for hosts the
+ * {@link HostAllowlist} does not allow, the native {@link ApiProxy}, or the
+ * WebView's own network stack. Each outcome is timed into its own
+ * {@code intercept.*} histogram.
+ *
+ * <p>The steps that build platform responses are supplied by the caller, so
+ * the device and the replay harness run the same chain. Both clients call
+ * {@link #intercept} concurrently; it keeps no state of its own.
+ *
+ * @param <Q> the request as the caller has it
+ * @param <R> the response type handed back to the WebView
+ */
+public final class RequestInterceptor<Q, R> {
+
+  public interface Steps<Q, R> {
+    /** A bundled asset or native file for the request, or null. */
+    R local(Q request);
+
+    /** What a request the allowlist rejects gets instead. */
+    R blocked(Q request);
+
+    /** The native API proxy's response, or null when it is off, not eligible or failed. */
+    R proxy(Q request);
+  }
+
+  public interface BlockListener {
+    /** Called on the intercepting thread for each rejected request. */
+    void onBlocked(String scheme, String host);
+  }
+
+  private final HostAllowlist allowlist;
+  private final Metrics metrics;
+  private final BlockListener blocks;
+  private final Steps<Q, R> steps;
+
+  public RequestInterceptor(
+    HostAllowlist allowlist,
+    Metrics metrics,
+    BlockListener blocks,
+    Steps<Q, R> steps
+  ) {
+    this.allowlist = allowlist;
+    this.metrics = metrics;
+    this.blocks = blocks;
+    this.steps = steps;
+  }
+
+  /** The response for {@code request}, or null to let the WebView fetch it. */
+  public R intercept(Q request, String scheme, String host, String path) {
+    long start = System.nanoTime();
+    R response = steps.local(request);
+    if (response != null) {
+      metrics.record("intercept.asset", System.nanoTime() - start);
+      return response;
+    }
+    if (!allowlist.allows(scheme, host, path)) {
+      blocks.onBlocked(scheme, host);
+      metrics.record("intercept.blocked", System.nanoTime() - start);
+      return steps.blocked(request);
+    }
+    response = steps.proxy(request);
+    if (response != null) {
+      metrics.record("intercept.proxy", System.nanoTime() - start);
+      return response;
+    }
+    metrics.record("intercept.network", System.nanoTime() - start);
+    return null;
+  }
+}
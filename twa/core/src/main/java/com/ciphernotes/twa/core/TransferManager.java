@@ -0,0 +1,361 @@
+package com.ciphernotes.twa.core;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Downloads batches of presigned object URLs into app-private storage.
+ *
+ * <p>At most {@code parallelism} transfers run at once. Bytes go to
+ * {@code <id>.part} and the file is renamed to {@code <id>} when complete, so a
+ * transfer interrupted by a failure, {@link #shutdown} or process death resumes
+ * the next time the same id is enqueued. Network errors and 5xx/429 responses
+ * are retried with exponential backoff and jitter. The listener only hears
+ * about finished transfers.
+ *
+ * <p>Resuming needs the object to be the one the partial file was cut from:
+ * the response's ETag or Last-Modified and its total length are kept in
+ * {@code <id>.part.meta}, and the {@code Range} request carries the validator
+ * as {@code If-Range}, so a changed object comes back whole. A partial file
+ * without a validator is not resumed, a {@code Content-Range} that does not
+ * start at the partial's end restarts the transfer, and a 416 only counts as
+ * complete when the partial has the stored total length.
+ *
+ * <p>Free of Android types so it can be run against a local HTTP server.
+ */
+public final class TransferManager {
+
+  static final int CONNECT_TIMEOUT_MS = 15_000;
+  static final int READ_TIMEOUT_MS = 30_000;
+  static final int MAX_ATTEMPTS = 4;
+  static final long BASE_BACKOFF_MS = 1_000;
+  private static final Pattern VALID_ID = Pattern.compile("[A-Za-z0-9_-]{1,64}");
+  private static final Pattern CONTENT_RANGE = Pattern.compile(
+    "bytes\\s+(\\d+)-(\\d+)/(\\d+|\\*)"
+  );
+  private static final String PARTIAL_SUFFIX = ".part";
+  private static final String META_SUFFIX = ".meta";
+  private static final String META_ETAG = "etag";
+  private static final String META_LAST_MODIFIED = "lastModified";
+  private static final String META_LENGTH = "length";
+  private static final int COPY_BUFFER_BYTES = 64 * 1024;
+
+  public enum State {
+    DONE,
+    FAILED,
+  }
+
+  public interface Listener {
+    /** Called on a transfer thread; {@code error} is null unless FAILED. */
+    void onTransferFinished(String id, State state, long bytes, String error);
+  }
+
+  public static final class Download {
+
+    final String id;
+    final String url;
+
+    public Download(String id, String url) {
+      this.id = id;
+      this.url = url;
+    }
+  }
+
+  /** Thrown for responses that retrying will not fix. */
+  private static final class PermanentFailure extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    PermanentFailure(String message) {
+      super(message);
+    }
+  }
+
+  private final File dir;
+  private final ThreadPoolExecutor executor;
+  private final ConcurrentHashMap<String, Boolean> active = new ConcurrentHashMap<>();
+  private final Random jitter = new Random();
+  private final long baseBackoffMs;
+  private volatile Listener listener;
+
+  public TransferManager(File dir, int parallelism) {
+    this(dir, parallelism, BASE_BACKOFF_MS);
+  }
+
+  /** @param baseBackoffMs delay before the first retry, e.g. short for a local stand-in */
+  public TransferManager(File dir, int parallelism, long baseBackoffMs) {
+    this.dir = dir;
+    this.baseBackoffMs = baseBackoffMs;
+    this.executor = new ThreadPoolExecutor(
+      parallelism,
+      parallelism,
+      30,
+      TimeUnit.SECONDS,
+      new LinkedBlockingQueue<>()
+    );
+    this.executor.allowCoreThreadTimeOut(true);
+  }
+
+  public void setListener(Listener listener) {
+    this.listener = listener;
+  }
+
+  public static boolean isValidId(String id) {
+    return id != null && VALID_ID.matcher(id).matches();
+  }
+
+  /**
+   * Queues the downloads, skipping ids that are already running. A download
+   * whose file is already complete finishes immediately.
+   */
+  public void enqueue(List<Download> downloads) {
+    for (Download download : downloads) {
+      if (!isValidId(download.id)) {
+        throw new IllegalArgumentException("Invalid transfer id " + download.id);
+      }
+      if (active.putIfAbsent(download.id, Boolean.TRUE) == null) {
+        executor.execute(() -> run(download));
+      }
+    }
+  }
+
+  /** The completed file for {@code id}, or null if there is none. */
+  public File completedFile(String id) {
+    if (!isValidId(id)) {
+      return null;
+    }
+    File file = new File(dir, id);
+    return file.isFile() ? file : null;
+  }
+
+  /** Whether {@code file} belongs to a transfer that is queued or running. */
+  public boolean isInUse(File file) {
+    String name = file.getName();
+    if (name.endsWith(META_SUFFIX)) {
+      name = name.substring(0, name.length() - META_SUFFIX.length());
+    }
+    if (name.endsWith(PARTIAL_SUFFIX)) {
+      name = name.substring(0, name.length() - PARTIAL_SUFFIX.length());
+    }
+    return active.containsKey(name);
+  }
+
+  /** Deletes the downloaded file once the page has consumed it. */
+  public void release(String id) {
+    if (isValidId(id) && !active.containsKey(id)) {
+      new File(dir, id).delete();
+      new File(dir, id + PARTIAL_SUFFIX).delete();
+      new File(dir, id + PARTIAL_SUFFIX + META_SUFFIX).delete();
+    }
+  }
+
+  /** Stops all transfers; partial files are kept so they can resume. */
+  public void shutdown() {
+    executor.shutdownNow();
+  }
+
+  private void run(Download download) {
+    File target = new File(dir, download.id);
+    File partial = new File(dir, download.id + PARTIAL_SUFFIX);
+    File meta = new File(dir, download.id + PARTIAL_SUFFIX + META_SUFFIX);
+    try {
+      if (!target.isFile()) {
+        downloadWithRetries(download.url, partial, meta);
+        if (!partial.renameTo(target)) {
+          throw new IOException("Unable to move " + partial + " into place");
+        }
+        meta.delete();
+      }
+      active.remove(download.id);
+      notifyFinished(download.id, State.DONE, target.length(), null);
+    } catch (InterruptedException e) {
+      // Shut down: keep the partial file for the next attempt.
+      active.remove(download.id);
+      Thread.currentThread().interrupt();
+    } catch (IOException e) {
+      active.remove(download.id);
+      if (!Thread.currentThread().isInterrupted()) {
+        notifyFinished(download.id, State.FAILED, partial.length(), e.getMessage());
+      }
+    }
+  }
+
+  private void downloadWithRetries(String url, File partial, File meta)
+    throws IOException, InterruptedException {
+    if (!dir.isDirectory() && !dir.mkdirs()) {
+      throw new PermanentFailure("Unable to create " + dir);
+    }
+    for (int attempt = 1;; attempt++) {
+      try {
+        downloadOnce(url, partial, meta);
+        return;
+      } catch (PermanentFailure e) {
+        throw e;
+      } catch (IOException e) {
+        if (attempt >= MAX_ATTEMPTS || Thread.currentThread().isInterrupted()) {
+          throw e;
+        }
+        long backoff = baseBackoffMs << (attempt - 1);
+        Thread.sleep(backoff + jitter.nextInt((int) (backoff / 2) + 1));
+      }
+    }
+  }
+
+  private void downloadOnce(String url, File partial, File meta) throws IOException {
+    Properties validators = readMeta(meta);
+    String ifRange = null;
+    if (partial.isFile() && validators != null) {
+      // Weak ETags may not be used in If-Range; Last-Modified may.
+      String etag = validators.getProperty(META_ETAG);
+      ifRange = etag != null && !etag.startsWith("W/")
+        ? etag
+        : validators.getProperty(META_LAST_MODIFIED);
+    }
+    if (ifRange == null) {
+      // Nothing proves the rest would come from the same object.
+      discard(partial, meta);
+    }
+    long offset = partial.isFile() ? partial.length() : 0;
+    HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+    try {
+      connection.setConnectTimeout(CONNECT_TIMEOUT_MS);
+      connection.setReadTimeout(READ_TIMEOUT_MS);
+      // Encrypted blobs do not compress, and Range must address raw bytes.
+      connection.setRequestProperty("Accept-Encoding", "identity");
+      if (offset > 0) {
+        connection.setRequestProperty("Range", "bytes=" + offset + "-");
+        connection.setRequestProperty("If-Range", ifRange);
+      }
+      int status = connection.getResponseCode();
+      boolean append;
+      long total;
+      if (status == HttpURLConnection.HTTP_PARTIAL && offset > 0) {
+        Matcher range = CONTENT_RANGE.matcher(orEmpty(connection.getHeaderField("Content-Range")));
+        if (!range.matches() || Long.parseLong(range.group(1)) != offset) {
+          discard(partial, meta);
+          throw new IOException(
+            "Content-Range " + connection.getHeaderField("Content-Range") + " is not at " + offset
+          );
+        }
+        append = true;
+        total = "*".equals(range.group(3))
+          ? parseLength(validators.getProperty(META_LENGTH))
+          : Long.parseLong(range.group(3));
+      } else if (status == HttpURLConnection.HTTP_OK) {
+        // A fresh start, or the object changed and If-Range sent all of it.
+        append = false;
+        total = parseLength(connection.getHeaderField("Content-Length"));
+        writeMeta(meta, connection, total);
+      } else if (status == 416 && offset > 0) {
+        if (offset == parseLength(validators.getProperty(META_LENGTH))) {
+          // The partial file already holds everything.
+          return;
+        }
+        discard(partial, meta);
+        throw new IOException("HTTP 416 at " + offset + "; restarting");
+      } else if (status >= 500 || status == 429) {
+        throw new IOException("HTTP " + status);
+      } else {
+        throw new PermanentFailure("HTTP " + status);
+      }
+      try (
+        InputStream in = connection.getInputStream();
+        OutputStream out = new FileOutputStream(partial, append)
+      ) {
+        byte[] buffer = new byte[COPY_BUFFER_BYTES];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+          out.write(buffer, 0, read);
+          if (Thread.currentThread().isInterrupted()) {
+            throw new IOException("Interrupted");
+          }
+        }
+      }
+      if (total >= 0 && partial.length() != total) {
+        throw new IOException("Got " + partial.length() + " of " + total + " bytes");
+      }
+    } finally {
+      connection.disconnect();
+    }
+  }
+
+  /** The validators stored for a partial file, or null if there are none. */
+  private static Properties readMeta(File meta) {
+    if (!meta.isFile()) {
+      return null;
+    }
+    Properties properties = new Properties();
+    try (InputStream in = new FileInputStream(meta)) {
+      properties.load(in);
+      return properties;
+    } catch (IOException | IllegalArgumentException e) {
+      return null;
+    }
+  }
+
+  private static void writeMeta(File meta, HttpURLConnection connection, long total)
+    throws IOException {
+    String etag = connection.getHeaderField("ETag");
+    String lastModified = connection.getHeaderField("Last-Modified");
+    if (etag == null && lastModified == null) {
+      meta.delete();
+      return;
+    }
+    Properties properties = new Properties();
+    if (etag != null) {
+      properties.setProperty(META_ETAG, etag);
+    }
+    if (lastModified != null) {
+      properties.setProperty(META_LAST_MODIFIED, lastModified);
+    }
+    if (total >= 0) {
+      properties.setProperty(META_LENGTH, Long.toString(total));
+    }
+    try (OutputStream out = new FileOutputStream(meta)) {
+      properties.store(out, null);
+    }
+  }
+
+  private static void discard(File partial, File meta) {
+    partial.delete();
+    meta.delete();
+  }
+
+  /** A non-negative length header or property, or -1. */
+  private static long parseLength(String value) {
+    if (value == null) {
+      return -1;
+    }
+    try {
+      return Math.max(-1, Long.parseLong(value.trim()));
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  private static String orEmpty(String value) {
+    return value != null ? value : "";
+  }
+
+  private void notifyFinished(String id, State state, long bytes, String error) {
+    Listener current = listener;
+    if (current != null) {
+      current.onTransferFinished(id, state, bytes, error);
+    }
+  }
+}
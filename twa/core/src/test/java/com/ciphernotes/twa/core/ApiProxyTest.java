@@ -0,0 +1,270 @@
+package com.ciphernotes.twa.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Runs {@link ApiProxy} against a local mock of the backend's API: coalescing
+ * of identical concurrent GETs per session, gzip, the cookie jar, keep-alive
+ * reuse and error bodies.
+ */
+public class ApiProxyTest {
+
+  private static final String PAGE_URL = "https://app.ciphernotes.com/";
+  private static final String OTHER_PAGE_URL = "https://other.ciphernotes.com/";
+  private static final int CONCURRENT = 8;
+  private static final long SLOW_MS = 300;
+
+  private final Map<String, AtomicInteger> hits = new ConcurrentHashMap<>();
+  private final List<Integer> clientPorts = Collections.synchronizedList(new ArrayList<>());
+  private final Map<String, String> jar = new ConcurrentHashMap<>();
+  private volatile String lastCookie;
+  private volatile String lastAcceptEncoding;
+  private HttpServer server;
+  private ExecutorService clients;
+  private ApiProxy proxy;
+
+  @Before
+  public void setUp() throws IOException {
+    server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+    server.createContext("/api/", this::handle);
+    server.setExecutor(Executors.newCachedThreadPool());
+    server.start();
+    clients = Executors.newFixedThreadPool(CONCURRENT + 1);
+    proxy = new ApiProxy(
+      "/api/",
+      "http://127.0.0.1:" + server.getAddress().getPort(),
+      new ApiProxy.CookieJar() {
+        @Override
+        public String get(String url) {
+          return jar.get(url);
+        }
+
+        @Override
+        public void put(String url, String setCookie) {
+          jar.put(url, setCookie.substring(0, setCookie.indexOf(';')));
+        }
+      }
+    );
+    jar.put(PAGE_URL, "session=one");
+    jar.put(OTHER_PAGE_URL, "session=two");
+  }
+
+  @After
+  public void tearDown() {
+    clients.shutdownNow();
+    server.stop(0);
+  }
+
+  @Test
+  public void proxiesOnlyBodilessRequestsUnderTheBasePath() {
+    assertTrue(proxy.shouldProxy("GET", "/api/notes"));
+    assertTrue(proxy.shouldProxy("head", "/api/notes"));
+    assertFalse(proxy.shouldProxy("POST", "/api/syncNotes"));
+    assertFalse(proxy.shouldProxy("GET", "/assets/app.js"));
+    assertFalse(proxy.shouldProxy("GET", null));
+  }
+
+  @Test
+  public void identicalConcurrentGetsReachTheServerOncePerSession() throws Exception {
+    List<Future<ApiProxy.Response>> same = new ArrayList<>();
+    for (int i = 0; i < CONCURRENT; i++) {
+      same.add(clients.submit(get(PAGE_URL, "/api/slow")));
+    }
+    Future<ApiProxy.Response> otherSession = clients.submit(get(OTHER_PAGE_URL, "/api/slow"));
+    for (Future<ApiProxy.Response> response : same) {
+      assertEquals("slow session=one", text(response.get()));
+    }
+    assertEquals("slow session=two", text(otherSession.get()));
+    assertEquals(2, hits("/api/slow"));
+    assertTrue(
+      proxy.metricsJson(),
+      proxy
+        .metricsJson()
+        .contains("\"/api/slow\":{\"count\":2,\"errors\":0,\"coalesced\":" + (CONCURRENT - 1))
+    );
+  }
+
+  @Test
+  public void finishedGetsAreNotReused() throws Exception {
+    get(PAGE_URL, "/api/slow").call();
+    get(PAGE_URL, "/api/slow").call();
+    assertEquals(2, hits("/api/slow"));
+  }
+
+  @Test
+  public void gzipBodiesAreInflated() throws Exception {
+    ApiProxy.Response response = get(PAGE_URL, "/api/gzip").call();
+    assertNotNull(lastAcceptEncoding);
+    assertTrue(lastAcceptEncoding.contains("gzip"));
+    assertEquals(gzipBody(), text(response));
+    assertFalse(hasHeader(response, "Content-Encoding"));
+    assertEquals("application/json", response.mimeType);
+    assertEquals("utf-8", response.encoding);
+  }
+
+  @Test
+  public void sendsTheJarsCookieAndStoresSetCookie() throws Exception {
+    Map<String, String> pageHeaders = new HashMap<>();
+    pageHeaders.put("Cookie", "session=forged");
+    pageHeaders.put("X-Requested-With", "ciphernotes");
+    ApiProxy.Response login = proxy.execute(
+      "GET",
+      PAGE_URL,
+      "/api/login",
+      "/api/login?x=1",
+      pageHeaders
+    );
+    assertEquals("session=one", lastCookie);
+    assertEquals("ciphernotes", text(login));
+    assertEquals("session=three", jar.get(PAGE_URL));
+    assertFalse(hasHeader(login, "Set-Cookie"));
+    assertTrue(hasHeader(login, "X-Request-Id"));
+    get(PAGE_URL, "/api/gzip").call();
+    assertEquals("session=three", lastCookie);
+  }
+
+  @Test
+  public void sequentialRequestsReuseOneKeepAliveSocket() throws Exception {
+    get(PAGE_URL, "/api/gzip").call();
+    get(PAGE_URL, "/api/missing").call();
+    get(PAGE_URL, "/api/gzip").call();
+    assertEquals(3, clientPorts.size());
+    assertEquals(clientPorts.get(0), clientPorts.get(1));
+    assertEquals(clientPorts.get(1), clientPorts.get(2));
+  }
+
+  @Test
+  public void errorStatusesComeBackAsResponses() throws Exception {
+    ApiProxy.Response missing = get(PAGE_URL, "/api/missing").call();
+    assertEquals(404, missing.status);
+    assertEquals("{\"error\":\"missing\"}", text(missing));
+    ApiProxy.Response broken = get(PAGE_URL, "/api/broken").call();
+    assertEquals(500, broken.status);
+    assertTrue(proxy.metricsJson().contains("\"/api/broken\":{\"count\":1,\"errors\":1"));
+  }
+
+  @Test
+  public void statsAreKeptForAtMostMaxEndpointsPaths() throws Exception {
+    for (int i = 0; i < ApiProxy.MAX_ENDPOINTS + 5; i++) {
+      get(PAGE_URL, "/api/missing/" + i).call();
+    }
+    String json = proxy.metricsJson();
+    assertTrue(json, json.contains("\"/api/missing/0\":{\"count\":1,"));
+    assertFalse(json, json.contains("\"/api/missing/" + ApiProxy.MAX_ENDPOINTS + "\""));
+    assertTrue(json, json.contains("\"" + ApiProxy.OTHER_ENDPOINT + "\":{\"count\":5,"));
+  }
+
+  private Callable<ApiProxy.Response> get(String pageUrl, String path) {
+    return () -> proxy.execute("GET", pageUrl, path, path, Collections.emptyMap());
+  }
+
+  private void handle(HttpExchange exchange) throws IOException {
+    String path = exchange.getRequestURI().getPath();
+    hits.computeIfAbsent(path, key -> new AtomicInteger()).incrementAndGet();
+    clientPorts.add(exchange.getRemoteAddress().getPort());
+    String cookie = exchange.getRequestHeaders().getFirst("Cookie");
+    lastCookie = cookie;
+    lastAcceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+    exchange.getRequestBody().close();
+    switch (path) {
+      case "/api/slow":
+        try {
+          Thread.sleep(SLOW_MS);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+        respond(exchange, 200, "text/plain", "slow " + cookie);
+        return;
+      case "/api/gzip":
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzip = new GZIPOutputStream(compressed)) {
+          gzip.write(gzipBody().getBytes(StandardCharsets.UTF_8));
+        }
+        exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+        respond(exchange, 200, "application/json; charset=utf-8", compressed.toByteArray());
+        return;
+      case "/api/login":
+        exchange.getResponseHeaders().add("Set-Cookie", "session=three; Path=/; HttpOnly");
+        exchange.getResponseHeaders().set("X-Request-Id", "42");
+        respond(
+          exchange,
+          200,
+          "text/plain",
+          String.valueOf(exchange.getRequestHeaders().getFirst("X-Requested-With"))
+        );
+        return;
+      case "/api/broken":
+        respond(exchange, 500, "application/json", "{\"error\":\"broken\"}");
+        return;
+      default:
+        respond(exchange, 404, "application/json", "{\"error\":\"missing\"}");
+    }
+  }
+
+  private static String gzipBody() {
+    StringBuilder out = new StringBuilder("[");
+    for (int i = 0; i < 200; i++) {
+      out.append(i > 0 ? "," : "").append("{\"id\":").append(i).append(",\"title\":\"note\"}");
+    }
+    return out.append(']').toString();
+  }
+
+  private int hits(String path) {
+    AtomicInteger count = hits.get(path);
+    return count != null ? count.get() : 0;
+  }
+
+  private static boolean hasHeader(ApiProxy.Response response, String name) {
+    for (String header : response.headers.keySet()) {
+      if (header.equalsIgnoreCase(name)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static String text(ApiProxy.Response response) {
+    return new String(response.body, StandardCharsets.UTF_8);
+  }
+
+  private static void respond(HttpExchange exchange, int status, String type, String body)
+    throws IOException {
+    respond(exchange, status, type, body.getBytes(StandardCharsets.UTF_8));
+  }
+
+  private static void respond(HttpExchange exchange, int status, String type, byte[] body)
+    throws IOException {
+    exchange.getResponseHeaders().set("Content-Type", type);
+    exchange.sendResponseHeaders(status, body.length);
+    try (OutputStream out = exchange.getResponseBody()) {
+      out.write(body);
+    }
+  }
+}
@@ -0,0 +1,138 @@
+package com.ciphernotes.twa.core;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import org.junit.Test;
+
+public class AssetCacheTest {
+
+  @Test
+  public void defaultBudgetIsASixteenthOfTheHeapClamped() {
+    assertEquals(4L << 20, AssetCache.defaultBudget(32L << 20));
+    assertEquals(8L << 20, AssetCache.defaultBudget(128L << 20));
+    assertEquals(16L << 20, AssetCache.defaultBudget(512L << 20));
+  }
+
+  @Test
+  public void countsHitsAndMisses() {
+    AssetCache cache = new AssetCache(100);
+    AssetCache.Entry entry = entry(10);
+    cache.put("a", entry);
+    assertSame(entry, cache.get("a"));
+    assertNull(cache.get("b"));
+    assertEquals(1, cache.hits());
+    assertEquals(1, cache.misses());
+  }
+
+  @Test
+  public void evictsLeastRecentlyUsedFirst() {
+    AssetCache cache = new AssetCache(100);
+    cache.put("a", entry(40));
+    cache.put("b", entry(40));
+    cache.get("a");
+    cache.put("c", entry(40));
+    assertNotNull(cache.get("a"));
+    assertNull(cache.get("b"));
+    assertNotNull(cache.get("c"));
+    assertEquals(80, cache.sizeBytes());
+  }
+
+  @Test
+  public void replacingAnEntryCountsItsSizeOnce() {
+    AssetCache cache = new AssetCache(100);
+    cache.put("a", entry(40));
+    cache.put("a", entry(30));
+    assertEquals(30, cache.sizeBytes());
+  }
+
+  @Test
+  public void skipsEntriesOverHalfTheBudget() {
+    AssetCache cache = new AssetCache(100);
+    cache.put("a", entry(51));
+    assertNull(cache.get("a"));
+    assertEquals(0, cache.sizeBytes());
+  }
+
+  @Test
+  public void shrinkingEvictsUntilRestored() {
+    AssetCache cache = new AssetCache(100);
+    cache.put("a", entry(30));
+    cache.put("b", entry(30));
+    cache.put("c", entry(30));
+    cache.shrinkBudget(0.5);
+    assertEquals(30, cache.sizeBytes());
+    assertNotNull(cache.get("c"));
+    cache.put("d", entry(30));
+    assertNull(cache.get("d"));
+    cache.shrinkBudget(0);
+    assertEquals(0, cache.sizeBytes());
+    cache.restoreBudget();
+    cache.put("d", entry(30));
+    assertNotNull(cache.get("d"));
+  }
+
+  @Test
+  public void cacheThroughStoresSmallBodies() throws IOException {
+    AssetCache cache = new AssetCache(1 << 20);
+    byte[] body = bytes(1000);
+    InputStream in = cache.cacheThrough(
+      "app.js",
+      new ByteArrayInputStream(body),
+      "text/javascript",
+      "utf-8",
+      Collections.emptyMap()
+    );
+    assertArrayEquals(body, readAll(in));
+    AssetCache.Entry entry = cache.get("app.js");
+    assertNotNull(entry);
+    assertArrayEquals(body, entry.bytes);
+    assertEquals("text/javascript", entry.mimeType);
+  }
+
+  @Test
+  public void cacheThroughStreamsLargeBodiesUncached() throws IOException {
+    AssetCache cache = new AssetCache(64 * 1024);
+    byte[] body = bytes(100 * 1024);
+    InputStream in = cache.cacheThrough(
+      "big.wasm",
+      new ByteArrayInputStream(body),
+      "application/wasm",
+      null,
+      Collections.emptyMap()
+    );
+    assertArrayEquals(body, readAll(in));
+    assertNull(cache.get("big.wasm"));
+    assertEquals(0, cache.sizeBytes());
+  }
+
+  private static AssetCache.Entry entry(int size) {
+    return new AssetCache.Entry(new byte[size], "text/plain", "utf-8", Collections.emptyMap());
+  }
+
+  private static byte[] bytes(int size) {
+    byte[] bytes = new byte[size];
+    for (int i = 0; i < size; i++) {
+      bytes[i] = (byte) i;
+    }
+    return bytes;
+  }
+
+  private static byte[] readAll(InputStream in) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[4096];
+    int read;
+    while ((read = in.read(buffer)) != -1) {
+      out.write(buffer, 0, read);
+    }
+    return out.toByteArray();
+  }
+}
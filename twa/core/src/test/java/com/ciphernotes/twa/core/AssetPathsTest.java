@@ -0,0 +1,27 @@
+package com.ciphernotes.twa.core;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class AssetPathsTest {
+
+  @Test
+  public void rootResolvesToIndex() {
+    assertEquals("index.html", AssetPaths.normalize(null));
+    assertEquals("index.html", AssetPaths.normalize(""));
+    assertEquals("index.html", AssetPaths.normalize("/"));
+  }
+
+  @Test
+  public void directoriesResolveToTheirIndex() {
+    assertEquals("docs/index.html", AssetPaths.normalize("/docs/"));
+  }
+
+  @Test
+  public void filesLoseTheLeadingSlash() {
+    assertEquals("assets/app.js", AssetPaths.normalize("/assets/app.js"));
+    assertEquals("assets/app.js", AssetPaths.normalize("assets/app.js"));
+    assertEquals("/assets/app.js", AssetPaths.normalize("//assets/app.js"));
+  }
+}
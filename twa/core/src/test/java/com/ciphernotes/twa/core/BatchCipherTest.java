@@ -0,0 +1,194 @@
+package com.ciphernotes.twa.core;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Checks {@link BatchCipher} frames against a known answer from the page's
+ * WebCrypto ({@code crypto.subtle.encrypt} with AES-GCM, a 12-byte IV and a
+ * 128-bit tag, as in {@code util/encryption.ts}), so either side can decrypt
+ * what the other wrote.
+ */
+public class BatchCipherTest {
+
+  private static final byte[] KEY = sequence(0x00, BatchCipher.KEY_BYTES);
+  private static final byte[] IV = sequence(0xa0, BatchCipher.IV_BYTES);
+  private static final String PLAINTEXT = "{\"title\":\"Groceries\",\"txt\":\"eggs\"}";
+  /** Ciphertext followed by the tag, as WebCrypto returns it for the inputs above. */
+  private static final String CIPHERTEXT =
+    "9d3a084431a7679d5847c0a16819a5ac19c92a32be953614e82c1ca41acc1272f00b" +
+    "daff9da06e3854695648417bcec0a6a1";
+
+  private final ForkJoinPool pool = new ForkJoinPool(2);
+  private final BatchCipher cipher = new BatchCipher(pool);
+
+  @After
+  public void tearDown() {
+    pool.shutdownNow();
+  }
+
+  @Test
+  public void decryptsWhatWebCryptoEncrypted() {
+    byte[] response = cipher.process(
+      request(7, BatchCipher.OP_DECRYPT, Arrays.asList(hex(CIPHERTEXT)))
+    );
+    List<Result> results = results(7, response);
+    assertEquals(1, results.size());
+    assertEquals(0, results.get(0).status);
+    assertArrayEquals(IV, results.get(0).iv);
+    assertEquals(PLAINTEXT, new String(results.get(0).data, StandardCharsets.UTF_8));
+  }
+
+  @Test
+  public void encryptsToWhatWebCryptoProducesForTheSameIv() {
+    byte[] plaintext = PLAINTEXT.getBytes(StandardCharsets.UTF_8);
+    // process() picks a random IV, so the cipher step is driven directly.
+    BatchCipher.Item item = new BatchCipher.Item();
+    item.iv = IV.clone();
+    item.input = plaintext;
+    item.length = plaintext.length;
+    cipher.run(
+      new BatchCipher.Item[] { item },
+      Cipher.ENCRYPT_MODE,
+      new SecretKeySpec(KEY, "AES")
+    );
+    assertArrayEquals(hex(CIPHERTEXT), item.output);
+  }
+
+  @Test
+  public void encryptedItemsDecryptWithTheirFreshIv() {
+    byte[] plaintext = PLAINTEXT.getBytes(StandardCharsets.UTF_8);
+    Result encrypted = results(
+      8,
+      cipher.process(request(8, BatchCipher.OP_ENCRYPT, Arrays.asList(plaintext)))
+    ).get(0);
+    assertEquals(0, encrypted.status);
+    assertEquals(plaintext.length + BatchCipher.TAG_BITS / 8, encrypted.data.length);
+    Result decrypted = results(
+      9,
+      cipher.process(requestWithIv(9, encrypted.iv, encrypted.data))
+    ).get(0);
+    assertEquals(PLAINTEXT, new String(decrypted.data, StandardCharsets.UTF_8));
+  }
+
+  @Test
+  public void badTagFailsOnlyThatItem() {
+    byte[] tampered = hex(CIPHERTEXT);
+    tampered[tampered.length - 1] ^= 1;
+    List<Result> results = results(
+      3,
+      cipher.process(request(3, BatchCipher.OP_DECRYPT, Arrays.asList(tampered, hex(CIPHERTEXT))))
+    );
+    assertEquals(1, results.get(0).status);
+    assertEquals(0, results.get(0).data.length);
+    assertEquals(0, results.get(1).status);
+  }
+
+  @Test
+  public void largeBatchesAreSplitAcrossThePool() {
+    List<byte[]> items = new ArrayList<>();
+    for (int i = 0; i < 100; i++) {
+      items.add(hex(CIPHERTEXT));
+    }
+    List<Result> results = results(4, cipher.process(request(4, BatchCipher.OP_DECRYPT, items)));
+    assertEquals(100, results.size());
+    for (Result result : results) {
+      assertEquals(PLAINTEXT, new String(result.data, StandardCharsets.UTF_8));
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void rejectsTruncatedFrame() {
+    byte[] request = request(5, BatchCipher.OP_DECRYPT, Arrays.asList(hex(CIPHERTEXT)));
+    cipher.process(Arrays.copyOf(request, request.length - 1));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void rejectsUnknownOp() {
+    cipher.process(request(5, 9, Arrays.asList(hex(CIPHERTEXT))));
+  }
+
+  @Test
+  public void errorResponseCarriesTheRequestId() {
+    ByteBuffer error = ByteBuffer.wrap(
+      BatchCipher.errorResponse(request(0x01020304, 9, Arrays.asList()))
+    ).order(ByteOrder.LITTLE_ENDIAN);
+    assertEquals(8, error.remaining());
+    assertEquals(0x01020304, error.getInt());
+    assertEquals(BatchCipher.ERROR_COUNT, error.getInt());
+    assertNull(BatchCipher.errorResponse(new byte[3]));
+  }
+
+  private static final class Result {
+
+    int status;
+    byte[] iv;
+    byte[] data;
+  }
+
+  private static byte[] request(int requestId, int op, List<byte[]> items) {
+    int size = 4 + 1 + BatchCipher.KEY_BYTES + 4;
+    for (byte[] item : items) {
+      size += BatchCipher.IV_BYTES + 4 + item.length;
+    }
+    ByteBuffer out = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+    out.putInt(requestId).put((byte) op).put(KEY).putInt(items.size());
+    for (byte[] item : items) {
+      out.put(IV).putInt(item.length).put(item);
+    }
+    return out.array();
+  }
+
+  private static byte[] requestWithIv(int requestId, byte[] iv, byte[] data) {
+    byte[] request = request(requestId, BatchCipher.OP_DECRYPT, Arrays.asList(data));
+    System.arraycopy(iv, 0, request, 4 + 1 + BatchCipher.KEY_BYTES + 4, iv.length);
+    return request;
+  }
+
+  private static List<Result> results(int requestId, byte[] response) {
+    ByteBuffer in = ByteBuffer.wrap(response).order(ByteOrder.LITTLE_ENDIAN);
+    assertEquals(requestId, in.getInt());
+    int count = in.getInt();
+    List<Result> results = new ArrayList<>();
+    for (int i = 0; i < count; i++) {
+      Result result = new Result();
+      result.status = in.get();
+      result.iv = new byte[BatchCipher.IV_BYTES];
+      in.get(result.iv);
+      result.data = new byte[in.getInt()];
+      in.get(result.data);
+      results.add(result);
+    }
+    assertEquals(0, in.remaining());
+    return results;
+  }
+
+  private static byte[] sequence(int first, int length) {
+    byte[] bytes = new byte[length];
+    for (int i = 0; i < length; i++) {
+      bytes[i] = (byte) (first + i);
+    }
+    return bytes;
+  }
+
+  private static byte[] hex(String hex) {
+    byte[] bytes = new byte[hex.length() / 2];
+    for (int i = 0; i < bytes.length; i++) {
+      bytes[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+    }
+    return bytes;
+  }
+}
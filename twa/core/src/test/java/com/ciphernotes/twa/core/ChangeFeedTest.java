@@ -0,0 +1,300 @@
+package com.ciphernotes.twa.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Runs {@link ChangeFeed} against a local stand-in for the backend's socket.io
+ * endpoint speaking Engine.IO 4 long-polling: handshake, namespace connect,
+ * pings, bursts of {@code notesPushed}, a server restart that forgets the
+ * session, and a rejected session.
+ */
+public class ChangeFeedTest {
+
+  private static final String SESSION = "session=s%3Aabc.def";
+  private static final String RS = "\u001e";
+  private static final long QUIET_MS = 200;
+  private static final long MAX_DELAY_MS = 600;
+
+  private final BlockingDeque<String> outbox = new LinkedBlockingDeque<>();
+  private final LinkedBlockingQueue<ChangeFeed.Batch> batches = new LinkedBlockingQueue<>();
+  private final List<Boolean> connections = Collections.synchronizedList(new ArrayList<>());
+  private final AtomicInteger handshakes = new AtomicInteger();
+  private final AtomicInteger pongs = new AtomicInteger();
+  private final String[] jar = { SESSION };
+  private volatile String sid;
+  private volatile boolean rejectSession;
+  private volatile boolean signedOut;
+  private HttpServer server;
+  private ChangeFeed feed;
+
+  @Before
+  public void setUp() throws IOException {
+    server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+    server.createContext("/socket.io/", this::handle);
+    // Long polls block a handler thread each.
+    server.setExecutor(Executors.newCachedThreadPool());
+    server.start();
+    feed = new ChangeFeed(
+      "http://127.0.0.1:" + server.getAddress().getPort(),
+      "https://ciphernotes.com/socket.io/",
+      url -> jar[0],
+      new ChangeFeed.Listener() {
+        @Override
+        public void onConnectionChanged(boolean connected) {
+          connections.add(connected);
+        }
+
+        @Override
+        public void onChanges(ChangeFeed.Batch batch) {
+          batches.add(batch);
+        }
+
+        @Override
+        public void onSignedOut() {
+          signedOut = true;
+        }
+      },
+      QUIET_MS,
+      MAX_DELAY_MS
+    );
+  }
+
+  @After
+  public void tearDown() {
+    feed.stop();
+    server.stop(0);
+  }
+
+  @Test
+  public void splitsPayloadAtRecordSeparators() {
+    assertEquals(Arrays.asList("2", "40", ""), ChangeFeed.split("2" + RS + "40" + RS));
+    assertEquals(Arrays.asList(""), ChangeFeed.split(""));
+  }
+
+  @Test
+  public void backoffDoublesWithJitterUpToTheCap() {
+    for (int failures = 0; failures < 40; failures++) {
+      long delay = Math.min(
+        ChangeFeed.MAX_BACKOFF_MS,
+        ChangeFeed.MIN_BACKOFF_MS << Math.min(failures, 16)
+      );
+      long backoff = feed.backoffMs(failures);
+      assertTrue(backoff >= delay / 2 && backoff <= delay);
+    }
+  }
+
+  @Test
+  public void connectsAndAnswersPings() throws Exception {
+    feed.start();
+    waitFor(feed::isConnected);
+    assertEquals(1, handshakes.get());
+
+    outbox.add("2");
+    waitFor(() -> pongs.get() == 1);
+  }
+
+  @Test
+  public void burstArrivesAsOneBatch() throws Exception {
+    feed.start();
+    waitFor(feed::isConnected);
+
+    outbox.add("42[\"notesPushed\",[\"a\",\"b\"]]" + RS + "42[\"notesPushed\",[\"b\"]]");
+    Thread.sleep(QUIET_MS / 2);
+    outbox.add("42[\"notesPushed\",[\"c\"]]");
+    outbox.add("42[\"somethingElse\",[\"x\"]]");
+    ChangeFeed.Batch batch = batches.poll(5, TimeUnit.SECONDS);
+    assertNotNull(batch);
+    assertEquals(3, batch.events);
+    assertEquals(Arrays.asList("a", "b", "c"), batch.ids);
+    assertFalse(batch.truncated);
+    assertNull(batches.poll(QUIET_MS * 2, TimeUnit.MILLISECONDS));
+  }
+
+  @Test
+  public void trickleIsFlushedByTheMaximumDelay() throws Exception {
+    feed.start();
+    waitFor(feed::isConnected);
+
+    for (int i = 0; i < 8; i++) {
+      outbox.add("42[\"notesPushed\",[\"n" + i + "\"]]");
+      Thread.sleep(QUIET_MS / 2);
+    }
+    ChangeFeed.Batch batch = batches.poll(5, TimeUnit.SECONDS);
+    assertNotNull(batch);
+    assertTrue(batch.ids.size() < 8);
+  }
+
+  @Test
+  public void reconnectsWhenTheServerForgetsTheSession() throws Exception {
+    feed.start();
+    waitFor(feed::isConnected);
+
+    sid = null;
+    outbox.add("6");
+    waitFor(() -> connections.contains(false));
+    waitFor(() -> feed.isConnected() && handshakes.get() == 2);
+  }
+
+  @Test
+  public void stopDisconnectsAndStartReconnects() throws Exception {
+    feed.start();
+    waitFor(feed::isConnected);
+
+    feed.stop();
+    assertFalse(feed.isConnected());
+    assertEquals(Boolean.FALSE, connections.get(connections.size() - 1));
+    feed.start();
+    waitFor(feed::isConnected);
+  }
+
+  @Test
+  public void rejectedSessionSignsOutWithoutRetrying() throws Exception {
+    feed.start();
+    waitFor(feed::isConnected);
+
+    rejectSession = true;
+    sid = null;
+    outbox.add("6");
+    waitFor(() -> signedOut);
+    assertFalse(feed.isRunning());
+    int before = handshakes.get();
+    Thread.sleep(QUIET_MS * 3);
+    assertEquals(before, handshakes.get());
+  }
+
+  @Test
+  public void missingCookieSignsOutWithoutARequest() throws Exception {
+    jar[0] = null;
+    feed.start();
+    waitFor(() -> signedOut);
+    assertEquals(0, handshakes.get());
+  }
+
+  private void handle(HttpExchange exchange) throws IOException {
+    String query = exchange.getRequestURI().getQuery();
+    String body = readFully(exchange.getRequestBody());
+    String cookie = exchange.getRequestHeaders().getFirst("Cookie");
+    if (cookie == null || !query.contains("EIO=4") || !query.contains("transport=polling")) {
+      respond(exchange, 400, "{\"code\":3,\"message\":\"Bad request\"}");
+      return;
+    }
+    String current = sid;
+    int at = query.indexOf("sid=");
+    if (at == -1) {
+      handshakes.incrementAndGet();
+      current = "s" + handshakes.get();
+      sid = current;
+      outbox.clear();
+      respond(
+        exchange,
+        200,
+        "0{\"sid\":\"" +
+        current +
+        "\",\"upgrades\":[],\"pingInterval\":1000,\"pingTimeout\":1000,\"maxPayload\":1000000}"
+      );
+      return;
+    }
+    String requested = query.substring(at + 4).split("&")[0];
+    if (!requested.equals(current)) {
+      respond(exchange, 400, "{\"code\":1,\"message\":\"Session ID unknown\"}");
+      return;
+    }
+    if ("POST".equals(exchange.getRequestMethod())) {
+      for (String packet : body.split(RS)) {
+        if (packet.equals("40")) {
+          // The session middleware runs on namespace connect.
+          outbox.add(
+            rejectSession
+              ? "44{\"message\":\"Invalid session\"}"
+              : "40{\"sid\":\"n" + current + "\"}"
+          );
+        } else if (packet.equals("3")) {
+          pongs.incrementAndGet();
+        }
+      }
+      respond(exchange, 200, "ok");
+      return;
+    }
+    try {
+      String packet = outbox.poll(500, TimeUnit.MILLISECONDS);
+      if (!requested.equals(sid)) {
+        // A poll left over from a closed session must not eat the next one's packets.
+        if (packet != null) {
+          outbox.addFirst(packet);
+        }
+        respond(exchange, 400, "{\"code\":1,\"message\":\"Session ID unknown\"}");
+        return;
+      }
+      StringBuilder payload = new StringBuilder(packet != null ? packet : "6");
+      String more;
+      while ((more = outbox.poll()) != null) {
+        payload.append(RS).append(more);
+      }
+      respond(exchange, 200, payload.toString());
+    } catch (InterruptedException e) {
+      respond(exchange, 500, "");
+    }
+  }
+
+  private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+    byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+    exchange.getResponseHeaders().add("Content-Type", "text/plain; charset=UTF-8");
+    exchange.sendResponseHeaders(status, bytes.length);
+    try (OutputStream out = exchange.getResponseBody()) {
+      out.write(bytes);
+    }
+  }
+
+  private interface Condition {
+    boolean holds();
+  }
+
+  /** Fails the test unless {@code condition} holds within ten seconds. */
+  private static void waitFor(Condition condition) throws InterruptedException {
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+    while (System.nanoTime() < deadline) {
+      if (condition.holds()) {
+        return;
+      }
+      Thread.sleep(20);
+    }
+    assertTrue(condition.holds());
+  }
+
+  private static String readFully(InputStream in) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[8192];
+    int read;
+    while ((read = in.read(buffer)) != -1) {
+      out.write(buffer, 0, read);
+    }
+    return new String(out.toByteArray(), StandardCharsets.UTF_8);
+  }
+}
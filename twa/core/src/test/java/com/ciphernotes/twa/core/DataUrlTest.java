@@ -0,0 +1,80 @@
+package com.ciphernotes.twa.core;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Random;
+import org.junit.Test;
+
+public class DataUrlTest {
+
+  @Test
+  public void parsesMimeType() {
+    assertEquals("image/png", DataUrl.parse("data:image/png;base64,AAAA").mimeType);
+    assertEquals("application/octet-stream", DataUrl.parse("data:;base64,AAAA").mimeType);
+    assertEquals("application/octet-stream", DataUrl.parse("AAAA,AAAA").mimeType);
+    assertEquals(4, DataUrl.parse("data:image/png;base64,AAAA").encodedLength());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void rejectsUrlWithoutData() {
+    DataUrl.parse("data:image/png;base64");
+  }
+
+  @Test
+  public void decodesEveryPaddingAcrossBufferBoundaries() throws IOException {
+    Random random = new Random(42);
+    for (int length = 0; length < 40; length++) {
+      byte[] bytes = new byte[length];
+      random.nextBytes(bytes);
+      String url =
+        "data:application/octet-stream;base64," + Base64.getEncoder().encodeToString(bytes);
+      for (int bufferSize : new int[] { 1, 3, 4, 6, 7, 64 }) {
+        assertArrayEquals(length + "/" + bufferSize, bytes, decode(url, bufferSize, null));
+      }
+    }
+  }
+
+  @Test
+  public void skipsLineBreaksAndStopsAtPadding() throws IOException {
+    byte[] bytes = "hello, world".getBytes("UTF-8");
+    String encoded = Base64.getMimeEncoder(4, "\r\n".getBytes("UTF-8")).encodeToString(bytes);
+    assertArrayEquals(bytes, decode("data:text/plain;base64," + encoded, 8, null));
+    assertArrayEquals(new byte[] { 'a' }, decode("data:text/plain;base64,YQ==ignored", 8, null));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void rejectsTruncatedData() throws IOException {
+    decode("data:text/plain;base64,YWJjZ", 8, null);
+  }
+
+  @Test
+  public void reportsProgressUpToTheEncodedLength() throws IOException {
+    byte[] bytes = new byte[30];
+    String url = "data:;base64," + Base64.getEncoder().encodeToString(bytes);
+    List<Long> progress = new ArrayList<>();
+    decode(url, 12, progress);
+    // Two full buffers of twelve bytes, then the last six.
+    assertEquals(3, progress.size());
+    for (int i = 1; i < progress.size(); i++) {
+      assertTrue(progress.get(i) > progress.get(i - 1));
+    }
+    assertEquals(DataUrl.parse(url).encodedLength(), (long) progress.get(progress.size() - 1));
+  }
+
+  private static byte[] decode(String url, int bufferSize, List<Long> progress) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    DataUrl.parse(url).decodeTo(out, bufferSize, decoded -> {
+      if (progress != null) {
+        progress.add(decoded);
+      }
+    });
+    return out.toByteArray();
+  }
+}
@@ -0,0 +1,244 @@
+package com.ciphernotes.twa.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Runs {@link DeltaSync} against a local mock of the backend's
+ * {@code POST /api/syncNotes}: session cookie check, pull since
+ * {@code last_synced_to}, cookie refresh, server errors, a non-JSON body and
+ * an expired session.
+ */
+public class DeltaSyncTest {
+
+  private static final String SESSION = "session=s%3Aabc.def";
+  private static final String REFRESHED = "session=s%3Aabc.ghi; Path=/; HttpOnly";
+  private static final String SYNC_TOKEN = "AAAAAAAAAAAAAAAAAAAAAA==";
+  private static final Pattern LAST_SYNCED_TO = Pattern.compile("\"last_synced_to\":(\\d+)");
+
+  /** Encrypted rows as the backend stores them, with their serverside_updated_at. */
+  private static final long[] UPDATED_AT = { 100, 200, 300 };
+  private static final String[] IDS = {
+    "6f1c2a5e-0c1d-4c36-9a51-8a4c1f0e2b01",
+    "6f1c2a5e-0c1d-4c36-9a51-8a4c1f0e2b02",
+    "6f1c2a5e-0c1d-4c36-9a51-8a4c1f0e2b03",
+  };
+
+  private final String[] jar = { SESSION };
+  // What the mock does with the next request: 200, 401, 500, or -1 for an HTML page.
+  private volatile int mode = 200;
+  private volatile String lastRequestBody;
+  private volatile int requests;
+  private HttpServer server;
+  private File dir;
+  private DeltaSync sync;
+
+  @Before
+  public void setUp() throws IOException {
+    server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+    server.createContext("/api/syncNotes", this::handle);
+    server.start();
+    dir = Files.createTempDirectory("delta-sync").toFile();
+    String endpoint = "http://127.0.0.1:" + server.getAddress().getPort() + "/api/syncNotes";
+    DeltaSync.CookieJar cookies = new DeltaSync.CookieJar() {
+      @Override
+      public String get(String url) {
+        return jar[0];
+      }
+
+      @Override
+      public void put(String url, String setCookie) {
+        jar[0] = setCookie.substring(0, setCookie.indexOf(';'));
+      }
+    };
+    sync = new DeltaSync(endpoint, "https://ciphernotes.com/api/syncNotes", dir, cookies);
+  }
+
+  @After
+  public void tearDown() {
+    server.stop(0);
+    for (File file : dir.listFiles()) {
+      file.delete();
+    }
+    dir.delete();
+  }
+
+  @Test
+  public void firstPullWritesEveryRow() throws IOException {
+    assertEquals(DeltaSync.Result.PULLED, sync.pull(0, SYNC_TOKEN));
+    assertTrue(lastRequestBody.contains("\"puts\":[]"));
+    assertTrue(lastRequestBody.contains(SYNC_TOKEN));
+    String delta = read(sync.pendingFile());
+    assertTrue(delta.startsWith("{\"from\":0,"));
+    assertTrue(delta.contains("\"syncToken\":\"" + SYNC_TOKEN + "\""));
+    assertEquals(3, count(delta, "\"cipher_text\""));
+    assertTrue(delta.contains("\"synced_to\":300"));
+    assertTrue(delta.endsWith("}}}"));
+  }
+
+  @Test
+  public void storesTheRefreshedCookie() throws IOException {
+    sync.pull(0, SYNC_TOKEN);
+    assertEquals("session=s%3Aabc.ghi", jar[0]);
+  }
+
+  @Test
+  public void laterPullReplacesTheDelta() throws IOException {
+    sync.pull(0, SYNC_TOKEN);
+    assertEquals(DeltaSync.Result.PULLED, sync.pull(200, SYNC_TOKEN));
+    String delta = read(sync.pendingFile());
+    assertTrue(delta.startsWith("{\"from\":200,"));
+    assertEquals(1, count(delta, "\"cipher_text\""));
+  }
+
+  @Test
+  public void serverErrorKeepsThePreviousDelta() throws IOException {
+    sync.pull(200, SYNC_TOKEN);
+    String delta = read(sync.pendingFile());
+    mode = 500;
+    expectIOException();
+    assertEquals(delta, read(sync.pendingFile()));
+  }
+
+  @Test
+  public void nonJsonBodyKeepsThePreviousDeltaAndNoPartialFile() throws IOException {
+    sync.pull(200, SYNC_TOKEN);
+    String delta = read(sync.pendingFile());
+    mode = -1;
+    expectIOException();
+    assertEquals(delta, read(sync.pendingFile()));
+    assertEquals(1, dir.list().length);
+  }
+
+  @Test
+  public void expiredSessionSignsOut() throws IOException {
+    mode = 401;
+    assertEquals(DeltaSync.Result.SIGNED_OUT, sync.pull(0, SYNC_TOKEN));
+  }
+
+  @Test
+  public void missingCookieSignsOutWithoutARequest() throws IOException {
+    jar[0] = null;
+    assertEquals(DeltaSync.Result.SIGNED_OUT, sync.pull(0, SYNC_TOKEN));
+    assertEquals(0, requests);
+  }
+
+  @Test
+  public void discardRemovesTheDelta() throws IOException {
+    sync.pull(0, SYNC_TOKEN);
+    sync.discard();
+    assertFalse(sync.pendingFile().exists());
+  }
+
+  private void expectIOException() {
+    try {
+      sync.pull(0, SYNC_TOKEN);
+      fail("Expected an IOException");
+    } catch (IOException e) {
+      // Expected.
+    }
+  }
+
+  private void handle(HttpExchange exchange) throws IOException {
+    requests++;
+    lastRequestBody = readFully(exchange.getRequestBody());
+    String cookie = exchange.getRequestHeaders().getFirst("Cookie");
+    int status;
+    String body;
+    if (mode == 401 || cookie == null || !cookie.startsWith("session=")) {
+      status = 401;
+      body = "{\"success\":false,\"error\":\"Invalid or expired session\",\"statusCode\":401}";
+    } else if (mode == 500) {
+      status = 500;
+      body = "{\"success\":false,\"error\":\"Internal Server Error\",\"statusCode\":500}";
+    } else if (mode == -1) {
+      status = 200;
+      body = "<!doctype html><title>Captive portal</title>";
+    } else {
+      status = 200;
+      body = pulls(lastSyncedTo(lastRequestBody));
+      exchange.getResponseHeaders().add("Set-Cookie", REFRESHED);
+    }
+    byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+    exchange.getResponseHeaders().add("Content-Type", "application/json");
+    exchange.sendResponseHeaders(status, bytes.length);
+    try (OutputStream out = exchange.getResponseBody()) {
+      out.write(bytes);
+    }
+  }
+
+  private static String pulls(long lastSyncedTo) {
+    StringBuilder puts = new StringBuilder();
+    long syncedTo = lastSyncedTo;
+    for (int i = 0; i < IDS.length; i++) {
+      if (UPDATED_AT[i] <= lastSyncedTo) {
+        continue;
+      }
+      if (puts.length() > 0) puts.append(',');
+      puts.append(
+        String.format(
+          Locale.ROOT,
+          "{\"id\":\"%s\",\"type\":\"note\",\"created_at\":1,\"updated_at\":%d," +
+          "\"cipher_text\":\"c2VjcmV0\",\"iv\":\"aXY=\",\"version\":1,\"deleted_at\":null}",
+          IDS[i],
+          UPDATED_AT[i]
+        )
+      );
+      syncedTo = Math.max(syncedTo, UPDATED_AT[i]);
+    }
+    return (
+      "{\"success\":true,\"data\":{\"puts\":[" +
+      puts +
+      "],\"synced_to\":" +
+      syncedTo +
+      ",\"conflicts\":[]}}"
+    );
+  }
+
+  private static long lastSyncedTo(String requestBody) {
+    Matcher matcher = LAST_SYNCED_TO.matcher(requestBody);
+    return matcher.find() ? Long.parseLong(matcher.group(1)) : 0;
+  }
+
+  private static int count(String text, String needle) {
+    int count = 0;
+    for (int i = text.indexOf(needle); i != -1; i = text.indexOf(needle, i + 1)) {
+      count++;
+    }
+    return count;
+  }
+
+  private static String read(File file) throws IOException {
+    return new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+  }
+
+  private static String readFully(InputStream in) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[8192];
+    int read;
+    while ((read = in.read(buffer)) != -1) {
+      out.write(buffer, 0, read);
+    }
+    return new String(out.toByteArray(), StandardCharsets.UTF_8);
+  }
+}
@@ -0,0 +1,86 @@
+package com.ciphernotes.twa.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class HostAllowlistTest {
+
+  /** The webViewAllowlist entry in app/build.gradle. */
+  private static final HostAllowlist APP = HostAllowlist.compile(
+    "blob: data: about: http|https://ciphernotes.com http|https://localhost " +
+    "http|https://127.0.0.1 http|https://::1 https://*.wasabisys.com/ciphernotes"
+  );
+
+  @Test
+  public void compilesEveryRule() {
+    assertEquals(8, APP.size());
+    assertEquals(0, HostAllowlist.compile("  ").size());
+  }
+
+  @Test
+  public void schemeOnlyRulesIgnoreHostAndPath() {
+    assertTrue(APP.allows("blob", "anything", "/x"));
+    assertTrue(APP.allows("data", null, null));
+    assertFalse(APP.allows("file", null, null));
+    assertFalse(APP.allows(null, "ciphernotes.com", "/"));
+  }
+
+  @Test
+  public void exactHostMatchesAnyPathButNoSubdomain() {
+    assertTrue(APP.allows("https", "ciphernotes.com", "/api/notes"));
+    assertTrue(APP.allows("http", "localhost", null));
+    assertFalse(APP.allows("https", "api.ciphernotes.com", "/"));
+    assertFalse(APP.allows("https", "ciphernotes.com.evil.com", "/"));
+    assertFalse(APP.allows("ftp", "ciphernotes.com", "/"));
+    assertFalse(APP.allows("https", null, "/"));
+  }
+
+  @Test
+  public void comparesSchemeAndHostCaseInsensitively() {
+    assertTrue(APP.allows("HTTPS", "CipherNotes.COM", "/"));
+    assertTrue(APP.allows("https", "S3.EU-CENTRAL-1.WASABISYS.COM", "/ciphernotes"));
+  }
+
+  @Test
+  public void wildcardMatchesApexAndSubdomainsOnly() {
+    assertTrue(APP.allows("https", "wasabisys.com", "/ciphernotes/a"));
+    assertTrue(APP.allows("https", "s3.eu-central-1.wasabisys.com", "/ciphernotes/a"));
+    assertFalse(APP.allows("https", "evilwasabisys.com", "/ciphernotes/a"));
+    assertFalse(APP.allows("http", "s3.wasabisys.com", "/ciphernotes/a"));
+  }
+
+  @Test
+  public void pathPrefixStopsAtSegmentBoundary() {
+    assertTrue(APP.allows("https", "s3.wasabisys.com", "/ciphernotes"));
+    assertTrue(APP.allows("https", "s3.wasabisys.com", "/ciphernotes/"));
+    assertFalse(APP.allows("https", "s3.wasabisys.com", "/ciphernotes-other/a"));
+    assertFalse(APP.allows("https", "s3.wasabisys.com", "/other"));
+    assertFalse(APP.allows("https", "s3.wasabisys.com", null));
+  }
+
+  @Test
+  public void trailingSlashesOnThePrefixAreIgnored() {
+    HostAllowlist allowlist = HostAllowlist.compile("https://example.com/a/ https://example.org/");
+    assertTrue(allowlist.allows("https", "example.com", "/a/b"));
+    assertFalse(allowlist.allows("https", "example.com", "/ab"));
+    assertTrue(allowlist.allows("https", "example.org", "/anything"));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void rejectsRuleWithoutScheme() {
+    HostAllowlist.compile("//example.com");
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void rejectsRuleWithoutHost() {
+    HostAllowlist.compile("https://");
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void rejectsHostWithoutSlashes() {
+    HostAllowlist.compile("https:example.com");
+  }
+}
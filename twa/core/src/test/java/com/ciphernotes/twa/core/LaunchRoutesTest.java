@@ -0,0 +1,47 @@
+package com.ciphernotes.twa.core;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class LaunchRoutesTest {
+
+  @Test
+  public void routeJoinsPathQueryAndFragment() {
+    assertEquals("/note/1?q=x#top", LaunchRoutes.route("/note/1", "q=x", "top"));
+    assertEquals("/note/1", LaunchRoutes.route("/note/1", "", ""));
+    assertEquals("/#top", LaunchRoutes.route(null, null, "top"));
+  }
+
+  @Test
+  public void launchUrlEncodesTheRouteOnceMore() {
+    assertEquals(
+      "/index.html?initialPath=%2Fnote%2F1%3Fq%3Dx%26y%3D2%23top",
+      LaunchRoutes.launchUrl("/index.html", "/note/1", "q=x&y=2", "top")
+    );
+  }
+
+  @Test
+  public void alreadyEncodedCharactersAreEncodedAgain() {
+    assertEquals(
+      "/index.html?initialPath=%2Fsearch%3Fq%3Da%2520b",
+      LaunchRoutes.launchUrl("/index.html", "/search", "q=a%20b", null)
+    );
+  }
+
+  @Test
+  public void encodeKeepsUnreservedLikeUriEncode() {
+    assertEquals(
+      "azAZ09_-!.~'()*",
+      LaunchRoutes.encode("azAZ09_-!.~'()*", new StringBuilder()).toString()
+    );
+    assertEquals("%20%2B%3A%40", LaunchRoutes.encode(" +:@", new StringBuilder()).toString());
+  }
+
+  @Test
+  public void encodeWritesUtf8Bytes() {
+    assertEquals("%C3%A9t%C3%A9", LaunchRoutes.encode("été", new StringBuilder()).toString());
+    // A surrogate pair is one code point, so four bytes rather than two replacement characters.
+    assertEquals("%F0%9F%93%9D", LaunchRoutes.encode("📝", new StringBuilder()).toString());
+  }
+}
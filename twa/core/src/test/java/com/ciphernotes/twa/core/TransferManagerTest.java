@@ -0,0 +1,303 @@
+package com.ciphernotes.twa.core;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Runs {@link TransferManager} against a local stand-in for the object store
+ * that serves byte ranges with an ETag and can cut a response short, change
+ * the object between attempts, answer at the wrong offset, refuse a range or
+ * fail.
+ */
+public class TransferManagerTest {
+
+  private static final int SIZE = 300 * 1024;
+  private static final int CUT_AT = 100 * 1024;
+  private static final Pattern RANGE = Pattern.compile("bytes=(\\d+)-");
+
+  private static final class Request {
+
+    final String range;
+    final String ifRange;
+
+    Request(String range, String ifRange) {
+      this.range = range;
+      this.ifRange = ifRange;
+    }
+  }
+
+  private final List<Request> requests = Collections.synchronizedList(new ArrayList<>());
+  private final BlockingQueue<String> finished = new LinkedBlockingQueue<>();
+  private final Random random = new Random(42);
+
+  // What the stand-in serves and how it misbehaves.
+  private volatile byte[] content = random(SIZE);
+  private volatile String etag = "\"v1\"";
+  private volatile String lastModified;
+  // Bytes after which the next response is cut off, or -1.
+  private volatile int cutAfter = -1;
+  // What the object becomes once a response was cut off, if it changes.
+  private volatile byte[] replacement;
+  private volatile boolean wrongOffset;
+  private volatile boolean refuseRange;
+  // Status for the next request instead of the object, or 0.
+  private volatile int failWith;
+
+  private ServerSocket server;
+  private File dir;
+  private TransferManager transfers;
+  private String url;
+
+  @Before
+  public void setUp() throws IOException {
+    // A raw socket, since HttpServer cannot drop a connection mid-body.
+    server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+    Thread thread = new Thread(this::serveConnections, "TransferManagerTest.server");
+    thread.setDaemon(true);
+    thread.start();
+    dir = Files.createTempDirectory("transfer").toFile();
+    transfers = new TransferManager(dir, 2, 10);
+    transfers.setListener((id, state, bytes, error) -> finished.add(id + ":" + state));
+    url = "http://127.0.0.1:" + server.getLocalPort() + "/blob";
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    transfers.shutdown();
+    server.close();
+    for (File file : dir.listFiles()) {
+      file.delete();
+    }
+    dir.delete();
+  }
+
+  @Test
+  public void plainDownloadTakesOneRequest() throws Exception {
+    assertDone("plain", content);
+    assertEquals(1, requests.size());
+    assertNull(requests.get(0).range);
+    assertEquals(1, dir.list().length);
+  }
+
+  @Test
+  public void resumesWithRangeAndIfRange() throws Exception {
+    cutAfter = CUT_AT;
+    assertDone("resume", content);
+    assertEquals(2, requests.size());
+    assertEquals("bytes=" + CUT_AT + "-", requests.get(1).range);
+    assertEquals("\"v1\"", requests.get(1).ifRange);
+  }
+
+  @Test
+  public void changedObjectIsFetchedAgain() throws Exception {
+    cutAfter = CUT_AT;
+    replacement = random(SIZE + 1000);
+    assertDone("changed", replacement);
+    assertEquals(2, requests.size());
+  }
+
+  @Test
+  public void partialContentAtTheWrongOffsetRestarts() throws Exception {
+    cutAfter = CUT_AT;
+    wrongOffset = true;
+    assertDone("offset", content);
+    assertEquals(3, requests.size());
+    assertNull(requests.get(2).range);
+  }
+
+  @Test
+  public void rangeNotSatisfiableForAnIncompletePartialRestarts() throws Exception {
+    cutAfter = CUT_AT;
+    refuseRange = true;
+    assertDone("short", content);
+    assertEquals(3, requests.size());
+    assertNull(requests.get(2).range);
+  }
+
+  @Test
+  public void rangeNotSatisfiableForACompletePartialFinishes() throws Exception {
+    refuseRange = true;
+    // As left by a process that died between the last byte and the rename.
+    writePartial("complete", content, "etag=\"v1\"\nlength=" + content.length + "\n");
+    assertDone("complete", content);
+    assertEquals(1, requests.size());
+  }
+
+  @Test
+  public void withoutValidatorRestartsWithoutRange() throws Exception {
+    etag = null;
+    cutAfter = CUT_AT;
+    assertDone("novalidator", content);
+    assertNull(requests.get(1).range);
+  }
+
+  @Test
+  public void weakETagResumesWithLastModified() throws Exception {
+    etag = "W/\"v1\"";
+    lastModified = "Wed, 14 Oct 2026 08:00:00 GMT";
+    cutAfter = CUT_AT;
+    assertDone("weak", content);
+    assertEquals(lastModified, requests.get(1).ifRange);
+  }
+
+  @Test
+  public void serverErrorIsRetried() throws Exception {
+    failWith = 503;
+    assertDone("unavailable", content);
+    assertEquals(2, requests.size());
+  }
+
+  @Test
+  public void notFoundFailsWithoutRetry() throws Exception {
+    failWith = 404;
+    transfers.enqueue(Arrays.asList(new TransferManager.Download("missing", url)));
+    assertEquals("missing:FAILED", finished.poll(10, TimeUnit.SECONDS));
+    assertEquals(1, requests.size());
+  }
+
+  private void assertDone(String id, byte[] expected) throws Exception {
+    transfers.enqueue(Arrays.asList(new TransferManager.Download(id, url)));
+    assertEquals(id + ":DONE", finished.poll(10, TimeUnit.SECONDS));
+    File file = transfers.completedFile(id);
+    assertNotNull(file);
+    assertArrayEquals(expected, Files.readAllBytes(file.toPath()));
+    assertFalse(new File(dir, id + ".part.meta").exists());
+  }
+
+  private void serveConnections() {
+    while (!server.isClosed()) {
+      try (Socket socket = server.accept()) {
+        handle(socket);
+      } catch (IOException e) {
+        // Closed by tearDown(), or a client that went away.
+      }
+    }
+  }
+
+  /** Answers one request and closes the connection, mid-body when cutting. */
+  private void handle(Socket socket) throws IOException {
+    BufferedReader reader = new BufferedReader(
+      new InputStreamReader(socket.getInputStream(), StandardCharsets.ISO_8859_1)
+    );
+    reader.readLine();
+    String range = null;
+    String ifRange = null;
+    String line;
+    while ((line = reader.readLine()) != null && !line.isEmpty()) {
+      int colon = line.indexOf(':');
+      String name = line.substring(0, colon).trim().toLowerCase(Locale.ROOT);
+      String value = line.substring(colon + 1).trim();
+      if (name.equals("range")) {
+        range = value;
+      } else if (name.equals("if-range")) {
+        ifRange = value;
+      }
+    }
+    requests.add(new Request(range, ifRange));
+    OutputStream out = socket.getOutputStream();
+    if (failWith != 0) {
+      int status = failWith;
+      failWith = 0;
+      writeHead(out, status, "Content-Length: 0\r\n");
+      return;
+    }
+    byte[] body = content;
+    StringBuilder headers = new StringBuilder();
+    if (etag != null) {
+      headers.append("ETag: ").append(etag).append("\r\n");
+    }
+    if (lastModified != null) {
+      headers.append("Last-Modified: ").append(lastModified).append("\r\n");
+    }
+    boolean sameObject = ifRange == null || ifRange.equals(etag) || ifRange.equals(lastModified);
+    Matcher matcher = RANGE.matcher(range != null ? range : "");
+    int start = 0;
+    int status = 200;
+    if (matcher.matches() && sameObject) {
+      if (refuseRange) {
+        headers.append("Content-Range: bytes */").append(body.length).append("\r\n");
+        writeHead(out, 416, headers.append("Content-Length: 0\r\n").toString());
+        return;
+      }
+      start = wrongOffset ? 0 : Integer.parseInt(matcher.group(1));
+      status = 206;
+      headers
+        .append("Content-Range: bytes ")
+        .append(start)
+        .append('-')
+        .append(body.length - 1)
+        .append('/')
+        .append(body.length)
+        .append("\r\n");
+    }
+    int length = body.length - start;
+    headers.append("Content-Length: ").append(length).append("\r\n");
+    writeHead(out, status, headers.toString());
+    int cut = cutAfter;
+    if (cut >= 0) {
+      cutAfter = -1;
+      out.write(body, start, cut);
+      out.flush();
+      if (replacement != null) {
+        content = replacement;
+        etag = "\"v2\"";
+      }
+      // Closing short of Content-Length.
+      return;
+    }
+    out.write(body, start, length);
+    out.flush();
+  }
+
+  private static void writeHead(OutputStream out, int status, String headers) throws IOException {
+    out.write(
+      ("HTTP/1.1 " + status + " X\r\n" + headers + "Connection: close\r\n\r\n").getBytes(
+        StandardCharsets.ISO_8859_1
+      )
+    );
+  }
+
+  private void writePartial(String id, byte[] body, String meta) throws IOException {
+    try (OutputStream out = new FileOutputStream(new File(dir, id + ".part"))) {
+      out.write(body);
+    }
+    try (OutputStream out = new FileOutputStream(new File(dir, id + ".part.meta"))) {
+      out.write(meta.getBytes(StandardCharsets.ISO_8859_1));
+    }
+  }
+
+  private byte[] random(int size) {
+    byte[] bytes = new byte[size];
+    random.nextBytes(bytes);
+    return bytes;
+  }
+}